@@ -0,0 +1,302 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.flazr.io;
+
+import com.flazr.rtmp.RtmpConfig;
+import java.io.File;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.buffer.SlicedChannelBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * process wide cache of fixed size file blocks held off heap, shared by
+ * every reader of the same file so that many viewers of a popular title
+ * read each block from disk once, least recently used blocks are dropped
+ * when over the byte budget, blocks are handed out read only
+ *
+ * every block is a direct buffer of the same size, once an evicted block
+ * is no longer referenced by any reader its buffer goes to a free list and
+ * is reused for the next miss instead of allocating a new one
+ */
+public class BlockCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlockCache.class);
+
+    private static final int MAX_FREE_BLOCKS = 64;
+
+    private static BlockCache instance;
+
+    private final int blockSize;
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Block> blocks = new LinkedHashMap<Key, Block>(1024, 0.75f, true);
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+    // evicted blocks that readers may still hold, keyed by the handle they all reference
+    private final Map<Reference<ChannelBuffer>, ByteBuffer> evicted = new HashMap<Reference<ChannelBuffer>, ByteBuffer>();
+    private final ReferenceQueue<ChannelBuffer> released = new ReferenceQueue<ChannelBuffer>();
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long recycled;
+
+    /**
+     * the buffer is only written by load, what readers get is derived from
+     * the read only handle so that it stays reachable while any is in use
+     */
+    private static class Block {
+
+        private final ByteBuffer buffer;
+        private final ChannelBuffer handle;
+
+        Block(final ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.handle = ChannelBuffers.wrappedBuffer(buffer.asReadOnlyBuffer());
+        }
+
+        /**
+         * slices of a sliced buffer keep referencing the handle, unlike
+         * those of the nio backed buffer itself
+         */
+        ChannelBuffer view() {
+            return new SlicedChannelBuffer(handle, 0, handle.capacity());
+        }
+
+    }
+
+    private static class Key {
+
+        private final String file;
+        private final long block;
+
+        Key(final String file, final long block) {
+            this.file = file;
+            this.block = block;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if(!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return block == key.block && file.equals(key.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return file.hashCode() * 31 + (int) (block ^ (block >>> 32));
+        }
+
+    }
+
+    public BlockCache(final int blockSize, final long maxBytes) {
+        this.blockSize = blockSize;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * the shared instance, null if caching is disabled
+     */
+    public static synchronized BlockCache get() {
+        if(instance == null && RtmpConfig.CACHE_SIZE > 0) {
+            instance = new BlockCache(RtmpConfig.CACHE_BLOCK_SIZE, RtmpConfig.CACHE_SIZE);
+            logger.info("block cache size: {}, block size: {}", RtmpConfig.CACHE_SIZE, RtmpConfig.CACHE_BLOCK_SIZE);
+        }
+        return instance;
+    }
+
+    /**
+     * a reader going through the shared cache, or straight to the file if
+     * caching is disabled
+     */
+    public static BufferReader open(final String path) {
+        final BlockCache cache = get();
+        if(cache == null) {
+            return new FileChannelReader(path);
+        }
+        return new CachedFileReader(cache, new File(path));
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * read only view of the block, loaded through the channel on a miss,
+     * keep only the view or its slices, not nio buffers taken from it, the
+     * bytes are reused for another block once nothing references the view
+     * @param file identifies the file contents, same key means same bytes
+     */
+    public ChannelBuffer getBlock(final String file, final FileChannel channel, final long fileSize, final long block) {
+        final Key key = new Key(file, block);
+        final ByteBuffer bb;
+        synchronized(this) {
+            final Block cached = blocks.get(key);
+            if(cached != null) {
+                hits++;
+                return cached.view();
+            }
+            misses++;
+            bb = allocate();
+        }
+        try {
+            load(bb, channel, fileSize, block);
+        } catch(RuntimeException re) {
+            synchronized(this) {
+                recycle(bb);
+            }
+            throw re;
+        }
+        final Block loaded = new Block(bb);
+        synchronized(this) {
+            final Block existing = blocks.get(key);
+            if(existing != null) { // another reader got there first
+                recycle(bb);
+                return existing.view();
+            }
+            blocks.put(key, loaded);
+            bytes += blockSize;
+            final Iterator<Block> eldest = blocks.values().iterator();
+            while(bytes > maxBytes && eldest.hasNext()) {
+                final Block dropped = eldest.next();
+                if(dropped == loaded) {
+                    break;
+                }
+                eldest.remove();
+                bytes -= blockSize;
+                evictions++;
+                release(dropped);
+            }
+            return loaded.view();
+        }
+    }
+
+    /**
+     * a recycled buffer if one is free, must hold the lock
+     */
+    private ByteBuffer allocate() {
+        Reference<? extends ChannelBuffer> ref;
+        while((ref = released.poll()) != null) {
+            final ByteBuffer bb = evicted.remove(ref);
+            if(bb != null) {
+                recycle(bb);
+            }
+        }
+        final ByteBuffer bb = free.poll();
+        if(bb != null) {
+            recycled++;
+            bb.clear();
+            return bb;
+        }
+        return ByteBuffer.allocateDirect(blockSize);
+    }
+
+    private void recycle(final ByteBuffer bb) {
+        if(free.size() < MAX_FREE_BLOCKS) {
+            free.add(bb);
+        }
+    }
+
+    /**
+     * recycled once the handle, and so every slice of it, is unreachable
+     */
+    private void release(final Block block) {
+        evicted.put(new WeakReference<ChannelBuffer>(block.handle, released), block.buffer);
+    }
+
+    private void load(final ByteBuffer bb, final FileChannel channel, final long fileSize, final long block) {
+        final long start = block * blockSize;
+        bb.limit((int) Math.min(blockSize, fileSize - start));
+        try {
+            while(bb.hasRemaining()) {
+                if(channel.read(bb, start + bb.position()) < 0) {
+                    throw new RuntimeException("unexpected end of file at: " + (start + bb.position()));
+                }
+            }
+        } catch(RuntimeException re) {
+            throw re;
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+        bb.flip();
+    }
+
+    /**
+     * drops all blocks, readers holding slices keep them until done
+     */
+    public synchronized void clear() {
+        for(final Block block : blocks.values()) {
+            release(block);
+        }
+        blocks.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized int getBlockCount() {
+        return blocks.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * misses served with the buffer of an evicted block
+     */
+    public synchronized long getRecycled() {
+        return recycled;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "[block cache blocks: " + blocks.size() + " bytes: " + bytes + "/" + maxBytes
+                + " hits: " + hits + " misses: " + misses + " evictions: " + evictions + " recycled: " + recycled + ']';
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.flazr.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.channels.FileChannel;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * reads through the shared block cache, read() returns read only slices
+ * of the cached blocks without copying, so callers must not modify them
+ */
+public class CachedFileReader implements BufferReader {
+
+    private static final Logger logger = LoggerFactory.getLogger(CachedFileReader.class);
+
+    private final BlockCache cache;
+    private final String absolutePath;
+    private final String key;
+    private final FileChannel in;
+    private final SharedFileChannel shared;
+    private final long fileSize;
+    private long position;
+
+    public CachedFileReader(final BlockCache cache, final File file) {
+        this.cache = cache;
+        absolutePath = file.getAbsolutePath();
+        try {
+            in = new FileInputStream(file).getChannel();
+            fileSize = in.size();
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+        shared = new SharedFileChannel(absolutePath, in);
+        // a rewritten or growing file gets new blocks
+        key = absolutePath + ':' + fileSize + ':' + file.lastModified();
+        logger.info("opened file: {}", absolutePath);
+    }
+
+    @Override
+    public long size() {
+        return fileSize;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void position(final long newPosition) {
+        position = newPosition;
+    }
+
+    private ChannelBuffer slice(final long block, final int offset, final int length) {
+        return cache.getBlock(key, in, fileSize, block).slice(offset, length);
+    }
+
+    @Override
+    public ChannelBuffer read(final int size) {
+        if(position + size > fileSize) {
+            throw new RuntimeException("unexpected end of file: " + absolutePath);
+        }
+        if(size == 0) {
+            return ChannelBuffers.EMPTY_BUFFER;
+        }
+        final int blockSize = cache.getBlockSize();
+        long block = position / blockSize;
+        int offset = (int) (position % blockSize);
+        position += size;
+        if(offset + size <= blockSize) { // the usual case
+            return slice(block, offset, size);
+        }
+        final ChannelBuffer[] parts = new ChannelBuffer[(offset + size + blockSize - 1) / blockSize];
+        int remaining = size;
+        for(int i = 0; i < parts.length; i++) {
+            final int length = Math.min(remaining, blockSize - offset);
+            parts[i] = slice(block++, offset, length);
+            remaining -= length;
+            offset = 0;
+        }
+        return ChannelBuffers.wrappedBuffer(parts);
+    }
+
+    @Override
+    public byte[] readBytes(final int size) {
+        final byte[] bytes = new byte[size];
+        read(size).getBytes(0, bytes);
+        return bytes;
+    }
+
+    @Override
+    public int readInt() {
+        return read(4).getInt(0);
+    }
+
+    @Override
+    public long readUnsignedInt() {
+        return read(4).getUnsignedInt(0);
+    }
+
+    /**
+     * for sending file regions, the file stays open until they are released
+     */
+    public SharedFileChannel getSharedChannel() {
+        return shared;
+    }
+
+    @Override
+    public void close() {
+        shared.release();
+    }
+
+}
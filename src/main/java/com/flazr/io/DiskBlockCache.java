@@ -0,0 +1,192 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.flazr.io;
+
+import com.flazr.util.Utils;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * blocks of remote files kept as one local file each, least recently used
+ * blocks are deleted when over the byte budget, blocks found in the dir at
+ * startup are kept
+ */
+public class DiskBlockCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(DiskBlockCache.class);
+
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private final File dir;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> blocks = new LinkedHashMap<String, Long>(1024, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public DiskBlockCache(final File dir, final long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        dir.mkdirs();
+        final File[] files = dir.listFiles();
+        if(files != null) {
+            for(final File file : files) {
+                if(file.getName().endsWith(TEMP_EXTENSION)) {
+                    file.delete();
+                } else {
+                    blocks.put(file.getName(), file.length());
+                    bytes += file.length();
+                }
+            }
+        }
+        evict();
+        logger.info("disk block cache: {}, {} blocks, {} of {} bytes", new Object[] {
+                dir.getAbsolutePath(), blocks.size(), bytes, maxBytes});
+    }
+
+    /**
+     * short file name safe form of a key such as a url
+     */
+    public static String hash(final String key) {
+        try {
+            return Utils.toHex(MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8")));
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String name(final String file, final long block) {
+        return file + "-" + block;
+    }
+
+    public synchronized boolean contains(final String file, final long block) {
+        return blocks.containsKey(name(file, block));
+    }
+
+    /**
+     * null if not cached
+     */
+    public byte[] get(final String file, final long block) {
+        final String name = name(file, block);
+        final Long size;
+        synchronized(this) {
+            size = blocks.get(name);
+            if(size == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+        final byte[] bytes = new byte[size.intValue()];
+        try {
+            final FileInputStream in = new FileInputStream(new File(dir, name));
+            try {
+                int offset = 0;
+                while(offset < bytes.length) {
+                    final int count = in.read(bytes, offset, bytes.length - offset);
+                    if(count < 0) {
+                        throw new RuntimeException("cached block truncated: " + name);
+                    }
+                    offset += count;
+                }
+            } finally {
+                in.close();
+            }
+        } catch(Exception e) { // deleted by eviction in the meantime
+            logger.debug("unable to read cached block {}: {}", name, e.getMessage());
+            return null;
+        }
+        return bytes;
+    }
+
+    public void put(final String file, final long block, final byte[] data) {
+        final String name = name(file, block);
+        final File temp = new File(dir, name + TEMP_EXTENSION + Thread.currentThread().getId());
+        try {
+            final FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        } catch(Exception e) {
+            logger.warn("unable to cache block {}: {}", name, e.getMessage());
+            temp.delete();
+            return;
+        }
+        synchronized(this) {
+            final File target = new File(dir, name);
+            target.delete();
+            if(!temp.renameTo(target)) {
+                temp.delete();
+                return;
+            }
+            final Long previous = blocks.put(name, (long) data.length);
+            if(previous != null) {
+                bytes -= previous;
+            }
+            bytes += data.length;
+            evict();
+        }
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<String, Long>> eldest = blocks.entrySet().iterator();
+        while(bytes > maxBytes && eldest.hasNext()) {
+            final Map.Entry<String, Long> entry = eldest.next();
+            eldest.remove();
+            bytes -= entry.getValue();
+            evictions++;
+            new File(dir, entry.getKey()).delete();
+        }
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "[disk block cache blocks: " + blocks.size() + " bytes: " + bytes + "/" + maxBytes
+                + " hits: " + hits + " misses: " + misses + " evictions: " + evictions + ']';
+    }
+
+}
@@ -34,6 +34,7 @@ public class FileChannelReader implements BufferReader {
 
     private final String absolutePath;
     private final FileChannel in;
+    private final SharedFileChannel shared;
     private final long fileSize;
 
     public FileChannelReader(final String path) {
@@ -48,6 +49,7 @@ public class FileChannelReader implements BufferReader {
         } catch(Exception e) {
             throw new RuntimeException(e);
         }
+        shared = new SharedFileChannel(absolutePath, in);
         logger.info("opened file: {}", absolutePath);
     }
 
@@ -94,21 +96,29 @@ public class FileChannelReader implements BufferReader {
         final byte[] bytes = new byte[size];
         final ByteBuffer bb = ByteBuffer.wrap(bytes);
         try {
-            in.read(bb);
+            while(bb.hasRemaining()) {
+                if(in.read(bb) < 0) {
+                    throw new RuntimeException("unexpected end of file: " + absolutePath);
+                }
+            }
+        } catch(RuntimeException re) {
+            throw re;
         } catch(Exception e) {
             throw new RuntimeException(e);
         }
         return bytes;
     }
 
+    /**
+     * for sending file regions, the file stays open until they are released
+     */
+    public SharedFileChannel getSharedChannel() {
+        return shared;
+    }
+
     @Override
     public void close() {
-        try {
-            in.close();
-        } catch(Exception e) {
-            logger.warn("error closing file {}: {}", absolutePath, e.getMessage());
-        }
-        logger.info("closed file: {}", absolutePath);
+        shared.release();
     }
 
 }
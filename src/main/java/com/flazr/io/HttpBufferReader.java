@@ -0,0 +1,316 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.flazr.io;
+
+import com.flazr.rtmp.RtmpConfig;
+import com.flazr.util.NamedThreadFactory;
+import java.io.File;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.util.EntityUtils;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * media file on an http origin read with range requests, block by block on
+ * demand with a few blocks read ahead in the background, every block is
+ * kept in a local disk cache so only the parts actually played are ever
+ * downloaded and readers can start before the whole file is there
+ */
+public class HttpBufferReader implements BufferReader {
+
+    private static final Logger logger = LoggerFactory.getLogger(HttpBufferReader.class);
+
+    private static final int MAX_READ_AHEAD_QUEUE = 256;
+
+    // ClientPNames.CONN_MANAGER_TIMEOUT only arrives with httpclient 4.2, 4.1
+    // reads the same key to bound the wait for a pooled connection
+    private static final String CONN_MANAGER_TIMEOUT = "http.conn-manager.timeout";
+
+    private static final HttpClient CLIENT;
+    private static final ThreadPoolExecutor READ_AHEAD;
+    private static final AtomicLong REQUESTS = new AtomicLong();
+    private static final AtomicLong BYTES_FETCHED = new AtomicLong();
+
+    private static DiskBlockCache sharedCache;
+
+    static {
+        final ThreadSafeClientConnManager connections = new ThreadSafeClientConnManager();
+        connections.setMaxTotal(200);
+        connections.setDefaultMaxPerRoute(50);
+        final DefaultHttpClient client = new DefaultHttpClient(connections);
+        // a stalled origin must not hold a playing stream forever
+        final HttpParams params = client.getParams();
+        HttpConnectionParams.setConnectionTimeout(params, RtmpConfig.SERVER_ORIGIN_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, RtmpConfig.SERVER_ORIGIN_TIMEOUT);
+        params.setLongParameter(CONN_MANAGER_TIMEOUT, RtmpConfig.SERVER_ORIGIN_TIMEOUT);
+        CLIENT = client;
+        READ_AHEAD = new ThreadPoolExecutor(RtmpConfig.SERVER_ORIGIN_READ_AHEAD_THREADS,
+                RtmpConfig.SERVER_ORIGIN_READ_AHEAD_THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_READ_AHEAD_QUEUE), new NamedThreadFactory("http-read-ahead"));
+        READ_AHEAD.allowCoreThreadTimeOut(true);
+    }
+
+    private final String url;
+    private final DiskBlockCache cache;
+    private final int blockSize;
+    private final int readAheadBlocks;
+    private final String key;
+    private final long fileSize;
+    private long position;
+    private long lastBlock = -1; // most reads are small and sequential
+    private byte[] lastBlockBytes;
+    private volatile boolean readingAhead;
+    private volatile boolean closed;
+
+    public HttpBufferReader(final String url, final DiskBlockCache cache, final int blockSize, final int readAheadBlocks) {
+        this.url = url;
+        this.cache = cache;
+        this.blockSize = blockSize;
+        this.readAheadBlocks = readAheadBlocks;
+        final HttpGet get = new HttpGet(url);
+        get.addHeader("Range", "bytes=0-0");
+        try {
+            final HttpResponse response = CLIENT.execute(get);
+            EntityUtils.consume(response.getEntity());
+            final int status = response.getStatusLine().getStatusCode();
+            final Header range = response.getFirstHeader("Content-Range");
+            if(status != 206 || range == null) {
+                throw new RuntimeException("range request not supported: " + status + " " + url);
+            }
+            final String value = range.getValue();
+            fileSize = Long.parseLong(value.substring(value.lastIndexOf('/') + 1).trim());
+            // a changed file on the origin gets new blocks
+            final Header etag = response.getFirstHeader("ETag");
+            final Header modified = response.getFirstHeader("Last-Modified");
+            key = DiskBlockCache.hash(url + '|' + fileSize + '|' + (etag != null ? etag.getValue()
+                    : modified != null ? modified.getValue() : ""));
+        } catch(RuntimeException re) {
+            throw re;
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+        logger.info("opened url: {}, size: {}", url, fileSize);
+    }
+
+    /**
+     * a reader for the configured origin using the shared disk cache
+     */
+    public static HttpBufferReader open(final String url) {
+        synchronized(HttpBufferReader.class) {
+            if(sharedCache == null) {
+                sharedCache = new DiskBlockCache(new File(RtmpConfig.SERVER_ORIGIN_CACHE_DIR),
+                        RtmpConfig.SERVER_ORIGIN_CACHE_MB * 1024L * 1024L);
+            }
+        }
+        return new HttpBufferReader(url, sharedCache, RtmpConfig.SERVER_ORIGIN_BLOCK_SIZE,
+                RtmpConfig.SERVER_ORIGIN_READ_AHEAD);
+    }
+
+    public static synchronized DiskBlockCache getSharedCache() {
+        return sharedCache;
+    }
+
+    public static long getRequestCount() {
+        return REQUESTS.get();
+    }
+
+    public static long getBytesFetched() {
+        return BYTES_FETCHED.get();
+    }
+
+    /**
+     * downloads blocks first to last (inclusive) with one request and caches them
+     * @return the first block
+     */
+    private byte[] fetch(final long first, final long last) {
+        final long start = first * blockSize;
+        final long end = Math.min((last + 1) * blockSize, fileSize) - 1;
+        final HttpGet get = new HttpGet(url);
+        get.addHeader("Range", "bytes=" + start + "-" + end);
+        REQUESTS.incrementAndGet();
+        byte[] firstBytes = null;
+        try {
+            final HttpResponse response = CLIENT.execute(get);
+            final HttpEntity entity = response.getEntity();
+            if(response.getStatusLine().getStatusCode() != 206) {
+                EntityUtils.consume(entity);
+                throw new RuntimeException("unexpected status for range request: "
+                        + response.getStatusLine() + " " + url);
+            }
+            final InputStream in = entity.getContent();
+            try {
+                for(long block = first; block <= last; block++) {
+                    final byte[] bytes = new byte[(int) (Math.min((block + 1) * blockSize, fileSize) - block * blockSize)];
+                    int offset = 0;
+                    while(offset < bytes.length) {
+                        final int count = in.read(bytes, offset, bytes.length - offset);
+                        if(count < 0) {
+                            throw new RuntimeException("origin response truncated: " + url);
+                        }
+                        offset += count;
+                    }
+                    BYTES_FETCHED.addAndGet(bytes.length);
+                    cache.put(key, block, bytes);
+                    if(block == first) {
+                        firstBytes = bytes;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch(RuntimeException re) {
+            throw re;
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+        return firstBytes;
+    }
+
+    private byte[] getBlock(final long block) {
+        if(block == lastBlock) {
+            return lastBlockBytes;
+        }
+        byte[] bytes = cache.get(key, block);
+        if(bytes == null) {
+            long last = block; // fetch the run of missing blocks up to the read ahead in one go
+            final long lastInFile = (fileSize - 1) / blockSize;
+            while(last < Math.min(block + readAheadBlocks, lastInFile) && !cache.contains(key, last + 1)) {
+                last++;
+            }
+            bytes = fetch(block, last);
+        }
+        lastBlock = block;
+        lastBlockBytes = bytes;
+        return bytes;
+    }
+
+    private void readAhead(final long fromBlock) {
+        if(readingAhead || readAheadBlocks <= 0) {
+            return;
+        }
+        final long lastInFile = (fileSize - 1) / blockSize;
+        final long to = Math.min(fromBlock + readAheadBlocks - 1, lastInFile);
+        long first = fromBlock;
+        while(first <= to && cache.contains(key, first)) {
+            first++;
+        }
+        if(first > to) {
+            return;
+        }
+        long last = first;
+        while(last < to && !cache.contains(key, last + 1)) {
+            last++;
+        }
+        readingAhead = true;
+        final long firstMissing = first;
+        final long lastMissing = last;
+        try {
+            READ_AHEAD.execute(new Runnable() {
+                @Override public void run() {
+                    try {
+                        if(!closed) {
+                            fetch(firstMissing, lastMissing);
+                        }
+                    } catch(Exception e) {
+                        logger.warn("read ahead failed: {} {}", url, e.getMessage());
+                    } finally {
+                        readingAhead = false;
+                    }
+                }
+            });
+        } catch(RejectedExecutionException e) { // busy, the blocks get read on demand
+            readingAhead = false;
+        }
+    }
+
+    @Override
+    public long size() {
+        return fileSize;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void position(final long newPosition) {
+        position = newPosition;
+    }
+
+    @Override
+    public ChannelBuffer read(final int size) {
+        return ChannelBuffers.wrappedBuffer(readBytes(size));
+    }
+
+    @Override
+    public byte[] readBytes(final int size) {
+        if(position + size > fileSize) {
+            throw new RuntimeException("unexpected end of file: " + url);
+        }
+        final byte[] bytes = new byte[size];
+        int done = 0;
+        while(done < size) {
+            final long block = (position + done) / blockSize;
+            final int offset = (int) ((position + done) % blockSize);
+            final byte[] blockBytes = getBlock(block);
+            final int length = Math.min(size - done, blockBytes.length - offset);
+            System.arraycopy(blockBytes, offset, bytes, done, length);
+            done += length;
+        }
+        position += size;
+        readAhead(position / blockSize + 1);
+        return bytes;
+    }
+
+    @Override
+    public int readInt() {
+        return read(4).readInt();
+    }
+
+    @Override
+    public long readUnsignedInt() {
+        return read(4).readUnsignedInt();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        logger.info("closed url: {}", url);
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.io;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.DefaultFileRegion;
+import org.jboss.netty.channel.FileRegion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * a file channel that is only closed when the reader that opened it and
+ * every file region still queued on a socket have released it, so that a
+ * stopped or seeking player never breaks a transfer in progress
+ */
+public class SharedFileChannel {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedFileChannel.class);
+
+    private final String absolutePath;
+    private final FileChannel channel;
+    private int refCount = 1; // the reader
+
+    public SharedFileChannel(final String absolutePath, final FileChannel channel) {
+        this.absolutePath = absolutePath;
+        this.channel = channel;
+    }
+
+    /**
+     * @return the channel for positional reads and transfers only, never
+     * change its position
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    public String getAbsolutePath() {
+        return absolutePath;
+    }
+
+    /**
+     * @return false if already closed
+     */
+    public synchronized boolean retain() {
+        if(refCount == 0) {
+            return false;
+        }
+        refCount++;
+        return true;
+    }
+
+    public void release() {
+        synchronized(this) {
+            if(refCount == 0 || --refCount > 0) {
+                return;
+            }
+        }
+        try {
+            channel.close();
+        } catch(Exception e) {
+            logger.warn("error closing file {}: {}", absolutePath, e.getMessage());
+        }
+        logger.info("closed file: {}", absolutePath);
+    }
+
+    /**
+     * copies bytes without touching the channel position
+     */
+    public ChannelBuffer read(final long position, final int length) {
+        final ByteBuffer bb = ByteBuffer.allocate(length);
+        try {
+            while(bb.hasRemaining()) {
+                if(channel.read(bb, position + bb.position()) < 0) {
+                    throw new RuntimeException("unexpected end of file: " + absolutePath);
+                }
+            }
+        } catch(RuntimeException re) {
+            throw re;
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+        bb.flip();
+        return ChannelBuffers.wrappedBuffer(bb);
+    }
+
+    /**
+     * a region the socket transfers straight from the page cache, the
+     * caller must retain() before and release() once the write completes
+     */
+    public FileRegion region(final long position, final long count) {
+        return new DefaultFileRegion(channel, position, count);
+    }
+
+}
@@ -0,0 +1,284 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.flazr.io;
+
+import com.flazr.rtmp.RtmpConfig;
+import com.flazr.util.NamedThreadFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * read through copy of hot media files from the (slow) home dir to a fast
+ * local dir, files opened often enough are copied in the background and
+ * readers get the fast copy from then on, the least recently opened copies
+ * are deleted to stay within the byte budget, a copy is only used while
+ * size and modification time still match the original
+ */
+public class TieredStorage {
+
+    private static final Logger logger = LoggerFactory.getLogger(TieredStorage.class);
+
+    private static final String TEMP_EXTENSION = ".tmp";
+    private static final int MAX_TRACKED_OPENS = 10000;
+
+    private static TieredStorage instance;
+
+    private final String sourceRoot;
+    private final File fastRoot;
+    private final long maxBytes;
+    private final int promoteAfter;
+    private final ExecutorService promoter = Executors.newSingleThreadExecutor(new NamedThreadFactory("tier-promote"));
+
+    // guarded by this
+    private final LinkedHashMap<String, Long> promoted = new LinkedHashMap<String, Long>(64, 0.75f, true);
+    private final Map<String, Integer> opens = new HashMap<String, Integer>();
+    private final Set<String> promoting = new HashSet<String>();
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long promotions;
+    private long evictions;
+
+    /**
+     * @param promoteAfter opens of the same file before it is copied
+     */
+    public TieredStorage(final File sourceRoot, final File fastRoot, final long maxBytes, final int promoteAfter) {
+        this.sourceRoot = sourceRoot.getAbsolutePath() + File.separator;
+        this.fastRoot = fastRoot;
+        this.maxBytes = maxBytes;
+        this.promoteAfter = promoteAfter;
+        fastRoot.mkdirs();
+        adopt(fastRoot, "");
+        logger.info("fast tier: {}, {} files, {} of {} bytes", new Object[] {
+                fastRoot.getAbsolutePath(), promoted.size(), bytes, maxBytes});
+    }
+
+    /**
+     * the shared instance, null if no fast tier is configured
+     */
+    public static synchronized TieredStorage get() {
+        if(instance == null && RtmpConfig.SERVER_TIER_DIR != null) {
+            instance = new TieredStorage(new File(RtmpConfig.SERVER_HOME_DIR), new File(RtmpConfig.SERVER_TIER_DIR),
+                    RtmpConfig.SERVER_TIER_MB * 1024L * 1024L, RtmpConfig.SERVER_TIER_PROMOTE_AFTER);
+        }
+        return instance;
+    }
+
+    /**
+     * the path through the fast tier if configured, else unchanged
+     */
+    public static String resolvePath(final String path) {
+        final TieredStorage tiers = get();
+        return tiers == null ? path : tiers.resolve(path);
+    }
+
+    private void adopt(final File dir, final String prefix) { // copies left by a previous run
+        final File[] files = dir.listFiles();
+        if(files == null) {
+            return;
+        }
+        for(final File file : files) {
+            if(file.isDirectory()) {
+                adopt(file, prefix + file.getName() + File.separator);
+            } else if(file.getName().endsWith(TEMP_EXTENSION)) {
+                file.delete();
+            } else {
+                promoted.put(prefix + file.getName(), file.length());
+                bytes += file.length();
+            }
+        }
+        evict();
+    }
+
+    /**
+     * the fast copy of the file if there is a valid one, else the original
+     * path, counts the open and may start a copy in the background
+     */
+    public String resolve(final String path) {
+        final File source = new File(path);
+        final String absolute = source.getAbsolutePath();
+        if(!absolute.startsWith(sourceRoot)) {
+            return path;
+        }
+        final String key = absolute.substring(sourceRoot.length());
+        final File fast = new File(fastRoot, key);
+        synchronized(this) {
+            if(promoted.get(key) != null) { // get, not contains, counts as use for the lru order
+                if(fast.length() == source.length() && fast.lastModified() == source.lastModified()) {
+                    hits++;
+                    return fast.getPath();
+                }
+                logger.info("original changed, dropping fast copy: {}", key);
+                remove(key);
+            }
+            misses++;
+            if(promoting.contains(key) || !source.isFile() || source.length() > maxBytes) {
+                return path;
+            }
+            final Integer count = opens.get(key);
+            final int newCount = count == null ? 1 : count + 1;
+            if(newCount < promoteAfter) {
+                if(opens.size() >= MAX_TRACKED_OPENS) { // many cold files, start counting afresh
+                    opens.clear();
+                }
+                opens.put(key, newCount);
+                return path;
+            }
+            opens.remove(key);
+            promoting.add(key);
+        }
+        promoter.execute(new Runnable() {
+            @Override public void run() {
+                promote(key, source, fast);
+            }
+        });
+        return path;
+    }
+
+    private void promote(final String key, final File source, final File fast) {
+        final long start = System.currentTimeMillis();
+        final File temp = new File(fast.getPath() + TEMP_EXTENSION);
+        boolean done = false;
+        try {
+            fast.getParentFile().mkdirs();
+            final long lastModified = source.lastModified();
+            copy(source, temp);
+            if(source.length() != temp.length() || source.lastModified() != lastModified) {
+                logger.info("original changed while copying, not promoting: {}", key);
+                return;
+            }
+            temp.setLastModified(lastModified);
+            synchronized(this) {
+                fast.delete();
+                if(!temp.renameTo(fast)) {
+                    logger.warn("unable to move fast copy into place: {}", fast);
+                    return;
+                }
+                promoted.put(key, fast.length());
+                bytes += fast.length();
+                promotions++;
+                done = true;
+                evict();
+            }
+            logger.info("promoted to fast tier in {} ms: {}", System.currentTimeMillis() - start, key);
+        } catch(Exception e) {
+            logger.warn("promotion failed: {} {}", key, e.getMessage());
+        } finally {
+            if(!done) {
+                temp.delete();
+            }
+            synchronized(this) {
+                promoting.remove(key);
+            }
+        }
+    }
+
+    /**
+     * reads the original, overridden in tests to stand in for slow storage
+     */
+    protected InputStream openSource(final File source) throws Exception {
+        return new FileInputStream(source);
+    }
+
+    private void copy(final File source, final File target) throws Exception {
+        final InputStream in = openSource(source);
+        final OutputStream out = new FileOutputStream(target);
+        try {
+            final byte[] buffer = new byte[65536];
+            int count;
+            while((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private void evict() { // least recently opened first
+        final Iterator<Map.Entry<String, Long>> eldest = promoted.entrySet().iterator();
+        while(bytes > maxBytes && eldest.hasNext()) {
+            final Map.Entry<String, Long> entry = eldest.next();
+            eldest.remove();
+            bytes -= entry.getValue();
+            evictions++;
+            new File(fastRoot, entry.getKey()).delete(); // open readers keep reading on unix
+            logger.info("evicted from fast tier: {}", entry.getKey());
+        }
+    }
+
+    private void remove(final String key) {
+        final Long size = promoted.remove(key);
+        if(size != null) {
+            bytes -= size;
+            new File(fastRoot, key).delete();
+        }
+    }
+
+    public void shutdown() {
+        promoter.shutdownNow();
+    }
+
+    public synchronized boolean isPromoted(final String path) {
+        final String absolute = new File(path).getAbsolutePath();
+        return absolute.startsWith(sourceRoot) && promoted.containsKey(absolute.substring(sourceRoot.length()));
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getPromotions() {
+        return promotions;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "[fast tier files: " + promoted.size() + " bytes: " + bytes + "/" + maxBytes + " hits: " + hits
+                + " misses: " + misses + " promotions: " + promotions + " evictions: " + evictions + ']';
+    }
+
+}
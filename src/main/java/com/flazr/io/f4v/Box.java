@@ -24,6 +24,7 @@ import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,16 +32,25 @@ public class Box {
     
     private static final Logger logger = LoggerFactory.getLogger(Box.class);
 
+    /** leaf payloads bigger than this are never buffered in memory */
+    public static final long MAX_BUFFERED_PAYLOAD_SIZE = 64 * 1024 * 1024;
+
+    private static final int TABLE_READ_SIZE = 64 * 1024;
+
     private final BoxType type;
     private final long fileOffset;
+    private final long payloadSize;
     private List<Box> children;
     private Payload payload;
 
     public Box(final BufferReader in, final long endPos) {
+        this(in, endPos, true);
+    }
+
+    private Box(final BufferReader in, final long endPos, final boolean parsePayload) {
         final long boxSize = in.readUnsignedInt();
         final byte[] typeBytes = in.readBytes(4);
         type = BoxType.parse(new String(typeBytes));        
-        final long payloadSize;
         if (boxSize == 1) { // extended
             final byte[] extBytes = in.readBytes(8);
             final BigInteger bigLen = new BigInteger(1, extBytes);
@@ -53,13 +63,32 @@ public class Box {
         fileOffset = in.position();
         final long childEndPos = fileOffset + payloadSize;
         logger.debug(">> type: {}, payloadSize: {}", type, payloadSize);
+        if(payloadSize < 0) {
+            throw new RuntimeException("bad box size for " + type + ": " + payloadSize + " at " + fileOffset);
+        }
+        if(!parsePayload) {
+            logger.debug("skipping {}", type);
+            in.position(childEndPos);
+            return;
+        }
         final BoxType[] childBoxes = type.getChildren();
         if(childBoxes == null) {            
             if(type == BoxType.MDAT) {
                 logger.debug("skipping MDAT");
                 in.position(childEndPos);
                 return;
-            }          
+            }
+            if(type.isTable()) {
+                payload = type.read(in, payloadSize);
+                in.position(childEndPos);
+                logger.debug("<< {} table: {}", type, payload);
+                return;
+            }
+            if(payloadSize > MAX_BUFFERED_PAYLOAD_SIZE) {
+                logger.warn("skipping oversized {} payload, size: {}", type, payloadSize);
+                in.position(childEndPos);
+                return;
+            }
             payload = type.read(in.read((int) payloadSize));
             logger.debug("<< {} payload: {}", type, payload);
             return;
@@ -73,6 +102,65 @@ public class Box {
         logger.debug("<< {} children: {}", type, children);
     }
 
+    /**
+     * reads the next top level box, only FTYP and MOOV are parsed
+     * everything else (typically a huge MDAT) is skipped over by seeking
+     */
+    public static Box readTopLevel(final BufferReader in) {
+        final long start = in.position();
+        in.position(start + 4);
+        final BoxType nextType = BoxType.parse(new String(in.readBytes(4)));
+        in.position(start);
+        final boolean parse = nextType == BoxType.FTYP || nextType == BoxType.MOOV;
+        return new Box(in, in.size(), parse);
+    }
+
+    //==========================================================================
+
+    private static long checkTableCount(final BoxType type, final long count,
+            final long available, final int entrySize) {
+        final long max = available / entrySize;
+        if(count > max) {
+            logger.warn("{} entry count {} exceeds box payload, truncating to {}",
+                    new Object[]{type, count, max});
+            return max;
+        }
+        return count;
+    }
+
+    public static int[] readInts(final BufferReader in, final BoxType type,
+            final long count, final long available) {
+        final int safeCount = (int) checkTableCount(type, count, available, 4);
+        final int[] values = new int[safeCount];
+        int index = 0;
+        while(index < safeCount) {
+            final int batch = Math.min(safeCount - index, TABLE_READ_SIZE / 4);
+            final ChannelBuffer buffer = in.read(batch * 4);
+            for(int i = 0; i < batch; i++) {
+                values[index++] = buffer.readInt();
+            }
+        }
+        return values;
+    }
+
+    public static long[] readLongs(final BufferReader in, final BoxType type,
+            final long count, final long available, final boolean wide) {
+        final int entrySize = wide ? 8 : 4;
+        final int safeCount = (int) checkTableCount(type, count, available, entrySize);
+        final long[] values = new long[safeCount];
+        int index = 0;
+        while(index < safeCount) {
+            final int batch = Math.min(safeCount - index, TABLE_READ_SIZE / entrySize);
+            final ChannelBuffer buffer = in.read(batch * entrySize);
+            for(int i = 0; i < batch; i++) {
+                values[index++] = wide ? buffer.readLong() : buffer.readUnsignedInt();
+            }
+        }
+        return values;
+    }
+
+    //==========================================================================
+
     public BoxType getType() {
         return type;
     }
@@ -81,6 +169,10 @@ public class Box {
         return fileOffset;
     }
 
+    public long getPayloadSize() {
+        return payloadSize;
+    }
+
     public List<Box> getChildren() {
         return children;
     }
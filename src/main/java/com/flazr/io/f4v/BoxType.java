@@ -19,6 +19,7 @@
 
 package com.flazr.io.f4v;
 
+import com.flazr.io.BufferReader;
 import com.flazr.io.f4v.box.FTYP;
 import com.flazr.io.f4v.box.STTS;
 import com.flazr.io.f4v.box.STSC;
@@ -75,6 +76,32 @@ public enum BoxType {
         }
     }
 
+    /**
+     * tables that can run into millions of entries, these are streamed
+     * from the file straight into primitive arrays
+     */
+    public boolean isTable() {
+        switch(this) {
+            case STTS:
+            case STSZ:
+            case STCO:
+            case CO64:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public Payload read(BufferReader in, long payloadSize) {
+        switch(this) {
+            case STTS: return new STTS(in, payloadSize);
+            case STSZ: return new STSZ(in, payloadSize);
+            case STCO: return new STCO(in, payloadSize, false);
+            case CO64: return new STCO(in, payloadSize, true);
+            default: throw new RuntimeException("not a table box: " + this);
+        }
+    }
+
     public Payload read(ChannelBuffer in) {
         switch(this) {
             case FTYP: return new FTYP(in);
@@ -19,9 +19,10 @@
 
 package com.flazr.io.f4v;
 
+import com.flazr.io.BlockCache;
 import com.flazr.io.BufferReader;
-import com.flazr.io.FileChannelReader;
 import com.flazr.io.flv.FlvAtom;
+import com.flazr.io.index.MediaIndex;
 import com.flazr.rtmp.RtmpHeader;
 import com.flazr.rtmp.RtmpMessage;
 import com.flazr.rtmp.RtmpReader;
@@ -57,7 +58,24 @@ public class F4vReader implements RtmpReader {
     private int aggregateDuration;
 
     public F4vReader(final String path) {
-        in = new FileChannelReader(path);
+        this(path, null);
+    }
+
+    public F4vReader(final String path, final MediaIndex index) {
+        this(BlockCache.open(path), index);
+    }
+
+    public F4vReader(final BufferReader in, final MediaIndex index) {
+        this.in = in;
+        if(index != null) {
+            AVC1_BEGIN = index.getVideoConfig();
+            MP4A_BEGIN = index.getAudioConfig();
+            metadata = index.getMetadata();
+            samples = index.getSamples();
+            cursor = 0;
+            logger.debug("inited from index: {}", index);
+            return;
+        }
         final MovieInfo movie = new MovieInfo(in);
         in.position(0);
         AVC1_BEGIN = movie.getVideoDecoderConfig();
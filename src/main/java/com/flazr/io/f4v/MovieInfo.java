@@ -63,8 +63,10 @@ public class MovieInfo {
     }
 
     public MovieInfo(final BufferReader in) {
-        while(in.position() < in.size()) {            
-            Box box = new Box(in, in.size());
+        final long startTime = System.currentTimeMillis();
+        while(in.position() < in.size() && mvhd == null) {
+            // only ftyp and moov are parsed, mdat and friends are seeked over
+            Box box = Box.readTopLevel(in);
             if(box.getType() == BoxType.FTYP) {
                 ftyp = (FTYP) box.getPayload();
                 logger.debug("unpacked: {}", ftyp);
@@ -87,7 +89,8 @@ public class MovieInfo {
             }
         }
         initSamples();
-        logger.debug("initialized movie info table");
+        logger.info("initialized movie info table, {} samples in {} ms",
+                samples.size(), System.currentTimeMillis() - startTime);
     }
 
     public List<TrackInfo> getTracks() {
@@ -35,6 +35,7 @@ public class Sample implements Comparable {
     private int compositionTimeOffset;
     private boolean syncSample;
     private long fileOffset;
+    private boolean video; // used only when there is no chunk, e.g. loaded from an index
 
     public int convertFromTimeScale(final long time) {
         final BigDecimal factor = new BigDecimal(time * 1000);
@@ -42,9 +43,16 @@ public class Sample implements Comparable {
     }
 
     public boolean isVideo() {
+        if(chunk == null) {
+            return video;
+        }
         return chunk.getSampleType().isVideo();
     }
 
+    public void setVideo(boolean video) {
+        this.video = video;
+    }
+
     //==========================================================================
 
     public long getFileOffset() {
@@ -128,7 +136,12 @@ public class Sample implements Comparable {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append('[').append(chunk.getSampleType());
+        sb.append('[');
+        if(chunk == null) {
+            sb.append(video ? "video" : "audio");
+        } else {
+            sb.append(chunk.getSampleType());
+        }
         if (syncSample) {
             sb.append(" (*sync*)");
         }
@@ -29,7 +29,6 @@ import com.flazr.io.f4v.box.STSD;
 import com.flazr.io.f4v.box.STSS;
 import com.flazr.io.f4v.box.STSZ;
 import com.flazr.io.f4v.box.STTS;
-import com.flazr.io.f4v.box.STTS.STTSRecord;
 import com.flazr.io.f4v.box.TKHD;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -102,6 +101,7 @@ public class TrackInfo {
         int stcoIndex = 0;
         int stszIndex = 0;
         chunks = new ArrayList<Chunk>();
+        final long[] offsets = stco.getOffsets();
         int stscCount = stsc.getRecords().size();
         Set<Integer> syncSampleNumbers = null;
         if (stss != null) {
@@ -112,7 +112,7 @@ public class TrackInfo {
             int lastChunkWithSameSize;
             if (i + 1 == stscCount) {
                 if (i == 0) {
-                    lastChunkWithSameSize = stco.getOffsets().size();
+                    lastChunkWithSameSize = stco.getOffsets().length;
                 } else {
                     lastChunkWithSameSize = stscRecord.getFirstChunk();
                 }
@@ -123,10 +123,10 @@ public class TrackInfo {
                 Chunk chunk = new Chunk();
                 int sampleFileOffset = 0;
                 chunk.setSampleDescIndex(stscRecord.getSampleDescIndex());
-                chunk.setFileOffset(stco.getOffsets().get(stcoIndex++));
+                chunk.setFileOffset(offsets[stcoIndex++]);
                 for (int k = 0; k < stscRecord.getSamplesPerChunk(); k++) {
                     Sample sample = new Sample();
-                    sample.setSize(stsz.getSampleSizes().get(stszIndex++));
+                    sample.setSize(stsz.getSampleSize(stszIndex++));
                     sample.setFileOffset(chunk.getFileOffset() + sampleFileOffset);
                     sampleFileOffset += sample.getSize();
                     if (syncSampleNumbers != null && syncSampleNumbers.contains(stszIndex)) {
@@ -143,8 +143,10 @@ public class TrackInfo {
         long rawTime = 0;
         Chunk chunk = chunks.get(chunkIndex);
         scan:
-        for (STTSRecord sttsRecord : stts.getRecords()) {
-            for (int i = 0; i < sttsRecord.getSampleCount(); i++) {
+        for (int r = 0; r < stts.getRecordCount(); r++) {
+            final int sampleCount = stts.getSampleCount(r);
+            final int rawDuration = stts.getSampleDuration(r);
+            for (int i = 0; i < sampleCount; i++) {
                 if (sampleIndex == chunk.getSampleCount()) {
                     chunkIndex++;
                     if (chunkIndex == chunks.size()) {
@@ -154,7 +156,6 @@ public class TrackInfo {
                     sampleIndex = 0;
                 }
                 Sample sample = chunk.getSamples().get(sampleIndex++);
-                final int rawDuration = sttsRecord.getSampleDuration();
                 final int duration = sample.convertFromTimeScale(rawDuration);
                 sample.setDuration(duration);
                 final int time = sample.convertFromTimeScale(rawTime);
@@ -19,9 +19,8 @@
 
 package com.flazr.io.f4v.box;
 
+import com.flazr.io.BufferReader;
 import com.flazr.io.f4v.*;
-import java.util.ArrayList;
-import java.util.List;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
@@ -33,7 +32,7 @@ public class STCO implements Payload {
     private static final Logger logger = LoggerFactory.getLogger(STCO.class);
 
     private final boolean co64;
-    private List<Long> offsets;
+    private long[] offsets;
 
     public STCO(ChannelBuffer in) {
         this(in, false);
@@ -44,11 +43,19 @@ public class STCO implements Payload {
         read(in);
     }
 
-    public void setOffsets(List<Long> offsets) {
+    public STCO(BufferReader in, long payloadSize, boolean co64) {
+        this.co64 = co64;
+        in.readInt(); // UI8 version + UI24 flags
+        final long count = in.readUnsignedInt();
+        logger.debug("no of chunk offsets: {}", count);
+        offsets = Box.readLongs(in, co64 ? BoxType.CO64 : BoxType.STCO, count, payloadSize - 8, co64);
+    }
+
+    public void setOffsets(long[] offsets) {
         this.offsets = offsets;
     }
 
-    public List<Long> getOffsets() {
+    public long[] getOffsets() {
         return offsets;
     }
 
@@ -57,11 +64,9 @@ public class STCO implements Payload {
         in.readInt(); // UI8 version + UI24 flags
         final int count = in.readInt();
         logger.debug("no of chunk offsets: {}", count);
-        offsets = new ArrayList<Long>(count);
+        offsets = new long[count];
         for (int i = 0; i < count; i++) {
-            final Long offset = co64 ? in.readLong() : in.readInt();
-            // logger.debug("#{} offset: {}", new Object[]{i, offset});
-            offsets.add(offset);
+            offsets[i] = co64 ? in.readLong() : in.readUnsignedInt();
         }
     }
 
@@ -69,15 +74,20 @@ public class STCO implements Payload {
     public ChannelBuffer write() {
         ChannelBuffer out = ChannelBuffers.dynamicBuffer();
         out.writeInt(0); // UI8 version + UI24 flags        
-        out.writeInt(offsets.size());
-        for (Long offset : offsets) {
+        out.writeInt(offsets.length);
+        for (long offset : offsets) {
             if(co64) {
                 out.writeLong(offset);
             } else {
-                out.writeInt(offset.intValue());
+                out.writeInt((int) offset);
             }
         }
         return out;
     }
+
+    @Override
+    public String toString() {
+        return "[" + (co64 ? "CO64" : "STCO") + " count: " + offsets.length + "]";
+    }
     
 }
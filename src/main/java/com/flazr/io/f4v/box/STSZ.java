@@ -19,9 +19,8 @@
 
 package com.flazr.io.f4v.box;
 
+import com.flazr.io.BufferReader;
 import com.flazr.io.f4v.*;
-import java.util.ArrayList;
-import java.util.List;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
@@ -31,23 +30,53 @@ import org.slf4j.LoggerFactory;
 public class STSZ implements Payload {
 
     private static final Logger logger = LoggerFactory.getLogger(STSZ.class);
-    private List<Integer> sampleSizes;
+    private int[] sampleSizes; // null when all samples have the constant size
     private int constantSize;
+    private int sampleCount;
 
     public STSZ(ChannelBuffer in) {
         read(in);
     }
 
-    public List<Integer> getSampleSizes() {
-        return sampleSizes;
+    public STSZ(BufferReader in, long payloadSize) {
+        in.readInt(); // UI8 version + UI24 flags
+        constantSize = in.readInt();
+        logger.debug("sample size constant size: {}", constantSize);
+        final long count = in.readUnsignedInt();
+        logger.debug("no of sample size records: {}", count);
+        if(constantSize != 0) {
+            sampleCount = (int) Math.min(count, Integer.MAX_VALUE);
+            return;
+        }
+        sampleSizes = Box.readInts(in, BoxType.STSZ, count, payloadSize - 12);
+        sampleCount = sampleSizes.length;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public int getSampleSize(final int index) {
+        if(sampleSizes != null) {
+            return sampleSizes[index];
+        }
+        if(index < 0 || index >= sampleCount) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return constantSize;
     }
 
     public void setConstantSize(int constantSize) {
         this.constantSize = constantSize;
     }
 
-    public void setSampleSizes(List<Integer> sampleSizes) {
+    public void setSampleCount(int sampleCount) {
+        this.sampleCount = sampleCount;
+    }
+
+    public void setSampleSizes(int[] sampleSizes) {
         this.sampleSizes = sampleSizes;
+        sampleCount = sampleSizes.length;
     }
 
     @Override
@@ -57,11 +86,15 @@ public class STSZ implements Payload {
         logger.debug("sample size constant size: {}", constantSize);
         final int count = in.readInt();
         logger.debug("no of sample size records: {}", count);
-        sampleSizes = new ArrayList<Integer>(count);
+        if(constantSize != 0) {
+            sampleSizes = null;
+            sampleCount = count;
+            return;
+        }
+        sampleSizes = new int[count];
+        sampleCount = count;
         for (int i = 0; i < count; i++) {
-            final Integer sampleSize = in.readInt();
-            // logger.debug("#{} sampleSize: {}", new Object[]{i, sampleSize});
-            sampleSizes.add(sampleSize);
+            sampleSizes[i] = in.readInt();
         }
     }
 
@@ -70,11 +103,19 @@ public class STSZ implements Payload {
         ChannelBuffer out = ChannelBuffers.dynamicBuffer();
         out.writeInt(0); // UI8 version + UI24 flags
         out.writeInt(constantSize);
-        out.writeInt(sampleSizes.size());
-        for (Integer sampleSize : sampleSizes) {
+        out.writeInt(sampleCount);
+        if(constantSize != 0) {
+            return out;
+        }
+        for (int sampleSize : sampleSizes) {
             out.writeInt(sampleSize);
         }
         return out;
     }
+
+    @Override
+    public String toString() {
+        return "[STSZ constantSize: " + constantSize + " count: " + sampleCount + "]";
+    }
     
 }
@@ -19,9 +19,8 @@
 
 package com.flazr.io.f4v.box;
 
+import com.flazr.io.BufferReader;
 import com.flazr.io.f4v.*;
-import java.util.ArrayList;
-import java.util.List;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
@@ -32,33 +31,30 @@ public class STTS implements Payload {
 
     private static final Logger logger = LoggerFactory.getLogger(STTS.class);
 
-    public static class STTSRecord {
-
-        private int sampleCount;
-        private int sampleDuration;
-
-        public int getSampleCount() {
-            return sampleCount;
-        }
-
-        public int getSampleDuration() {
-            return sampleDuration;
-        }
-
-    }
+    // interleaved pairs of sample count and sample duration
+    private int[] records;
 
     public STTS(ChannelBuffer in) {
         read(in);
     }
 
-    private List<STTSRecord> records;
+    public STTS(BufferReader in, long payloadSize) {
+        in.readInt(); // UI8 version + UI24 flags
+        final long count = in.readUnsignedInt();
+        logger.debug("no of time to sample records: {}", count);
+        records = Box.readInts(in, BoxType.STTS, count * 2, payloadSize - 8);
+    }
+
+    public int getRecordCount() {
+        return records.length / 2;
+    }
 
-    public List<STTSRecord> getRecords() {
-        return records;
+    public int getSampleCount(int index) {
+        return records[index * 2];
     }
 
-    public void setRecords(List<STTSRecord> records) {
-        this.records = records;
+    public int getSampleDuration(int index) {
+        return records[index * 2 + 1];
     }
 
     @Override
@@ -66,14 +62,9 @@ public class STTS implements Payload {
         in.readInt(); // UI8 version + UI24 flags
         final int count = in.readInt();
         logger.debug("no of time to sample records: {}", count);
-        records = new ArrayList<STTSRecord>(count);
-        for (int i = 0; i < count; i++) {
-            final STTSRecord record = new STTSRecord();
-            record.sampleCount = in.readInt();
-            record.sampleDuration = in.readInt();
-            logger.debug("#{} sampleCount: {} sampleDuration: {}",
-                    new Object[]{i, record.sampleCount, record.sampleDuration});
-            records.add(record);
+        records = new int[count * 2];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = in.readInt();
         }
     }
 
@@ -81,12 +72,16 @@ public class STTS implements Payload {
     public ChannelBuffer write() {
         ChannelBuffer out = ChannelBuffers.dynamicBuffer();
         out.writeInt(0); // UI8 version + UI24 flags
-        out.writeInt(records.size());
-        for (STTSRecord record : records) {
-            out.writeInt(record.sampleCount);
-            out.writeInt(record.sampleDuration);
+        out.writeInt(getRecordCount());
+        for (int value : records) {
+            out.writeInt(value);
         }
         return out;
     }
+
+    @Override
+    public String toString() {
+        return "[STTS records: " + getRecordCount() + "]";
+    }
     
 }
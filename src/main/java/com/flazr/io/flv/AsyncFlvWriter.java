@@ -0,0 +1,316 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.io.flv;
+
+import com.flazr.rtmp.RtmpHeader;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.RtmpWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * hands messages off to a dedicated writer thread through a bounded queue
+ * so that a slow disk never blocks the netty i/o thread, the writer thread
+ * drains the queue in batches and coalesces them into gathering writes
+ */
+public class AsyncFlvWriter implements RtmpWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncFlvWriter.class);
+
+    private static final int MAX_BATCH_SIZE = 256;
+
+    private static final Entry CLOSE = new Entry(null, 0);
+
+    private static final Set<AsyncFlvWriter> OPEN =
+            Collections.newSetFromMap(new ConcurrentHashMap<AsyncFlvWriter, Boolean>());
+
+    private static class Entry {
+
+        private final RtmpMessage message;
+        private final long queuedTime;
+
+        public Entry(final RtmpMessage message, final long queuedTime) {
+            this.message = message;
+            this.queuedTime = queuedTime;
+        }
+
+    }
+
+    /**
+     * detached copy, the original header may be mutated and the
+     * original buffer indexes moved once it is written to subscribers
+     */
+    private static class Snapshot implements RtmpMessage {
+
+        private final RtmpHeader header;
+        private final ChannelBuffer data;
+
+        public Snapshot(final RtmpMessage message) {
+            final RtmpHeader original = message.getHeader();
+            header = new RtmpHeader(original.getMessageType(), original.getTime(), original.getSize());
+            header.setChannelId(original.getChannelId());
+            header.setStreamId(original.getStreamId());
+            data = message.encode().duplicate();
+        }
+
+        @Override
+        public RtmpHeader getHeader() {
+            return header;
+        }
+
+        @Override
+        public ChannelBuffer encode() {
+            return data.duplicate();
+        }
+
+        @Override
+        public void decode(final ChannelBuffer in) {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    private final FlvWriter writer;
+    private final String name;
+    private final BlockingQueue<Entry> queue;
+    private final long forceInterval;
+    private final Thread thread;
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    private boolean dropping; // only touched by the producer thread
+    private volatile boolean closing; // set under the lock, nothing is queued after it
+    private final Object lock = new Object();
+
+    /**
+     * @param forceInterval milliseconds between fsync calls, 0 to never force
+     */
+    public AsyncFlvWriter(final FlvWriter writer, final String name,
+            final int queueSize, final long forceInterval) {
+        this.writer = writer;
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<Entry>(queueSize);
+        this.forceInterval = forceInterval;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "flv-writer-" + name);
+        thread.setDaemon(true);
+        OPEN.add(this);
+        thread.start();
+    }
+
+    /**
+     * recordings in progress, for the metrics
+     */
+    public static Collection<AsyncFlvWriter> getOpenWriters() {
+        return OPEN;
+    }
+
+    @Override
+    public void write(final RtmpMessage message) {
+        if(closing) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+        final RtmpHeader header = message.getHeader();
+        if(dropping) {
+            if(!header.isVideo() || !isKeyFrame(message)) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+            logger.info("resuming recording at keyframe, total dropped so far: {}", droppedCount);
+            dropping = false;
+        }
+        final Entry entry = new Entry(new Snapshot(message), System.nanoTime());
+        final boolean queued;
+        synchronized(lock) {
+            if(closing) { // lost the race with close
+                droppedCount.incrementAndGet();
+                return;
+            }
+            queued = queue.offer(entry);
+        }
+        if(!queued) {
+            // skip till next keyframe so that the recorded file stays decodable
+            droppedCount.incrementAndGet();
+            dropping = true;
+            logger.warn("recording queue full, dropping until next keyframe");
+        }
+    }
+
+    private static boolean isKeyFrame(final RtmpMessage message) {
+        final ChannelBuffer data = message.encode();
+        return data.readable() && (data.getByte(data.readerIndex()) & 0xF0) == 0x10;
+    }
+
+    private void drain() {
+        final List<Entry> batch = new ArrayList<Entry>(MAX_BATCH_SIZE);
+        long lastForceTime = System.currentTimeMillis();
+        try {
+            while(true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                boolean done = false;
+                for(Entry entry : batch) {
+                    if(entry == CLOSE) {
+                        done = true;
+                        break;
+                    }
+                    writer.write(entry.message);
+                }
+                writer.flush();
+                final long now = System.nanoTime();
+                for(Entry entry : batch) {
+                    if(entry != CLOSE) {
+                        recordLatency(now - entry.queuedTime);
+                    }
+                }
+                writtenCount.addAndGet(done ? batch.size() - 1 : batch.size());
+                batchCount.incrementAndGet();
+                batch.clear();
+                if(done || closing && queue.isEmpty()) { // close could not queue the marker
+                    break;
+                }
+                if(forceInterval > 0 && System.currentTimeMillis() - lastForceTime >= forceInterval) {
+                    writer.force();
+                    lastForceTime = System.currentTimeMillis();
+                }
+            }
+        } catch(InterruptedException e) {
+            logger.warn("writer thread interrupted, {} messages not written", queue.size());
+        } catch(Exception e) {
+            logger.error("writer thread failed, recording stopped: {}", e.getMessage());
+            synchronized(lock) {
+                closing = true;
+            }
+            queue.clear();
+        } finally {
+            try {
+                writer.close();
+            } finally {
+                logger.info("closed, written: {}, dropped: {}, batches: {}, avg latency: {} ms, max latency: {} ms",
+                        new Object[]{writtenCount, droppedCount, batchCount,
+                        getAverageLatencyMillis(), getMaxLatencyMillis()});
+                OPEN.remove(this); // only once the file is complete, see awaitClosed
+                closed.countDown();
+            }
+        }
+    }
+
+    private void recordLatency(final long nanos) {
+        totalLatencyNanos.addAndGet(nanos);
+        while(true) {
+            final long max = maxLatencyNanos.get();
+            if(nanos <= max || maxLatencyNanos.compareAndSet(max, nanos)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * never blocks, pending messages are written and the file closed on the
+     * writer thread, if the queue is full the writer thread stops once it
+     * has drained it
+     */
+    @Override
+    public void close() {
+        synchronized(lock) {
+            if(closing) {
+                return;
+            }
+            closing = true;
+            queue.offer(CLOSE);
+        }
+    }
+
+    /**
+     * waits until no writer of the recording is draining any more, the file
+     * can only be reopened for the same name once it is complete
+     * @return false if one is still open after the timeout
+     */
+    public static boolean awaitClosed(final String name, final long timeoutMillis) {
+        final long end = System.currentTimeMillis() + timeoutMillis;
+        for(final AsyncFlvWriter writer : OPEN) {
+            if(writer.name.equals(name) && !writer.awaitClose(Math.max(1, end - System.currentTimeMillis()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean awaitClose(final long timeoutMillis) {
+        try {
+            return closed.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch(InterruptedException e) {
+            return false;
+        }
+    }
+
+    //==========================================================================
+
+    public String getName() {
+        return name;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public double getAverageLatencyMillis() {
+        final long count = writtenCount.get();
+        if(count == 0) {
+            return 0;
+        }
+        return totalLatencyNanos.get() / (count * 1000000.0);
+    }
+
+    public double getMaxLatencyMillis() {
+        return maxLatencyNanos.get() / 1000000.0;
+    }
+
+}
@@ -23,6 +23,7 @@ import com.flazr.io.BufferReader;
 import com.flazr.rtmp.message.MessageType;
 import com.flazr.rtmp.RtmpHeader;
 import com.flazr.rtmp.RtmpMessage;
+import java.nio.ByteBuffer;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.slf4j.Logger;
@@ -69,17 +70,42 @@ public class FlvAtom implements RtmpMessage {
         out.writeByte((byte) header.getMessageType().intValue());
         out.writeMedium(header.getSize());
         out.writeMedium(header.getTime());
-        out.writeInt(0); // 4 bytes of zeros (reserved)
+        out.writeByte((byte) (header.getTime() >>> 24)); // extended time
+        out.writeMedium(0); // stream id, always 0
         out.writeBytes(data);
         out.writeInt(header.getSize() + 11); // previous tag size
         return out;
     }
 
+    /**
+     * same bytes as write() but as separate buffers for gathering writes,
+     * the data is not copied
+     */
+    public ByteBuffer[] toByteBuffers() {
+        final ByteBuffer tagHeader = ByteBuffer.allocate(11);
+        tagHeader.put((byte) header.getMessageType().intValue());
+        putMedium(tagHeader, header.getSize());
+        putMedium(tagHeader, header.getTime());
+        tagHeader.put((byte) (header.getTime() >>> 24)); // extended time
+        putMedium(tagHeader, 0); // stream id, always 0
+        tagHeader.flip();
+        final ByteBuffer tagSize = ByteBuffer.allocate(4);
+        tagSize.putInt(header.getSize() + 11); // previous tag size
+        tagSize.flip();
+        return new ByteBuffer[] { tagHeader, data.toByteBuffer(), tagSize };
+    }
+
+    private static void putMedium(final ByteBuffer out, final int value) {
+        out.put((byte) (value >>> 16));
+        out.put((byte) (value >>> 8));
+        out.put((byte) value);
+    }
+
     public static RtmpHeader readHeader(final ChannelBuffer in) {
         final MessageType messageType = MessageType.valueToEnum(in.readByte());
         final int size = in.readMedium();
-        final int time = in.readMedium();
-        in.skipBytes(4); // 0 - reserved
+        final int time = in.readMedium() | (in.readByte() & 0xFF) << 24; // with extended time
+        in.skipBytes(3); // stream id, always 0
         return new RtmpHeader(messageType, time, size);
     }
 
@@ -19,16 +19,26 @@
 
 package com.flazr.io.flv;
 
+import com.flazr.io.BlockCache;
 import com.flazr.io.BufferReader;
+import com.flazr.io.CachedFileReader;
 import com.flazr.io.FileChannelReader;
+import com.flazr.io.SharedFileChannel;
+import com.flazr.io.index.MediaIndex;
+import com.flazr.rtmp.RtmpConfig;
+import com.flazr.rtmp.RtmpHeader;
 import com.flazr.rtmp.RtmpMessage;
 import com.flazr.rtmp.RtmpReader;
 import com.flazr.rtmp.message.Aggregate;
+import com.flazr.rtmp.message.FileAggregate;
 import com.flazr.rtmp.message.MessageType;
 import com.flazr.rtmp.message.Metadata;
 import com.flazr.rtmp.message.MetadataAmf0;
 import com.flazr.rtmp.message.Video;
 
+import java.util.Arrays;
+import java.util.Map;
+
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.slf4j.Logger;
@@ -39,15 +49,50 @@ public class FlvReader implements RtmpReader {
     private static final Logger logger = LoggerFactory.getLogger(FlvReader.class);
     
     private final BufferReader in;
+    private final SharedFileChannel file; // null unless aggregates can be sent as file regions
     private final long mediaStartPosition;
     private final Metadata metadata;
     private int aggregateDuration;
+    private int[] keyframeTimes;
+    private long[] keyframePositions;
 
 	private int width;
 	private int height;    
 
     public FlvReader(final String path) {
-        in = new FileChannelReader(path);
+        this(path, null);
+    }
+
+    public FlvReader(final String path, final MediaIndex index) {
+        this(BlockCache.open(path), index);
+    }
+
+    public FlvReader(final String path, final MediaIndex index, final boolean zeroCopy) {
+        this(BlockCache.open(path), index, zeroCopy);
+    }
+
+    public FlvReader(final BufferReader in, final MediaIndex index) {
+        this(in, index, RtmpConfig.ZERO_COPY);
+    }
+
+    /**
+     * @param zeroCopy false if the aggregates could not go out as file
+     * regions anyway, they are then read into memory through the reader
+     */
+    public FlvReader(final BufferReader in, final MediaIndex index, final boolean zeroCopy) {
+        this.in = in;
+        file = zeroCopy ? getSharedChannel(in) : null;
+        if(index != null) {
+            metadata = index.getMetadata();
+            mediaStartPosition = index.getMediaStartPosition();
+            width = index.getWidth();
+            height = index.getHeight();
+            keyframeTimes = index.getKeyframeTimes();
+            keyframePositions = index.getKeyframePositions();
+            in.position(mediaStartPosition);
+            logger.debug("inited from index: {}", index);
+            return;
+        }
         in.position(13); // skip flv header
         
         final RtmpMessage metadataAtom = next();
@@ -66,6 +111,9 @@ public class FlvReader implements RtmpReader {
         if(metadataTemp != null && metadataTemp.getHeader().isMetadata()) {
             metadata = (Metadata) metadataTemp;
             mediaStartPosition = in.position();
+            if(metadata.getData(0) instanceof Map) { // filler of the space reserved by FlvWriter
+                metadata.getMap(0).remove(FlvWriter.METADATA_PADDING);
+            }
         } else {
             logger.warn("flv file does not start with 'onMetaData', using empty one");
             metadata = new MetadataAmf0("onMetaData");
@@ -73,6 +121,7 @@ public class FlvReader implements RtmpReader {
             mediaStartPosition = 13;
         }
         logger.debug("flv file metadata: {}", metadata);
+        initKeyframes();
         
         RtmpMessage firstFrame;
         do {
@@ -90,6 +139,45 @@ public class FlvReader implements RtmpReader {
         }
     }
 
+    /**
+     * uses the keyframes index written by FlvWriter (or other tools) into
+     * onMetaData if present, so that seeks do not need a linear scan
+     */
+    private void initKeyframes() {
+        final Map<String, Object> map = metadata.getMap(0);
+        if(map == null || !(map.get("keyframes") instanceof Map)) {
+            return;
+        }
+        final Map<?, ?> keyframes = (Map<?, ?>) map.get("keyframes");
+        final Object times = keyframes.get("times");
+        final Object positions = keyframes.get("filepositions");
+        if(!(times instanceof Object[]) || !(positions instanceof Object[])
+                || ((Object[]) times).length != ((Object[]) positions).length) {
+            logger.warn("ignoring invalid keyframes metadata");
+            return;
+        }
+        final Object[] timeValues = (Object[]) times;
+        final Object[] positionValues = (Object[]) positions;
+        final int[] tempTimes = new int[timeValues.length];
+        final long[] tempPositions = new long[positionValues.length];
+        for(int i = 0; i < timeValues.length; i++) {
+            tempTimes[i] = (int) Math.round(((Number) timeValues[i]).doubleValue() * 1000);
+            tempPositions[i] = ((Number) positionValues[i]).longValue();
+            if(tempPositions[i] < mediaStartPosition || tempPositions[i] >= in.size()
+                    || (i > 0 && tempTimes[i] < tempTimes[i - 1])) {
+                logger.warn("ignoring keyframes metadata that does not match the file");
+                return;
+            }
+        }
+        keyframeTimes = tempTimes;
+        keyframePositions = tempPositions;
+        logger.debug("using {} keyframes from metadata for seeking", keyframeTimes.length);
+    }
+
+    public long getMediaStartPosition() {
+        return mediaStartPosition;
+    }
+
     @Override
     public Metadata getMetadata() {
         return metadata;
@@ -139,6 +227,9 @@ public class FlvReader implements RtmpReader {
                 throw new RuntimeException(e);
             }
         }
+        if(keyframeTimes != null && keyframeTimes.length > 0) {
+            return seekKeyframe(time);
+        }
         final long start = getTimePosition();        
         if(time > start) {
             while(hasNext()) {
@@ -175,6 +266,16 @@ public class FlvReader implements RtmpReader {
         }
     }
 
+    private long seekKeyframe(final long time) {
+        int index = Arrays.binarySearch(keyframeTimes, (int) time);
+        if(index < 0) { // closest keyframe prior
+            index = Math.max(0, -index - 2);
+        }
+        in.position(keyframePositions[index]);
+        logger.debug("returned seek keyframe time: {}", keyframeTimes[index]);
+        return keyframeTimes[index];
+    }
+
     @Override
     public boolean hasNext() {        
         return in.position() < in.size();
@@ -197,11 +298,56 @@ public class FlvReader implements RtmpReader {
 
     private static final int AGGREGATE_SIZE_LIMIT = 65536;
 
+    private static SharedFileChannel getSharedChannel(final BufferReader in) {
+        if(in instanceof FileChannelReader) {
+            return ((FileChannelReader) in).getSharedChannel();
+        }
+        if(in instanceof CachedFileReader) {
+            return ((CachedFileReader) in).getSharedChannel();
+        }
+        return null;
+    }
+
+    /**
+     * the tags of an aggregate are laid out exactly as in the file, so only
+     * the headers are read and the bodies are left for the encoder to send
+     * straight from the file
+     */
+    private RtmpMessage nextFileAggregate() {
+        final long start = in.position();
+        long end = start;
+        int firstAtomTime = -1;
+        while(hasNext()) {
+            final RtmpHeader header = FlvAtom.readHeader(in.read(11));
+            final int currentAtomTime = header.getTime();
+            if(firstAtomTime == -1) {
+                firstAtomTime = currentAtomTime;
+            }
+            final long atomEnd = in.position() + header.getSize() + 4;
+            if(atomEnd > in.size() && end == start) {
+                throw new RuntimeException("unexpected end of file: " + file.getAbsolutePath());
+            }
+            if(end > start && (atomEnd - start > AGGREGATE_SIZE_LIMIT || atomEnd > in.size())) {
+                in.position(end);
+                break;
+            }
+            in.position(atomEnd);
+            end = atomEnd;
+            if(currentAtomTime - firstAtomTime > aggregateDuration) {
+                break;
+            }
+        }
+        return new FileAggregate(firstAtomTime, file, start, (int) (end - start));
+    }
+
     @Override
     public RtmpMessage next() {
         if(aggregateDuration <= 0) {
             return new FlvAtom(in);
         }
+        if(file != null) {
+            return nextFileAggregate();
+        }
         final ChannelBuffer out = ChannelBuffers.dynamicBuffer();
         int firstAtomTime = -1;
         while(hasNext()) {
@@ -0,0 +1,142 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.io.flv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * locates the end of the last complete tag of an flv file by walking
+ * backwards from the end using the PreviousTagSize fields, a truncated
+ * file (e.g. after a crash) is handled by a bounded backward scan for
+ * the last valid tag boundary, the rest of the file is never read
+ */
+public class FlvTail {
+
+    private static final Logger logger = LoggerFactory.getLogger(FlvTail.class);
+
+    /** how far back from the end to look for a tag boundary in a truncated file */
+    private static final int MAX_SCAN_SIZE = 4 * 1024 * 1024;
+
+    private final long endPosition;
+    private final int lastTime;
+
+    private FlvTail(final long endPosition, final int lastTime) {
+        this.endPosition = endPosition;
+        this.lastTime = lastTime;
+    }
+
+    /**
+     * file position just after the PreviousTagSize of the last complete tag
+     */
+    public long getEndPosition() {
+        return endPosition;
+    }
+
+    public int getLastTime() {
+        return lastTime;
+    }
+
+    /**
+     * @return null if the file is not an flv or no tag boundary could be found
+     */
+    public static FlvTail recover(final FileChannel in) throws IOException {
+        final long size = in.size();
+        if(size < 13) {
+            return null;
+        }
+        final ByteBuffer signature = read(in, 0, 3);
+        if(signature.get(0) != 'F' || signature.get(1) != 'L' || signature.get(2) != 'V') {
+            return null;
+        }
+        FlvTail tail = check(in, size);
+        if(tail != null) {
+            return tail;
+        }
+        final long windowStart = Math.max(13, size - MAX_SCAN_SIZE);
+        final ByteBuffer window = read(in, windowStart, (int) (size - windowStart));
+        for(long end = size - 1; end >= windowStart + 4; end--) {
+            final long prevTagSize = window.getInt((int) (end - 4 - windowStart)) & 0xFFFFFFFFL;
+            if(prevTagSize < 11 || end - 4 - prevTagSize < 13) {
+                continue;
+            }
+            tail = check(in, end);
+            if(tail != null) {
+                logger.warn("truncated file, last complete tag ends at {}, discarding {} bytes",
+                        tail.endPosition, size - tail.endPosition);
+                return tail;
+            }
+        }
+        if(windowStart == 13) { // not even one complete tag
+            logger.warn("no complete tag found, discarding {} bytes", size - 13);
+            return new FlvTail(13, 0);
+        }
+        return null;
+    }
+
+    private static FlvTail check(final FileChannel in, final long end) throws IOException {
+        if(end == 13) {
+            return new FlvTail(13, 0);
+        }
+        if(end < 13 + 15) {
+            return null;
+        }
+        final long prevTagSize = read(in, end - 4, 4).getInt() & 0xFFFFFFFFL;
+        final long tagStart = end - 4 - prevTagSize;
+        if(prevTagSize < 11 || tagStart < 13) {
+            return null;
+        }
+        final ByteBuffer header = read(in, tagStart, 11);
+        final int type = header.get(0);
+        if(type != 8 && type != 9 && type != 18) {
+            return null;
+        }
+        final int dataSize = getMedium(header, 1);
+        if(dataSize != prevTagSize - 11 || getMedium(header, 8) != 0) {
+            return null;
+        }
+        final int time = getMedium(header, 4) | (header.get(7) & 0xFF) << 24;
+        return new FlvTail(end, time);
+    }
+
+    private static int getMedium(final ByteBuffer in, final int index) {
+        return (in.get(index) & 0xFF) << 16 | (in.get(index + 1) & 0xFF) << 8 | in.get(index + 2) & 0xFF;
+    }
+
+    private static ByteBuffer read(final FileChannel in, final long position, final int size) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        while(buffer.hasRemaining()) {
+            if(in.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public String toString() {
+        return "[endPosition: " + endPosition + " lastTime: " + lastTime + "]";
+    }
+
+}
@@ -21,54 +21,282 @@ package com.flazr.io.flv;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.flazr.amf.Amf0Object;
 import com.flazr.rtmp.RtmpHeader;
 import com.flazr.rtmp.RtmpMessage;
 import com.flazr.rtmp.RtmpWriter;
+import com.flazr.rtmp.message.MessageType;
+import com.flazr.rtmp.message.Metadata;
+import com.flazr.rtmp.message.MetadataAmf0;
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 
 public class FlvWriter implements RtmpWriter {
 
     private static final Logger logger = LoggerFactory.getLogger(FlvWriter.class);
 
+    /** pending tags are written out in one gathering write past this size */
+    private static final int FLUSH_THRESHOLD = 256 * 1024;
+
+    /**
+     * data size of the onMetaData tag every new file starts with, it is
+     * patched in place on close and the unused part is taken up by this key
+     */
+    private static final int RESERVED_METADATA_SIZE = 32 * 1024;
+    public static final String METADATA_PADDING = "padding";
+
+    private static final int KEYFRAME_ENTRY_SIZE = 9 + 9; // two amf0 numbers
+
+    private final File file;
     private final FileChannel out;
+    private final List<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+    private int pendingBytes;
     private final int[] channelTimes = new int[RtmpHeader.MAX_CHANNEL_ID];
     private int primaryChannel = -1;
     private int lastLoggedSeconds;
     private final int seekTime;
     private final long startTime;  
+    private boolean finalizeOnClose = true;
+
+    // for the onMetaData patched in when the file is finalized
+    private long position;
+    private int lastTime;
+    private int reservedSize; // 0 if appending to a file without a reserved tag
+    private Map<String, Object> publisherMetadata;
+    private final List<Integer> keyframeTimes = new ArrayList<Integer>();
+    private final List<Long> keyframePositions = new ArrayList<Long>();
 
     public FlvWriter(final String fileName) {
         this(0, fileName);
     }
 
     public FlvWriter(final int seekTime, final String fileName) {
-        this.seekTime = seekTime < 0 ? 0 : seekTime;
+        this(seekTime, fileName, false);
+    }
+
+    /**
+     * @param append if true and the file exists, writing continues after the
+     * last complete tag with times following on from the last recorded time
+     */
+    public FlvWriter(final String fileName, final boolean append) {
+        this(0, fileName, append);
+    }
+
+    private FlvWriter(final int seekTime, final String fileName, final boolean append) {
         this.startTime = System.currentTimeMillis();
         if(fileName == null) {
             logger.info("save file notspecified, will only consume stream");
+            this.seekTime = seekTime < 0 ? 0 : seekTime;
+            file = null;
             out = null;
             return;
         }
+        file = new File(fileName);
+        int effectiveSeekTime = seekTime < 0 ? 0 : seekTime;
+        FileChannel channel = null;
+        try {
+            if(append && file.exists()) {
+                channel = new RandomAccessFile(file, "rw").getChannel();
+                final FlvTail tail = FlvTail.recover(channel);
+                if(tail == null) {
+                    channel.close();
+                    channel = null;
+                    final File damaged = new File(fileName + ".damaged-" + System.currentTimeMillis());
+                    logger.error("cannot append to {}, no valid tag boundary found, moving it to {}", file, damaged);
+                    file.renameTo(damaged);
+                } else {
+                    channel.truncate(tail.getEndPosition());
+                    channel.position(tail.getEndPosition());
+                    position = tail.getEndPosition();
+                    lastTime = tail.getLastTime();
+                    effectiveSeekTime = tail.getLastTime() + 1;
+                    initFromExisting(channel);
+                    logger.info("opened file for appending: {}, tail: {}", file.getAbsolutePath(), tail);
+                }
+            }
+            if(channel == null) {
+                FileOutputStream fos = new FileOutputStream(file);
+                channel = fos.getChannel();
+                channel.write(FlvAtom.flvHeader().toByteBuffer());
+                position = 13;
+                writeReservedMetadata(channel);
+                logger.info("opened file for writing: {}", file.getAbsolutePath());
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        this.seekTime = effectiveSeekTime;
+        out = channel;
+    }
+
+    private void writeReservedMetadata(final FileChannel channel) throws IOException {
+        reservedSize = RESERVED_METADATA_SIZE;
+        for(ByteBuffer buffer : new FlvAtom(MessageType.METADATA_AMF0, 0, encodeOnMetaData(0, 0, false)).toByteBuffers()) {
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        position = 13 + 11 + reservedSize + 4;
+    }
+
+    /**
+     * picks up the metadata and keyframe index of the file being appended to,
+     * only tags past the indexed part (e.g. recording was interrupted) are
+     * scanned, a file without a reserved onMetaData tag is not finalized at all
+     */
+    private void initFromExisting(final FileChannel channel) throws IOException {
+        if(position == 13) {
+            writeReservedMetadata(channel);
+            return;
+        }
+        final ByteBuffer tagHeader = ByteBuffer.allocate(11);
+        channel.read(tagHeader, 13);
+        tagHeader.flip();
+        final RtmpHeader header = FlvAtom.readHeader(ChannelBuffers.wrappedBuffer(tagHeader));
+        if(!header.isMetadata() || 13 + 11 + header.getSize() + 4 > position) {
+            logger.info("no reserved onMetaData in {}, it will not be finalized", file);
+            return;
+        }
+        final ByteBuffer data = ByteBuffer.allocate(header.getSize());
+        channel.read(data, 13 + 11);
+        data.flip();
+        final Map<String, Object> map = getOnMetaData(new FlvAtom(header.getMessageType(), 0, ChannelBuffers.wrappedBuffer(data)));
+        if(map == null || map.remove(METADATA_PADDING) == null) {
+            logger.info("no reserved onMetaData in {}, it will not be finalized", file);
+            return;
+        }
+        reservedSize = header.getSize();
+        map.remove("duration");
+        final Object fileSize = map.remove("filesize");
+        final Object keyframes = map.remove("keyframes");
+        if(!map.isEmpty()) {
+            publisherMetadata = map;
+        }
+        long indexedEnd = 13 + 11 + reservedSize + 4;
+        if(seedKeyframes(keyframes) && fileSize instanceof Number) {
+            indexedEnd = Math.max(indexedEnd, ((Number) fileSize).longValue());
+        }
+        if(indexedEnd < position) {
+            scanKeyframes(channel, indexedEnd, position);
+        }
+    }
+
+    private boolean seedKeyframes(final Object keyframes) {
+        if(!(keyframes instanceof Map)) {
+            return false;
+        }
+        final Object times = ((Map) keyframes).get("times");
+        final Object positions = ((Map) keyframes).get("filepositions");
+        if(!(times instanceof Object[]) || !(positions instanceof Object[])
+                || ((Object[]) times).length != ((Object[]) positions).length) {
+            return false;
+        }
+        for(int i = 0; i < ((Object[]) times).length; i++) {
+            final long keyframePosition = ((Number) ((Object[]) positions)[i]).longValue();
+            if(keyframePosition >= position) { // beyond a truncated tail
+                break;
+            }
+            keyframeTimes.add((int) Math.round(((Number) ((Object[]) times)[i]).doubleValue() * 1000));
+            keyframePositions.add(keyframePosition);
+        }
+        logger.debug("seeded {} keyframes from existing metadata", keyframeTimes.size());
+        return true;
+    }
+
+    /**
+     * reads only tag headers and the first bytes of video tags
+     */
+    private void scanKeyframes(final FileChannel channel, final long start, final long end) throws IOException {
+        final List<Integer> times = new ArrayList<Integer>();
+        final List<Long> positions = new ArrayList<Long>();
+        final ByteBuffer tagHeader = ByteBuffer.allocate(13);
+        long scanPosition = start;
+        while(scanPosition + 11 <= end) {
+            tagHeader.clear();
+            channel.read(tagHeader, scanPosition);
+            tagHeader.flip();
+            final ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(tagHeader);
+            final RtmpHeader header = FlvAtom.readHeader(buffer);
+            if(header.isVideo() && isKeyFrame(buffer)) {
+                times.add(header.getTime());
+                positions.add(scanPosition);
+            }
+            scanPosition += 11 + header.getSize() + 4;
+        }
+        keyframeTimes.addAll(times);
+        keyframePositions.addAll(positions);
+        logger.info("scanned {} keyframes from {} bytes of unindexed tags", times.size(), end - start);
+    }
+
+    /**
+     * if true (the default) close() patches the reserved onMetaData with
+     * duration, filesize and a keyframe index for seeking
+     */
+    public void setFinalizeOnClose(final boolean finalizeOnClose) {
+        this.finalizeOnClose = finalizeOnClose;
+    }
+
+    /**
+     * writes out all buffered tags
+     */
+    public void flush() {
+        if(out == null || pending.isEmpty()) {
+            return;
+        }
+        final ByteBuffer[] buffers = pending.toArray(new ByteBuffer[pending.size()]);
+        try {
+            long remaining = pendingBytes;
+            while(remaining > 0) {
+                remaining -= out.write(buffers);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            pending.clear();
+            pendingBytes = 0;
+        }
+    }
+
+    /**
+     * flushes and forces the written data to the storage device, along with
+     * the keyframe index so far so that appending after a crash only has to
+     * scan the tags written since
+     */
+    public void force() {
+        if(out == null) {
+            return;
+        }
+        flush();
         try {
-            File file = new File(fileName);
-            FileOutputStream fos = new FileOutputStream(file);
-            out = fos.getChannel();
-            out.write(FlvAtom.flvHeader().toByteBuffer());
-            logger.info("opened file for writing: {}", file.getAbsolutePath());
+            if(reservedSize > 0 && finalizeOnClose && primaryChannel != -1) {
+                patchMetadata(encodeOnMetaData(lastTime / 1000.0, position, true));
+            }
+            out.force(false);
         } catch (Exception e) {
             throw new RuntimeException(e);
-        }        
+        }
     }
 
     @Override
     public void close() {
         if(out != null) {
             try {
+                flush();
+                if(reservedSize > 0 && finalizeOnClose && primaryChannel != -1) {
+                    finalizeFile();
+                }
                 out.close();
             } catch (Exception e) {
                 throw new RuntimeException(e);
@@ -97,6 +325,9 @@ public class FlvWriter implements RtmpWriter {
         final RtmpHeader header = message.getHeader();
         if(header.isAggregate()) {
             final ChannelBuffer in = message.encode();
+            if(primaryChannel == -1) {
+                primaryChannel = header.getChannelId();
+            }
             while (in.readable()) {
                 final FlvAtom flvAtom = new FlvAtom(in);
                 final int absoluteTime = flvAtom.getHeader().getTime();
@@ -129,11 +360,155 @@ public class FlvWriter implements RtmpWriter {
         if(out == null) {
             return;
         }
+        if(isPublisherMetadata(flvAtom)) {
+            return;
+        }
+        track(flvAtom);
+        for(ByteBuffer buffer : flvAtom.toByteBuffers()) {
+            pending.add(buffer);
+            pendingBytes += buffer.remaining();
+        }
+        if(pendingBytes >= FLUSH_THRESHOLD) {
+            flush();
+        }
+    }
+
+    //==========================================================================
+
+    /**
+     * the first onMetaData of the publisher goes into the reserved tag
+     * instead of being written as a tag of its own, it is patched in right
+     * away so that it survives a crash
+     */
+    private boolean isPublisherMetadata(final FlvAtom flvAtom) {
+        final RtmpHeader header = flvAtom.getHeader();
+        if(reservedSize == 0 || publisherMetadata != null || header.getMessageType() != MessageType.METADATA_AMF0) {
+            return false;
+        }
+        publisherMetadata = getOnMetaData(flvAtom);
+        if(publisherMetadata == null) {
+            return false;
+        }
+        publisherMetadata.remove("keyframes");
         try {
-            out.write(flvAtom.write().toByteBuffer());
-        } catch (Exception e) {
+            patchMetadata(encodeOnMetaData(0, 0, false));
+        } catch(IOException e) {
             throw new RuntimeException(e);
         }
+        return true;
+    }
+
+    private void track(final FlvAtom flvAtom) {
+        final RtmpHeader header = flvAtom.getHeader();
+        final int tagSize = 11 + header.getSize() + 4;
+        if(header.isVideo() && isKeyFrame(flvAtom.getData())) {
+            keyframeTimes.add(header.getTime());
+            keyframePositions.add(position);
+        }
+        if(!header.isMetadata() && header.getTime() > lastTime) {
+            lastTime = header.getTime();
+        }
+        position += tagSize;
+    }
+
+    private static boolean isKeyFrame(final ChannelBuffer data) {
+        if(data.readableBytes() < 2) {
+            return false;
+        }
+        final byte first = data.getByte(data.readerIndex());
+        if((first & 0xF0) != 0x10) {
+            return false;
+        }
+        // avc sequence headers are flagged as keyframes but are not seek points
+        return (first & 0x0F) != 7 || data.getByte(data.readerIndex() + 1) != 0;
+    }
+
+    private static Map<String, Object> getOnMetaData(final FlvAtom flvAtom) {
+        try {
+            final Metadata metadata = (Metadata) MessageType.decode(flvAtom.getHeader(), flvAtom.getData().duplicate());
+            if(metadata.getName().equals("onMetaData")) {
+                return metadata.getMap(0);
+            }
+            if(metadata.getName().equals("@setDataFrame") && "onMetaData".equals(metadata.getData(0))) {
+                return metadata.getMap(1);
+            }
+        } catch(Exception e) {
+            logger.warn("unable to decode metadata: {}", e.getMessage());
+        }
+        return null;
     }
-    
+
+    /**
+     * always exactly the reserved size, if there are more keyframes than fit
+     * an evenly spaced subset is kept so seeking just gets coarser
+     */
+    private ChannelBuffer encodeOnMetaData(final double duration, final double fileSize, final boolean withKeyframes) {
+        ChannelBuffer base = encodeOnMetaData(duration, fileSize, withKeyframes, true, 0, "");
+        boolean withPublisherMetadata = true;
+        if(base.readableBytes() > reservedSize) {
+            logger.warn("publisher metadata does not fit in the reserved onMetaData of {}, dropping it", file);
+            withPublisherMetadata = false;
+            base = encodeOnMetaData(duration, fileSize, withKeyframes, false, 0, "");
+        }
+        final int count = withKeyframes
+                ? Math.min(keyframeTimes.size(), (reservedSize - base.readableBytes()) / KEYFRAME_ENTRY_SIZE) : 0;
+        final char[] padding = new char[reservedSize - base.readableBytes() - count * KEYFRAME_ENTRY_SIZE];
+        Arrays.fill(padding, ' ');
+        final ChannelBuffer data = encodeOnMetaData(duration, fileSize, withKeyframes,
+                withPublisherMetadata, count, new String(padding));
+        if(data.readableBytes() != reservedSize) {
+            throw new RuntimeException("onMetaData size " + data.readableBytes() + " != reserved " + reservedSize);
+        }
+        return data;
+    }
+
+    private ChannelBuffer encodeOnMetaData(final double duration, final double fileSize, final boolean withKeyframes,
+            final boolean withPublisherMetadata, final int count, final String padding) {
+        final Amf0Object map = new Amf0Object();
+        if(publisherMetadata != null && withPublisherMetadata) {
+            map.putAll(publisherMetadata);
+        }
+        map.put("duration", duration);
+        map.put("filesize", fileSize);
+        if(withKeyframes) {
+            final Object[] times = new Object[count];
+            final Object[] positions = new Object[count];
+            for(int i = 0; i < count; i++) {
+                final int index = (int) ((long) i * keyframeTimes.size() / count);
+                times[i] = keyframeTimes.get(index) / 1000.0;
+                positions[i] = (double) keyframePositions.get(index);
+            }
+            final Amf0Object keyframes = new Amf0Object();
+            keyframes.put("times", times);
+            keyframes.put("filepositions", positions);
+            map.put("keyframes", keyframes);
+        }
+        map.put(METADATA_PADDING, padding);
+        return new MetadataAmf0("onMetaData", map).encode();
+    }
+
+    private void patchMetadata(final ChannelBuffer data) throws IOException {
+        final ByteBuffer buffer = data.toByteBuffer();
+        long writePosition = 13 + 11;
+        while(buffer.hasRemaining()) {
+            writePosition += out.write(buffer, writePosition);
+        }
+    }
+
+    /**
+     * patches duration, filesize and the keyframe index into the onMetaData
+     * reserved at the start of the file, the rest of the file is not touched
+     */
+    private void finalizeFile() {
+        final long startTime = System.currentTimeMillis();
+        try {
+            patchMetadata(encodeOnMetaData(lastTime / 1000.0, position, true));
+        } catch(Exception e) {
+            logger.error("failed to finalize {}, leaving it as recorded: {}", file, e.getMessage());
+            return;
+        }
+        logger.info("finalized {} with {} keyframes in {} ms, file size: {}",
+                new Object[]{file, keyframeTimes.size(), System.currentTimeMillis() - startTime, position});
+    }
+
 }
@@ -0,0 +1,216 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.io.flv;
+
+import com.flazr.rtmp.RtmpConfig;
+import com.flazr.rtmp.RtmpHeader;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.RtmpReader;
+import com.flazr.rtmp.message.Aggregate;
+import com.flazr.rtmp.message.Metadata;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * plays back a recording made by SegmentedFlvWriter as one continuous
+ * stream, only the segment being played is open at any time
+ */
+public class SegmentedFlvReader implements RtmpReader {
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentedFlvReader.class);
+
+    private final List<Integer> startTimes = new ArrayList<Integer>();
+    private final List<String> fileNames = new ArrayList<String>();
+    private final Metadata metadata;
+    private final int width;
+    private final int height;
+    private final boolean zeroCopy;
+
+    private int aggregateDuration;
+    private int index = -1;
+    private FlvReader reader;
+
+    public SegmentedFlvReader(final String manifestPath) {
+        this(manifestPath, RtmpConfig.ZERO_COPY);
+    }
+
+    /**
+     * @param zeroCopy passed on to the reader of every segment, see FlvReader
+     */
+    public SegmentedFlvReader(final String manifestPath, final boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+        final File manifest = new File(manifestPath);
+        try {
+            final BufferedReader in = new BufferedReader(new FileReader(manifest));
+            try {
+                String line;
+                while((line = in.readLine()) != null) {
+                    line = line.trim();
+                    if(line.length() == 0) {
+                        continue;
+                    }
+                    final int space = line.indexOf(' ');
+                    final String fileName = new File(manifest.getParentFile(), line.substring(space + 1)).getPath();
+                    if(!new File(fileName).exists()) {
+                        logger.warn("ignoring missing segment: {}", fileName);
+                        continue;
+                    }
+                    startTimes.add(Integer.parseInt(line.substring(0, space)));
+                    fileNames.add(fileName);
+                }
+            } finally {
+                in.close();
+            }
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+        if(fileNames.isEmpty()) {
+            throw new RuntimeException("no segments found in manifest: " + manifestPath);
+        }
+        open(0);
+        metadata = reader.getMetadata();
+        width = reader.getWidth();
+        height = reader.getHeight();
+        final int last = fileNames.size() - 1;
+        if(last > 0) {
+            final FlvReader lastReader = new FlvReader(fileNames.get(last), null, false);
+            final double lastDuration = Math.max(0, lastReader.getMetadata().getDuration());
+            lastReader.close();
+            metadata.setDuration(getRelativeStart(last) / 1000.0 + lastDuration);
+        }
+        logger.info("opened {} segments from manifest: {}", fileNames.size(), manifestPath);
+    }
+
+    private int getRelativeStart(final int segment) {
+        return startTimes.get(segment) - startTimes.get(0);
+    }
+
+    private void open(final int segment) {
+        if(reader != null) {
+            reader.close();
+        }
+        index = segment;
+        reader = new FlvReader(fileNames.get(segment), null, zeroCopy);
+        reader.setAggregateDuration(aggregateDuration);
+        logger.debug("switched to segment #{}: {}", segment, fileNames.get(segment));
+    }
+
+    @Override
+    public Metadata getMetadata() {
+        return metadata;
+    }
+
+    @Override
+    public RtmpMessage[] getStartMessages() {
+        return new RtmpMessage[] { metadata };
+    }
+
+    @Override
+    public void setAggregateDuration(final int targetDuration) {
+        this.aggregateDuration = targetDuration;
+        reader.setAggregateDuration(targetDuration);
+    }
+
+    @Override
+    public long getTimePosition() {
+        return getRelativeStart(index) + reader.getTimePosition();
+    }
+
+    @Override
+    public long seek(final long timePosition) {
+        int segment = 0;
+        while(segment + 1 < fileNames.size() && getRelativeStart(segment + 1) <= timePosition) {
+            segment++;
+        }
+        if(segment != index) {
+            open(segment);
+        }
+        final int offset = getRelativeStart(segment);
+        return offset + reader.seek(Math.max(0, timePosition - offset));
+    }
+
+    @Override
+    public boolean hasNext() {
+        while(!reader.hasNext()) {
+            if(index + 1 == fileNames.size()) {
+                return false;
+            }
+            open(index + 1);
+        }
+        return true;
+    }
+
+    @Override
+    public RtmpMessage next() {
+        hasNext(); // moves on to the next segment if needed
+        final RtmpMessage message = reader.next();
+        final int offset = getRelativeStart(index);
+        if(offset == 0) {
+            return message;
+        }
+        final RtmpHeader header = message.getHeader();
+        if(!header.isAggregate()) {
+            header.setTime(header.getTime() + offset);
+            return message;
+        }
+        // a file aggregate reads the file again on every encode(), so the
+        // shifted tags have to go out as an aggregate held in memory
+        final ChannelBuffer data = message.encode();
+        shiftAggregateTimes(data, offset);
+        return new Aggregate(header.getTime() + offset, data);
+    }
+
+    /**
+     * the buffer is freshly read from the segment so it is safe to update
+     * the tag times in place
+     */
+    private static void shiftAggregateTimes(final ChannelBuffer in, final int offset) {
+        int pos = in.readerIndex();
+        while(pos + 11 <= in.writerIndex()) {
+            final int size = in.getMedium(pos + 1);
+            final int time = (in.getMedium(pos + 4) | (in.getByte(pos + 7) & 0xFF) << 24) + offset;
+            in.setMedium(pos + 4, time);
+            in.setByte(pos + 7, time >>> 24);
+            pos += 11 + size + 4;
+        }
+    }
+
+    @Override
+    public void close() {
+        reader.close();
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.io.flv;
+
+import com.flazr.rtmp.RtmpHeader;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.RtmpWriter;
+import com.flazr.rtmp.message.MessageType;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * records into a series of [name]-NNNNN.flv files, rotating at a keyframe
+ * once the current segment exceeds the configured duration or size, each
+ * segment starts at time zero and a [name].segments manifest lists the
+ * absolute start time and file name of every segment, one per line
+ */
+public class SegmentedFlvWriter implements RtmpWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentedFlvWriter.class);
+
+    public static final String MANIFEST_EXTENSION = ".segments";
+
+    public static interface WriterFactory {
+        RtmpWriter newWriter(String fileName);
+    }
+
+    public static final WriterFactory DEFAULT_FACTORY = new WriterFactory() {
+        @Override
+        public RtmpWriter newWriter(final String fileName) {
+            return new FlvWriter(fileName);
+        }
+    };
+
+    private final String basePath;
+    private final long maxDuration;
+    private final long maxSize;
+    private final WriterFactory factory;
+    private final FileOutputStream manifest;
+
+    private RtmpWriter writer;
+    private int segmentCount;
+    private int segmentStartTime;
+    private long segmentSize;
+    private boolean hasVideo;
+    private int timeOffset; // when appending to an existing recording
+
+    // replayed at the start of every segment so that each one is playable on its own
+    private FlvAtom metadata;
+    private FlvAtom videoConfig;
+    private FlvAtom audioConfig;
+
+    public SegmentedFlvWriter(final String basePath, final long maxDuration,
+            final long maxSize, final WriterFactory factory) {
+        this(basePath, maxDuration, maxSize, false, factory);
+    }
+
+    /**
+     * @param basePath path without the .flv extension
+     * @param maxDuration milliseconds, 0 for no limit
+     * @param maxSize bytes, 0 for no limit
+     * @param append if true an existing manifest is continued, starting with
+     * a new segment whose times follow on from the last recorded segment
+     */
+    public SegmentedFlvWriter(final String basePath, final long maxDuration,
+            final long maxSize, final boolean append, final WriterFactory factory) {
+        this.basePath = basePath;
+        this.maxDuration = maxDuration;
+        this.maxSize = maxSize;
+        this.factory = factory;
+        final File manifestFile = new File(basePath + MANIFEST_EXTENSION);
+        try {
+            if(append && manifestFile.exists()) {
+                initFromManifest(manifestFile);
+            }
+            manifest = new FileOutputStream(manifestFile, append);
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+        logger.info("segmented recording to {}, max duration: {} ms, max size: {} bytes, time offset: {}",
+                new Object[]{basePath, maxDuration, maxSize, timeOffset});
+    }
+
+    private void initFromManifest(final File manifestFile) throws IOException {
+        final BufferedReader in = new BufferedReader(new FileReader(manifestFile));
+        String last = null;
+        try {
+            String line;
+            while((line = in.readLine()) != null) {
+                if(line.trim().length() > 0) {
+                    last = line.trim();
+                    segmentCount++;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        if(last == null) {
+            return;
+        }
+        final int space = last.indexOf(' ');
+        final int lastStart = Integer.parseInt(last.substring(0, space));
+        final File lastFile = new File(manifestFile.getParentFile(), last.substring(space + 1));
+        int lastTime = 0;
+        if(lastFile.exists()) {
+            final FileChannel channel = new FileInputStream(lastFile).getChannel();
+            try {
+                final FlvTail tail = FlvTail.recover(channel);
+                if(tail != null) {
+                    lastTime = tail.getLastTime();
+                }
+            } finally {
+                channel.close();
+            }
+        }
+        timeOffset = lastStart + lastTime + 1;
+    }
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    @Override
+    public void write(final RtmpMessage message) {
+        final RtmpHeader header = message.getHeader();
+        if(header.isAggregate()) {
+            final ChannelBuffer in = message.encode().duplicate();
+            while(in.readable()) {
+                final FlvAtom atom = new FlvAtom(in);
+                atom.getHeader().setTime(atom.getHeader().getTime() + timeOffset);
+                write(atom);
+            }
+            return;
+        }
+        write(new FlvAtom(header.getMessageType(), header.getTime() + timeOffset, message.encode().duplicate()));
+    }
+
+    private void write(final FlvAtom atom) {
+        final RtmpHeader header = atom.getHeader();
+        final ChannelBuffer data = atom.getData();
+        final int time = header.getTime();
+        if(header.isMetadata()) {
+            metadata = atom;
+        } else if(header.isVideo()) {
+            hasVideo = true;
+            if(isConfig(data)) {
+                videoConfig = atom;
+            }
+        } else if(header.isAudio() && isConfig(data)) {
+            audioConfig = atom;
+        }
+        if(writer == null) {
+            if(header.isMetadata()) { // written when the first segment starts
+                return;
+            }
+            startSegment(time);
+        } else if(isSeekPoint(atom) && shouldRotate(time)) {
+            writer.close();
+            startSegment(time);
+        }
+        writeRebased(atom);
+    }
+
+    private static boolean isConfig(final ChannelBuffer data) {
+        return data.readableBytes() > 1 && data.getByte(data.readerIndex() + 1) == 0
+                && ((data.getByte(data.readerIndex()) & 0x0F) == 7 // avc
+                || (data.getByte(data.readerIndex()) & 0xF0) == 0xA0); // aac
+    }
+
+    private boolean isSeekPoint(final FlvAtom atom) {
+        final RtmpHeader header = atom.getHeader();
+        final ChannelBuffer data = atom.getData();
+        if(hasVideo) {
+            return header.isVideo() && data.readable()
+                    && (data.getByte(data.readerIndex()) & 0xF0) == 0x10
+                    && !isConfig(data);
+        }
+        return header.isAudio();
+    }
+
+    private boolean shouldRotate(final int time) {
+        return (maxDuration > 0 && time - segmentStartTime >= maxDuration)
+                || (maxSize > 0 && segmentSize >= maxSize);
+    }
+
+    private void startSegment(final int time) {
+        segmentCount++;
+        segmentStartTime = time;
+        segmentSize = 0;
+        final String fileName = basePath + "-" + String.format("%05d", segmentCount) + ".flv";
+        writer = factory.newWriter(fileName);
+        try {
+            manifest.write((time + " " + new File(fileName).getName() + "\n").getBytes());
+            manifest.flush();
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+        logger.info("started segment #{} at time {}: {}", new Object[]{segmentCount, time, fileName});
+        if(metadata != null) {
+            writeRebased(new FlvAtom(MessageType.METADATA_AMF0, time, metadata.getData().duplicate()));
+        }
+        if(videoConfig != null) {
+            writeRebased(new FlvAtom(MessageType.VIDEO, time, videoConfig.getData().duplicate()));
+        }
+        if(audioConfig != null) {
+            writeRebased(new FlvAtom(MessageType.AUDIO, time, audioConfig.getData().duplicate()));
+        }
+    }
+
+    private void writeRebased(final FlvAtom atom) {
+        final RtmpHeader header = atom.getHeader();
+        final int time = Math.max(0, header.getTime() - segmentStartTime);
+        writer.write(new FlvAtom(header.getMessageType(), time, atom.getData().duplicate()));
+        segmentSize += 11 + header.getSize() + 4;
+    }
+
+    @Override
+    public void close() {
+        if(writer != null) {
+            writer.close();
+            writer = null;
+        }
+        try {
+            manifest.close();
+        } catch(Exception e) {
+            logger.warn("error closing manifest {}: {}", basePath, e.getMessage());
+        }
+        logger.info("closed segmented recording {}, segments: {}", basePath, segmentCount);
+    }
+
+}
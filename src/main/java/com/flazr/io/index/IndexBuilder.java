@@ -0,0 +1,124 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.io.index;
+
+import com.flazr.rtmp.RtmpConfig;
+import com.flazr.util.NamedThreadFactory;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * offline tool that pre-builds sidecar index files for a whole
+ * directory tree, usage: IndexBuilder [dir] [threads] [-force]
+ */
+public class IndexBuilder {
+
+    private static final Logger logger = LoggerFactory.getLogger(IndexBuilder.class);
+
+    private final int threads;
+    private final boolean force;
+    private final AtomicInteger built = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    public IndexBuilder(final int threads, final boolean force) {
+        this.threads = threads;
+        this.force = force;
+    }
+
+    public static MediaIndex.Kind getKind(final File file) {
+        final String name = file.getName().toLowerCase();
+        if(name.endsWith(".flv")) {
+            return MediaIndex.Kind.FLV;
+        }
+        if(name.endsWith(".mp4") || name.endsWith(".f4v") || name.endsWith(".m4v")) {
+            return MediaIndex.Kind.F4V;
+        }
+        return null;
+    }
+
+    private static void collect(final File dir, final List<File> files) {
+        final File[] children = dir.listFiles();
+        if(children == null) {
+            return;
+        }
+        for(File child : children) {
+            if(child.isDirectory()) {
+                collect(child, files);
+            } else if(getKind(child) != null) {
+                files.add(child);
+            }
+        }
+    }
+
+    public void run(final File dir) {
+        final List<File> files = new ArrayList<File>();
+        collect(dir, files);
+        logger.info("found {} media files under {}, using {} threads",
+                new Object[]{files.size(), dir.getAbsolutePath(), threads});
+        final long startTime = System.currentTimeMillis();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("index-builder"));
+        for(final File file : files) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    buildIndex(file);
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch(InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        logger.info("index build complete in {} ms, built: {}, up to date: {}, failed: {}",
+                new Object[]{System.currentTimeMillis() - startTime, built, skipped, failed});
+    }
+
+    private void buildIndex(final File file) {
+        if(!force && MediaIndex.load(file) != null) {
+            skipped.incrementAndGet();
+            return;
+        }
+        try {
+            MediaIndex.build(file, getKind(file)).write(file);
+            built.incrementAndGet();
+        } catch(Exception e) {
+            logger.warn("failed to build index for {}: {}", file, e.getMessage());
+            failed.incrementAndGet();
+        }
+    }
+
+    public static void main(String[] args) {
+        final File dir = new File(args.length > 0 ? args[0] : RtmpConfig.SERVER_HOME_DIR + "/apps");
+        final int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        final boolean force = args.length > 2 && args[2].equals("-force");
+        new IndexBuilder(threads, force).run(dir);
+    }
+
+}
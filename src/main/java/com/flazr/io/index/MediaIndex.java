@@ -0,0 +1,491 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.io.index;
+
+import com.flazr.io.FileChannelReader;
+import com.flazr.io.f4v.MovieInfo;
+import com.flazr.io.f4v.Sample;
+import com.flazr.io.flv.FlvAtom;
+import com.flazr.io.flv.FlvReader;
+import com.flazr.rtmp.RtmpHeader;
+import com.flazr.rtmp.message.MessageType;
+import com.flazr.rtmp.message.Metadata;
+import com.flazr.util.NamedThreadFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * compact sidecar index stored next to a media file as [name].flzidx
+ * so that a cold start does not have to re-scan flv tags or re-parse
+ * the mp4 moov box, validated against the size and mtime of the media file
+ */
+public class MediaIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(MediaIndex.class);
+
+    public static final String EXTENSION = ".flzidx";
+
+    private static final int MAGIC = 0x465A4958; // FZIX
+    private static final short VERSION = 1;
+
+    private static final int FLAG_VIDEO = 0x01;
+    private static final int FLAG_SYNC = 0x02;
+
+    private static final ExecutorService BUILDER =
+            Executors.newSingleThreadExecutor(new NamedThreadFactory("index-builder"));
+
+    private static final ConcurrentMap<String, FutureTask<MediaIndex>> BUILDS =
+            new ConcurrentHashMap<String, FutureTask<MediaIndex>>();
+
+    public static enum Kind { FLV, F4V }
+
+    private final Kind kind;
+    private final long sourceSize;
+    private final long sourceModified;
+    private byte[] metadata;
+
+    // flv
+    private long mediaStartPosition;
+    private int width;
+    private int height;
+    private int[] keyframeTimes;
+    private long[] keyframePositions;
+
+    // f4v
+    private byte[] videoConfig;
+    private byte[] audioConfig;
+    private long[] sampleOffsets;
+    private int[] sampleSizes;
+    private int[] sampleTimes;
+    private int[] sampleCompositionOffsets;
+    private byte[] sampleFlags;
+
+    private MediaIndex(final Kind kind, final long sourceSize, final long sourceModified) {
+        this.kind = kind;
+        this.sourceSize = sourceSize;
+        this.sourceModified = sourceModified;
+    }
+
+    public static File getIndexFile(final File media) {
+        return new File(media.getPath() + EXTENSION);
+    }
+
+    /**
+     * returns a valid index for the media file, if it does not exist or is
+     * stale it is built and written to disk in the background and null is
+     * returned meanwhile, so that the file can be played without one
+     */
+    public static MediaIndex get(final File media, final Kind kind) {
+        final MediaIndex existing = load(media);
+        if(existing != null && existing.kind == kind) {
+            return existing;
+        }
+        buildAsync(media, kind);
+        return null;
+    }
+
+    public static MediaIndex build(final File media, final Kind kind) {
+        final long startTime = System.currentTimeMillis();
+        final MediaIndex index = kind == Kind.FLV ? forFlv(media) : forF4v(media);
+        logger.info("built {} index for {} in {} ms",
+                new Object[]{kind, media, System.currentTimeMillis() - startTime});
+        return index;
+    }
+
+    private static MediaIndex forFlv(final File media) {
+        final MediaIndex index = new MediaIndex(Kind.FLV, media.length(), media.lastModified());
+        final FlvReader reader = new FlvReader(media.getPath());
+        try {
+            index.metadata = toBytes(reader.getMetadata().encode());
+            index.mediaStartPosition = reader.getMediaStartPosition();
+            index.width = reader.getWidth();
+            index.height = reader.getHeight();
+        } finally {
+            reader.close();
+        }
+        // only tag headers and the first byte of video tags are read
+        final FileChannelReader in = new FileChannelReader(media);
+        final List<Integer> times = new ArrayList<Integer>();
+        final List<Long> positions = new ArrayList<Long>();
+        try {
+            long position = index.mediaStartPosition;
+            final long size = in.size();
+            while(position + 11 <= size) {
+                in.position(position);
+                final RtmpHeader header = FlvAtom.readHeader(in.read(11));
+                if(header.isVideo() && header.getSize() > 0
+                        && (in.read(1).getByte(0) & 0xF0) == 0x10) {
+                    times.add(header.getTime());
+                    positions.add(position);
+                }
+                position += 11 + header.getSize() + 4;
+            }
+        } finally {
+            in.close();
+        }
+        index.keyframeTimes = new int[times.size()];
+        index.keyframePositions = new long[positions.size()];
+        for(int i = 0; i < times.size(); i++) {
+            index.keyframeTimes[i] = times.get(i);
+            index.keyframePositions[i] = positions.get(i);
+        }
+        return index;
+    }
+
+    private static MediaIndex forF4v(final File media) {
+        final MediaIndex index = new MediaIndex(Kind.F4V, media.length(), media.lastModified());
+        final FileChannelReader in = new FileChannelReader(media);
+        final MovieInfo movie;
+        try {
+            movie = new MovieInfo(in);
+        } finally {
+            in.close();
+        }
+        index.metadata = toBytes(Metadata.onMetaData(movie).encode());
+        index.videoConfig = movie.getVideoDecoderConfig();
+        index.audioConfig = movie.getAudioDecoderConfig();
+        final List<Sample> samples = movie.getSamples();
+        final int count = samples.size();
+        index.sampleOffsets = new long[count];
+        index.sampleSizes = new int[count];
+        index.sampleTimes = new int[count];
+        index.sampleCompositionOffsets = new int[count];
+        index.sampleFlags = new byte[count];
+        for(int i = 0; i < count; i++) {
+            final Sample sample = samples.get(i);
+            index.sampleOffsets[i] = sample.getFileOffset();
+            index.sampleSizes[i] = sample.getSize();
+            index.sampleTimes[i] = sample.getTime();
+            index.sampleCompositionOffsets[i] = sample.getCompositionTimeOffset();
+            index.sampleFlags[i] = (byte) ((sample.isVideo() ? FLAG_VIDEO : 0)
+                    | (sample.isSyncSample() ? FLAG_SYNC : 0));
+        }
+        return index;
+    }
+
+    //==========================================================================
+
+    /**
+     * @return null if there is no index or it does not match the media file
+     */
+    public static MediaIndex load(final File media) {
+        final File file = getIndexFile(media);
+        if(!file.exists()) {
+            return null;
+        }
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            final FileChannel channel = fis.getChannel();
+            final MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if(in.getInt() != MAGIC || in.getShort() != VERSION) {
+                logger.warn("ignoring index with bad header: {}", file);
+                return null;
+            }
+            final Kind kind = Kind.values()[in.get()];
+            final MediaIndex index = new MediaIndex(kind, in.getLong(), in.getLong());
+            if(index.sourceSize != media.length() || index.sourceModified != media.lastModified()) {
+                logger.info("ignoring stale index: {}", file);
+                return null;
+            }
+            index.metadata = getBytes(in);
+            if(kind == Kind.FLV) {
+                index.mediaStartPosition = in.getLong();
+                index.width = in.getInt();
+                index.height = in.getInt();
+                final int count = getCount(in, 4 + 8);
+                index.keyframeTimes = getInts(in, count);
+                index.keyframePositions = getLongs(in, count);
+            } else {
+                index.videoConfig = getBytes(in);
+                index.audioConfig = getBytes(in);
+                final int count = getCount(in, 8 + 4 + 4 + 4 + 1);
+                index.sampleOffsets = getLongs(in, count);
+                index.sampleSizes = getInts(in, count);
+                index.sampleTimes = getInts(in, count);
+                index.sampleCompositionOffsets = getInts(in, count);
+                index.sampleFlags = new byte[count];
+                in.get(index.sampleFlags);
+            }
+            logger.debug("loaded index: {}", file);
+            return index;
+        } catch(Exception e) {
+            logger.warn("failed to load index {}: {}", file, e.getMessage());
+            return null;
+        } finally {
+            if(fis != null) {
+                try {
+                    fis.close();
+                } catch(Exception e) {
+                    logger.warn("error closing index file {}: {}", file, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * only one build runs per file, concurrent callers get the same future
+     */
+    public static Future<MediaIndex> buildAsync(final File media, final Kind kind) {
+        final String key = media.getPath();
+        final FutureTask<MediaIndex> task = new FutureTask<MediaIndex>(new Callable<MediaIndex>() {
+            @Override
+            public MediaIndex call() {
+                try {
+                    final MediaIndex index = build(media, kind);
+                    index.write(media);
+                    return index;
+                } catch(RuntimeException e) {
+                    logger.warn("failed to build index for {}: {}", media, e.getMessage());
+                    throw e;
+                } finally {
+                    BUILDS.remove(key);
+                }
+            }
+        });
+        final FutureTask<MediaIndex> existing = BUILDS.putIfAbsent(key, task);
+        if(existing != null) {
+            return existing;
+        }
+        BUILDER.execute(task);
+        return task;
+    }
+
+    /**
+     * written to a temp file first and then renamed, so readers
+     * never see a partially written index
+     */
+    public void write(final File media) {
+        final File file = getIndexFile(media);
+        final ByteBuffer out = ByteBuffer.allocate(getEncodedSize());
+        out.putInt(MAGIC);
+        out.putShort(VERSION);
+        out.put((byte) kind.ordinal());
+        out.putLong(sourceSize);
+        out.putLong(sourceModified);
+        putBytes(out, metadata);
+        if(kind == Kind.FLV) {
+            out.putLong(mediaStartPosition);
+            out.putInt(width);
+            out.putInt(height);
+            out.putInt(keyframeTimes.length);
+            out.asIntBuffer().put(keyframeTimes);
+            out.position(out.position() + keyframeTimes.length * 4);
+            out.asLongBuffer().put(keyframePositions);
+            out.position(out.position() + keyframePositions.length * 8);
+        } else {
+            putBytes(out, videoConfig);
+            putBytes(out, audioConfig);
+            out.putInt(sampleOffsets.length);
+            out.asLongBuffer().put(sampleOffsets);
+            out.position(out.position() + sampleOffsets.length * 8);
+            for(int[] ints : new int[][]{sampleSizes, sampleTimes, sampleCompositionOffsets}) {
+                out.asIntBuffer().put(ints);
+                out.position(out.position() + ints.length * 4);
+            }
+            out.put(sampleFlags);
+        }
+        out.flip();
+        try {
+            final File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+            final FileOutputStream fos = new FileOutputStream(temp);
+            try {
+                final FileChannel channel = fos.getChannel();
+                while(out.hasRemaining()) {
+                    channel.write(out);
+                }
+            } finally {
+                fos.close();
+            }
+            if(!temp.renameTo(file)) {
+                file.delete();
+                if(!temp.renameTo(file)) {
+                    temp.delete();
+                    throw new RuntimeException("unable to rename " + temp + " to " + file);
+                }
+            }
+        } catch(RuntimeException re) {
+            throw re;
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+        logger.info("wrote index: {}, size: {}", file, file.length());
+    }
+
+    private int getEncodedSize() {
+        int size = 4 + 2 + 1 + 8 + 8 + 4 + length(metadata);
+        if(kind == Kind.FLV) {
+            size += 8 + 4 + 4 + 4 + keyframeTimes.length * (4 + 8);
+        } else {
+            size += 4 + length(videoConfig) + 4 + length(audioConfig);
+            size += 4 + sampleOffsets.length * (8 + 4 + 4 + 4 + 1);
+        }
+        return size;
+    }
+
+    private static int length(final byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static void putBytes(final ByteBuffer out, final byte[] bytes) {
+        if(bytes == null) {
+            out.putInt(-1);
+            return;
+        }
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+
+    /**
+     * a count that does not fit in the rest of the file means the index is
+     * corrupt, checked before anything is allocated for it
+     */
+    private static int getCount(final ByteBuffer in, final int elementSize) {
+        final int count = in.getInt();
+        if(count < 0 || count > in.remaining() / elementSize) {
+            throw new RuntimeException("corrupt index, count " + count + " with "
+                    + in.remaining() + " bytes left");
+        }
+        return count;
+    }
+
+    private static byte[] getBytes(final ByteBuffer in) {
+        final int length = in.getInt();
+        if(length < 0) {
+            return null;
+        }
+        if(length > in.remaining()) {
+            throw new RuntimeException("corrupt index, length " + length + " with "
+                    + in.remaining() + " bytes left");
+        }
+        final byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static int[] getInts(final ByteBuffer in, final int count) {
+        final int[] values = new int[count];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + count * 4);
+        return values;
+    }
+
+    private static long[] getLongs(final ByteBuffer in, final int count) {
+        final long[] values = new long[count];
+        in.asLongBuffer().get(values);
+        in.position(in.position() + count * 8);
+        return values;
+    }
+
+    private static byte[] toBytes(final ChannelBuffer buffer) {
+        final byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.getBytes(buffer.readerIndex(), bytes);
+        return bytes;
+    }
+
+    //==========================================================================
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * decoded fresh on every call, callers are free to modify the result
+     */
+    public Metadata getMetadata() {
+        final RtmpHeader header = new RtmpHeader(MessageType.METADATA_AMF0, 0, metadata.length);
+        return (Metadata) MessageType.decode(header, ChannelBuffers.wrappedBuffer(metadata));
+    }
+
+    public long getMediaStartPosition() {
+        return mediaStartPosition;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int[] getKeyframeTimes() {
+        return keyframeTimes;
+    }
+
+    public long[] getKeyframePositions() {
+        return keyframePositions;
+    }
+
+    public byte[] getVideoConfig() {
+        return videoConfig;
+    }
+
+    public byte[] getAudioConfig() {
+        return audioConfig;
+    }
+
+    public List<Sample> getSamples() {
+        final List<Sample> samples = new ArrayList<Sample>(sampleOffsets.length);
+        for(int i = 0; i < sampleOffsets.length; i++) {
+            final Sample sample = new Sample();
+            sample.setFileOffset(sampleOffsets[i]);
+            sample.setSize(sampleSizes[i]);
+            sample.setTime(sampleTimes[i]);
+            sample.setCompositionTimeOffset(sampleCompositionOffsets[i]);
+            sample.setVideo((sampleFlags[i] & FLAG_VIDEO) != 0);
+            sample.setSyncSample((sampleFlags[i] & FLAG_SYNC) != 0);
+            samples.add(sample);
+        }
+        return samples;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("[kind: ").append(kind);
+        sb.append(" sourceSize: ").append(sourceSize);
+        if(kind == Kind.FLV) {
+            sb.append(" keyframes: ").append(keyframeTimes.length);
+        } else {
+            sb.append(" samples: ").append(sampleOffsets.length);
+        }
+        sb.append(']');
+        return sb.toString();
+    }
+
+}
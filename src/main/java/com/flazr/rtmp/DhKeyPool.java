@@ -0,0 +1,155 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.flazr.rtmp;
+
+import com.flazr.util.NamedThreadFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.spec.DHParameterSpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * diffie hellman key pairs generated ahead of time on a background thread,
+ * key generation is the most expensive part of an rtmpe handshake and a
+ * burst of reconnecting clients would otherwise do it all on the i/o threads,
+ * every key pair is handed out only once
+ */
+public class DhKeyPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(DhKeyPool.class);
+
+    private final DHParameterSpec spec;
+    private final BlockingQueue<KeyPair> pool;
+    private final int rate;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private Thread thread;
+
+    private final ThreadLocal<KeyPairGenerator> generators = new ThreadLocal<KeyPairGenerator>() {
+        @Override protected KeyPairGenerator initialValue() {
+            try {
+                final KeyPairGenerator generator = KeyPairGenerator.getInstance("DH");
+                generator.initialize(spec);
+                return generator;
+            } catch(Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    /**
+     * @param size how many key pairs to keep ready
+     * @param rate max key pairs generated per second when refilling, 0 for
+     * as fast as one thread can
+     */
+    public DhKeyPool(final DHParameterSpec spec, final int size, final int rate) {
+        this.spec = spec;
+        this.pool = new ArrayBlockingQueue<KeyPair>(size);
+        this.rate = rate;
+    }
+
+    public synchronized void start() {
+        if(thread != null) {
+            return;
+        }
+        thread = new NamedThreadFactory("dh-key-pool").newThread(new Runnable() {
+            @Override public void run() {
+                fill();
+            }
+        });
+        thread.start();
+        logger.info("started dh key pool, size: {}, rate: {} per second", pool.remainingCapacity(), rate);
+    }
+
+    private void fill() {
+        final long interval = rate > 0 ? 1000000000L / rate : 0;
+        long next = System.nanoTime();
+        try {
+            while(true) {
+                pool.put(generate());
+                if(interval > 0) {
+                    next += interval;
+                    final long wait = next - System.nanoTime();
+                    if(wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } else {
+                        next = System.nanoTime(); // no catching up after a burst
+                    }
+                }
+            }
+        } catch(InterruptedException e) {
+            logger.info("dh key pool stopped");
+        }
+    }
+
+    /**
+     * fills the pool on the calling thread without the rate limit, so that
+     * the first burst of rtmpe clients after startup is served from it
+     */
+    public void prefill() {
+        final long start = System.currentTimeMillis();
+        int count = 0;
+        while(pool.remainingCapacity() > 0 && pool.offer(generate())) {
+            count++;
+        }
+        logger.info("pre-filled dh key pool with {} key pairs in {} ms", count, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * a pooled key pair, or a freshly generated one on the calling thread
+     * if the pool has run dry
+     */
+    public KeyPair take() {
+        final KeyPair keyPair = pool.poll();
+        if(keyPair != null) {
+            hits.incrementAndGet();
+            return keyPair;
+        }
+        misses.incrementAndGet();
+        return generate();
+    }
+
+    public KeyPair generate() {
+        return generators.get().generateKeyPair();
+    }
+
+    public int getAvailable() {
+        return pool.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "[dh key pool available: " + pool.size() + " hits: " + hits + " misses: " + misses + ']';
+    }
+
+}
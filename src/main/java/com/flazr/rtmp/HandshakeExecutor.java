@@ -0,0 +1,140 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.flazr.rtmp;
+
+import com.flazr.rtmp.stats.LatencyHistogram;
+import com.flazr.util.NamedThreadFactory;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.netty.channel.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * runs the expensive part of handshakes (digests, diffie hellman) off the
+ * i/o threads, so that a burst of new connections does not hold up media
+ * for the channels sharing the same worker, reading from the channel is
+ * suspended until the work is done
+ */
+public class HandshakeExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(HandshakeExecutor.class);
+
+    private static HandshakeExecutor instance;
+
+    private final ThreadPoolExecutor executor;
+    private final Semaphore permits;
+    private final int maxInFlight;
+    private final LatencyHistogram queueTimes = new LatencyHistogram();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param maxInFlight handshakes queued or running at the same time,
+     * channels beyond that are closed straight away
+     */
+    public HandshakeExecutor(final int threads, final int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        permits = new Semaphore(maxInFlight);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("handshake"));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * the shared instance, null if handshakes are configured to run on the
+     * i/o threads
+     */
+    public static synchronized HandshakeExecutor get() {
+        if(instance == null && RtmpConfig.HANDSHAKE_THREADS > 0) {
+            instance = new HandshakeExecutor(RtmpConfig.HANDSHAKE_THREADS, RtmpConfig.HANDSHAKE_MAX_IN_FLIGHT);
+            logger.info("handshake executor threads: {}, max in flight: {}",
+                    RtmpConfig.HANDSHAKE_THREADS, RtmpConfig.HANDSHAKE_MAX_IN_FLIGHT);
+        }
+        return instance;
+    }
+
+    /**
+     * suspends reads and runs the task, reads resume once it completes, the
+     * channel is closed if the task fails or too many are in flight
+     */
+    public void execute(final Channel channel, final Runnable task) {
+        if(!permits.tryAcquire()) {
+            rejected.incrementAndGet();
+            logger.warn("{} handshakes in flight, closing: {}", maxInFlight, channel);
+            channel.close();
+            return;
+        }
+        channel.setReadable(false);
+        final long queued = System.nanoTime();
+        try {
+            executor.execute(new Runnable() {
+                @Override public void run() {
+                    queueTimes.recordNanos(System.nanoTime() - queued);
+                    try {
+                        task.run();
+                        completed.incrementAndGet();
+                        channel.setReadable(true);
+                    } catch(Exception e) {
+                        logger.warn("handshake failed, closing: {} {}", channel, e.getMessage());
+                        channel.close();
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        } catch(RejectedExecutionException e) {
+            permits.release();
+            rejected.incrementAndGet();
+            channel.close();
+        }
+    }
+
+    public int getInFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * time handshakes waited for a thread, in microseconds
+     */
+    public LatencyHistogram getQueueTimes() {
+        return queueTimes;
+    }
+
+    @Override
+    public String toString() {
+        return "[handshakes in flight: " + getInFlight() + " completed: " + completed
+                + " rejected: " + rejected + " queue time: " + queueTimes + ']';
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.flazr.rtmp;
+
+import com.flazr.rtmp.message.Metadata;
+import com.flazr.util.NamedThreadFactory;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * keeps the next few seconds of media of any reader in memory, filled by a
+ * background task so that next() rarely waits on the disk, a seek drops
+ * whatever was read ahead, the wrapped reader is only ever used while
+ * holding the lock on this object
+ */
+public class PrefetchingReader implements RtmpReader {
+
+    private static final Logger logger = LoggerFactory.getLogger(PrefetchingReader.class);
+
+    public static final int DEFAULT_MAX_MESSAGES = 1000;
+
+    private static Executor executor;
+
+    private final RtmpReader reader;
+    private final int targetMillis;
+    private final int maxMessages;
+    private final Deque<RtmpMessage> queue = new ArrayDeque<RtmpMessage>();
+    private boolean endReached;
+    private boolean filling;
+    private boolean closed;
+    private long timePosition;
+    private long hits;
+    private long misses;
+
+    private final Runnable fill = new Runnable() {
+        @Override public void run() {
+            fill();
+        }
+    };
+
+    /**
+     * @param targetMillis how much media time to keep ready
+     * @param maxMessages upper bound regardless of media time
+     */
+    public PrefetchingReader(final RtmpReader reader, final int targetMillis, final int maxMessages) {
+        this.reader = reader;
+        this.targetMillis = targetMillis;
+        this.maxMessages = maxMessages;
+        logger.debug("prefetching reader init, target: {} ms, max messages: {}", targetMillis, maxMessages);
+    }
+
+    /**
+     * wraps using the configured target, returns the reader as is if
+     * prefetching is disabled or the reader is null
+     */
+    public static RtmpReader wrap(final RtmpReader reader) {
+        if(reader == null || RtmpConfig.PREFETCH_MILLIS <= 0) {
+            return reader;
+        }
+        return new PrefetchingReader(reader, RtmpConfig.PREFETCH_MILLIS, DEFAULT_MAX_MESSAGES);
+    }
+
+    private static synchronized Executor getExecutor() {
+        if(executor == null) {
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(RtmpConfig.PREFETCH_THREADS,
+                    RtmpConfig.PREFETCH_THREADS, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("prefetch"));
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        return executor;
+    }
+
+    private void fill() {
+        while(true) {
+            synchronized(this) {
+                if(closed || endReached || queue.size() >= maxMessages || getBufferedMillis() >= targetMillis) {
+                    filling = false;
+                    return;
+                }
+                if(!reader.hasNext()) {
+                    endReached = true;
+                    filling = false;
+                    return;
+                }
+                queue.add(reader.next());
+            } // let next() in between every read
+        }
+    }
+
+    private void scheduleFill() {
+        if(filling || closed || endReached) {
+            return;
+        }
+        filling = true;
+        getExecutor().execute(fill);
+    }
+
+    /**
+     * media time between the first and last message ready
+     */
+    public synchronized int getBufferedMillis() {
+        if(queue.isEmpty()) {
+            return 0;
+        }
+        return queue.peekLast().getHeader().getTime() - queue.peekFirst().getHeader().getTime();
+    }
+
+    public synchronized int getBufferedCount() {
+        return queue.size();
+    }
+
+    /**
+     * messages served from memory
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * messages that had to be read on the calling thread
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized Metadata getMetadata() {
+        return reader.getMetadata();
+    }
+
+    @Override
+    public synchronized RtmpMessage[] getStartMessages() {
+        return reader.getStartMessages();
+    }
+
+    @Override
+    public synchronized void setAggregateDuration(final int targetDuration) {
+        reader.setAggregateDuration(targetDuration); // applies from the next read on
+    }
+
+    @Override
+    public synchronized long getTimePosition() {
+        return timePosition;
+    }
+
+    @Override
+    public synchronized long seek(final long position) {
+        queue.clear();
+        endReached = false;
+        timePosition = reader.seek(position);
+        scheduleFill();
+        return timePosition;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        queue.clear();
+        logger.debug("closing, hits: {}, misses: {}", hits, misses);
+        reader.close();
+    }
+
+    @Override
+    public synchronized boolean hasNext() {
+        if(!queue.isEmpty()) {
+            return true;
+        }
+        if(endReached) {
+            return false;
+        }
+        if(!reader.hasNext()) {
+            endReached = true;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized RtmpMessage next() {
+        RtmpMessage message = queue.poll();
+        if(message != null) {
+            hits++;
+        } else {
+            misses++;
+            message = reader.next();
+        }
+        timePosition = message.getHeader().getTime();
+        scheduleFill();
+        return message;
+    }
+
+    @Override
+    public synchronized int getWidth() {
+        return reader.getWidth();
+    }
+
+    @Override
+    public synchronized int getHeight() {
+        return reader.getHeight();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "[prefetching: " + reader + " ready: " + queue.size() + " (" + getBufferedMillis()
+                + " ms) hits: " + hits + " misses: " + misses + ']';
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.flazr.rtmp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * rc4 applied in place, the keystream is xor-ed straight into the backing
+ * array of heap buffers, other buffers go through a small scratch array in
+ * large batches, the jce cipher needs a copy in and a copy out per call,
+ * one instance per direction of a connection and not thread safe
+ */
+public class Rc4Cipher {
+
+    private static final int BATCH_SIZE = 8192;
+
+    private final int[] state = new int[256];
+    private int x;
+    private int y;
+    private byte[] scratch;
+
+    /**
+     * @param key only the first 'length' bytes are used
+     */
+    public Rc4Cipher(final byte[] key, final int length) {
+        for(int i = 0; i < 256; i++) {
+            state[i] = i;
+        }
+        int j = 0;
+        for(int i = 0; i < 256; i++) {
+            final int temp = state[i];
+            j = (j + temp + (key[i % length] & 0xff)) & 0xff;
+            state[i] = state[j];
+            state[j] = temp;
+        }
+    }
+
+    public void update(final byte[] bytes, final int offset, final int length) {
+        final int[] s = state;
+        int i = x;
+        int j = y;
+        for(int k = offset, end = offset + length; k < end; k++) {
+            i = (i + 1) & 0xff;
+            final int si = s[i];
+            j = (j + si) & 0xff;
+            final int sj = s[j];
+            s[i] = sj;
+            s[j] = si;
+            bytes[k] ^= s[(si + sj) & 0xff];
+        }
+        x = i;
+        y = j;
+    }
+
+    /**
+     * the readable bytes of the buffer, indexes are left unchanged
+     */
+    public void update(final ChannelBuffer buffer) {
+        int index = buffer.readerIndex();
+        int remaining = buffer.readableBytes();
+        if(buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + index, remaining);
+            return;
+        }
+        if(scratch == null) {
+            scratch = new byte[BATCH_SIZE];
+        }
+        while(remaining > 0) {
+            final int length = Math.min(remaining, BATCH_SIZE);
+            buffer.getBytes(index, scratch, 0, length);
+            update(scratch, 0, length);
+            buffer.setBytes(index, scratch, 0, length);
+            index += length;
+            remaining -= length;
+        }
+    }
+
+    /**
+     * moves the keystream forward as if that many bytes had been processed
+     */
+    public void skip(final int count) {
+        update(new byte[count], 0, count);
+    }
+
+}
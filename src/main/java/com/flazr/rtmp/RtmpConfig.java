@@ -37,6 +37,47 @@ public class RtmpConfig {
     public static int TIMER_TICK_SIZE = 10;
     public static int SERVER_PORT = 1935;
     public static int SERVER_STOP_PORT = 1934;
+    public static boolean SERVER_INDEX_ENABLED = false;
+    public static boolean SERVER_RECORD_ASYNC = true;
+    public static int SERVER_RECORD_QUEUE_SIZE = 4096;
+    public static int SERVER_RECORD_FORCE_INTERVAL = 5000;
+    public static int SERVER_RECORD_SEGMENT_DURATION = 0;
+    public static int SERVER_RECORD_SEGMENT_SIZE = 0;
+    public static int SERVER_STATS_PORT = 0;
+    public static int SERVER_HTTP_PORT = 0;
+    public static int SERVER_GOP_CACHE_SIZE = 4194304;
+    public static boolean SERVER_LATENCY_TRACING = false;
+    public static boolean PIPELINE_PROBES = Boolean.getBoolean("flazr.pipeline.probes");
+    public static int SERVER_PING_INTERVAL = 10;
+    public static int SERVER_EVICT_GRACE = 60;
+    public static int SERVER_EVICT_INTERVAL = 10;
+    public static int SERVER_MEDIA_THREADS = 16;
+    public static long SERVER_MEDIA_CHANNEL_MEMORY = 1048576;
+    public static long SERVER_MEDIA_TOTAL_MEMORY = 67108864;
+    public static int DH_POOL_SIZE = Integer.getInteger("flazr.dh.pool.size", 64);
+    public static int DH_POOL_RATE = Integer.getInteger("flazr.dh.pool.rate", 100);
+    public static int HANDSHAKE_THREADS = Integer.getInteger("flazr.handshake.threads",
+            Runtime.getRuntime().availableProcessors());
+    public static String SERVER_TIER_DIR = null;
+    public static int SERVER_TIER_MB = 10240;
+    public static int SERVER_TIER_PROMOTE_AFTER = 2;
+    public static String SERVER_ORIGIN_URL = null;
+    public static String SERVER_ORIGIN_CACHE_DIR = "origin-cache";
+    public static int SERVER_ORIGIN_CACHE_MB = 1024;
+    public static int SERVER_ORIGIN_BLOCK_SIZE = 262144;
+    public static int SERVER_ORIGIN_READ_AHEAD = 4;
+    public static int SERVER_ORIGIN_READ_AHEAD_THREADS = 8;
+    public static int SERVER_ORIGIN_TIMEOUT = 10000;
+    public static int CACHE_SIZE = Integer.getInteger("flazr.cache.size", 67108864);
+    public static int CACHE_BLOCK_SIZE = Integer.getInteger("flazr.cache.block.size", 65536);
+    public static int SERVER_CHUNK_SIZE = 4096;
+    public static boolean ZERO_COPY = Boolean.parseBoolean(System.getProperty("flazr.zero.copy", "true"));
+    public static int ZERO_COPY_MIN_CHUNK_SIZE = Integer.getInteger("flazr.zero.copy.min.chunk.size", 16384);
+    public static int PREFETCH_MILLIS = Integer.getInteger("flazr.prefetch.millis", 3000);
+    public static int PREFETCH_THREADS = Integer.getInteger("flazr.prefetch.threads", 4);
+    public static int HANDSHAKE_MAX_IN_FLIGHT = Integer.getInteger("flazr.handshake.max.in.flight", 1000);
+
+    private static Properties PROPS = new Properties();
     public static int PROXY_PORT = 8000;
     public static int PROXY_STOP_PORT = 7999;
     public static String PROXY_REMOTE_HOST = "127.0.0.1";
@@ -93,6 +134,7 @@ public class RtmpConfig {
         } else {
             logger.info("loading config from: {}", propsFile.getAbsolutePath());
             Properties props = loadProps(propsFile);
+            PROPS = props;
             switch(type) {
                 case SERVER:
                 case SERVER_STOP:
@@ -110,6 +152,102 @@ public class RtmpConfig {
                         throw new RuntimeException("home dir does not exist: " + homeFile.getAbsolutePath());
                     }
                     logger.info("home dir: '{}'", homeFile.getAbsolutePath());
+                    SERVER_INDEX_ENABLED = Boolean.parseBoolean(props.getProperty("server.index.enabled", "false"));
+                    logger.info("sidecar index files enabled: {}", SERVER_INDEX_ENABLED);
+                    SERVER_RECORD_ASYNC = Boolean.parseBoolean(props.getProperty("server.record.async", "true"));
+                    Integer recordQueueSize = parseInt(props.getProperty("server.record.queue.size"));
+                    if(recordQueueSize != null) SERVER_RECORD_QUEUE_SIZE = recordQueueSize;
+                    Integer recordForceInterval = parseInt(props.getProperty("server.record.force.interval"));
+                    if(recordForceInterval != null) SERVER_RECORD_FORCE_INTERVAL = recordForceInterval;
+                    logger.info("async recording: {}, queue size: {}, force interval: {} ms", new Object[]{
+                            SERVER_RECORD_ASYNC, SERVER_RECORD_QUEUE_SIZE, SERVER_RECORD_FORCE_INTERVAL});
+                    Integer segmentDuration = parseInt(props.getProperty("server.record.segment.duration"));
+                    if(segmentDuration != null) SERVER_RECORD_SEGMENT_DURATION = segmentDuration;
+                    Integer segmentSize = parseInt(props.getProperty("server.record.segment.size"));
+                    if(segmentSize != null) SERVER_RECORD_SEGMENT_SIZE = segmentSize;
+                    logger.info("recording segment duration: {} seconds, size: {} MB",
+                            SERVER_RECORD_SEGMENT_DURATION, SERVER_RECORD_SEGMENT_SIZE);
+                    Integer statsPort = parseInt(props.getProperty("server.stats.port"));
+                    if(statsPort != null) SERVER_STATS_PORT = statsPort;
+                    Integer httpPort = parseInt(props.getProperty("server.http.port"));
+                    if(httpPort != null) SERVER_HTTP_PORT = httpPort;
+                    Integer gopCacheSize = parseInt(props.getProperty("server.gop.cache.size"));
+                    if(gopCacheSize != null) SERVER_GOP_CACHE_SIZE = gopCacheSize;
+                    logger.info("http port: {}, gop cache size: {}", SERVER_HTTP_PORT, SERVER_GOP_CACHE_SIZE);
+                    SERVER_LATENCY_TRACING = Boolean.parseBoolean(props.getProperty("server.latency.tracing", "false"));
+                    logger.info("latency tracing: {}", SERVER_LATENCY_TRACING);
+                    PIPELINE_PROBES = Boolean.parseBoolean(props.getProperty("server.pipeline.probes", PIPELINE_PROBES + ""));
+                    logger.info("pipeline probes: {}", PIPELINE_PROBES);
+                    Integer pingInterval = parseInt(props.getProperty("server.ping.interval"));
+                    if(pingInterval != null) SERVER_PING_INTERVAL = pingInterval;
+                    logger.info("stats port: {}, ping interval: {} seconds", SERVER_STATS_PORT, SERVER_PING_INTERVAL);
+                    Integer evictGrace = parseInt(props.getProperty("server.evict.grace"));
+                    if(evictGrace != null) SERVER_EVICT_GRACE = evictGrace;
+                    Integer evictInterval = parseInt(props.getProperty("server.evict.interval"));
+                    if(evictInterval != null) SERVER_EVICT_INTERVAL = evictInterval;
+                    logger.info("idle eviction grace: {} seconds, sweep interval: {} seconds",
+                            SERVER_EVICT_GRACE, SERVER_EVICT_INTERVAL);
+                    Integer dhPoolSize = parseInt(props.getProperty("server.dh.pool.size"));
+                    if(dhPoolSize != null) DH_POOL_SIZE = dhPoolSize;
+                    Integer dhPoolRate = parseInt(props.getProperty("server.dh.pool.rate"));
+                    if(dhPoolRate != null) DH_POOL_RATE = dhPoolRate;
+                    logger.info("rtmpe key pool size: {}, refill rate: {} per second", DH_POOL_SIZE, DH_POOL_RATE);
+                    Integer handshakeThreads = parseInt(props.getProperty("server.handshake.threads"));
+                    if(handshakeThreads != null) HANDSHAKE_THREADS = handshakeThreads;
+                    Integer handshakeMax = parseInt(props.getProperty("server.handshake.max.in.flight"));
+                    if(handshakeMax != null) HANDSHAKE_MAX_IN_FLIGHT = handshakeMax;
+                    logger.info("handshake threads: {}, max in flight: {}", HANDSHAKE_THREADS, HANDSHAKE_MAX_IN_FLIGHT);
+                    Integer mediaThreads = parseInt(props.getProperty("server.media.threads"));
+                    if(mediaThreads != null) SERVER_MEDIA_THREADS = mediaThreads;
+                    Integer mediaChannelMemory = parseInt(props.getProperty("server.media.channel.memory"));
+                    if(mediaChannelMemory != null) SERVER_MEDIA_CHANNEL_MEMORY = mediaChannelMemory;
+                    Long mediaTotalMemory = parseLong(props.getProperty("server.media.total.memory"));
+                    if(mediaTotalMemory != null) SERVER_MEDIA_TOTAL_MEMORY = mediaTotalMemory;
+                    Integer prefetchMillis = parseInt(props.getProperty("server.prefetch.millis"));
+                    if(prefetchMillis != null) PREFETCH_MILLIS = prefetchMillis;
+                    Integer prefetchThreads = parseInt(props.getProperty("server.prefetch.threads"));
+                    if(prefetchThreads != null) PREFETCH_THREADS = prefetchThreads;
+                    logger.info("prefetch: {} ms, threads: {}", PREFETCH_MILLIS, PREFETCH_THREADS);
+                    Integer cacheSize = parseInt(props.getProperty("server.cache.size"));
+                    if(cacheSize != null) CACHE_SIZE = cacheSize;
+                    Integer cacheBlockSize = parseInt(props.getProperty("server.cache.block.size"));
+                    if(cacheBlockSize != null) CACHE_BLOCK_SIZE = cacheBlockSize;
+                    logger.info("file block cache size: {}, block size: {}", CACHE_SIZE, CACHE_BLOCK_SIZE);
+                    Integer chunkSize = parseInt(props.getProperty("server.chunk.size"));
+                    if(chunkSize != null) SERVER_CHUNK_SIZE = chunkSize;
+                    ZERO_COPY = Boolean.parseBoolean(props.getProperty("server.zero.copy", ZERO_COPY + ""));
+                    Integer zeroCopyMinChunkSize = parseInt(props.getProperty("server.zero.copy.min.chunk.size"));
+                    if(zeroCopyMinChunkSize != null) ZERO_COPY_MIN_CHUNK_SIZE = zeroCopyMinChunkSize;
+                    logger.info("playback chunk size: {}, zero copy file sends: {}, min chunk size: {}", new Object[] {
+                            SERVER_CHUNK_SIZE, ZERO_COPY, ZERO_COPY_MIN_CHUNK_SIZE});
+                    final String tierDir = props.getProperty("server.tier.dir", "").trim();
+                    SERVER_TIER_DIR = tierDir.length() == 0 ? null : tierDir;
+                    Integer tierMb = parseInt(props.getProperty("server.tier.mb"));
+                    if(tierMb != null) SERVER_TIER_MB = tierMb;
+                    Integer promoteAfter = parseInt(props.getProperty("server.tier.promote.after"));
+                    if(promoteAfter != null) SERVER_TIER_PROMOTE_AFTER = promoteAfter;
+                    final String originUrl = props.getProperty("server.origin.url", "").trim();
+                    SERVER_ORIGIN_URL = originUrl.length() == 0 ? null : originUrl;
+                    SERVER_ORIGIN_CACHE_DIR = props.getProperty("server.origin.cache.dir", SERVER_ORIGIN_CACHE_DIR);
+                    Integer originCacheMb = parseInt(props.getProperty("server.origin.cache.mb"));
+                    if(originCacheMb != null) SERVER_ORIGIN_CACHE_MB = originCacheMb;
+                    Integer originBlockSize = parseInt(props.getProperty("server.origin.block.size"));
+                    if(originBlockSize != null) SERVER_ORIGIN_BLOCK_SIZE = originBlockSize;
+                    Integer originReadAhead = parseInt(props.getProperty("server.origin.read.ahead"));
+                    if(originReadAhead != null) SERVER_ORIGIN_READ_AHEAD = originReadAhead;
+                    Integer originReadAheadThreads = parseInt(props.getProperty("server.origin.read.ahead.threads"));
+                    if(originReadAheadThreads != null) SERVER_ORIGIN_READ_AHEAD_THREADS = originReadAheadThreads;
+                    Integer originTimeout = parseInt(props.getProperty("server.origin.timeout"));
+                    if(originTimeout != null) SERVER_ORIGIN_TIMEOUT = originTimeout;
+                    logger.info("http origin: {}, cache dir: {}, cache: {} MB, block size: {}, read ahead: {} blocks"
+                            + " on {} threads, timeout: {} ms",
+                            new Object[] {SERVER_ORIGIN_URL, SERVER_ORIGIN_CACHE_DIR, SERVER_ORIGIN_CACHE_MB,
+                            SERVER_ORIGIN_BLOCK_SIZE, SERVER_ORIGIN_READ_AHEAD, SERVER_ORIGIN_READ_AHEAD_THREADS,
+                            SERVER_ORIGIN_TIMEOUT});
+                    logger.info("fast tier dir: {}, budget: {} MB, promote after: {} opens", new Object[] {
+                            SERVER_TIER_DIR, SERVER_TIER_MB, SERVER_TIER_PROMOTE_AFTER});
+                    logger.info("media threads: {}, max queued bytes per channel: {}, total: {}", new Object[] {
+                            SERVER_MEDIA_THREADS, SERVER_MEDIA_CHANNEL_MEMORY, SERVER_MEDIA_TOTAL_MEMORY});
                     logger.info("server port: {} (stop {})", SERVER_PORT, SERVER_STOP_PORT);
                     break;
                 case PROXY:
@@ -131,6 +269,25 @@ public class RtmpConfig {
         }        
     }
 
+    /**
+     * looks up 'app.[appName].[key]' and falls back to 'server.[key]'
+     */
+    public static String getApplicationProperty(final String appName, final String key, final String defaultValue) {
+        String value = PROPS.getProperty("app." + appName + "." + key);
+        if(value == null) {
+            value = PROPS.getProperty("server." + key);
+        }
+        if(value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    public static int getApplicationInt(final String appName, final String key, final int defaultValue) {
+        final Integer value = parseInt(getApplicationProperty(appName, key, defaultValue + ""));
+        return value == null ? defaultValue : value;
+    }
+
     private static class ServerShutdownHook extends Thread {
 
         private final int port;
@@ -180,4 +337,13 @@ public class RtmpConfig {
         }
     }
 
+    private static Long parseLong(String s) {
+        try {
+            return Long.parseLong(s);
+        } catch(Exception e) {
+            logger.warn("unable to parse into long value: {}", e.getMessage());
+            return null;
+        }
+    }
+
 }
@@ -78,6 +78,9 @@ public class RtmpDecoder extends ReplayingDecoder<DecoderState> {
                 if (!header.isLarge()) {
                     header.setTime(prevHeader.getTime() + header.getDeltaTime());
                 }
+                if(RtmpConfig.SERVER_LATENCY_TRACING && (header.isMedia() || header.isMetadata())) {
+                    header.setReceiveTime(System.nanoTime());
+                }
                 final RtmpMessage message = MessageType.decode(header, payload);
                 if(logger.isDebugEnabled()) {
                 	// don't print millions of PING_REQUEST
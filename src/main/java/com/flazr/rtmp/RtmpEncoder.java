@@ -19,12 +19,19 @@
 
 package com.flazr.rtmp;
 
+import com.flazr.io.SharedFileChannel;
 import com.flazr.rtmp.message.ChunkSize;
 import com.flazr.rtmp.message.Control;
+import com.flazr.rtmp.message.FileAggregate;
 import com.flazr.rtmp.message.MessageType;
+import com.flazr.rtmp.stats.ConnectionStats;
+import com.flazr.rtmp.stats.StatsRegistry;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipelineCoverage;
 import org.jboss.netty.channel.Channels;
@@ -38,21 +45,117 @@ public class RtmpEncoder extends SimpleChannelDownstreamHandler {
 
     private static final Logger logger = LoggerFactory.getLogger(RtmpEncoder.class);
 
+    private final ConnectionStats stats;
     private int chunkSize = 128;    
     private RtmpHeader[] channelPrevHeaders = new RtmpHeader[RtmpHeader.MAX_CHANNEL_ID];    
 
+    public RtmpEncoder() {
+        this(null);
+    }
+
+    /**
+     * @param stats counts encoded bytes, may be null
+     */
+    public RtmpEncoder(final ConnectionStats stats) {
+        this.stats = stats;
+    }
+
     private void clearPrevHeaders() {
         logger.debug("clearing prev stream headers");
         channelPrevHeaders = new RtmpHeader[RtmpHeader.MAX_CHANNEL_ID];
     }
 
     @Override
-    public void writeRequested(final ChannelHandlerContext ctx, final MessageEvent e) {        
-        Channels.write(ctx, e.getFuture(), encode((RtmpMessage) e.getMessage()));
+    public synchronized void writeRequested(final ChannelHandlerContext ctx, final MessageEvent e) {
+        final RtmpMessage message = (RtmpMessage) e.getMessage();
+        if(message instanceof FileAggregate) {
+            final FileAggregate aggregate = (FileAggregate) message;
+            // rtmpe ciphers every byte on the way out, with small chunks a sendfile per chunk costs more than the copy
+            if(ctx.getPipeline().get("handshaker") == null
+                    && aggregate.getLength() > 0
+                    && chunkSize >= RtmpConfig.ZERO_COPY_MIN_CHUNK_SIZE
+                    && aggregate.getFile().retain()) {
+                writeRegions(ctx, e.getFuture(), aggregate);
+                return;
+            }
+            StatsRegistry.addZeroCopyFallback();
+        }
+        Channels.write(ctx, e.getFuture(), encode(message));
+    }
+
+    /**
+     * chunk headers go out as small buffers and the chunk bodies as file
+     * regions in between, the caller has retained the file once and every
+     * region holds it until its write completes
+     */
+    private void writeRegions(final ChannelHandlerContext ctx, final ChannelFuture future, final FileAggregate aggregate) {
+        final SharedFileChannel file = aggregate.getFile();
+        final RtmpHeader header = encodeHeader(aggregate, aggregate.getLength());
+        final Channel channel = ctx.getChannel();
+        final ChannelFutureListener release = new ChannelFutureListener() {
+            @Override public void operationComplete(final ChannelFuture cf) {
+                file.release();
+            }
+        };
+        long position = aggregate.getPosition();
+        int remaining = aggregate.getLength();
+        while(remaining > 0) {
+            final int size = Math.min(chunkSize, remaining);
+            final ChannelBuffer chunkHeader;
+            if(remaining == aggregate.getLength()) {
+                chunkHeader = ChannelBuffers.buffer(RtmpHeader.MAX_ENCODED_SIZE);
+                header.encode(chunkHeader);
+            } else {
+                chunkHeader = ChannelBuffers.wrappedBuffer(header.getTinyHeader());
+            }
+            Channels.write(ctx, Channels.future(channel), chunkHeader);
+            remaining -= size;
+            if(remaining > 0) {
+                file.retain(); // never fails, this method holds a reference
+            }
+            final ChannelFuture regionFuture = remaining == 0 ? future : Channels.future(channel);
+            regionFuture.addListener(release);
+            Channels.write(ctx, regionFuture, file.region(position, size));
+            position += size;
+            if(stats != null) {
+                stats.addBytesQueued(chunkHeader.readableBytes() + size);
+            }
+        }
+        StatsRegistry.addZeroCopyBytes(aggregate.getLength());
+        if(stats != null && header.getReceiveTime() != 0) {
+            stats.recordLatency(System.nanoTime() - header.getReceiveTime());
+        }
     }
 
     public ChannelBuffer encode(final RtmpMessage message) {
         final ChannelBuffer in = message.encode();
+        final RtmpHeader header = encodeHeader(message, in.readableBytes());
+        final ChannelBuffer out = ChannelBuffers.buffer(
+                RtmpHeader.MAX_ENCODED_SIZE + header.getSize() + header.getSize() / chunkSize);
+        boolean first = true;
+        while(in.readable()) {
+            final int size = Math.min(chunkSize, in.readableBytes());
+            if(first) {                
+                header.encode(out);
+                first = false;
+            } else {                
+                out.writeBytes(header.getTinyHeader());
+            }
+            in.readBytes(out, size);
+        }
+        if(stats != null) {
+            stats.addBytesQueued(out.readableBytes());
+            if(header.getReceiveTime() != 0) {
+                stats.recordLatency(System.nanoTime() - header.getReceiveTime());
+            }
+        }
+        return out;
+    }
+
+    /**
+     * picks the header type against the previous message on the same channel
+     */
+    private RtmpHeader encodeHeader(final RtmpMessage message, final int size) {
         final RtmpHeader header = message.getHeader();
         if(header.isChunkSize()) {
             final ChunkSize csMessage = (ChunkSize) message;
@@ -65,10 +168,11 @@ public class RtmpEncoder extends SimpleChannelDownstreamHandler {
             }
         }
         final int channelId = header.getChannelId();
-        header.setSize(in.readableBytes());
+        header.setSize(size);
         final RtmpHeader prevHeader = channelPrevHeaders[channelId];       
         if(prevHeader != null // first stream message is always large
                 && header.getStreamId() > 0 // all control messages always large
+                && header.getStreamId() == prevHeader.getStreamId() // medium and small omit the stream id
                 && header.getTime() > 0) { // if time is zero, always large
             if(header.getSize() == prevHeader.getSize()) {
                 header.setHeaderType(RtmpHeader.Type.SMALL);
@@ -92,20 +196,7 @@ public class RtmpEncoder extends SimpleChannelDownstreamHandler {
         	if (message.getHeader().getMessageType() != MessageType.CONTROL || ((Control) message).getType() != Control.Type.PING_RESPONSE)
         		logger.debug(">> {}", message);
         }                
-        final ChannelBuffer out = ChannelBuffers.buffer(
-                RtmpHeader.MAX_ENCODED_SIZE + header.getSize() + header.getSize() / chunkSize);
-        boolean first = true;
-        while(in.readable()) {
-            final int size = Math.min(chunkSize, in.readableBytes());
-            if(first) {                
-                header.encode(out);
-                first = false;
-            } else {                
-                out.writeBytes(header.getTinyHeader());
-            }
-            in.readBytes(out, size);
-        }
-        return out;
+        return header;
     }
 
 }
@@ -24,19 +24,16 @@ import com.flazr.util.Utils;
 import java.math.BigInteger;
 import java.security.KeyFactory;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.PublicKey;
 import java.security.spec.KeySpec;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
-import javax.crypto.Cipher;
 import javax.crypto.KeyAgreement;
 import javax.crypto.interfaces.DHPublicKey;
 import javax.crypto.spec.DHParameterSpec;
 import javax.crypto.spec.DHPublicKeySpec;
-import javax.crypto.spec.SecretKeySpec;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.slf4j.Logger;
@@ -76,6 +73,45 @@ public class RtmpHandshake {
 
     private static final BigInteger DH_BASE = BigInteger.valueOf(2);
 
+    private static final DHParameterSpec DH_SPEC = new DHParameterSpec(DH_MODULUS, DH_BASE);
+
+    private static DhKeyPool keyPool;
+
+    // provider lookups are not cheap, these are re-initialized for every handshake
+    private static final ThreadLocal<KeyAgreement> KEY_AGREEMENTS = new ThreadLocal<KeyAgreement>() {
+        @Override protected KeyAgreement initialValue() {
+            try {
+                return KeyAgreement.getInstance("DH");
+            } catch(Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<KeyFactory> KEY_FACTORIES = new ThreadLocal<KeyFactory>() {
+        @Override protected KeyFactory initialValue() {
+            try {
+                return KeyFactory.getInstance("DH");
+            } catch(Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    /**
+     * created on first use, when the pool is disabled it is never filled
+     * and every key pair is generated by the caller
+     */
+    public static synchronized DhKeyPool getKeyPool() {
+        if(keyPool == null) {
+            keyPool = new DhKeyPool(DH_SPEC, Math.max(1, RtmpConfig.DH_POOL_SIZE), RtmpConfig.DH_POOL_RATE);
+            if(RtmpConfig.DH_POOL_SIZE > 0) {
+                keyPool.start();
+            }
+        }
+        return keyPool;
+    }
+
     private static byte[] concat(byte[] a, byte[] b) {
         byte[] c = new byte[a.length + b.length];
         System.arraycopy(a, 0, c, 0, a.length);
@@ -158,14 +194,14 @@ public class RtmpHandshake {
 
     //==========================================================================
 
-    private KeyAgreement keyAgreement;
+    private KeyPair keyPair;
     private byte[] peerVersion;
     private byte[] ownPublicKey;
     private byte[] peerPublicKey;
     private byte[] ownPartOneDigest;
     private byte[] peerPartOneDigest;
-    private Cipher cipherOut;
-    private Cipher cipherIn;
+    private Rc4Cipher cipherOut;
+    private Rc4Cipher cipherIn;
     private byte[] peerTime;
 
     private boolean rtmpe;
@@ -193,11 +229,11 @@ public class RtmpHandshake {
         return swfvBytes;
     }
 
-    public Cipher getCipherIn() {
+    public Rc4Cipher getCipherIn() {
         return cipherIn;
     }
 
-    public Cipher getCipherOut() {
+    public Rc4Cipher getCipherOut() {
         return cipherOut;
     }
 
@@ -211,39 +247,18 @@ public class RtmpHandshake {
 
     //========================= ENCRYPT / DECRYPT ==============================
 
-    private void cipherUpdate(final ChannelBuffer in, final Cipher cipher) {
-        final int size = in.readableBytes();
-        if(size == 0) {
-            return;
-        }
-        final int position = in.readerIndex();
-        final byte[] bytes = new byte[size];
-        in.getBytes(position, bytes);
-        in.setBytes(position, cipher.update(bytes));
-    }
-
     public void cipherUpdateIn(final ChannelBuffer in) {
-        cipherUpdate(in, cipherIn);
+        cipherIn.update(in);
     }
 
     public void cipherUpdateOut(final ChannelBuffer in) {
-        cipherUpdate(in, cipherOut);
+        cipherOut.update(in);
     }
 
     //============================== PKI =======================================
 
     private void initKeyPair() {
-        final DHParameterSpec keySpec = new DHParameterSpec(DH_MODULUS, DH_BASE);
-        final KeyPair keyPair;
-        try {
-            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DH");
-            keyGen.initialize(keySpec);
-            keyPair = keyGen.generateKeyPair();
-            keyAgreement = KeyAgreement.getInstance("DH");
-            keyAgreement.init(keyPair.getPrivate());
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        keyPair = getKeyPool().take();
         // extract public key bytes
         DHPublicKey publicKey = (DHPublicKey) keyPair.getPublic();
         BigInteger dh_Y = publicKey.getY();
@@ -262,35 +277,30 @@ public class RtmpHandshake {
 
     private void initCiphers() {
         BigInteger otherPublicKeyInt = new BigInteger(1, peerPublicKey);
+        final KeyAgreement keyAgreement = KEY_AGREEMENTS.get();
         try {
-            KeyFactory keyFactory = KeyFactory.getInstance("DH");
             KeySpec otherPublicKeySpec = new DHPublicKeySpec(otherPublicKeyInt, DH_MODULUS, DH_BASE);
-            PublicKey otherPublicKey = keyFactory.generatePublic(otherPublicKeySpec);
+            PublicKey otherPublicKey = KEY_FACTORIES.get().generatePublic(otherPublicKeySpec);
+            keyAgreement.init(keyPair.getPrivate());
             keyAgreement.doPhase(otherPublicKey, true);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
         byte[] sharedSecret = keyAgreement.generateSecret();
+        keyPair = null; // used once only
         byte[] digestOut = Utils.sha256(peerPublicKey, sharedSecret);
         byte[] digestIn = Utils.sha256(ownPublicKey, sharedSecret);
-        try {
-            cipherOut = Cipher.getInstance("RC4");
-            cipherOut.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(digestOut, 0, 16, "RC4"));
-            cipherIn = Cipher.getInstance("RC4");
-            cipherIn.init(Cipher.DECRYPT_MODE, new SecretKeySpec(digestIn, 0, 16, "RC4"));
-            logger.info("initialized encryption / decryption ciphers");
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        cipherOut = new Rc4Cipher(digestOut, 16);
+        cipherIn = new Rc4Cipher(digestIn, 16);
+        logger.info("initialized encryption / decryption ciphers");
         // update 'encoder / decoder state' for the RC4 keys
         // both parties *pretend* as if handshake part 2 (1536 bytes) was encrypted
         // effectively this hides / discards the first few bytes of encrypted session
         // which is known to increase the secure-ness of RC4
         // RC4 state is just a function of number of bytes processed so far
         // that's why we just run 1536 arbitrary bytes through the keys below
-        byte[] dummyBytes = new byte[HANDSHAKE_SIZE];
-        cipherIn.update(dummyBytes);
-        cipherOut.update(dummyBytes);
+        cipherIn.skip(HANDSHAKE_SIZE);
+        cipherOut.skip(HANDSHAKE_SIZE);
     }
 
     //============================== CLIENT ====================================
@@ -64,6 +64,7 @@ public class RtmpHeader {
     private int size;
     private MessageType messageType;
     private int streamId;
+    private long receiveTime; // System.nanoTime() when fully received, only set when tracing latency
 
     public RtmpHeader(ChannelBuffer in, RtmpHeader[] incompleteHeaders) {
         //=================== TYPE AND CHANNEL (1 - 3 bytes) ===================
@@ -194,6 +195,14 @@ public class RtmpHeader {
         this.channelId = channelId;
     }
 
+    public long getReceiveTime() {
+        return receiveTime;
+    }
+
+    public void setReceiveTime(long receiveTime) {
+        this.receiveTime = receiveTime;
+    }
+
     public int getTime() {
         return time;
     }
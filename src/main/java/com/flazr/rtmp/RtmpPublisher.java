@@ -36,6 +36,7 @@ import org.slf4j.LoggerFactory;
 import com.flazr.io.f4v.F4vReader;
 import com.flazr.io.flv.FlvReader;
 import com.flazr.rtmp.server.RtmpServer;
+import com.flazr.rtmp.stats.StatsRegistry;
 
 public abstract class RtmpPublisher {
 
@@ -55,6 +56,7 @@ public abstract class RtmpPublisher {
     private int playLength = -1;
     private boolean paused;
     private int bufferDuration;
+    private RtmpMessage readAhead;
     
     public Channel channel;
 	private int channelId = 8;
@@ -96,11 +98,11 @@ public abstract class RtmpPublisher {
 
     public static RtmpReader getReader(String path) {
         if(path.toLowerCase().startsWith("mp4:")) {
-            return new F4vReader(path.substring(4));
+            return PrefetchingReader.wrap(new F4vReader(path.substring(4)));
         } else if (path.toLowerCase().endsWith(".f4v")) {
-            return new F4vReader(path);
+            return PrefetchingReader.wrap(new F4vReader(path));
         } else {
-            return new FlvReader(path);
+            return PrefetchingReader.wrap(new FlvReader(path));
         }
     }
 
@@ -142,7 +144,8 @@ public abstract class RtmpPublisher {
     public void start(final Channel channel, final int seekTimeRequested, final RtmpMessage ... messages) {
         paused = false;
         currentConversationId++;
-        startTime = System.currentTimeMillis();        
+        startTime = System.currentTimeMillis();
+        readAhead = null;
         if(seekTimeRequested >= 0) {
             seekTime = reader.seek(seekTimeRequested);
         } else {
@@ -174,13 +177,15 @@ public abstract class RtmpPublisher {
         }
         final long writeTime = System.currentTimeMillis();
         final RtmpMessage message;
-        synchronized(reader) { //=============== SYNCHRONIZE ! =================
-            if(reader.hasNext()) {
-                message = reader.next();
-            } else {
-                message = null;
-            }
-        } //====================================================================
+        if(readAhead != null) {
+            message = readAhead;
+            readAhead = null;
+        } else {
+            message = read();
+        }
+        if (message == null && onEndOfStream(channel)) {
+            return;
+        }
         if (message == null || playLength >= 0 && timePosition > (seekTime + playLength)) {
             stop(channel);
             return;
@@ -204,6 +209,9 @@ public abstract class RtmpPublisher {
         header.setStreamId(streamId);
         header.setChannelId(channelId);
         final ChannelFuture future = channel.write(message);
+        // read the next one while this is on the wire and the timer runs, before
+        // adding the listener which may otherwise call back in here right away
+        readAhead = read();
         future.addListener(new ChannelFutureListener() {
             @Override public void operationComplete(final ChannelFuture cf) {
                 final long completedIn = System.currentTimeMillis() - writeTime;
@@ -216,6 +224,20 @@ public abstract class RtmpPublisher {
         });
     }
 
+    private RtmpMessage read() {
+        final long start = System.nanoTime();
+        final RtmpMessage message;
+        synchronized(reader) { //=============== SYNCHRONIZE ! =================
+            if(reader.hasNext()) {
+                message = reader.next();
+            } else {
+                message = null;
+            }
+        } //====================================================================
+        StatsRegistry.getMediaReads().recordNanos(System.nanoTime() - start);
+        return message;
+    }
+
     public void fireNext(final Channel channel, final long delay) {
         final Event readyForNext = new Event(currentConversationId, streamId);
         if(delay > timerTickSize) {
@@ -243,6 +265,7 @@ public abstract class RtmpPublisher {
 
     private void stop(final Channel channel) {
         currentConversationId++;
+        readAhead = null;
         final long elapsedTime = System.currentTimeMillis() - startTime;
         logger.info("finished, start: {}, elapsed {}, streamed: {}",
                 new Object[]{seekTime / 1000, elapsedTime / 1000, (timePosition - seekTime) / 1000});
@@ -260,6 +283,14 @@ public abstract class RtmpPublisher {
 
     protected abstract RtmpMessage[] getStopMessages(long timePosition);
 
+    /**
+     * called when the reader has nothing more, e.g. to hand over to a live
+     * stream, return true if handled in which case no stop messages are sent
+     */
+    protected boolean onEndOfStream(Channel channel) {
+        return false;
+    }
+
 	public void setChannelId(int channelId) {
 		this.channelId  = channelId;
 	}
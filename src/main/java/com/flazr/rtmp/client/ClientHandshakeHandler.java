@@ -19,8 +19,10 @@
 
 package com.flazr.rtmp.client;
 
+import com.flazr.rtmp.HandshakeExecutor;
 import com.flazr.rtmp.RtmpHandshake;
 import com.flazr.rtmp.RtmpPublisher;
+import com.flazr.rtmp.stats.PipelineProbe;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelDownstreamHandler;
@@ -37,9 +39,10 @@ public class ClientHandshakeHandler extends FrameDecoder implements ChannelDowns
 
     private static final Logger logger = LoggerFactory.getLogger(ClientHandshakeHandler.class);
 
-    private boolean rtmpe;
+    private volatile boolean rtmpe;
     private final RtmpHandshake handshake;
-    private boolean handshakeDone;
+    private boolean serverAllPending;
+    private volatile boolean handshakeDone;
 
     public ClientHandshakeHandler(ClientOptions options) {
         handshake = new RtmpHandshake(options);
@@ -53,23 +56,39 @@ public class ClientHandshakeHandler extends FrameDecoder implements ChannelDowns
     }
 
     @Override
-    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer in) {               
-        if(in.readableBytes() < 1 + RtmpHandshake.HANDSHAKE_SIZE * 2) {
+    protected Object decode(final ChannelHandlerContext ctx, final Channel channel, final ChannelBuffer in) {
+        if(serverAllPending || in.readableBytes() < 1 + RtmpHandshake.HANDSHAKE_SIZE * 2) {
             return null;
         }
+        final HandshakeExecutor executor = HandshakeExecutor.get();
+        if(executor == null) {
+            serverAll(ctx, channel, in);
+            return in;
+        }
+        serverAllPending = true;
+        final ChannelBuffer s0s1s2 = in.readBytes(1 + RtmpHandshake.HANDSHAKE_SIZE * 2);
+        executor.execute(channel, new Runnable() {
+            @Override public void run() {
+                serverAll(ctx, channel, s0s1s2);
+            }
+        });
+        return null;
+    }
+
+    private void serverAll(final ChannelHandlerContext ctx, final Channel channel, final ChannelBuffer in) {
         handshake.decodeServerAll(in);
         Channels.write(ctx, Channels.succeededFuture(channel), handshake.encodeClient2());
-        handshakeDone = true;
         rtmpe = handshake.isRtmpe(); // rare chance server refused rtmpe
+        handshakeDone = true;
         if(handshake.getSwfvBytes() != null) {
             ClientHandler clientHandler = channel.getPipeline().get(ClientHandler.class);
             clientHandler.setSwfvBytes(handshake.getSwfvBytes());
         }
         if(!rtmpe) {
             channel.getPipeline().remove(this);
+            PipelineProbe.removeProbe(channel.getPipeline(), "handshaker");
         }
         Channels.fireChannelConnected(ctx, channel.getRemoteAddress());
-        return in;
     }
 
     @Override
@@ -25,6 +25,7 @@ import org.jboss.netty.channel.Channels;
 
 import com.flazr.rtmp.RtmpDecoder;
 import com.flazr.rtmp.RtmpEncoder;
+import com.flazr.rtmp.stats.PipelineProbe;
 
 public class ClientPipelineFactory implements ChannelPipelineFactory {
 
@@ -45,6 +46,7 @@ public class ClientPipelineFactory implements ChannelPipelineFactory {
 //                    new OrderedMemoryAwareThreadPoolExecutor(16, 1048576, 1048576)));
 //        }
         pipeline.addLast("handler", new ClientHandler(options));
+        PipelineProbe.addProbes(pipeline, "client");
         return pipeline;
     }
 
@@ -289,6 +289,10 @@ public abstract class Command extends AbstractMessage {
         return command;
     }
 
+    public static Command deleteStream(int streamId) {
+        return new CommandAmf0("deleteStream", null, streamId);
+    }
+
     public static Command closeStream(int streamId) {
         Command command = new CommandAmf0("closeStream", null);
         command.header.setChannelId(8);
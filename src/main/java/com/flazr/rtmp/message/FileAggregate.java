@@ -0,0 +1,67 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.rtmp.message;
+
+import com.flazr.io.SharedFileChannel;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * a run of flv tags that is sent as is, the body stays in the file so that
+ * the encoder can hand it to the socket as a file region, encode() reads
+ * it for every other use
+ */
+public class FileAggregate extends Aggregate {
+
+    private final SharedFileChannel file;
+    private final long position;
+    private final int length;
+
+    public FileAggregate(final int time, final SharedFileChannel file, final long position, final int length) {
+        super(time, ChannelBuffers.EMPTY_BUFFER);
+        this.file = file;
+        this.position = position;
+        this.length = length;
+        header.setSize(length);
+    }
+
+    public SharedFileChannel getFile() {
+        return file;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public ChannelBuffer encode() {
+        return file.read(position, length);
+    }
+
+    @Override
+    public String toString() {
+        return header.toString() + ' ' + file.getAbsolutePath() + " @" + position;
+    }
+
+}
@@ -207,7 +207,14 @@ public class Video extends DataMessage {
     }//findHeight()
     
     private void solveWidthAndHeight() {
-		String bits = padBitSequence(readBinaryString(data.toByteBuffer().array(), 1, 9));
+		width = 0;
+		height = 0;
+		if (data.readableBytes() < 10) { // too short to carry a picture header
+			return;
+		}
+		final byte[] bytes = new byte[10];
+		data.getBytes(data.readerIndex(), bytes);
+		String bits = padBitSequence(readBinaryString(bytes, 1, 9));
 		
 		if (getCodec() == H263VIDEOPACKET) {
 			int hwCheck = bit2uint(bits.substring(30,33).toCharArray());
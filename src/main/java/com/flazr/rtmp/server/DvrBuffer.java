@@ -0,0 +1,314 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.rtmp.server;
+
+import com.flazr.io.flv.FlvAtom;
+import com.flazr.rtmp.RtmpHeader;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.message.MessageType;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * time-shift window for a live stream, the most recent media messages are
+ * kept as flv tags in an off-heap ring buffer together with an index of
+ * keyframe positions, offsets are absolute byte counts since the stream
+ * started so that readers can detect when their position was overwritten
+ */
+public class DvrBuffer {
+
+    private static final Logger logger = LoggerFactory.getLogger(DvrBuffer.class);
+
+    private static class Keyframe {
+
+        private final int time;
+        private final long offset;
+
+        public Keyframe(final int time, final long offset) {
+            this.time = time;
+            this.offset = offset;
+        }
+
+    }
+
+    /** a single direct buffer cannot go past 2 GB */
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    private ByteBuffer[] ring; // allocated on the first message published
+    private final long capacity;
+    private final int window;
+    private final ArrayDeque<Keyframe> keyframes = new ArrayDeque<Keyframe>();
+    private long head; // offset of the oldest tag still in the ring
+    private long tail; // offset where the next tag will be written
+    private int lastTime;
+    private boolean hasVideo;
+
+    /**
+     * @param window milliseconds of media to retain
+     * @param capacity upper bound on memory used, in bytes, clamped to half
+     * the direct memory the jvm allows
+     */
+    public DvrBuffer(final int window, final long capacity) {
+        this.window = window;
+        final long max = getMaxDirectMemory() / 2;
+        if(capacity > max) {
+            logger.warn("dvr size {} exceeds half the direct memory limit, using {} bytes", capacity, max);
+        }
+        this.capacity = Math.min(capacity, max);
+        logger.info("created dvr buffer, window: {} ms, capacity: {} bytes", window, this.capacity);
+    }
+
+    /**
+     * -XX:MaxDirectMemorySize if set, else the jvm default of the max heap size
+     */
+    private static long getMaxDirectMemory() {
+        for(final String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if(arg.startsWith("-XX:MaxDirectMemorySize=")) {
+                final String value = arg.substring(arg.indexOf('=') + 1).toLowerCase();
+                final char unit = value.charAt(value.length() - 1);
+                final int shift = unit == 'k' ? 10 : unit == 'm' ? 20 : unit == 'g' ? 30 : 0;
+                try {
+                    return Long.parseLong(shift == 0 ? value : value.substring(0, value.length() - 1)) << shift;
+                } catch(NumberFormatException e) {
+                    break;
+                }
+            }
+        }
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    /**
+     * @return false if the memory could not be allocated, the message is then
+     * not retained
+     */
+    private boolean allocate() {
+        if(ring != null) {
+            return true;
+        }
+        final ByteBuffer[] segments = new ByteBuffer[(int) ((capacity + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+        try {
+            for(int i = 0; i < segments.length; i++) {
+                segments[i] = ByteBuffer.allocateDirect((int) Math.min(SEGMENT_SIZE, capacity - (long) i * SEGMENT_SIZE));
+            }
+        } catch(OutOfMemoryError e) {
+            logger.error("unable to allocate {} bytes of direct memory for dvr: {}", capacity, e.getMessage());
+            return false;
+        }
+        ring = segments;
+        return true;
+    }
+
+    public synchronized void append(final RtmpMessage message) {
+        if(!allocate()) {
+            return;
+        }
+        final RtmpHeader header = message.getHeader();
+        if(header.isAggregate()) {
+            final ChannelBuffer in = message.encode().duplicate();
+            while(in.readable()) {
+                final FlvAtom atom = new FlvAtom(in);
+                append(atom.getHeader().getMessageType(), atom.getHeader().getTime(), atom.getData());
+            }
+        } else if(header.isMedia() || header.isMetadata()) {
+            append(header.getMessageType(), header.getTime(), message.encode());
+        }
+    }
+
+    private void append(final MessageType type, final int time, final ChannelBuffer data) {
+        final int size = data.readableBytes();
+        final int tagSize = 11 + size + 4;
+        if(tagSize > capacity) {
+            logger.warn("message too large for dvr buffer, size: {}", size);
+            return;
+        }
+        if(type == MessageType.VIDEO) {
+            hasVideo = true;
+        }
+        if(isSeekPoint(type, data)) {
+            keyframes.addLast(new Keyframe(time, tail));
+        }
+        while(tail + tagSize - head > capacity) {
+            evict();
+        }
+        final ByteBuffer tag = ByteBuffer.allocate(11);
+        tag.put((byte) type.intValue());
+        putMedium(tag, size);
+        putMedium(tag, time);
+        tag.put((byte) (time >>> 24));
+        putMedium(tag, 0);
+        tag.flip();
+        put(tag);
+        put(data.toByteBuffer(data.readerIndex(), size));
+        final ByteBuffer trailer = ByteBuffer.allocate(4);
+        trailer.putInt(tagSize - 4);
+        trailer.flip();
+        put(trailer);
+        lastTime = Math.max(lastTime, time);
+        while(head < tail && lastTime - getTime(head) > window) {
+            evict();
+        }
+    }
+
+    private boolean isSeekPoint(final MessageType type, final ChannelBuffer data) {
+        if(!data.readable()) {
+            return false;
+        }
+        if(type == MessageType.VIDEO) {
+            final byte first = data.getByte(data.readerIndex());
+            return (first & 0xF0) == 0x10 && !((first & 0x0F) == 7
+                    && data.readableBytes() > 1 && data.getByte(data.readerIndex() + 1) == 0);
+        }
+        return type == MessageType.AUDIO && !hasVideo;
+    }
+
+    private void evict() {
+        head += 11 + getMedium(head + 1) + 4;
+        while(!keyframes.isEmpty() && keyframes.peekFirst().offset < head) {
+            keyframes.removeFirst();
+        }
+    }
+
+    private void put(final ByteBuffer in) {
+        while(in.hasRemaining()) {
+            final long position = tail % capacity;
+            final ByteBuffer target = ring[(int) (position / SEGMENT_SIZE)].duplicate();
+            target.position((int) (position % SEGMENT_SIZE));
+            final int length = Math.min(in.remaining(), target.remaining());
+            final ByteBuffer slice = in.duplicate();
+            slice.limit(slice.position() + length);
+            target.put(slice);
+            in.position(in.position() + length);
+            tail += length;
+        }
+    }
+
+    private void get(final long offset, final byte[] out) {
+        int done = 0;
+        while(done < out.length) {
+            final long position = (offset + done) % capacity;
+            final ByteBuffer source = ring[(int) (position / SEGMENT_SIZE)].duplicate();
+            source.position((int) (position % SEGMENT_SIZE));
+            final int length = Math.min(out.length - done, source.remaining());
+            source.get(out, done, length);
+            done += length;
+        }
+    }
+
+    private int getMedium(final long offset) {
+        final byte[] bytes = new byte[3];
+        get(offset, bytes);
+        return (bytes[0] & 0xFF) << 16 | (bytes[1] & 0xFF) << 8 | bytes[2] & 0xFF;
+    }
+
+    private int getTime(final long offset) {
+        final byte[] bytes = new byte[4];
+        get(offset + 4, bytes);
+        return (bytes[0] & 0xFF) << 16 | (bytes[1] & 0xFF) << 8 | bytes[2] & 0xFF | (bytes[3] & 0xFF) << 24;
+    }
+
+    private static void putMedium(final ByteBuffer out, final int value) {
+        out.put((byte) (value >>> 16));
+        out.put((byte) (value >>> 8));
+        out.put((byte) value);
+    }
+
+    //==========================================================================
+
+    /**
+     * @return null if the offset is no longer (or not yet) in the buffer
+     */
+    public synchronized FlvAtom read(final long offset) {
+        if(offset < head || offset >= tail) {
+            return null;
+        }
+        final byte[] tag = new byte[11 + getMedium(offset + 1) + 4];
+        get(offset, tag);
+        return new FlvAtom(ChannelBuffers.wrappedBuffer(tag));
+    }
+
+    /**
+     * offset of the last keyframe at or before the given time, the oldest
+     * keyframe if the time is no longer in the window and the live edge
+     * if the time is past the last message
+     */
+    public synchronized long seek(final long time) {
+        if(keyframes.isEmpty() || time > lastTime) {
+            return tail;
+        }
+        long offset = keyframes.peekFirst().offset;
+        final Iterator<Keyframe> iterator = keyframes.iterator();
+        while(iterator.hasNext()) {
+            final Keyframe keyframe = iterator.next();
+            if(keyframe.time > time) {
+                break;
+            }
+            offset = keyframe.offset;
+        }
+        return offset;
+    }
+
+    public synchronized long getOldestKeyframeOffset() {
+        return keyframes.isEmpty() ? tail : keyframes.peekFirst().offset;
+    }
+
+    public synchronized long getTail() {
+        return tail;
+    }
+
+    public synchronized int getLiveTime() {
+        return lastTime;
+    }
+
+    public synchronized int getStartTime() {
+        return head == tail ? lastTime : getTime(head);
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getSize() {
+        return tail - head;
+    }
+
+    public synchronized int getKeyframeCount() {
+        return keyframes.size();
+    }
+
+    public synchronized void clear() {
+        head = tail;
+        keyframes.clear();
+        lastTime = 0;
+        hasVideo = false;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "[dvr start: " + getStartTime() + " live: " + lastTime
+                + " bytes: " + (tail - head) + "/" + capacity + " keyframes: " + keyframes.size() + "]";
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.rtmp.server;
+
+import com.flazr.io.flv.FlvAtom;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.RtmpReader;
+import com.flazr.rtmp.message.Metadata;
+import com.flazr.rtmp.message.MetadataAmf0;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * reads a live stream from its dvr buffer, hasNext() returns false once
+ * the reader has caught up with the live edge
+ */
+public class DvrReader implements RtmpReader {
+
+    private static final Logger logger = LoggerFactory.getLogger(DvrReader.class);
+
+    private final ServerStream stream;
+    private final DvrBuffer buffer;
+    private long cursor;
+    private int lastTime;
+
+    public DvrReader(final ServerStream stream) {
+        this.stream = stream;
+        this.buffer = stream.getDvr();
+        cursor = buffer.getTail();
+        lastTime = buffer.getLiveTime();
+    }
+
+    @Override
+    public Metadata getMetadata() {
+        for(RtmpMessage message : stream.getConfigMessages()) {
+            if(message.getHeader().isMetadata()) {
+                return (Metadata) message;
+            }
+        }
+        return new MetadataAmf0("onMetaData");
+    }
+
+    @Override
+    public RtmpMessage[] getStartMessages() {
+        final List<RtmpMessage> configMessages = stream.getConfigMessages();
+        return configMessages.toArray(new RtmpMessage[configMessages.size()]);
+    }
+
+    @Override
+    public void setAggregateDuration(final int targetDuration) {
+        // messages are always served one at a time
+    }
+
+    @Override
+    public long getTimePosition() {
+        return lastTime;
+    }
+
+    @Override
+    public long seek(final long timePosition) {
+        cursor = buffer.seek(timePosition);
+        final FlvAtom atom = buffer.read(cursor);
+        lastTime = atom == null ? buffer.getLiveTime() : atom.getHeader().getTime();
+        logger.debug("seek requested: {}, actual: {}, {}", new Object[]{timePosition, lastTime, buffer});
+        return lastTime;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return cursor < buffer.getTail();
+    }
+
+    @Override
+    public RtmpMessage next() {
+        FlvAtom atom = buffer.read(cursor);
+        if(atom == null && cursor < buffer.getTail()) {
+            // overwritten while paused or too slow, jump to the oldest keyframe
+            cursor = buffer.getOldestKeyframeOffset();
+            logger.info("position no longer in dvr window, skipping to: {}", cursor);
+            atom = buffer.read(cursor);
+        }
+        if(atom == null) {
+            return null;
+        }
+        cursor += 11 + atom.getHeader().getSize() + 4;
+        lastTime = atom.getHeader().getTime();
+        return atom;
+    }
+
+    @Override
+    public void close() {
+        // nothing to release, the buffer belongs to the stream
+    }
+
+    @Override
+    public int getWidth() {
+        return 0;
+    }
+
+    @Override
+    public int getHeight() {
+        return 0;
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.flazr.rtmp.server;
+
+import com.flazr.rtmp.RtmpDecoder;
+import com.flazr.rtmp.RtmpEncoder;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.RtmpWriter;
+import com.flazr.rtmp.client.ClientHandler;
+import com.flazr.rtmp.client.ClientHandshakeHandler;
+import com.flazr.rtmp.client.ClientOptions;
+import com.flazr.rtmp.message.Command;
+import com.flazr.rtmp.message.DataMessage;
+import com.flazr.rtmp.message.Metadata;
+import com.flazr.util.NamedThreadFactory;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * pulls a live stream from an origin server with a regular rtmp client
+ * connection and republishes it into a local live stream, the upstream
+ * connection is closed once the stream has had no subscribers for the
+ * idle period
+ */
+public class EdgeRelay implements RtmpWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(EdgeRelay.class);
+
+    private static ChannelFactory factory;
+
+    private static synchronized ChannelFactory getFactory() {
+        if(factory == null) {
+            factory = new NioClientSocketChannelFactory(
+                    Executors.newCachedThreadPool(new NamedThreadFactory("edge-boss")),
+                    Executors.newCachedThreadPool(new NamedThreadFactory("edge-worker")));
+        }
+        return factory;
+    }
+
+    private final ServerApplication application;
+    private final ServerStream stream;
+    private final ClientOptions options;
+    private final int idleTimeout;
+    private volatile Channel channel;
+    private volatile boolean closed;
+    private long idleSince;
+
+    /**
+     * @param origin url of the origin application e.g. rtmp://host:1935/live
+     * @param idleTimeout milliseconds without subscribers before disconnecting
+     */
+    public EdgeRelay(final ServerApplication application, final ServerStream stream,
+            final String origin, final int idleTimeout) {
+        this.application = application;
+        this.stream = stream;
+        this.idleTimeout = idleTimeout;
+        options = new ClientOptions();
+        options.parseUrl(origin + "/" + stream.getName());
+        options.setWriterToSave(this);
+    }
+
+    public void connect() {
+        final ClientBootstrap bootstrap = new ClientBootstrap(getFactory());
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override public ChannelPipeline getPipeline() {
+                final ChannelPipeline pipeline = Channels.pipeline();
+                pipeline.addLast("handshaker", new ClientHandshakeHandler(options));
+                pipeline.addLast("decoder", new RtmpDecoder());
+                pipeline.addLast("encoder", new RtmpEncoder());
+                pipeline.addLast("handler", new ClientHandler(options));
+                return pipeline;
+            }
+        });
+        bootstrap.setOption("tcpNoDelay" , true);
+        bootstrap.setOption("keepAlive", true);
+        logger.info("connecting to origin: {}:{}, stream: {}",
+                new Object[]{options.getHost(), options.getPort(), stream.getName()});
+        final ChannelFuture future = bootstrap.connect(new InetSocketAddress(options.getHost(), options.getPort()));
+        channel = future.getChannel();
+        stream.setPublisher(channel);
+        future.addListener(new ChannelFutureListener() {
+            @Override public void operationComplete(final ChannelFuture cf) {
+                if(!cf.isSuccess()) {
+                    logger.warn("origin connection failed: {}", cf.getCause().getMessage());
+                    close();
+                }
+            }
+        });
+        scheduleIdleCheck();
+    }
+
+    private void scheduleIdleCheck() {
+        RtmpServer.TIMER.newTimeout(new TimerTask() {
+            @Override public void run(final Timeout timeout) {
+                if(closed) {
+                    return;
+                }
+                final long now = System.currentTimeMillis();
+                if(!stream.getSubscribers().isEmpty()) {
+                    idleSince = 0;
+                } else if(idleSince == 0) {
+                    idleSince = now;
+                } else if(now - idleSince >= idleTimeout) {
+                    logger.info("no subscribers for {} ms, disconnecting from origin: {}", idleTimeout, stream.getName());
+                    channel.close();
+                    return;
+                }
+                scheduleIdleCheck();
+            }
+        }, Math.min(idleTimeout, 1000), TimeUnit.MILLISECONDS);
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void write(final RtmpMessage message) {
+        if(message.getHeader().isMetadata()) {
+            final Metadata meta = (Metadata) message;
+            if(meta.getName().equals("onMetaData")) {
+                meta.setDuration(-1);
+                stream.addConfigMessage(meta);
+            }
+        } else if(message instanceof DataMessage && ((DataMessage) message).isConfig()) {
+            logger.info("adding config message from origin: {}", message);
+            stream.addConfigMessage(message);
+        }
+        stream.broadcast(message);
+    }
+
+    /**
+     * called by the client handler when the upstream connection closes
+     */
+    @Override
+    public synchronized void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        logger.info("edge relay closed: {}", stream.getName());
+        application.removeStream(stream);
+        stream.writeToSubscribers(Command.unpublishNotify(0));
+        stream.setPublisher(null);
+        if(channel != null && channel.isOpen()) {
+            channel.close();
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.rtmp.server;
+
+import com.flazr.io.flv.FlvAtom;
+import com.flazr.rtmp.RtmpHeader;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.message.MessageType;
+import java.util.ArrayList;
+import java.util.List;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * messages of a live stream since its last video keyframe, so that a new
+ * http-flv subscriber can start decoding at once, forgotten until the next
+ * keyframe if the group of pictures outgrows the budget, kept as received
+ * and only framed as flv tags when a subscriber joins
+ */
+public class GopCache {
+
+    private final int capacity;
+    private final List<RtmpMessage> messages = new ArrayList<RtmpMessage>();
+    private int size;
+    private int startTime = -1;
+
+    /**
+     * @param capacity upper bound on the size of the cached messages framed
+     * as flv tags, i.e. what a joining subscriber is sent, in bytes
+     */
+    public GopCache(final int capacity) {
+        this.capacity = capacity;
+    }
+
+    private static boolean isKeyframe(final ChannelBuffer data, final int offset) {
+        final byte first = data.getByte(offset);
+        return (first & 0xF0) == 0x10 && !((first & 0x0F) == 7 && data.getByte(offset + 1) == 0); // not avc config
+    }
+
+    private static boolean isKeyframeTag(final ChannelBuffer tags, final int offset) {
+        return tags.getByte(offset) == MessageType.VIDEO.intValue() && tags.getMedium(offset + 1) >= 2
+                && isKeyframe(tags, offset + 11);
+    }
+
+    /**
+     * @return offset of the last keyframe tag, -1 if none
+     */
+    private static int lastKeyframe(final ChannelBuffer tags) {
+        int keyframe = -1;
+        for(int i = tags.readerIndex(); i < tags.writerIndex(); i += 11 + tags.getMedium(i + 1) + 4) {
+            if(isKeyframeTag(tags, i)) {
+                keyframe = i;
+            }
+        }
+        return keyframe;
+    }
+
+    /**
+     * the tags of the first cached message from the keyframe on, the
+     * message may be an aggregate with older tags in front of it
+     */
+    public static ChannelBuffer fromKeyframe(final ChannelBuffer tags) {
+        final int keyframe = lastKeyframe(tags);
+        if(keyframe <= tags.readerIndex()) {
+            return tags;
+        }
+        return tags.slice(keyframe, tags.writerIndex() - keyframe);
+    }
+
+    public void add(final RtmpMessage message) {
+        final RtmpHeader header = message.getHeader();
+        final ChannelBuffer data = message.encode();
+        int keyframeTime = -1;
+        if(header.isAggregate()) { // body laid out as flv tags
+            final int keyframe = lastKeyframe(data);
+            if(keyframe >= 0) {
+                keyframeTime = data.getMedium(keyframe + 4) | (data.getByte(keyframe + 7) & 0xFF) << 24;
+            }
+        } else if(header.isVideo() && data.readableBytes() >= 2 && isKeyframe(data, data.readerIndex())) {
+            keyframeTime = header.getTime();
+        }
+        if(keyframeTime >= 0) {
+            clear();
+            startTime = keyframeTime;
+        } else if(messages.isEmpty() || !data.readable()) {
+            return; // nothing decodable without the keyframe
+        }
+        // an aggregate body already is a run of flv tags
+        size += header.isAggregate() ? data.readableBytes() : 11 + data.readableBytes() + 4;
+        if(size > capacity) {
+            clear();
+            return;
+        }
+        // the header of the original is mutated once written to a connection
+        messages.add(new FlvAtom(header.getMessageType(), header.getTime(), data.duplicate()));
+    }
+
+    public void clear() {
+        messages.clear();
+        size = 0;
+        startTime = -1;
+    }
+
+    public List<RtmpMessage> getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return time of the keyframe the cache starts with, -1 if empty
+     */
+    public int getStartTime() {
+        return startTime;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+}
@@ -0,0 +1,433 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.flazr.rtmp.server;
+
+import com.flazr.io.BlockCache;
+import com.flazr.io.DiskBlockCache;
+import com.flazr.io.HttpBufferReader;
+import com.flazr.io.TieredStorage;
+import com.flazr.io.flv.AsyncFlvWriter;
+import com.flazr.rtmp.HandshakeExecutor;
+import com.flazr.rtmp.stats.ConnectionStats;
+import com.flazr.rtmp.stats.LatencyHistogram;
+import com.flazr.rtmp.stats.StatsRegistry;
+import com.flazr.rtmp.stats.StreamStats;
+import com.flazr.util.ChannelUtils;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.channel.WriteCompletionEvent;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.codec.http.QueryStringDecoder;
+import org.jboss.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * side http listener, '/metrics' in prometheus text format and '/streams'
+ * as a json snapshot of all applications, responses are built from the
+ * stats counters only and never take locks used by the rtmp side,
+ * '/<app>/<stream>.flv' plays a live stream as http-flv until the
+ * connection is closed
+ */
+public class HttpHandler extends SimpleChannelHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(HttpHandler.class);
+
+    private final ConnectionStats stats = new ConnectionStats();
+    private ServerApplication application;
+    private ServerStream stream;
+
+    @Override
+    public void channelOpen(final ChannelHandlerContext ctx, final ChannelStateEvent e) {
+        RtmpServer.CHANNELS.add(e.getChannel());
+    }
+
+    @Override
+    public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e) {
+        if(stream != null) {
+            stream.removeSubscriber(e.getChannel());
+            stream.release();
+            application.release();
+            StatsRegistry.unregister(stats);
+            logger.info("http-flv subscriber left: {}", stream.getName());
+        }
+    }
+
+    /**
+     * like the rtmp subscribers, writes are never dropped and what is not
+     * yet on the socket shows up as the connection backlog
+     */
+    @Override
+    public void writeRequested(final ChannelHandlerContext ctx, final MessageEvent e) {
+        if(e.getMessage() instanceof ChannelBuffer) {
+            stats.addBytesQueued(((ChannelBuffer) e.getMessage()).readableBytes());
+        }
+        ctx.sendDownstream(e);
+    }
+
+    @Override
+    public void writeComplete(final ChannelHandlerContext ctx, final WriteCompletionEvent e) {
+        stats.addBytesOut(e.getWrittenAmount());
+    }
+
+    @Override
+    public void exceptionCaught(final ChannelHandlerContext ctx, final ExceptionEvent e) {
+        ChannelUtils.exceptionCaught(e);
+        e.getChannel().close();
+    }
+
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent me) {
+        final HttpRequest request = (HttpRequest) me.getMessage();
+        final Channel channel = me.getChannel();
+        if(request.getMethod() != HttpMethod.GET) {
+            respond(channel, HttpResponseStatus.METHOD_NOT_ALLOWED, "text/plain", "method not allowed\n");
+            return;
+        }
+        final String path = new QueryStringDecoder(request.getUri()).getPath();
+        logger.debug("http request: {}", path);
+        if(path.equals("/metrics")) {
+            respond(channel, HttpResponseStatus.OK, "text/plain; version=0.0.4", getMetrics());
+        } else if(path.equals("/streams")) {
+            respond(channel, HttpResponseStatus.OK, "application/json", getStreams());
+        } else if(path.endsWith(".flv") && stream == null) {
+            playFlv(channel, path.substring(0, path.length() - 4));
+        } else {
+            respond(channel, HttpResponseStatus.NOT_FOUND, "text/plain", "not found\n");
+        }
+    }
+
+    private void playFlv(final Channel channel, final String name) {
+        final String[] parts = name.substring(1).split("/", 2); // the path starts with a slash
+        if(parts.length < 2 || parts[1].length() == 0) {
+            respond(channel, HttpResponseStatus.NOT_FOUND, "text/plain", "not found\n");
+            return;
+        }
+        final ServerApplication app = ServerApplication.acquire(parts[0]);
+        final ServerStream live = app.acquireStream(parts[1]);
+        if(!live.isLive()) {
+            live.release();
+            app.release();
+            respond(channel, HttpResponseStatus.NOT_FOUND, "text/plain", "no such live stream\n");
+            return;
+        }
+        application = app;
+        stream = live;
+        stats.setChannel(channel);
+        stats.setPlaying(live.getStats());
+        StatsRegistry.register(stats);
+        final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.setHeader(HttpHeaders.Names.CONTENT_TYPE, "video/x-flv");
+        response.setHeader(HttpHeaders.Names.CACHE_CONTROL, HttpHeaders.Values.NO_CACHE);
+        response.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE); // body ends with the connection
+        channel.write(response);
+        live.addFlvSubscriber(channel);
+        logger.info("http-flv subscriber added to stream: {}", live);
+    }
+
+    private static void respond(final Channel channel, final HttpResponseStatus status,
+            final String contentType, final String body) {
+        final ChannelBuffer content = ChannelBuffers.copiedBuffer(body, CharsetUtil.UTF_8);
+        final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+        response.setHeader(HttpHeaders.Names.CONTENT_TYPE, contentType);
+        response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, content.readableBytes());
+        response.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+        response.setContent(content);
+        channel.write(response).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    //==========================================================================
+
+    protected static String getMetrics() {
+        final StringBuilder sb = new StringBuilder();
+        metric(sb, "flazr_connections", "gauge", "open connections");
+        sb.append("flazr_connections ").append(StatsRegistry.getConnections().size()).append('\n');
+        metric(sb, "flazr_connections_total", "counter", "connections accepted");
+        sb.append("flazr_connections_total ").append(StatsRegistry.getTotalConnections()).append('\n');
+        metric(sb, "flazr_bytes_in_total", "counter", "bytes received");
+        sb.append("flazr_bytes_in_total ").append(StatsRegistry.getTotalBytesIn()).append('\n');
+        metric(sb, "flazr_bytes_out_total", "counter", "bytes written");
+        sb.append("flazr_bytes_out_total ").append(StatsRegistry.getTotalBytesOut()).append('\n');
+        long maxRtt = -1;
+        for(final ConnectionStats stats : StatsRegistry.getConnections()) {
+            maxRtt = Math.max(maxRtt, stats.getRoundTripTime());
+        }
+        metric(sb, "flazr_connection_rtt_max_ms", "gauge", "highest round trip time over open connections");
+        sb.append("flazr_connection_rtt_max_ms ").append(maxRtt).append('\n');
+        metric(sb, "flazr_applications", "gauge", "applications in memory");
+        sb.append("flazr_applications ").append(RtmpServer.APPLICATIONS.size()).append('\n');
+        metric(sb, "flazr_streams", "gauge", "streams in memory");
+        sb.append("flazr_streams ").append(ServerApplication.getStreamCount()).append('\n');
+        metric(sb, "flazr_live_streams", "gauge", "streams with a publisher");
+        sb.append("flazr_live_streams ").append(ServerApplication.getLiveStreamCount()).append('\n');
+        metric(sb, "flazr_evicted_streams_total", "counter", "idle streams dropped");
+        sb.append("flazr_evicted_streams_total ").append(ServerApplication.getEvictedStreamCount()).append('\n');
+        metric(sb, "flazr_evicted_applications_total", "counter", "idle applications dropped");
+        sb.append("flazr_evicted_applications_total ").append(ServerApplication.getEvictedApplicationCount()).append('\n');
+        final HandshakeExecutor handshakes = HandshakeExecutor.get();
+        if(handshakes != null) {
+            metric(sb, "flazr_handshakes_in_flight", "gauge", "handshakes queued or running on the executor");
+            sb.append("flazr_handshakes_in_flight ").append(handshakes.getInFlight()).append('\n');
+            metric(sb, "flazr_handshakes_rejected_total", "counter", "connections closed because too many handshakes were in flight");
+            sb.append("flazr_handshakes_rejected_total ").append(handshakes.getRejected()).append('\n');
+            metric(sb, "flazr_handshake_queue_p50_us", "gauge", "median time handshakes waited for an executor thread");
+            sb.append("flazr_handshake_queue_p50_us ").append(handshakes.getQueueTimes().getPercentile(50)).append('\n');
+            metric(sb, "flazr_handshake_queue_p99_us", "gauge", "99th percentile time handshakes waited for an executor thread");
+            sb.append("flazr_handshake_queue_p99_us ").append(handshakes.getQueueTimes().getPercentile(99)).append('\n');
+            metric(sb, "flazr_handshake_queue_max_us", "gauge", "highest time handshakes waited for an executor thread");
+            sb.append("flazr_handshake_queue_max_us ").append(handshakes.getQueueTimes().getMax()).append('\n');
+        }
+        final MediaExecutor media = MediaExecutor.get();
+        if(media != null) {
+            metric(sb, "flazr_media_queue_depth", "gauge", "events waiting for or running on a media thread");
+            sb.append("flazr_media_queue_depth ").append(media.getQueueDepth()).append('\n');
+        }
+        final BlockCache cache = BlockCache.get();
+        if(cache != null) {
+            metric(sb, "flazr_cache_bytes", "gauge", "media file blocks held in memory");
+            sb.append("flazr_cache_bytes ").append(cache.getBytes()).append('\n');
+            metric(sb, "flazr_cache_hits_total", "counter", "file blocks served from memory");
+            sb.append("flazr_cache_hits_total ").append(cache.getHits()).append('\n');
+            metric(sb, "flazr_cache_misses_total", "counter", "file blocks read from disk");
+            sb.append("flazr_cache_misses_total ").append(cache.getMisses()).append('\n');
+            metric(sb, "flazr_cache_evictions_total", "counter", "file blocks dropped to stay within budget");
+            sb.append("flazr_cache_evictions_total ").append(cache.getEvictions()).append('\n');
+            metric(sb, "flazr_cache_recycled_total", "counter", "file blocks read into the buffer of an evicted block");
+            sb.append("flazr_cache_recycled_total ").append(cache.getRecycled()).append('\n');
+        }
+        final TieredStorage tiers = TieredStorage.get();
+        if(tiers != null) {
+            metric(sb, "flazr_tier_bytes", "gauge", "bytes of media copied to the fast tier");
+            sb.append("flazr_tier_bytes ").append(tiers.getBytes()).append('\n');
+            metric(sb, "flazr_tier_hits_total", "counter", "files opened from the fast tier");
+            sb.append("flazr_tier_hits_total ").append(tiers.getHits()).append('\n');
+            metric(sb, "flazr_tier_misses_total", "counter", "files opened from the home dir");
+            sb.append("flazr_tier_misses_total ").append(tiers.getMisses()).append('\n');
+            metric(sb, "flazr_tier_promotions_total", "counter", "files copied to the fast tier");
+            sb.append("flazr_tier_promotions_total ").append(tiers.getPromotions()).append('\n');
+            metric(sb, "flazr_tier_evictions_total", "counter", "files dropped from the fast tier");
+            sb.append("flazr_tier_evictions_total ").append(tiers.getEvictions()).append('\n');
+        }
+        final DiskBlockCache originCache = HttpBufferReader.getSharedCache();
+        if(originCache != null) {
+            metric(sb, "flazr_origin_requests_total", "counter", "range requests sent to the http origin");
+            sb.append("flazr_origin_requests_total ").append(HttpBufferReader.getRequestCount()).append('\n');
+            metric(sb, "flazr_origin_bytes_total", "counter", "bytes fetched from the http origin");
+            sb.append("flazr_origin_bytes_total ").append(HttpBufferReader.getBytesFetched()).append('\n');
+            metric(sb, "flazr_origin_cache_bytes", "gauge", "origin blocks held on local disk");
+            sb.append("flazr_origin_cache_bytes ").append(originCache.getBytes()).append('\n');
+            metric(sb, "flazr_origin_cache_evictions_total", "counter", "origin blocks deleted to stay within budget");
+            sb.append("flazr_origin_cache_evictions_total ").append(originCache.getEvictions()).append('\n');
+        }
+        final LatencyHistogram reads = StatsRegistry.getMediaReads();
+        metric(sb, "flazr_media_read_p50_us", "gauge", "median time to read a message from a file");
+        sb.append("flazr_media_read_p50_us ").append(reads.getPercentile(50)).append('\n');
+        metric(sb, "flazr_media_read_p99_us", "gauge", "99th percentile time to read a message from a file");
+        sb.append("flazr_media_read_p99_us ").append(reads.getPercentile(99)).append('\n');
+        metric(sb, "flazr_media_read_max_us", "gauge", "highest time to read a message from a file");
+        sb.append("flazr_media_read_max_us ").append(reads.getMax()).append('\n');
+        metric(sb, "flazr_zero_copy_bytes_total", "counter", "media bytes sent straight from files with sendfile");
+        sb.append("flazr_zero_copy_bytes_total ").append(StatsRegistry.getZeroCopyBytes()).append('\n');
+        metric(sb, "flazr_zero_copy_fallbacks_total", "counter", "file aggregates copied because of rtmpe or a small chunk size");
+        sb.append("flazr_zero_copy_fallbacks_total ").append(StatsRegistry.getZeroCopyFallbacks()).append('\n');
+        final long cpuTime = StatsRegistry.getProcessCpuTime();
+        if(cpuTime >= 0) {
+            metric(sb, "flazr_process_cpu_seconds_total", "counter", "cpu time used by the server process");
+            sb.append("flazr_process_cpu_seconds_total ").append(cpuTime / 1000000000.0).append('\n');
+            metric(sb, "flazr_cpu_seconds_per_gbit", "gauge", "process cpu seconds per gigabit written since startup");
+            sb.append("flazr_cpu_seconds_per_gbit ").append(StatsRegistry.getCpuSecondsPerGbit()).append('\n');
+        }
+        final String[][] streamMetrics = {
+            {"flazr_stream_subscribers", "gauge", "live subscribers"},
+            {"flazr_stream_ingest_bitrate", "gauge", "publisher bits per second"},
+            {"flazr_stream_output_bitrate", "gauge", "fanned out bits per second"},
+            {"flazr_stream_video_fps", "gauge", "video frames per second"},
+            {"flazr_stream_audio_fps", "gauge", "audio frames per second"},
+            {"flazr_stream_keyframe_interval_ms", "gauge", "time between the last two keyframes"},
+            {"flazr_stream_max_backlog_bytes", "gauge", "largest subscriber send backlog"},
+            {"flazr_stream_bytes_in_total", "counter", "bytes published"},
+            {"flazr_stream_bytes_out_total", "counter", "bytes fanned out"},
+            {"flazr_stream_latency_p50_us", "gauge", "median time from receive to subscriber socket"},
+            {"flazr_stream_latency_p99_us", "gauge", "99th percentile time from receive to subscriber socket"},
+            {"flazr_stream_latency_max_us", "gauge", "highest time from receive to subscriber socket"}
+        };
+        for(int i = 0; i < streamMetrics.length; i++) {
+            metric(sb, streamMetrics[i][0], streamMetrics[i][1], streamMetrics[i][2]);
+            for(final StreamStats stats : StatsRegistry.getStreams()) {
+                sb.append(streamMetrics[i][0]).append("{application=\"").append(escape(stats.getApplication()))
+                        .append("\",stream=\"").append(escape(stats.getName())).append("\"} ")
+                        .append(getStreamValue(stats, i)).append('\n');
+            }
+        }
+        metric(sb, "flazr_push_lag_ms", "gauge", "how far a push target is behind the publisher");
+        final StringBuilder dropped = new StringBuilder();
+        metric(dropped, "flazr_push_dropped_total", "counter", "messages not forwarded to a push target");
+        for(final ServerApplication application : RtmpServer.APPLICATIONS.values()) {
+            for(final ServerStream stream : application.getStreams()) {
+                for(final PushRelay relay : stream.getPushRelays()) {
+                    final String labels = "{application=\"" + escape(application.getName())
+                            + "\",stream=\"" + escape(stream.getName())
+                            + "\",target=\"" + escape(relay.getTarget()) + "\"} ";
+                    sb.append("flazr_push_lag_ms").append(labels).append(relay.getLag()).append('\n');
+                    dropped.append("flazr_push_dropped_total").append(labels).append(relay.getDroppedCount()).append('\n');
+                }
+            }
+        }
+        sb.append(dropped);
+        final String[][] recordingMetrics = {
+            {"flazr_recording_queue_depth", "gauge", "messages waiting for the recording writer thread"},
+            {"flazr_recording_written_total", "counter", "messages written to the recording"},
+            {"flazr_recording_dropped_total", "counter", "messages not recorded because the queue was full or closed"},
+            {"flazr_recording_latency_avg_ms", "gauge", "average time from queued to written"},
+            {"flazr_recording_latency_max_ms", "gauge", "highest time from queued to written"}
+        };
+        for(int i = 0; i < recordingMetrics.length; i++) {
+            metric(sb, recordingMetrics[i][0], recordingMetrics[i][1], recordingMetrics[i][2]);
+            for(final AsyncFlvWriter writer : AsyncFlvWriter.getOpenWriters()) {
+                sb.append(recordingMetrics[i][0]).append("{recording=\"").append(escape(writer.getName()))
+                        .append("\"} ").append(getRecordingValue(writer, i)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static long getStreamValue(final StreamStats stats, final int index) {
+        switch(index) {
+            case 0: return stats.getSubscriberCount();
+            case 1: return stats.getIngestBitrate();
+            case 2: return stats.getOutputBitrate();
+            case 3: return stats.getVideoFps();
+            case 4: return stats.getAudioFps();
+            case 5: return stats.getKeyframeInterval();
+            case 6: return stats.getMaxSubscriberBacklog();
+            case 7: return stats.getBytesIn();
+            case 8: return stats.getBytesOut();
+            case 9: return stats.getLatencyP50();
+            case 10: return stats.getLatencyP99();
+            default: return stats.getLatencyMax();
+        }
+    }
+
+    private static Object getRecordingValue(final AsyncFlvWriter writer, final int index) {
+        switch(index) {
+            case 0: return writer.getQueueDepth();
+            case 1: return writer.getWrittenCount();
+            case 2: return writer.getDroppedCount();
+            case 3: return writer.getAverageLatencyMillis();
+            default: return writer.getMaxLatencyMillis();
+        }
+    }
+
+    private static void metric(final StringBuilder sb, final String name, final String type, final String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    protected static String getStreams() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("{\"applications\":[");
+        boolean firstApp = true;
+        for(final ServerApplication application : RtmpServer.APPLICATIONS.values()) {
+            if(!firstApp) {
+                sb.append(',');
+            }
+            firstApp = false;
+            sb.append("{\"name\":").append(quote(application.getName())).append(",\"streams\":[");
+            boolean firstStream = true;
+            for(final ServerStream stream : application.getStreams()) {
+                if(!stream.isLive()) {
+                    continue;
+                }
+                if(!firstStream) {
+                    sb.append(',');
+                }
+                firstStream = false;
+                appendStream(sb, stream);
+            }
+            sb.append("]}");
+        }
+        sb.append("]}\n");
+        return sb.toString();
+    }
+
+    private static void appendStream(final StringBuilder sb, final ServerStream stream) {
+        final Channel publisher = stream.getPublisher();
+        sb.append("{\"name\":").append(quote(stream.getName()));
+        sb.append(",\"publisher\":").append(publisher == null ? "null" : quote(String.valueOf(publisher.getRemoteAddress())));
+        sb.append(",\"subscribers\":").append(stream.getSubscribers().size());
+        final StreamStats stats = stream.getStats();
+        if(stats != null) {
+            sb.append(",\"ingestBitrate\":").append(stats.getIngestBitrate());
+            sb.append(",\"outputBitrate\":").append(stats.getOutputBitrate());
+            sb.append(",\"videoFps\":").append(stats.getVideoFps());
+            sb.append(",\"audioFps\":").append(stats.getAudioFps());
+            sb.append(",\"keyframeInterval\":").append(stats.getKeyframeInterval());
+            sb.append(",\"maxBacklog\":").append(stats.getMaxSubscriberBacklog());
+            sb.append(",\"bytesIn\":").append(stats.getBytesIn());
+            sb.append(",\"bytesOut\":").append(stats.getBytesOut());
+            sb.append(",\"latency\":{\"p50\":").append(stats.getLatencyP50());
+            sb.append(",\"p99\":").append(stats.getLatencyP99());
+            sb.append(",\"max\":").append(stats.getLatencyMax()).append('}');
+        }
+        final DvrBuffer dvr = stream.getDvr();
+        if(dvr != null) {
+            sb.append(",\"dvr\":{\"start\":").append(dvr.getStartTime());
+            sb.append(",\"live\":").append(dvr.getLiveTime());
+            sb.append(",\"bytes\":").append(dvr.getSize()).append('}');
+        }
+        sb.append(",\"push\":[");
+        boolean first = true;
+        for(final PushRelay relay : stream.getPushRelays()) {
+            if(!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append("{\"target\":").append(quote(relay.getTarget()));
+            sb.append(",\"publishing\":").append(relay.isPublishing());
+            sb.append(",\"lag\":").append(relay.getLag());
+            sb.append(",\"queue\":").append(relay.getQueueDepth());
+            sb.append(",\"dropped\":").append(relay.getDroppedCount()).append('}');
+        }
+        sb.append("]}");
+    }
+
+    private static String escape(final String raw) {
+        return raw.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String quote(final String raw) {
+        return '"' + escape(raw) + '"';
+    }
+
+}
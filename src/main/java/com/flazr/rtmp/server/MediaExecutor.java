@@ -0,0 +1,101 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.flazr.rtmp.server;
+
+import com.flazr.rtmp.RtmpConfig;
+import com.flazr.util.NamedThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * runs the server handler on its own threads instead of the i/o threads,
+ * opening files, seeks and every vod read can then block on a cold disk
+ * without stalling the other sockets of the same worker, events of one
+ * channel still run in order and a channel that queues up too much
+ * stops being read from
+ */
+public class MediaExecutor extends OrderedMemoryAwareThreadPoolExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(MediaExecutor.class);
+
+    private static ExecutionHandler handler;
+    private static MediaExecutor instance;
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    public MediaExecutor(final int threads, final long maxChannelMemory, final long maxTotalMemory) {
+        super(threads, maxChannelMemory, maxTotalMemory, 60, TimeUnit.SECONDS, new NamedThreadFactory("media-io"));
+    }
+
+    /**
+     * the shared pipeline stage, null if the handler is configured to run
+     * on the i/o threads
+     */
+    public static synchronized ExecutionHandler getHandler() {
+        if(handler == null && RtmpConfig.SERVER_MEDIA_THREADS > 0) {
+            instance = new MediaExecutor(RtmpConfig.SERVER_MEDIA_THREADS,
+                    RtmpConfig.SERVER_MEDIA_CHANNEL_MEMORY, RtmpConfig.SERVER_MEDIA_TOTAL_MEMORY);
+            handler = new ExecutionHandler(instance);
+            logger.info("media executor threads: {}, max memory per channel: {}, total: {}", new Object[] {
+                    RtmpConfig.SERVER_MEDIA_THREADS, RtmpConfig.SERVER_MEDIA_CHANNEL_MEMORY,
+                    RtmpConfig.SERVER_MEDIA_TOTAL_MEMORY});
+        }
+        return handler;
+    }
+
+    public static synchronized MediaExecutor get() {
+        return instance;
+    }
+
+    public static synchronized void release() {
+        if(handler != null) {
+            handler.releaseExternalResources();
+        }
+    }
+
+    @Override
+    protected void increaseCounter(final Runnable task) {
+        if(shouldCount(task)) {
+            queued.incrementAndGet();
+        }
+        super.increaseCounter(task);
+    }
+
+    @Override
+    protected void decreaseCounter(final Runnable task) {
+        if(shouldCount(task)) {
+            queued.decrementAndGet();
+        }
+        super.decreaseCounter(task);
+    }
+
+    /**
+     * events waiting for or being handled by a media thread
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.flazr.rtmp.server;
+
+import com.flazr.rtmp.RtmpHeader;
+import com.flazr.rtmp.RtmpMessage;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * a message on its way to one particular connection, with its own header
+ * since the encoder mutates it, the payload is the already decoded buffer
+ * shared with every other connection the message goes to
+ */
+public class OutgoingMessage implements RtmpMessage {
+
+    private final RtmpHeader header;
+    private final ChannelBuffer data;
+
+    public OutgoingMessage(final RtmpMessage message, final int streamId) {
+        this(message, message.encode(), streamId, message.getHeader().getChannelId());
+    }
+
+    /**
+     * @param data payload of the message, encode once when sending the
+     * same message to many connections
+     */
+    public OutgoingMessage(final RtmpMessage message, final ChannelBuffer data,
+            final int streamId, final int channelId) {
+        final RtmpHeader original = message.getHeader();
+        header = new RtmpHeader(original.getMessageType(), original.getTime(), original.getSize());
+        header.setChannelId(channelId);
+        header.setStreamId(streamId);
+        header.setReceiveTime(original.getReceiveTime());
+        this.data = data.duplicate();
+    }
+
+    @Override
+    public RtmpHeader getHeader() {
+        return header;
+    }
+
+    @Override
+    public ChannelBuffer encode() {
+        return data.duplicate();
+    }
+
+    @Override
+    public void decode(final ChannelBuffer in) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String toString() {
+        return header.toString();
+    }
+
+}
@@ -0,0 +1,336 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.flazr.rtmp.server;
+
+import com.flazr.rtmp.RtmpDecoder;
+import com.flazr.rtmp.RtmpEncoder;
+import com.flazr.rtmp.RtmpHeader;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.client.ClientHandler;
+import com.flazr.rtmp.client.ClientHandshakeHandler;
+import com.flazr.rtmp.client.ClientOptions;
+import com.flazr.rtmp.message.ChunkSize;
+import com.flazr.rtmp.message.Command;
+import com.flazr.util.NamedThreadFactory;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * forwards a live stream to a downstream rtmp server, messages go through
+ * a bounded queue drained by a sender thread so that a slow target never
+ * holds up the publisher, when the queue is full or the connection is down
+ * media is dropped until the next keyframe and the connection is retried
+ * with exponential backoff
+ */
+public class PushRelay {
+
+    private static final Logger logger = LoggerFactory.getLogger(PushRelay.class);
+
+    private static final int MIN_RETRY_DELAY = 1000;
+
+    private static final int WRITE_WAIT = 100;
+
+    private static ChannelFactory factory;
+
+    private static synchronized ChannelFactory getFactory() {
+        if(factory == null) {
+            factory = new NioClientSocketChannelFactory(
+                    Executors.newCachedThreadPool(new NamedThreadFactory("push-boss")),
+                    Executors.newCachedThreadPool(new NamedThreadFactory("push-worker")));
+        }
+        return factory;
+    }
+
+    private final String target;
+    private final ServerStream stream;
+    private final ClientOptions options;
+    private final int maxRetryDelay;
+    private final BlockingQueue<RtmpMessage> queue;
+    private final Thread thread;
+
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile int lastQueuedTime;
+    private volatile int lastSentTime;
+    private volatile int reconnectCount;
+
+    private boolean dropping = true; // only touched by the producer thread
+    private volatile Channel channel;
+    private volatile int streamId; // non zero once publishing downstream, config queued first
+    private volatile boolean closed;
+    private int retryDelay = MIN_RETRY_DELAY;
+
+    /**
+     * @param target rtmp://host:port/app to publish under the same stream name
+     * or rtmp://host:port/app/name to use a different one
+     * @param maxRetryDelay upper bound for the reconnect backoff in milliseconds
+     */
+    public PushRelay(final String target, final ServerStream stream, final int queueSize, final int maxRetryDelay) {
+        this.target = target;
+        this.stream = stream;
+        this.maxRetryDelay = Math.max(maxRetryDelay, MIN_RETRY_DELAY);
+        queue = new ArrayBlockingQueue<RtmpMessage>(queueSize);
+        options = new ClientOptions();
+        final int path = target.indexOf('/', target.indexOf("://") + 3);
+        options.parseUrl(target.indexOf('/', path + 1) < 0 ? target + "/" + stream.getName() : target);
+        options.publishLive();
+        thread = new Thread(new Runnable() {
+            @Override public void run() {
+                drain();
+            }
+        }, "push-" + stream.getName() + "-" + options.getHost());
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+        connect();
+    }
+
+    private void connect() {
+        if(closed) {
+            return;
+        }
+        final ClientBootstrap bootstrap = new ClientBootstrap(getFactory());
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override public ChannelPipeline getPipeline() {
+                final ChannelPipeline pipeline = Channels.pipeline();
+                pipeline.addLast("handshaker", new ClientHandshakeHandler(options));
+                pipeline.addLast("decoder", new RtmpDecoder());
+                pipeline.addLast("encoder", new RtmpEncoder());
+                pipeline.addLast("handler", new PushHandler(options));
+                return pipeline;
+            }
+        });
+        bootstrap.setOption("tcpNoDelay" , true);
+        bootstrap.setOption("keepAlive", true);
+        logger.info("push relay connecting: {}", this);
+        final ChannelFuture future = bootstrap.connect(new InetSocketAddress(options.getHost(), options.getPort()));
+        channel = future.getChannel();
+        channel.getCloseFuture().addListener(new ChannelFutureListener() {
+            @Override public void operationComplete(final ChannelFuture cf) {
+                streamId = 0;
+                scheduleReconnect();
+            }
+        });
+    }
+
+    private synchronized void scheduleReconnect() {
+        if(closed) {
+            return;
+        }
+        logger.warn("push relay disconnected, retrying in {} ms: {}", retryDelay, this);
+        RtmpServer.TIMER.newTimeout(new TimerTask() {
+            @Override public void run(final Timeout timeout) {
+                reconnectCount++;
+                connect();
+            }
+        }, retryDelay, TimeUnit.MILLISECONDS);
+        retryDelay = Math.min(retryDelay * 2, maxRetryDelay);
+    }
+
+    /**
+     * config goes through the queue as well so that the sender thread is the
+     * only one writing media to the channel, nothing else is queued until
+     * the stream id is set
+     */
+    private synchronized void onPublishStart(final Channel publishChannel, final int publishStreamId) {
+        logger.info("push relay publishing: {}", this);
+        retryDelay = MIN_RETRY_DELAY;
+        publishChannel.write(new ChunkSize(4096));
+        queue.clear(); // stale, restart from config and the next keyframe
+        final List<RtmpMessage> configMessages = stream.getConfigMessages();
+        for(final RtmpMessage message : configMessages.toArray(new RtmpMessage[configMessages.size()])) {
+            if(!queue.offer(new OutgoingMessage(message, publishStreamId))) {
+                logger.warn("push queue too small for the config messages: {}", this);
+                break;
+            }
+        }
+        streamId = publishStreamId;
+    }
+
+    /**
+     * called on the publisher thread, never blocks
+     */
+    public void write(final RtmpMessage message) {
+        if(closed) {
+            return;
+        }
+        final RtmpHeader header = message.getHeader();
+        lastQueuedTime = header.getTime();
+        if(streamId == 0) { // not (yet) publishing downstream
+            droppedCount.incrementAndGet();
+            dropping = true;
+            return;
+        }
+        if(dropping) {
+            if(!header.isVideo() || !isKeyFrame(message)) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+            dropping = false;
+        }
+        if(!queue.offer(new OutgoingMessage(message, streamId))) {
+            droppedCount.incrementAndGet();
+            dropping = true;
+            logger.warn("push queue full, dropping until next keyframe: {}", this);
+        }
+    }
+
+    private static boolean isKeyFrame(final RtmpMessage message) {
+        final ChannelBuffer data = message.encode();
+        return data.readable() && (data.getByte(data.readerIndex()) & 0xF0) == 0x10;
+    }
+
+    private void drain() {
+        ChannelFuture lastWrite = null;
+        try {
+            while(!closed) {
+                final RtmpMessage message = queue.take();
+                final Channel out = channel;
+                if(out == null || streamId == 0 || message.getHeader().getStreamId() != streamId) {
+                    droppedCount.incrementAndGet(); // queued for a connection that is gone
+                    continue;
+                }
+                if(lastWrite != null && !out.isWritable()) { // back pressure from the socket
+                    while(!lastWrite.await(WRITE_WAIT, TimeUnit.MILLISECONDS)) {
+                        if(closed || !out.isConnected()) {
+                            break;
+                        }
+                    }
+                    if(closed) {
+                        break;
+                    }
+                }
+                lastWrite = out.write(message);
+                lastSentTime = message.getHeader().getTime();
+                sentCount.incrementAndGet();
+            }
+        } catch(InterruptedException e) {
+            // closed
+        }
+    }
+
+    public synchronized void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        thread.interrupt();
+        final Channel out = channel;
+        if(out != null && out.isConnected() && streamId != 0) {
+            out.write(Command.unpublish(streamId)).addListener(ChannelFutureListener.CLOSE);
+        } else if(out != null) {
+            out.close();
+        }
+        logger.info("push relay closed: {}", this);
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public boolean isPublishing() {
+        return streamId != 0;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public int getReconnectCount() {
+        return reconnectCount;
+    }
+
+    /**
+     * how far behind the publisher this target is, in stream milliseconds
+     */
+    public int getLag() {
+        return isPublishing() ? Math.max(0, lastQueuedTime - lastSentTime) : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "[push " + options.getHost() + ":" + options.getPort() + "/" + options.getAppName()
+                + "/" + options.getStreamName() + (isPublishing() ? " publishing" : " disconnected")
+                + " queue: " + queue.size() + " lag: " + getLag() + " ms dropped: " + droppedCount + "]";
+    }
+
+    //==========================================================================
+
+    private class PushHandler extends ClientHandler {
+
+        public PushHandler(final ClientOptions options) {
+            super(options);
+        }
+
+        private int publishStreamId;
+
+        @Override
+        protected void onCommandResult(final Channel channel, final Command command, final String resultFor) {
+            if(resultFor.equals("createStream")) {
+                publishStreamId = ((Double) command.getArg(0)).intValue();
+                channel.write(Command.publish(publishStreamId, holdChannel(publishStreamId), options));
+                return;
+            }
+            super.onCommandResult(channel, command, resultFor);
+        }
+
+        @Override
+        protected void onCommandStatus(final Channel channel, final Command command, final Map<String, Object> args) {
+            if("NetStream.Publish.Start".equals(args.get("code"))) {
+                onPublishStart(channel, publishStreamId);
+                return;
+            }
+            super.onCommandStatus(channel, command, args);
+        }
+
+    }
+
+}
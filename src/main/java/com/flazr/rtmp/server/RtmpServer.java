@@ -20,10 +20,12 @@
 package com.flazr.rtmp.server;
 
 import com.flazr.rtmp.RtmpConfig;
+import com.flazr.rtmp.RtmpHandshake;
+import com.flazr.rtmp.stats.StatsMonitor;
 import com.flazr.util.StopMonitor;
 import java.net.InetSocketAddress;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import org.jboss.netty.bootstrap.ServerBootstrap;
@@ -46,14 +48,19 @@ public class RtmpServer {
         CHANNELS = new DefaultChannelGroup("server-channels");
         APPLICATIONS = new ConcurrentHashMap<String, ServerApplication>();
         TIMER = new HashedWheelTimer(RtmpConfig.TIMER_TICK_SIZE, TimeUnit.MILLISECONDS);
+        ServerApplication.scheduleSweep();
     }
     
     protected static final ChannelGroup CHANNELS;
-    protected static final Map<String, ServerApplication> APPLICATIONS;
+    protected static final ConcurrentMap<String, ServerApplication> APPLICATIONS;
     public static final Timer TIMER;
 
     public static void main(String[] args) throws Exception {
 
+        if(RtmpConfig.DH_POOL_SIZE > 0) { // before any rtmpe client can connect
+            RtmpHandshake.getKeyPool().prefill();
+        }
+
         final ChannelFactory factory = new NioServerSocketChannelFactory(
                 Executors.newCachedThreadPool(),
                 Executors.newCachedThreadPool());
@@ -68,6 +75,19 @@ public class RtmpServer {
         bootstrap.bind(socketAddress);
         logger.info("server started, listening on: {}", socketAddress);
 
+        if(RtmpConfig.SERVER_HTTP_PORT > 0) {
+            final ServerBootstrap httpBootstrap = new ServerBootstrap(factory);
+            httpBootstrap.setPipelineFactory(new HttpPipelineFactory());
+            httpBootstrap.setOption("child.tcpNoDelay", true);
+            final InetSocketAddress httpAddress = new InetSocketAddress(RtmpConfig.SERVER_HTTP_PORT);
+            httpBootstrap.bind(httpAddress);
+            logger.info("http listening on: {}", httpAddress);
+        }
+
+        if(RtmpConfig.SERVER_STATS_PORT > 0) {
+            new StatsMonitor(RtmpConfig.SERVER_STATS_PORT).start();
+        }
+
         final Thread monitor = new StopMonitor(RtmpConfig.SERVER_STOP_PORT);
         monitor.start();        
         monitor.join();
@@ -78,6 +98,7 @@ public class RtmpServer {
         future.awaitUninterruptibly();
         logger.info("releasing resources");
         factory.releaseExternalResources();
+        MediaExecutor.release();
         logger.info("server stopped");
 
     }
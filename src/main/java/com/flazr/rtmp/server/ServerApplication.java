@@ -19,15 +19,37 @@
 
 package com.flazr.rtmp.server;
 
+import com.flazr.io.BufferReader;
+import com.flazr.io.HttpBufferReader;
+import com.flazr.io.TieredStorage;
 import com.flazr.io.f4v.F4vReader;
+import com.flazr.io.flv.AsyncFlvWriter;
 import com.flazr.io.flv.FlvReader;
 import com.flazr.io.flv.FlvWriter;
+import com.flazr.io.flv.SegmentedFlvReader;
+import com.flazr.io.flv.SegmentedFlvWriter;
+import com.flazr.io.index.MediaIndex;
+import com.flazr.rtmp.PrefetchingReader;
 import com.flazr.rtmp.RtmpConfig;
 import com.flazr.rtmp.RtmpReader;
 import com.flazr.rtmp.RtmpWriter;
+import com.flazr.rtmp.stats.StatsRegistry;
+import com.flazr.rtmp.stats.StreamStats;
+import com.flazr.util.NamedThreadFactory;
 import com.flazr.util.Utils;
-import java.util.Map;
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,33 +57,80 @@ public class ServerApplication {
 
     private static final Logger logger = LoggerFactory.getLogger(ServerApplication.class);
 
+    private static final AtomicLong EVICTED_STREAMS = new AtomicLong();
+    private static final AtomicLong EVICTED_APPLICATIONS = new AtomicLong();
+
+    private static final long WRITER_CLOSE_TIMEOUT = 30000;
+
+    private static ScheduledExecutorService sweeper;
+
     private final String name;
-    private final Map<String, ServerStream> streams;
+    private final ConcurrentMap<String, ServerStream> streams;
+    private final AtomicInteger references = new AtomicInteger(); // -1 once evicted
+    private volatile long idleSince = System.currentTimeMillis();
+    private final int dvrWindow;
+    private final int dvrSize;
+    private String edgeOrigin;
+    private int edgeIdleTimeout;
+    private final List<String> pushTargets;
+    private final int pushQueueSize;
+    private final int pushRetryMax;
 
     public ServerApplication(final String rawName) {
         this.name = cleanName(rawName);        
-        streams = new ConcurrentHashMap<String, ServerStream>();        
+        streams = new ConcurrentHashMap<String, ServerStream>();
+        dvrWindow = RtmpConfig.getApplicationInt(name, "dvr.window", 0);
+        dvrSize = RtmpConfig.getApplicationInt(name, "dvr.size", 64);
+        edgeOrigin = RtmpConfig.getApplicationProperty(name, "edge.origin", null);
+        edgeIdleTimeout = RtmpConfig.getApplicationInt(name, "edge.idle", 30) * 1000;
+        pushTargets = new CopyOnWriteArrayList<String>();
+        final String targets = RtmpConfig.getApplicationProperty(name, "push.targets", null);
+        if(targets != null) {
+            for(final String target : targets.split(",")) {
+                if(target.trim().length() > 0) {
+                    pushTargets.add(target.trim());
+                }
+            }
+        }
+        pushQueueSize = RtmpConfig.getApplicationInt(name, "push.queue.size", 1024);
+        pushRetryMax = RtmpConfig.getApplicationInt(name, "push.retry.max", 30) * 1000;
     }
 
     public String getName() {
         return name;
     }
 
+    public Collection<ServerStream> getStreams() {
+        return streams.values();
+    }
+
     public RtmpReader getReader(final String rawName) {
+        return getReader(rawName, false);
+    }
+
+    /**
+     * @param zeroCopy true if the connection can send file aggregates as
+     * file regions, otherwise aggregates are built in memory
+     */
+    public RtmpReader getReader(final String rawName, final boolean zeroCopy) {
+        return PrefetchingReader.wrap(openReader(rawName, zeroCopy));
+    }
+
+    private RtmpReader openReader(final String rawName, final boolean zeroCopy) {
         final String streamName = Utils.trimSlashes(rawName);
         final String path = RtmpConfig.SERVER_HOME_DIR + "/apps/" + name + "/";
         final String readerPlayName;
         try {
+            readerPlayName = getFileName(streamName);
             if(streamName.startsWith("mp4:")) {
-                readerPlayName = streamName.substring(4);
-                return new F4vReader(path + readerPlayName);
+                return openFile(path, readerPlayName, MediaIndex.Kind.F4V, zeroCopy);
             } else {                
-                if(streamName.lastIndexOf('.') < streamName.length() - 4) {
-                    readerPlayName = streamName + ".flv";
-                } else {
-                    readerPlayName = streamName;
+                final String manifestPath = path + readerPlayName.substring(0, readerPlayName.length() - 4)
+                        + SegmentedFlvWriter.MANIFEST_EXTENSION;
+                if(!new File(path + readerPlayName).exists() && new File(manifestPath).exists()) {
+                    return new SegmentedFlvReader(manifestPath, zeroCopy);
                 }
-                return new FlvReader(path + readerPlayName);
+                return openFile(path, readerPlayName, MediaIndex.Kind.FLV, zeroCopy);
             }
         } catch(Exception e) {
             logger.info("reader creation failed: {}", e.getMessage());
@@ -69,36 +138,398 @@ public class ServerApplication {
         }
     }
 
+    private static String getFileName(final String streamName) {
+        if(streamName.startsWith("mp4:")) {
+            return streamName.substring(4);
+        }
+        if(streamName.lastIndexOf('.') < streamName.length() - 4) {
+            return streamName + ".flv";
+        }
+        return streamName;
+    }
+
+    /**
+     * true if the play name is a file in the home dir or a segmented recording
+     */
+    private boolean hasLocalFile(final String rawName) {
+        final String path = RtmpConfig.SERVER_HOME_DIR + "/apps/" + name + "/" + getFileName(Utils.trimSlashes(rawName));
+        return new File(path).exists() || new File(path.substring(0, path.length() - 4)
+                + SegmentedFlvWriter.MANIFEST_EXTENSION).exists();
+    }
+
+    /**
+     * every path segment url encoded, a play name that could step out of
+     * the application dir on the origin is rejected
+     */
+    private String getOriginUrl(final String fileName) {
+        if(fileName.contains("..")) {
+            throw new RuntimeException("relative path not allowed: " + fileName);
+        }
+        final StringBuilder sb = new StringBuilder(RtmpConfig.SERVER_ORIGIN_URL).append('/').append(encodeSegment(name));
+        for(final String segment : fileName.split("/")) {
+            if(segment.length() > 0) {
+                sb.append('/').append(encodeSegment(segment));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String encodeSegment(final String segment) {
+        try {
+            return URLEncoder.encode(segment, "UTF-8").replace("+", "%20");
+        } catch(UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * through the fast tier if there is a copy there, from the http origin
+     * if configured and not found locally
+     */
+    private RtmpReader openFile(final String dir, final String fileName, final MediaIndex.Kind kind,
+            final boolean zeroCopy) {
+        final String path = dir + fileName;
+        if(RtmpConfig.SERVER_ORIGIN_URL != null && !new File(path).exists()) {
+            final BufferReader in = HttpBufferReader.open(getOriginUrl(fileName));
+            return kind == MediaIndex.Kind.F4V ? new F4vReader(in, null) : new FlvReader(in, null);
+        }
+        final MediaIndex index = getIndex(path, kind);
+        final String fastPath = TieredStorage.resolvePath(path);
+        if(!fastPath.equals(path)) {
+            try {
+                return kind == MediaIndex.Kind.F4V ? new F4vReader(fastPath, index)
+                        : new FlvReader(fastPath, index, zeroCopy);
+            } catch(Exception e) { // evicted in the meantime
+                logger.info("fast copy not readable, using original: {}", e.getMessage());
+            }
+        }
+        return kind == MediaIndex.Kind.F4V ? new F4vReader(path, index) : new FlvReader(path, index, zeroCopy);
+    }
+
+    private static MediaIndex getIndex(final String path, final MediaIndex.Kind kind) {
+        if(!RtmpConfig.SERVER_INDEX_ENABLED) {
+            return null;
+        }
+        final File file = new File(path);
+        if(!file.exists()) {
+            return null;
+        }
+        return MediaIndex.get(file, kind);
+    }
+
     public RtmpWriter getWriter(final String rawName) {
+        return getWriter(rawName, false);
+    }
+
+    /**
+     * blocks while a previous recording of the same name is still being
+     * written out, so that the file is not reopened under it
+     */
+    public RtmpWriter getWriter(final String rawName, final boolean append) {
         final String streamName = Utils.trimSlashes(rawName);
+        if(!AsyncFlvWriter.awaitClosed(name + "/" + streamName, WRITER_CLOSE_TIMEOUT)) {
+            throw new RuntimeException("previous recording still being written: " + name + "/" + streamName);
+        }
         final String path = RtmpConfig.SERVER_HOME_DIR + "/apps/" + name + "/";
-        return new FlvWriter(path + streamName + ".flv");
+        if(RtmpConfig.SERVER_RECORD_SEGMENT_DURATION > 0 || RtmpConfig.SERVER_RECORD_SEGMENT_SIZE > 0) {
+            return new SegmentedFlvWriter(path + streamName,
+                    RtmpConfig.SERVER_RECORD_SEGMENT_DURATION * 1000L,
+                    RtmpConfig.SERVER_RECORD_SEGMENT_SIZE * 1024L * 1024L, append,
+                    new SegmentedFlvWriter.WriterFactory() {
+                        @Override
+                        public RtmpWriter newWriter(final String fileName) {
+                            return newFlvWriter(fileName, streamName, false);
+                        }
+                    });
+        }
+        return newFlvWriter(path + streamName + ".flv", streamName, append);
+    }
+
+    private RtmpWriter newFlvWriter(final String fileName, final String streamName, final boolean append) {
+        final FlvWriter writer = new FlvWriter(fileName, append);
+        if(!RtmpConfig.SERVER_RECORD_ASYNC) {
+            return writer;
+        }
+        return new AsyncFlvWriter(writer, name + "/" + streamName,
+                RtmpConfig.SERVER_RECORD_QUEUE_SIZE, RtmpConfig.SERVER_RECORD_FORCE_INTERVAL);
     }
 
     public static ServerApplication get(final String rawName) {
         final String appName = cleanName(rawName);
-        ServerApplication app = RtmpServer.APPLICATIONS.get(appName);
-        if(app == null) {
-            app = new ServerApplication(appName);
-            RtmpServer.APPLICATIONS.put(appName, app);
+        while(true) {
+            ServerApplication app = RtmpServer.APPLICATIONS.get(appName);
+            if(app == null) {
+                final ServerApplication created = new ServerApplication(appName);
+                app = RtmpServer.APPLICATIONS.putIfAbsent(appName, created);
+                if(app == null) {
+                    return created;
+                }
+            }
+            if(!app.isEvicted()) {
+                return app;
+            }
+            RtmpServer.APPLICATIONS.remove(appName, app);
         }
-        return app;
     }
 
+    /**
+     * for connections, the application is not evicted until released
+     */
+    public static ServerApplication acquire(final String rawName) {
+        while(true) {
+            final ServerApplication app = get(rawName);
+            if(app.acquire()) {
+                return app;
+            }
+        }
+    }
+
+    /**
+     * @return false if the application was evicted meanwhile
+     */
+    public boolean acquire() {
+        while(true) {
+            final int count = references.get();
+            if(count < 0) {
+                return false;
+            }
+            if(references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        if(references.decrementAndGet() == 0) {
+            idleSince = System.currentTimeMillis();
+        }
+    }
+
+    public int getReferenceCount() {
+        return Math.max(0, references.get());
+    }
+
+    public boolean isEvicted() {
+        return references.get() < 0;
+    }
+
+    /**
+     * like getStream but the stream is not evicted until released
+     */
+    public ServerStream acquireStream(final String rawName) {
+        while(true) {
+            final ServerStream stream = getStream(rawName);
+            if(stream.acquire()) {
+                return stream;
+            }
+        }
+    }
+
+    public ServerStream acquireStream(final String rawName, final String type) {
+        while(true) {
+            final ServerStream stream = getStream(rawName, type);
+            if(stream.acquire()) {
+                return stream;
+            }
+        }
+    }
+
+    /**
+     * stream to play, when this application is an edge any stream that is
+     * neither published locally nor a local file is pulled from the origin
+     */
     public ServerStream getStream(final String rawName) {        
-        return getStream(rawName, null);
+        final ServerStream stream = getStream(rawName, null);
+        if(stream.isLive() || edgeOrigin == null || hasLocalFile(rawName)) {
+            return stream;
+        }
+        return getEdgeStream(rawName);
+    }
+
+    private synchronized ServerStream getEdgeStream(final String rawName) {
+        final String streamName = cleanName(rawName);
+        while(true) {
+            final ServerStream existing = streams.get(streamName);
+            if(existing != null && existing.isLive() && !existing.isEvicted()) { // published or relayed meanwhile
+                return existing;
+            }
+            final ServerStream stream = newStream(streamName, ServerStream.PublishType.LIVE.asString());
+            final boolean added = existing == null ? streams.putIfAbsent(streamName, stream) == null
+                    : streams.replace(streamName, existing, stream);
+            if(added) {
+                registerStats(stream);
+                new EdgeRelay(this, stream, edgeOrigin, edgeIdleTimeout).connect();
+                return stream;
+            }
+        }
+    }
+
+    protected void removeStream(final ServerStream stream) {
+        if(streams.remove(stream.getName(), stream) && streams.isEmpty()) {
+            idleSince = System.currentTimeMillis();
+        }
+        if(stream.getStats() != null) {
+            StatsRegistry.unregister(stream.getStats());
+        }
+    }
+
+    public String getEdgeOrigin() {
+        return edgeOrigin;
+    }
+
+    public void setEdgeOrigin(String edgeOrigin) {
+        this.edgeOrigin = edgeOrigin;
+    }
+
+    public void setEdgeIdleTimeout(int edgeIdleTimeout) {
+        this.edgeIdleTimeout = edgeIdleTimeout;
+    }
+
+    /**
+     * downstream servers every stream published to this application is
+     * forwarded to, can be modified at runtime
+     */
+    public List<String> getPushTargets() {
+        return pushTargets;
+    }
+
+    /**
+     * starts forwarding a newly published stream to all push targets
+     */
+    public void startPushRelays(final ServerStream stream) {
+        for(final String target : pushTargets) {
+            final PushRelay relay = new PushRelay(target, stream, pushQueueSize, pushRetryMax);
+            stream.addPushRelay(relay);
+            relay.start();
+        }
     }
 
     public ServerStream getStream(final String rawName, final String type) {
         final String streamName = cleanName(rawName);
-        ServerStream stream = streams.get(streamName);
-        if(stream == null) {
-            stream = new ServerStream(streamName, type);
-            streams.put(streamName, stream);
+        while(true) {
+            ServerStream stream = streams.get(streamName);
+            if(stream == null) {
+                final ServerStream created = newStream(streamName, type);
+                stream = streams.putIfAbsent(streamName, created);
+                if(stream == null) {
+                    registerStats(created);
+                    return created;
+                }
+            }
+            if(!stream.isEvicted()) {
+                return stream;
+            }
+            streams.remove(streamName, stream);
+        }
+    }
+
+    private ServerStream newStream(final String streamName, final String type) {
+        final ServerStream stream = new ServerStream(streamName, type);
+        if(stream.isLive() && dvrWindow > 0 && dvrSize > 0) {
+            stream.setDvr(new DvrBuffer(dvrWindow * 1000, dvrSize * 1024L * 1024L));
+        }
+        if(stream.isLive()) {
+            stream.setStats(new StreamStats(name, streamName, stream.getSubscribers()));
         }
         return stream;
     }
 
+    /**
+     * only once the stream has made it into the map, a concurrently
+     * created duplicate must not replace the registered one
+     */
+    private static void registerStats(final ServerStream stream) {
+        if(stream.getStats() != null) {
+            StatsRegistry.register(stream.getStats());
+        }
+    }
+
+    //==========================================================================
+
+    /**
+     * starts the background sweep, called once on server startup
+     */
+    protected static synchronized void scheduleSweep() {
+        if(sweeper != null || RtmpConfig.SERVER_EVICT_INTERVAL <= 0) {
+            return;
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("stream-sweeper"));
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                try {
+                    sweep(System.currentTimeMillis(), RtmpConfig.SERVER_EVICT_GRACE * 1000L);
+                } catch(Exception e) {
+                    logger.warn("sweep failed: {}", e.getMessage());
+                }
+            }
+        }, RtmpConfig.SERVER_EVICT_INTERVAL, RtmpConfig.SERVER_EVICT_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * drops streams without publisher, subscribers or connections referencing
+     * them that have been idle for the grace period, and then applications
+     * left without streams and connections
+     */
+    protected static void sweep(final long now, final long grace) {
+        int streamCount = 0;
+        int appCount = 0;
+        for(final ServerApplication app : RtmpServer.APPLICATIONS.values()) {
+            for(final ServerStream stream : app.streams.values()) {
+                if(stream.evictIfIdle(now, grace)) {
+                    app.removeStream(stream);
+                    streamCount++;
+                }
+            }
+            if(app.evictIfIdle(now, grace)) {
+                RtmpServer.APPLICATIONS.remove(app.name, app);
+                appCount++;
+            }
+        }
+        EVICTED_STREAMS.addAndGet(streamCount);
+        EVICTED_APPLICATIONS.addAndGet(appCount);
+        if(streamCount > 0 || appCount > 0) {
+            logger.info("evicted idle streams: {}, applications: {}", streamCount, appCount);
+        }
+    }
+
+    private boolean evictIfIdle(final long now, final long grace) {
+        if(!streams.isEmpty() || now - idleSince < grace) {
+            return false;
+        }
+        return references.compareAndSet(0, -1);
+    }
+
+    public static long getEvictedStreamCount() {
+        return EVICTED_STREAMS.get();
+    }
+
+    public static long getEvictedApplicationCount() {
+        return EVICTED_APPLICATIONS.get();
+    }
+
+    /**
+     * streams that currently have a publisher, over all applications
+     */
+    public static int getLiveStreamCount() {
+        int count = 0;
+        for(final ServerApplication app : RtmpServer.APPLICATIONS.values()) {
+            for(final ServerStream stream : app.streams.values()) {
+                if(stream.isLive() && stream.getPublisher() != null) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public static int getStreamCount() {
+        int count = 0;
+        for(final ServerApplication app : RtmpServer.APPLICATIONS.values()) {
+            count += app.streams.size();
+        }
+        return count;
+    }
+
     private static String cleanName(final String raw) {
         return Utils.trimSlashes(raw).toLowerCase();
     }
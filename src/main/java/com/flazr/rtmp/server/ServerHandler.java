@@ -22,6 +22,7 @@ package com.flazr.rtmp.server;
 import com.flazr.rtmp.message.BytesRead;
 import com.flazr.rtmp.message.ChunkSize;
 import com.flazr.rtmp.message.Control;
+import com.flazr.rtmp.RtmpConfig;
 import com.flazr.rtmp.RtmpMessage;
 import com.flazr.rtmp.RtmpReader;
 import com.flazr.rtmp.RtmpPublisher;
@@ -33,10 +34,15 @@ import com.flazr.rtmp.message.Metadata;
 import com.flazr.rtmp.message.SetPeerBw;
 import com.flazr.rtmp.message.Video;
 import com.flazr.rtmp.message.WindowAckSize;
+import com.flazr.rtmp.stats.ConnectionStats;
+import com.flazr.rtmp.stats.StatsRegistry;
 
 import com.flazr.util.ChannelUtils;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
@@ -47,35 +53,81 @@ import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
 import org.jboss.netty.channel.WriteCompletionEvent;
-import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 @ChannelPipelineCoverage("one")
 public class ServerHandler extends SimpleChannelHandler {
-    
+
     private static final Logger logger = LoggerFactory.getLogger(ServerHandler.class);
-        
+
+    private static final int MAX_STREAMS = 256;
+
     private int bytesReadWindow = 2500000;
     private long bytesRead;
     private long bytesReadLastSent;
 
     private long bytesWritten;
     private int bytesWrittenWindow = 2500000;
-    private int bytesWrittenLastReceived;   
+    private int bytesWrittenLastReceived;
 
     private ServerApplication application;
     private String clientId;
-    private String playName;
-    private int streamId;
-    private int bufferDuration;
+    private int bufferDuration; // for streams not created yet
+
+    /**
+     * everything belonging to one stream id of the connection, a client
+     * can play and publish several streams over the same connection
+     */
+    private static class Session {
+
+        private final int streamId;
+        private String playName;
+        private int bufferDuration;
+        private RtmpPublisher publisher;
+        private ServerStream subscriberStream;
+        private RtmpWriter recorder;
+        private ServerStream liveStream; // playing live, used for dvr pause / seek
+        private ServerStream playStream; // referenced until the next play or close
+        private boolean dvrPlayback; // publisher is reading from the dvr buffer of liveStream
+        private boolean dvrLive; // dvr publisher has caught up and handed over to live
+
+        public Session(final int streamId, final int bufferDuration) {
+            this.streamId = streamId;
+            this.bufferDuration = bufferDuration;
+        }
+
+        /**
+         * chunk channel for everything played on this stream, live video
+         * goes on the one after it
+         */
+        public int getChannelId() {
+            return 8 + (streamId - 1) * 2;
+        }
 
-    private RtmpPublisher publisher;    
-    private ServerStream subscriberStream;
-    private RtmpWriter recorder;
+    }
+
+    private final Map<Integer, Session> sessions = new ConcurrentHashMap<Integer, Session>();
 
     private boolean aggregateModeEnabled = true;
 
+    private final ConnectionStats stats;
+    private final long startTime = System.currentTimeMillis();
+
+    public ServerHandler() {
+        this(new ConnectionStats());
+    }
+
+    public ServerHandler(final ConnectionStats stats) {
+        this.stats = stats;
+    }
+
+    public ConnectionStats getStats() {
+        return stats;
+    }
+
     public void setAggregateModeEnabled(boolean aggregateModeEnabled) {
         this.aggregateModeEnabled = aggregateModeEnabled;
     }
@@ -83,6 +135,8 @@ public class ServerHandler extends SimpleChannelHandler {
     @Override
     public void channelOpen(final ChannelHandlerContext ctx, final ChannelStateEvent e) {
         RtmpServer.CHANNELS.add(e.getChannel());
+        stats.setChannel(e.getChannel());
+        StatsRegistry.register(stats);
         logger.info("opened channel: {}", e);
     }
 
@@ -94,35 +148,44 @@ public class ServerHandler extends SimpleChannelHandler {
     @Override
     public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e) {
         logger.info("channel closed: {}", e);
-        if(publisher != null) {
-            publisher.close();
+        StatsRegistry.unregister(stats);
+        for(final Session session : sessions.values()) {
+            closeSession(e.getChannel(), session);
         }
-        if(recorder != null) {
-            recorder.close();
+        sessions.clear();
+        if(application != null) {
+            application.release();
         }
-        unpublishIfLive();
     }
 
     @Override
     public void writeComplete(final ChannelHandlerContext ctx, final WriteCompletionEvent e) throws Exception {
-        bytesWritten += e.getWrittenAmount();        
+        bytesWritten += e.getWrittenAmount();
+        stats.addBytesOut(e.getWrittenAmount());
         super.writeComplete(ctx, e);
     }
 
     @Override
     public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent me) {
-        if(publisher != null && publisher.handle(me)) {
+        if(me.getMessage() instanceof RtmpPublisher.Event) {
+            final RtmpPublisher.Event event = (RtmpPublisher.Event) me.getMessage();
+            final Session session = sessions.get(event.getStreamId());
+            if(session != null && session.publisher != null) {
+                session.publisher.handle(me);
+            }
             return;
         }
         final Channel channel = me.getChannel();
         final RtmpMessage message = (RtmpMessage) me.getMessage();
         bytesRead += message.getHeader().getSize();
+        stats.addBytesIn(message.getHeader().getSize());
         if((bytesRead - bytesReadLastSent) > bytesReadWindow) {
             logger.info("sending bytes read ack after: {}", bytesRead);
             BytesRead ack = new BytesRead(bytesRead);
             channel.write(ack);
             bytesReadLastSent = bytesRead;
         }
+        final int messageStreamId = message.getHeader().getStreamId();
         switch(message.getHeader().getMessageType()) {
             case CHUNK_SIZE: // handled by decoder
                 break;
@@ -131,11 +194,19 @@ public class ServerHandler extends SimpleChannelHandler {
                 switch(control.getType()) {
                     case SET_BUFFER:
                         logger.debug("received set buffer: {}", control);
-                        bufferDuration = control.getBufferLength();
-                        if(publisher != null) {
-                            publisher.setBufferDuration(bufferDuration);
+                        final Session bufferSession = sessions.get(control.getStreamId());
+                        if(bufferSession == null) {
+                            bufferDuration = control.getBufferLength();
+                            break;
+                        }
+                        bufferSession.bufferDuration = control.getBufferLength();
+                        if(bufferSession.publisher != null) {
+                            bufferSession.publisher.setBufferDuration(bufferSession.bufferDuration);
                         }
                         break;
+                    case PING_RESPONSE:
+                        stats.setRoundTripTime(getTime() - control.getTime());
+                        break;
                     default:
                         logger.info("ignored control: {}", control);
                 }
@@ -147,50 +218,76 @@ public class ServerHandler extends SimpleChannelHandler {
                 if(name.equals("connect")) {
                     connectResponse(channel, command);
                 } else if(name.equals("createStream")) {
-                    streamId = 1;
-                    channel.write(Command.createStreamSuccess(command.getTransactionId(), streamId));
+                    createStreamResponse(channel, command);
                 } else if(name.equals("play")) {
-                    playResponse(channel, command);
+                    final Session session = getSession(messageStreamId, command);
+                    if(session != null) {
+                        playResponse(channel, session, command);
+                    }
                 } else if(name.equals("deleteStream")) {
-                    int deleteStreamId = ((Double) command.getArg(0)).intValue();
+                    final int deleteStreamId = ((Double) command.getArg(0)).intValue();
                     logger.info("deleting stream id: {}", deleteStreamId);
-                    // TODO ?
+                    final Session session = sessions.remove(deleteStreamId);
+                    if(session != null) {
+                        closeSession(channel, session);
+                    }
                 } else if(name.equals("closeStream")) {
-                    final int clientStreamId = command.getHeader().getStreamId();
-                    logger.info("closing stream id: {}", clientStreamId); // TODO
-                    unpublishIfLive();
-                } else if(name.equals("pause")) {                    
-                    pauseResponse(channel, command);
-                } else if(name.equals("seek")) {                    
-                    seekResponse(channel, command);
+                    logger.info("closing stream id: {}", messageStreamId);
+                    final Session session = sessions.get(messageStreamId);
+                    if(session != null) {
+                        closeSession(channel, session);
+                    }
+                } else if(name.equals("pause")) {
+                    final Session session = getSession(messageStreamId, command);
+                    if(session != null) {
+                        pauseResponse(channel, session, command);
+                    }
+                } else if(name.equals("seek")) {
+                    final Session session = getSession(messageStreamId, command);
+                    if(session != null) {
+                        seekResponse(channel, session, command);
+                    }
                 } else if(name.equals("publish")) {
-                    publishResponse(channel, command);
+                    final Session session = getSession(messageStreamId, command);
+                    if(session != null) {
+                        publishResponse(channel, session, command);
+                    }
                 } else {
                     logger.warn("ignoring command: {}", command);
-                    fireNext(channel);
+                    fireNext(channel, messageStreamId);
                 }
                 return; // NOT break
             case METADATA_AMF0:
             case METADATA_AMF3:
+                final Session metaSession = getPublishing(messageStreamId);
+                if(metaSession == null) {
+                    logger.warn("ignoring metadata, not publishing: {}", message);
+                    break;
+                }
                 final Metadata meta = (Metadata) message;
                 if(meta.getName().equals("onMetaData")) {
                     logger.info("adding onMetaData message: {}", meta);
                     meta.setDuration(-1);
-                    subscriberStream.addConfigMessage(meta);
+                    metaSession.subscriberStream.addConfigMessage(meta);
                 }
-                broadcast(message);
-                break;            
+                broadcast(metaSession, message);
+                break;
             case AUDIO:
             case VIDEO:
-                if(((DataMessage) message).isConfig()) {
+            case AGGREGATE:
+                final Session mediaSession = getPublishing(messageStreamId);
+                if(mediaSession == null) {
+                    logger.warn("ignoring media, not publishing: {}", message);
+                    break;
+                }
+                if(!message.getHeader().isAggregate() && ((DataMessage) message).isConfig()) {
                     logger.info("adding config message: {}", message);
-                    subscriberStream.addConfigMessage(message);
+                    mediaSession.subscriberStream.addConfigMessage(message);
                 }
-            case AGGREGATE:
-                broadcast(message);
+                broadcast(mediaSession, message);
                 break;
             case BYTES_READ:
-                final BytesRead bytesReadByClient = (BytesRead) message;                
+                final BytesRead bytesReadByClient = (BytesRead) message;
                 bytesWrittenLastReceived = bytesReadByClient.getValue();
                 logger.debug("bytes read ack from client: {}, actual: {}", bytesReadByClient, bytesWritten);
                 break;
@@ -209,62 +306,183 @@ public class ServerHandler extends SimpleChannelHandler {
             default:
             logger.warn("ignoring message: {}", message);
         }
-        fireNext(channel);
+        fireNext(channel, messageStreamId);
+    }
+
+    /**
+     * messages on a stream only concern that stream, connection level
+     * messages (stream id zero) give every stream a nudge
+     */
+    private void fireNext(final Channel channel, final int messageStreamId) {
+        final Session session = sessions.get(messageStreamId);
+        if(session != null) {
+            fireNext(channel, session);
+            return;
+        }
+        for(final Session each : sessions.values()) {
+            fireNext(channel, each);
+        }
     }
 
-    private void fireNext(final Channel channel) {
-        if(publisher != null && publisher.isStarted() && !publisher.isPaused()) {
+    private void fireNext(final Channel channel, final Session session) {
+        final RtmpPublisher publisher = session.publisher;
+        if(publisher != null && publisher.isStarted() && !publisher.isPaused() && !session.dvrLive) {
             publisher.fireNext(channel, 0);
         }
     }
 
+    /**
+     * only createStream sets up sessions, so that MAX_STREAMS holds, null
+     * and the command ignored for a stream id that was never created
+     */
+    private Session getSession(final int streamId, final Command command) {
+        final Session session = sessions.get(streamId);
+        if(session == null) {
+            logger.warn("rejecting command on unknown stream id {}: {}", streamId, command);
+        }
+        return session;
+    }
+
+    private Session getPublishing(final int streamId) {
+        final Session session = sessions.get(streamId);
+        if(session == null || session.subscriberStream == null) {
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * stops playing and publishing, the stream id stays valid until deleted
+     */
+    private void closeSession(final Channel channel, final Session session) {
+        if(session.publisher != null) {
+            session.publisher.close();
+            session.publisher = null;
+        }
+        unpublishIfLive(session);
+        if(session.liveStream != null) {
+            session.liveStream.removeSubscriber(channel);
+            session.liveStream = null;
+        }
+        if(session.playStream != null) {
+            session.playStream.release();
+            session.playStream = null;
+        }
+        if(session.subscriberStream != null) {
+            session.subscriberStream.release();
+            session.subscriberStream = null;
+        }
+        session.playName = null;
+        session.dvrPlayback = false;
+        session.dvrLive = false;
+    }
+
     //==========================================================================
 
-    private RtmpMessage[] getStartMessages(final RtmpMessage variation) {
+    /**
+     * file aggregates only pay off if the encoder can send them as file
+     * regions, rtmpe ciphers every byte and small chunks make it a loss
+     */
+    private static boolean isZeroCopyUsable(final Channel channel) {
+        return RtmpConfig.ZERO_COPY && RtmpConfig.SERVER_CHUNK_SIZE >= RtmpConfig.ZERO_COPY_MIN_CHUNK_SIZE
+                && channel.getPipeline().get("handshaker") == null;
+    }
+
+    private RtmpMessage[] getStartMessages(final Session session, final RtmpMessage variation) {
         final List<RtmpMessage> list = new ArrayList<RtmpMessage>();
-        list.add(new ChunkSize(4096));
-        list.add(Control.streamIsRecorded(streamId));
-        list.add(Control.streamBegin(streamId));
+        list.add(new ChunkSize(RtmpConfig.SERVER_CHUNK_SIZE));
+        list.add(Control.streamIsRecorded(session.streamId));
+        list.add(Control.streamBegin(session.streamId));
         if(variation != null) {
             list.add(variation);
         }
-        list.add(Command.playStart(playName, clientId));
+        list.add(Command.playStart(session.playName, clientId));
         list.add(Metadata.rtmpSampleAccess());
         list.add(Audio.empty());
         list.add(Metadata.dataStart());
         return list.toArray(new RtmpMessage[list.size()]);
     }
 
-    private void broadcast(final RtmpMessage message) {
-        subscriberStream.getSubscribers().write(message);
-        if(recorder != null) {
-            recorder.write(message);
+    private void broadcast(final Session session, final RtmpMessage message) {
+        session.subscriberStream.broadcast(message);
+        if(session.recorder != null) {
+            session.recorder.write(message);
         }
     }
 
-    private void writeToStream(final Channel channel, final RtmpMessage message) {
+    private void writeToStream(final Channel channel, final Session session, final RtmpMessage message) {
         if(message.getHeader().getChannelId() > 2) {
-            message.getHeader().setStreamId(streamId);
+            message.getHeader().setStreamId(session.streamId);
         }
         channel.write(message);
     }
 
+    /**
+     * for messages shared with other subscribers e.g. stream config, on the
+     * same chunk channels as the live messages that follow
+     */
+    private void writeLive(final Channel channel, final Session session, final RtmpMessage message) {
+        final int channelId = session.getChannelId() + (message.getHeader().isVideo() ? 1 : 0);
+        channel.write(new OutgoingMessage(message, message.encode(), session.streamId, channelId));
+    }
+
     //==========================================================================
 
     private void connectResponse(final Channel channel, final Command connect) {
         final String appName = (String) connect.getObject().get("app");
-        clientId = channel.getId() + "";        
-        application = ServerApplication.get(appName); // TODO auth, validation
+        clientId = channel.getId() + "";
+        if(application != null) {
+            application.release();
+        }
+        application = ServerApplication.acquire(appName); // TODO auth, validation
         logger.info("connect, client id: {}, application: {}", clientId, application);
         channel.write(new WindowAckSize(bytesWrittenWindow));
         channel.write(SetPeerBw.dynamic(bytesReadWindow));
-        channel.write(Control.streamBegin(streamId));
+        channel.write(Control.streamBegin(0));
         final Command result = Command.connectSuccess(connect.getTransactionId());
         channel.write(result);
         channel.write(Command.onBWDone());
+        schedulePing(channel);
+    }
+
+    private void createStreamResponse(final Channel channel, final Command command) {
+        if(sessions.size() >= MAX_STREAMS) {
+            logger.warn("more than {} streams requested, closing: {}", MAX_STREAMS, channel);
+            channel.close();
+            return;
+        }
+        int streamId = 1;
+        while(sessions.containsKey(streamId)) {
+            streamId++;
+        }
+        sessions.put(streamId, new Session(streamId, bufferDuration));
+        logger.info("created stream id: {}", streamId);
+        channel.write(Command.createStreamSuccess(command.getTransactionId(), streamId));
+    }
+
+    /**
+     * milliseconds since the connection was opened, used as ping time stamp
+     */
+    private int getTime() {
+        return (int) (System.currentTimeMillis() - startTime);
+    }
+
+    private void schedulePing(final Channel channel) {
+        if(RtmpConfig.SERVER_PING_INTERVAL <= 0) {
+            return;
+        }
+        RtmpServer.TIMER.newTimeout(new TimerTask() {
+            @Override public void run(final Timeout timeout) {
+                if(!channel.isOpen()) {
+                    return;
+                }
+                channel.write(Control.pingRequest(getTime()));
+                schedulePing(channel);
+            }
+        }, RtmpConfig.SERVER_PING_INTERVAL, TimeUnit.SECONDS);
     }
 
-    private void playResponse(final Channel channel, final Command play) {
+    private void playResponse(final Channel channel, final Session session, final Command play) {
         int playStart = -2;
         int playLength = -1;
         if(play.getArgCount() > 1) {
@@ -279,14 +497,36 @@ public class ServerHandler extends SimpleChannelHandler {
         } else {
             playReset = true;
         }
-        final Command playResetCommand = playReset ? Command.playReset(playName, clientId) : null;
+        final Command playResetCommand = playReset ? Command.playReset(session.playName, clientId) : null;
         final String clientPlayName = (String) play.getArg(0);
-        final ServerStream stream = application.getStream(clientPlayName);
+        final ServerStream stream = application.acquireStream(clientPlayName);
+        if(session.playStream != null) {
+            session.playStream.release();
+        }
+        session.playStream = stream;
         logger.debug("play name {}, start {}, length {}, reset {}",
                 new Object[]{clientPlayName, playStart, playLength, playReset});
-        if(stream.isLive()) {                  
-            for(final RtmpMessage message : getStartMessages(playResetCommand)) {
-                writeToStream(channel, message);
+        if(session.liveStream != null && session.liveStream != stream) {
+            session.liveStream.removeSubscriber(channel);
+        }
+        if(stream.isLive()) {
+            session.liveStream = stream;
+            final DvrBuffer dvr = stream.getDvr();
+            if(dvr != null && (playStart > 0 || playStart < -2)) {
+                // positive start is a stream time, below -2 is milliseconds behind live
+                final long dvrStart = playStart > 0 ? playStart : Math.max(0, dvr.getLiveTime() + playStart);
+                createDvrPublisher(channel, session, stream);
+                session.publisher.start(channel, (int) dvrStart, -1, getStartMessages(session, playResetCommand));
+                return;
+            }
+            if(session.publisher != null) { // any pending events become obsolete
+                session.publisher.pause();
+                session.playName = null;
+                session.dvrPlayback = false;
+                session.dvrLive = false;
+            }
+            for(final RtmpMessage message : getStartMessages(session, playResetCommand)) {
+                writeToStream(channel, session, message);
             }
             boolean videoConfigPresent = false;
             for(RtmpMessage message : stream.getConfigMessages()) {
@@ -294,130 +534,197 @@ public class ServerHandler extends SimpleChannelHandler {
                 if(message.getHeader().isVideo()) {
                     videoConfigPresent = true;
                 }
-                writeToStream(channel, message);
+                writeLive(channel, session, message);
             }
             if(!videoConfigPresent) {
-                writeToStream(channel, Video.empty());
+                writeLive(channel, session, Video.empty());
             }
-            stream.getSubscribers().add(channel);
+            stream.addSubscriber(channel, session.streamId, session.getChannelId());
+            stats.setPlaying(stream.getStats());
             logger.info("client requested live stream: {}, added to stream: {}", clientPlayName, stream);
             return;
         }
-        if(!clientPlayName.equals(playName)) {
-            playName = clientPlayName;                        
-            final RtmpReader reader = application.getReader(playName);
+        session.liveStream = null;
+        if(!clientPlayName.equals(session.playName) || session.dvrPlayback) {
+            session.dvrPlayback = false;
+            session.dvrLive = false;
+            session.playName = clientPlayName;
+            final RtmpReader reader = application.getReader(session.playName, isZeroCopyUsable(channel));
             if(reader == null) {
-                channel.write(Command.playFailed(playName, clientId));
+                channel.write(Command.playFailed(session.playName, clientId));
                 return;
             }
-            publisher = new RtmpPublisher(reader, streamId, bufferDuration, true, aggregateModeEnabled) {
+            if(session.publisher != null) {
+                session.publisher.close();
+            }
+            session.publisher = new RtmpPublisher(reader, session.streamId, session.bufferDuration, true, aggregateModeEnabled) {
                 @Override protected RtmpMessage[] getStopMessages(long timePosition) {
                     return new RtmpMessage[] {
                         Metadata.onPlayStatus(timePosition / (double) 1000, bytesWritten),
-                        Command.playStop(playName, clientId),
-                        Control.streamEof(streamId)
+                        Command.playStop(session.playName, clientId),
+                        Control.streamEof(session.streamId)
                     };
                 }
             };
+            session.publisher.setChannelId(session.getChannelId());
+        }
+        session.publisher.start(channel, playStart, playLength, getStartMessages(session, playResetCommand));
+    }
+
+    private void createDvrPublisher(final Channel channel, final Session session, final ServerStream stream) {
+        stream.removeSubscriber(channel);
+        final DvrReader reader = new DvrReader(stream);
+        if(session.publisher != null) {
+            session.publisher.close();
         }
-        publisher.start(channel, playStart, playLength, getStartMessages(playResetCommand));
+        session.publisher = new RtmpPublisher(reader, session.streamId, session.bufferDuration, true, false) {
+            @Override protected RtmpMessage[] getStopMessages(long timePosition) {
+                return new RtmpMessage[] {
+                    Command.playStop(stream.getName(), clientId),
+                    Control.streamEof(session.streamId)
+                };
+            }
+            @Override protected boolean onEndOfStream(final Channel out) {
+                if(stream.getPublisher() == null) {
+                    return false;
+                }
+                if(stream.joinLive(reader, out, session.streamId, session.getChannelId())) {
+                    logger.info("dvr caught up, switched to live: {}", stream.getName());
+                    session.dvrLive = true;
+                    stats.setPlaying(stream.getStats());
+                } else { // more arrived in the meantime
+                    fireNext(out, 0);
+                }
+                return true;
+            }
+        };
+        session.publisher.setChannelId(session.getChannelId());
+        session.playName = null;
+        session.dvrPlayback = true;
+        session.dvrLive = false;
+    }
+
+    /**
+     * pause or seek on a live stream with dvr, leaves live and continues
+     * from the dvr buffer
+     */
+    private boolean leaveLiveForDvr(final Channel channel, final Session session) {
+        if(session.liveStream == null || session.liveStream.getDvr() == null) {
+            return false;
+        }
+        session.liveStream.removeSubscriber(channel);
+        if(!session.dvrPlayback) {
+            createDvrPublisher(channel, session, session.liveStream);
+        }
+        session.dvrLive = false;
+        return true;
     }
 
-    private void pauseResponse(final Channel channel, final Command command) {
+    private void pauseResponse(final Channel channel, final Session session, final Command command) {
+        final boolean paused = ((Boolean) command.getArg(0));
+        final int clientTimePosition = ((Double) command.getArg(1)).intValue();
+        if(paused && leaveLiveForDvr(channel, session)) {
+            logger.debug("dvr pause at: {}", clientTimePosition);
+            session.publisher.pause();
+            return;
+        }
+        final RtmpPublisher publisher = session.publisher;
         if(publisher == null) {
             logger.debug("cannot pause when live");
             return;
         }
-        final boolean paused = ((Boolean) command.getArg(0));
-        final int clientTimePosition = ((Double) command.getArg(1)).intValue();
         logger.debug("pause request: {}, client time position: {}", paused, clientTimePosition);
-        if(!paused) {            
-            logger.debug("doing unpause, seeking and playing");            
-            final Command unpause = Command.unpauseNotify(playName, clientId);
-            publisher.start(channel, clientTimePosition, getStartMessages(unpause));
-        } else {            
+        if(!paused) {
+            logger.debug("doing unpause, seeking and playing");
+            final Command unpause = Command.unpauseNotify(session.playName, clientId);
+            publisher.start(channel, clientTimePosition, getStartMessages(session, unpause));
+        } else {
             publisher.pause();
         }
     }
 
-    private void seekResponse(final Channel channel, final Command command) {
+    private void seekResponse(final Channel channel, final Session session, final Command command) {
+        final int clientTimePosition = ((Double) command.getArg(0)).intValue();
+        if(leaveLiveForDvr(channel, session) && !session.publisher.isStarted()) {
+            final Command seekNotify = Command.seekNotify(session.streamId, clientTimePosition, session.playName, clientId);
+            session.publisher.start(channel, clientTimePosition, getStartMessages(session, seekNotify));
+            return;
+        }
+        final RtmpPublisher publisher = session.publisher;
         if(publisher == null) {
             logger.debug("cannot seek when live");
             return;
         }
-        final int clientTimePosition = ((Double) command.getArg(0)).intValue();
         if (!publisher.isPaused()) {
-            final Command seekNotify = Command.seekNotify(streamId, clientTimePosition, playName, clientId);
-            publisher.start(channel, clientTimePosition, getStartMessages(seekNotify));
+            final Command seekNotify = Command.seekNotify(session.streamId, clientTimePosition, session.playName, clientId);
+            publisher.start(channel, clientTimePosition, getStartMessages(session, seekNotify));
         } else {
             logger.debug("ignoring seek when paused, client time position: {}", clientTimePosition);
         }
     }
 
-    private void publishResponse(final Channel channel, final Command command) {
+    private void publishResponse(final Channel channel, final Session session, final Command command) {
         if(command.getArgCount() > 1) { // publish
             final String streamName = (String) command.getArg(0);
             final String publishTypeString = (String) command.getArg(1);
             logger.info("publish, stream name: {}, type: {}", streamName, publishTypeString);
-            subscriberStream = application.getStream(streamName, publishTypeString); // TODO append, record
-            if(subscriberStream.getPublisher() != null) {
+            final ServerStream stream = application.acquireStream(streamName, publishTypeString); // TODO append, record
+            unpublishIfLive(session); // may be this very stream published again
+            if(!stream.claimPublisher(channel)) {
+                stream.release();
                 logger.info("disconnecting publisher client, stream already in use");
-                ChannelFuture future = channel.write(Command.publishBadName(streamId));
+                ChannelFuture future = channel.write(Command.publishBadName(session.streamId));
                 future.addListener(ChannelFutureListener.CLOSE);
                 return;
             }
-            subscriberStream.setPublisher(channel);            
-            channel.write(Command.publishStart(streamName, clientId, streamId));
+            if(session.subscriberStream != null) {
+                session.subscriberStream.release();
+            }
+            session.subscriberStream = stream;
+            application.startPushRelays(stream);
+            channel.write(Command.publishStart(streamName, clientId, session.streamId));
             channel.write(new ChunkSize(4096));
-            channel.write(Control.streamBegin(streamId));
-            final ServerStream.PublishType publishType = subscriberStream.getPublishType();
-            logger.info("created publish stream: {}", subscriberStream);
+            channel.write(Control.streamBegin(session.streamId));
+            final ServerStream.PublishType publishType = stream.getPublishType();
+            logger.info("created publish stream: {}", stream);
             switch(publishType) {
                 case LIVE:
-                    final ChannelGroup subscribers = subscriberStream.getSubscribers();
-                    subscribers.write(Command.publishNotify(streamId));
-                    writeToStream(subscribers, Video.empty());
-                    writeToStream(subscribers, Metadata.rtmpSampleAccess());
-                    writeToStream(subscribers, Audio.empty());
-                    writeToStream(subscribers, Metadata.dataStart());
+                    stream.writeToSubscribers(Command.publishNotify(session.streamId));
+                    stream.writeToSubscribers(Video.empty());
+                    stream.writeToSubscribers(Metadata.rtmpSampleAccess());
+                    stream.writeToSubscribers(Audio.empty());
+                    stream.writeToSubscribers(Metadata.dataStart());
                     break;
                 case RECORD:
-                    recorder = application.getWriter(streamName);
+                    session.recorder = application.getWriter(streamName);
                     break;
                 case APPEND:
-                    logger.warn("append not implemented yet, un-publishing...");
-                    unpublishIfLive();
+                    session.recorder = application.getWriter(streamName, true);
                     break;
             }
         } else { // un-publish
             final boolean publish = (Boolean) command.getArg(0);
             if(!publish) {
-                unpublishIfLive();
+                unpublishIfLive(session);
             }
         }
     }
 
-    // TODO cleanup
-    private void writeToStream(final ChannelGroup channelGroup, final RtmpMessage message) {
-        if(message.getHeader().getChannelId() > 2) {
-            message.getHeader().setStreamId(streamId);
-        }
-        channelGroup.write(message);
-    }
-
-    private void unpublishIfLive() {
+    private void unpublishIfLive(final Session session) {
+        final ServerStream subscriberStream = session.subscriberStream;
         if(subscriberStream != null && subscriberStream.getPublisher() != null) {
             final Channel channel = subscriberStream.getPublisher();
             if(channel.isWritable()) {
-                channel.write(Command.unpublishSuccess(subscriberStream.getName(), clientId, streamId));
+                channel.write(Command.unpublishSuccess(subscriberStream.getName(), clientId, session.streamId));
             }
-            subscriberStream.getSubscribers().write(Command.unpublishNotify(streamId));
+            subscriberStream.writeToSubscribers(Command.unpublishNotify(session.streamId));
+            subscriberStream.closePushRelays();
             subscriberStream.setPublisher(null);
             logger.debug("publisher disconnected, stream un-published");
         }
-        if(recorder != null) {
-            recorder.close();
-            recorder = null;
+        if(session.recorder != null) {
+            session.recorder.close();
+            session.recorder = null;
         }
     }
 
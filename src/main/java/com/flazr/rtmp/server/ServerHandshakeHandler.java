@@ -19,8 +19,11 @@
 
 package com.flazr.rtmp.server;
 
+import com.flazr.rtmp.HandshakeExecutor;
 import com.flazr.rtmp.RtmpHandshake;
 import com.flazr.rtmp.RtmpPublisher;
+import com.flazr.rtmp.stats.ConnectionStats;
+import com.flazr.rtmp.stats.PipelineProbe;
 import com.flazr.util.Utils;
 import java.util.Arrays;
 import org.jboss.netty.buffer.ChannelBuffer;
@@ -39,28 +42,37 @@ public class ServerHandshakeHandler extends FrameDecoder implements ChannelDowns
 
     private static final Logger logger = LoggerFactory.getLogger(ServerHandshakeHandler.class);
     
-    private boolean rtmpe;
+    private volatile boolean rtmpe;
     private final RtmpHandshake handshake;
-    private boolean partOneDone;
-    private boolean handshakeDone;
+    private boolean partOnePending;
+    private volatile boolean partOneDone;
+    private volatile boolean handshakeDone;
+    private long startTime;
 
     public ServerHandshakeHandler() {
         handshake = new RtmpHandshake();
     }
 
     @Override
-    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer in) {        
-        if(!partOneDone) {            
-            if(in.readableBytes() < RtmpHandshake.HANDSHAKE_SIZE + 1) {
+    protected Object decode(final ChannelHandlerContext ctx, final Channel channel, final ChannelBuffer in) {
+        if(!partOneDone) {
+            if(partOnePending || in.readableBytes() < RtmpHandshake.HANDSHAKE_SIZE + 1) {
+                return null;
+            }
+            startTime = System.currentTimeMillis();
+            final HandshakeExecutor executor = HandshakeExecutor.get();
+            if(executor == null) {
+                partOne(ctx, channel, in);
+            } else {
+                partOnePending = true;
+                final ChannelBuffer c0c1 = in.readBytes(RtmpHandshake.HANDSHAKE_SIZE + 1);
+                executor.execute(channel, new Runnable() {
+                    @Override public void run() {
+                        partOne(ctx, channel, c0c1);
+                    }
+                });
                 return null;
             }
-            handshake.decodeClient0And1(in);
-            rtmpe = handshake.isRtmpe();
-            ChannelFuture future = Channels.succeededFuture(channel);
-            Channels.write(ctx, future, handshake.encodeServer0());
-            Channels.write(ctx, future, handshake.encodeServer1());
-            Channels.write(ctx, future, handshake.encodeServer2());
-            partOneDone = true;
         }
         if(!handshakeDone) {
             if(in.readableBytes() < RtmpHandshake.HANDSHAKE_SIZE) {
@@ -68,19 +80,34 @@ public class ServerHandshakeHandler extends FrameDecoder implements ChannelDowns
             }
             handshake.decodeClient2(in);
             handshakeDone = true;
+            final ServerHandler serverHandler = ctx.getPipeline().get(ServerHandler.class);
+            serverHandler.getStats().setHandshakeTime((int) (System.currentTimeMillis() - startTime));
             logger.info("handshake done, rtmpe: {}", rtmpe);
             if(Arrays.equals(handshake.getPeerVersion(), Utils.fromHex("00000000"))) {
-                final ServerHandler serverHandler = ctx.getPipeline().get(ServerHandler.class);
                 serverHandler.setAggregateModeEnabled(false);
                 logger.info("old client version, disabled 'aggregate' mode");
             }
             if(!rtmpe) {
                 channel.getPipeline().remove(this);
+                PipelineProbe.removeProbe(channel.getPipeline(), "handshaker");
             }
         }
         return in;
     }
 
+    private void partOne(final ChannelHandlerContext ctx, final Channel channel, final ChannelBuffer in) {
+        handshake.decodeClient0And1(in);
+        rtmpe = handshake.isRtmpe();
+        final ConnectionStats stats = ctx.getPipeline().get(ServerHandler.class).getStats();
+        ChannelFuture future = Channels.succeededFuture(channel);
+        for(final ChannelBuffer out : new ChannelBuffer[] {
+                handshake.encodeServer0(), handshake.encodeServer1(), handshake.encodeServer2()}) {
+            stats.addBytesQueued(out.readableBytes());
+            Channels.write(ctx, future, out);
+        }
+        partOneDone = true;
+    }
+
     @Override
     public void handleUpstream(final ChannelHandlerContext ctx, final ChannelEvent ce) throws Exception {        
         if (!handshakeDone || !rtmpe || !(ce instanceof MessageEvent)) {
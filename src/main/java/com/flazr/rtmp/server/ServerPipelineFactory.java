@@ -21,23 +21,28 @@ package com.flazr.rtmp.server;
 
 import com.flazr.rtmp.RtmpDecoder;
 import com.flazr.rtmp.RtmpEncoder;
+import com.flazr.rtmp.stats.ConnectionStats;
+import com.flazr.rtmp.stats.PipelineProbe;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.handler.execution.ExecutionHandler;
-import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 
 public class ServerPipelineFactory implements ChannelPipelineFactory {
 
     @Override
     public ChannelPipeline getPipeline() {
         ChannelPipeline pipeline = Channels.pipeline();        
+        final ConnectionStats stats = new ConnectionStats();
         pipeline.addLast("handshaker", new ServerHandshakeHandler());
         pipeline.addLast("decoder", new RtmpDecoder());
-        pipeline.addLast("encoder", new RtmpEncoder());
-//        pipeline.addLast("executor", new ExecutionHandler(
-//                new OrderedMemoryAwareThreadPoolExecutor(16, 1048576, 1048576)));
-        pipeline.addLast("handler", new ServerHandler());
+        pipeline.addLast("encoder", new RtmpEncoder(stats));
+        final ExecutionHandler executor = MediaExecutor.getHandler();
+        if(executor != null) {
+            pipeline.addLast("executor", executor);
+        }
+        pipeline.addLast("handler", new ServerHandler(stats));
+        PipelineProbe.addProbes(pipeline, "server");
         return pipeline;
     }
 
@@ -18,10 +18,21 @@
  */
 package com.flazr.rtmp.server;
 
+import com.flazr.io.flv.FlvAtom;
+import com.flazr.rtmp.RtmpConfig;
+import com.flazr.rtmp.RtmpHeader;
 import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.message.MessageType;
+import com.flazr.rtmp.stats.StreamStats;
 import com.flazr.util.Utils;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
@@ -46,11 +57,38 @@ public class ServerStream {
 
     }
     
+    /**
+     * where live messages go on a subscriber connection, audio and data on
+     * one chunk channel and video on the next one so that the time stamps
+     * of each can be delta encoded on their own
+     */
+    private static class Target {
+
+        private final int streamId;
+        private final int channelId;
+
+        public Target(final int streamId, final int channelId) {
+            this.streamId = streamId;
+            this.channelId = channelId;
+        }
+
+    }
+
+    private static final Target FLV = new Target(-1, -1); // http-flv, gets flv tags instead of messages
+
     private final String name;
     private final PublishType publishType;
     private final ChannelGroup subscribers;
+    private final ConcurrentMap<Integer, Target> targets = new ConcurrentHashMap<Integer, Target>();
     private final List<RtmpMessage> configMessages;
-    private Channel publisher;
+    private final GopCache gop;
+    private final Object flvLock = new Object();
+    private volatile Channel publisher;
+    private DvrBuffer dvr;
+    private StreamStats stats;
+    private final List<PushRelay> pushRelays = new CopyOnWriteArrayList<PushRelay>();
+    private final AtomicInteger references = new AtomicInteger(); // -1 once evicted
+    private volatile long idleSince = System.currentTimeMillis();
 
     private static final Logger logger = LoggerFactory.getLogger(ServerStream.class);
 
@@ -60,10 +98,14 @@ public class ServerStream {
             this.publishType = PublishType.parse(typeString); // TODO record, append
             subscribers = new DefaultChannelGroup(name);
             configMessages = new ArrayList<RtmpMessage>();
+            // only http-flv subscribers use it
+            gop = RtmpConfig.SERVER_HTTP_PORT > 0 && RtmpConfig.SERVER_GOP_CACHE_SIZE > 0
+                    ? new GopCache(RtmpConfig.SERVER_GOP_CACHE_SIZE) : null;
         } else {
             this.publishType = null;
             subscribers = null;
             configMessages = null;
+            gop = null;
         }
         logger.info("Created ServerStream {}", this);
     }
@@ -89,19 +131,269 @@ public class ServerStream {
         return configMessages;
     }
 
+    /**
+     * @param streamId the stream id the subscriber plays on
+     * @param channelId chunk channel for audio and data, the one after it
+     * is used for video
+     */
+    public void addSubscriber(final Channel channel, final int streamId, final int channelId) {
+        targets.put(channel.getId(), new Target(streamId, channelId));
+        subscribers.add(channel);
+    }
+
+    /**
+     * http-flv subscriber, gets the flv header, the config messages and the
+     * cached tags since the last keyframe, then the same tags as every other
+     * http-flv subscriber, under the broadcast lock so that nothing is
+     * missed or repeated
+     */
+    public void addFlvSubscriber(final Channel channel) {
+        synchronized(flvLock) {
+            channel.write(FlvAtom.flvHeader());
+            final int startTime = gop == null ? -1 : gop.getStartTime();
+            for(final RtmpMessage message : configMessages) {
+                final RtmpHeader header = message.getHeader();
+                final int time = startTime >= 0 ? startTime : header.getTime();
+                if(isFlvTag(header)) {
+                    channel.write(new FlvAtom(header.getMessageType(), time, message.encode().duplicate()).write());
+                }
+            }
+            if(gop != null) {
+                boolean first = true;
+                for(final RtmpMessage message : gop.getMessages()) {
+                    final ChannelBuffer tags = first ? GopCache.fromKeyframe(toFlvTags(message)) : toFlvTags(message);
+                    first = false;
+                    if(tags.readable()) {
+                        channel.write(tags);
+                    }
+                }
+            }
+            targets.put(channel.getId(), FLV);
+            subscribers.add(channel);
+        }
+    }
+
+    public void removeSubscriber(final Channel channel) {
+        subscribers.remove(channel);
+        targets.remove(channel.getId());
+    }
+
+    private static boolean isFlvTag(final RtmpHeader header) {
+        return header.isAudio() || header.isVideo() || header.getMessageType() == MessageType.METADATA_AMF0;
+    }
+
+    /**
+     * the message framed as FlvAtom.write() does, aggregates split into their
+     * tags, empty for anything an flv player does not understand
+     */
+    private static ChannelBuffer toFlvTags(final RtmpMessage message) {
+        final RtmpHeader header = message.getHeader();
+        if(header.isAggregate()) {
+            final ChannelBuffer in = message.encode().duplicate();
+            final ChannelBuffer out = ChannelBuffers.dynamicBuffer(in.readableBytes());
+            while(in.readable()) {
+                out.writeBytes(new FlvAtom(in).write());
+            }
+            return out;
+        }
+        if(isFlvTag(header)) {
+            return new FlvAtom(header.getMessageType(), header.getTime(), message.encode().duplicate()).write();
+        }
+        return ChannelBuffers.EMPTY_BUFFER;
+    }
+
+    /**
+     * each subscriber gets its own copy with the stream id and chunk channel
+     * it is playing on, the payload is encoded only once, as flv tags on the
+     * first http-flv subscriber
+     */
+    public void writeToSubscribers(final RtmpMessage message) {
+        if(subscribers.isEmpty()) {
+            return;
+        }
+        ChannelBuffer flvTags = null;
+        final ChannelBuffer data = message.encode();
+        final boolean video = message.getHeader().isVideo();
+        for(final Channel channel : subscribers) {
+            final Target target = targets.get(channel.getId());
+            if(target == null) { // added directly to the group
+                channel.write(message);
+                continue;
+            }
+            if(target == FLV) {
+                if(flvTags == null) {
+                    flvTags = toFlvTags(message);
+                }
+                if(flvTags.readable()) {
+                    channel.write(flvTags.duplicate());
+                }
+                continue;
+            }
+            channel.write(new OutgoingMessage(message, data, target.streamId,
+                    video ? target.channelId + 1 : target.channelId));
+        }
+    }
+
+    /**
+     * the group of pictures is kept current under the same lock that
+     * http-flv subscribers join with, flv tags are only encoded while there
+     * is an http-flv subscriber
+     */
+    private void fanOut(final RtmpMessage message) {
+        synchronized(flvLock) {
+            if(gop != null) {
+                gop.add(message);
+            }
+            writeToSubscribers(message);
+        }
+    }
+
     public void addConfigMessage(final RtmpMessage message) {
         configMessages.add(message);
     }
 
-    public void setPublisher(Channel publisher) {
+    /**
+     * checked and set under the same lock so that of two clients publishing
+     * at the same time only one gets the stream
+     * @return false if the stream already has a publisher
+     */
+    public synchronized boolean claimPublisher(final Channel publisher) {
+        if(this.publisher != null) {
+            return false;
+        }
+        setPublisher(publisher);
+        return true;
+    }
+
+    public synchronized void setPublisher(Channel publisher) {
         this.publisher = publisher;
+        if(publisher == null) {
+            idleSince = System.currentTimeMillis();
+        }
         configMessages.clear();
+        if(gop != null) {
+            synchronized(flvLock) {
+                gop.clear();
+            }
+        }
+        if(publisher != null && dvr != null) {
+            dvr.clear(); // a new publisher starts again from time zero
+        }
+    }
+
+    public DvrBuffer getDvr() {
+        return dvr;
+    }
+
+    public void setDvr(DvrBuffer dvr) {
+        this.dvr = dvr;
+    }
+
+    /**
+     * sends to all live subscribers and appends to the dvr buffer if any,
+     * as one step so that a dvr reader joining live neither misses
+     * nor repeats a message
+     */
+    public void broadcast(final RtmpMessage message) {
+        if(dvr == null) {
+            fanOut(message);
+        } else {
+            synchronized(dvr) {
+                dvr.append(message);
+                fanOut(message);
+            }
+        }
+        for(final PushRelay relay : pushRelays) {
+            relay.write(message);
+        }
+        if(stats != null) {
+            stats.onMessage(message, subscribers.size());
+        }
+    }
+
+    public StreamStats getStats() {
+        return stats;
+    }
+
+    public void setStats(StreamStats stats) {
+        this.stats = stats;
+    }
+
+    public List<PushRelay> getPushRelays() {
+        return pushRelays;
+    }
+
+    public void addPushRelay(final PushRelay relay) {
+        pushRelays.add(relay);
+    }
+
+    public void closePushRelays() {
+        for(final PushRelay relay : pushRelays) {
+            relay.close();
+        }
+        pushRelays.clear();
+    }
+
+    /**
+     * @return true if the reader had caught up and the channel was added
+     * to the live subscribers, false if the reader has more to read
+     */
+    public boolean joinLive(final DvrReader reader, final Channel channel, final int streamId, final int channelId) {
+        synchronized(dvr) {
+            if(reader.hasNext()) {
+                return false;
+            }
+            addSubscriber(channel, streamId, channelId);
+            return true;
+        }
     }
 
     public Channel getPublisher() {
         return publisher;
     }
 
+    /**
+     * to be called by every connection playing or publishing this stream
+     * @return false if the stream was evicted meanwhile, look it up again
+     */
+    public boolean acquire() {
+        while(true) {
+            final int count = references.get();
+            if(count < 0) {
+                return false;
+            }
+            if(references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        if(references.decrementAndGet() == 0) {
+            idleSince = System.currentTimeMillis();
+        }
+    }
+
+    public int getReferenceCount() {
+        return Math.max(0, references.get());
+    }
+
+    public boolean isEvicted() {
+        return references.get() < 0;
+    }
+
+    /**
+     * marks the stream as evicted if nobody has used it for the grace
+     * period, from then on acquire fails
+     */
+    protected boolean evictIfIdle(final long now, final long grace) {
+        if(publisher != null || (subscribers != null && !subscribers.isEmpty())
+                || !pushRelays.isEmpty() || now - idleSince < grace) {
+            return false;
+        }
+        return references.compareAndSet(0, -1);
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder();        
@@ -110,6 +402,13 @@ public class ServerStream {
         sb.append(" publisher: ").append(publisher);
         sb.append(" subscribers: ").append(subscribers);
         sb.append(" config: ").append(configMessages);
+        sb.append(" references: ").append(references);
+        if(dvr != null) {
+            sb.append(" dvr: ").append(dvr);
+        }
+        if(!pushRelays.isEmpty()) {
+            sb.append(" push: ").append(pushRelays);
+        }
         sb.append(']');
         return sb.toString();
     }
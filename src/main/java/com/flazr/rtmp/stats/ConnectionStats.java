@@ -0,0 +1,161 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.flazr.rtmp.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.netty.channel.Channel;
+
+/**
+ * updated from the pipeline of one connection, only increments on the
+ * hot path so that the counters can be read at any time without locking
+ */
+public class ConnectionStats implements ConnectionStatsMXBean {
+
+    private volatile int id;
+    private volatile String remoteAddress;
+    private final long connectedSince = System.currentTimeMillis();
+
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong bytesQueued = new AtomicLong();
+    private volatile int roundTripTime = -1;
+    private volatile int handshakeTime = -1;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private volatile StreamStats playing;
+
+    public void setChannel(final Channel channel) {
+        id = channel.getId();
+        remoteAddress = String.valueOf(channel.getRemoteAddress());
+    }
+
+    public void addBytesIn(final int bytes) {
+        bytesIn.addAndGet(bytes);
+    }
+
+    /**
+     * bytes handed to the socket by the encoder, not yet necessarily sent
+     */
+    public void addBytesQueued(final int bytes) {
+        bytesQueued.addAndGet(bytes);
+    }
+
+    /**
+     * bytes actually written to the socket
+     */
+    public void addBytesOut(final long bytes) {
+        bytesOut.addAndGet(bytes);
+    }
+
+    public void setRoundTripTime(final int roundTripTime) {
+        this.roundTripTime = roundTripTime;
+    }
+
+    public void setHandshakeTime(final int handshakeTime) {
+        this.handshakeTime = handshakeTime;
+    }
+
+    /**
+     * the live stream this connection is subscribed to, latency is
+     * recorded for the stream as well
+     */
+    public void setPlaying(final StreamStats playing) {
+        this.playing = playing;
+    }
+
+    /**
+     * time from a message being received from the publisher to being
+     * handed to the socket of this connection
+     */
+    public void recordLatency(final long nanos) {
+        latency.recordNanos(nanos);
+        final StreamStats stream = playing;
+        if(stream != null) {
+            stream.getLatency().recordNanos(nanos);
+        }
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public long getConnectedSince() {
+        return connectedSince;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    @Override
+    public long getBacklog() {
+        return Math.max(0, bytesQueued.get() - bytesOut.get());
+    }
+
+    @Override
+    public int getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    @Override
+    public int getHandshakeTime() {
+        return handshakeTime;
+    }
+
+    @Override
+    public long getLatencyP50() {
+        return latency.getPercentile(50);
+    }
+
+    @Override
+    public long getLatencyP99() {
+        return latency.getPercentile(99);
+    }
+
+    @Override
+    public long getLatencyMax() {
+        return latency.getMax();
+    }
+
+    @Override
+    public String toString() {
+        return "[connection " + id + " " + remoteAddress + " in: " + getBytesIn() + " out: " + getBytesOut()
+                + " backlog: " + getBacklog() + " rtt: " + roundTripTime + " handshake: " + handshakeTime
+                + (latency.getCount() > 0 ? " latency " + latency : "") + "]";
+    }
+
+}
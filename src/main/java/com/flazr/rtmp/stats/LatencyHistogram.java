@@ -0,0 +1,111 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.flazr.rtmp.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * fixed size histogram of microsecond values, buckets grow as powers of two
+ * with four linear steps in each so the error stays within 25%, recording
+ * is a few atomic increments and never allocates
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 4;
+    private static final int SUB_BITS = 2;
+    private static final int MAX_EXPONENT = 40; // about 12 days in microseconds
+    private static final int BUCKET_COUNT = SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void recordNanos(final long nanos) {
+        record(nanos / 1000);
+    }
+
+    public void record(final long micros) {
+        final long value = Math.max(0, micros);
+        buckets.incrementAndGet(getIndex(value));
+        count.incrementAndGet();
+        long current = max.get();
+        while(value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    protected static int getIndex(final long value) {
+        if(value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+        final int sub = (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+        return Math.min(SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS + sub, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * highest value that falls in the bucket
+     */
+    protected static long getUpperBound(final int index) {
+        if(index < SUB_BUCKETS) {
+            return index;
+        }
+        final int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+        final int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        final long lower = (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound in microseconds of the bucket holding the percentile
+     */
+    public long getPercentile(final double percentile) {
+        final long total = count.get();
+        if(total == 0) {
+            return 0;
+        }
+        final long target = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if(seen >= target) {
+                return Math.min(getUpperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return "p50: " + getPercentile(50) + " p99: " + getPercentile(99) + " max: " + getMax() + " us";
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.flazr.rtmp.stats;
+
+import com.flazr.rtmp.RtmpConfig;
+import java.util.List;
+import java.util.Map;
+import org.jboss.netty.channel.ChannelDownstreamHandler;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+
+/**
+ * sits in front of a pipeline stage and times it, upstream events passing
+ * the probe enter the stage behind it and downstream events enter the
+ * stage in front of it, since netty calls the next stage from within the
+ * current one a per thread stack is kept so that each stage is only
+ * charged for its own (exclusive) time
+ */
+public class PipelineProbe implements ChannelUpstreamHandler, ChannelDownstreamHandler {
+
+    private static final String PREFIX = "probe-";
+    private static final String TRANSPORT = "transport";
+    private static final int MAX_DEPTH = 32;
+
+    private static class Frames {
+        private final long[] exclusive = new long[MAX_DEPTH];
+        private final StageStats[] stages = new StageStats[MAX_DEPTH];
+        private int depth;
+        private long since;
+    }
+
+    private static final ThreadLocal<Frames> FRAMES = new ThreadLocal<Frames>() {
+        @Override protected Frames initialValue() {
+            return new Frames();
+        }
+    };
+
+    private final StageStats upstreamStage;
+    private volatile StageStats downstreamStage;
+
+    public PipelineProbe(final StageStats upstreamStage, final StageStats downstreamStage) {
+        this.upstreamStage = upstreamStage;
+        this.downstreamStage = downstreamStage;
+    }
+
+    /**
+     * puts a probe in front of every handler when enabled, does nothing
+     * otherwise so there is no cost at all when switched off
+     */
+    public static void addProbes(final ChannelPipeline pipeline, final String pipelineName) {
+        if(!RtmpConfig.PIPELINE_PROBES) {
+            return;
+        }
+        final List<String> names = pipeline.getNames();
+        String previous = TRANSPORT;
+        for(final String name : names) {
+            pipeline.addBefore(name, PREFIX + name, new PipelineProbe(
+                    StatsRegistry.getStage(pipelineName, name), StatsRegistry.getStage(pipelineName, previous)));
+            previous = name;
+        }
+    }
+
+    /**
+     * for handlers that take themselves out of the pipeline e.g. handshakers,
+     * the probe of the following stage then hands downstream events over to
+     * whatever came before the removed one
+     */
+    public static void removeProbe(final ChannelPipeline pipeline, final String name) {
+        final ChannelHandler removed = pipeline.get(PREFIX + name);
+        if(removed == null) {
+            return;
+        }
+        pipeline.remove(removed);
+        for(final Map.Entry<String, ChannelHandler> entry : pipeline.toMap().entrySet()) {
+            if(entry.getValue() instanceof PipelineProbe) {
+                final PipelineProbe probe = (PipelineProbe) entry.getValue();
+                if(probe.downstreamStage == ((PipelineProbe) removed).upstreamStage) {
+                    probe.downstreamStage = ((PipelineProbe) removed).downstreamStage;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void handleUpstream(final ChannelHandlerContext ctx, final ChannelEvent e) throws Exception {
+        final Frames frames = enter(upstreamStage);
+        try {
+            ctx.sendUpstream(e);
+        } finally {
+            exit(frames);
+        }
+    }
+
+    @Override
+    public void handleDownstream(final ChannelHandlerContext ctx, final ChannelEvent e) throws Exception {
+        final Frames frames = enter(downstreamStage);
+        try {
+            ctx.sendDownstream(e);
+        } finally {
+            exit(frames);
+        }
+    }
+
+    private static Frames enter(final StageStats stage) {
+        final Frames frames = FRAMES.get();
+        final long now = System.nanoTime();
+        if(frames.depth > 0 && frames.depth <= MAX_DEPTH) {
+            frames.exclusive[frames.depth - 1] += now - frames.since;
+        }
+        if(frames.depth < MAX_DEPTH) {
+            frames.exclusive[frames.depth] = 0;
+            frames.stages[frames.depth] = stage;
+        }
+        frames.depth++;
+        frames.since = now;
+        return frames;
+    }
+
+    private static void exit(final Frames frames) {
+        final long now = System.nanoTime();
+        frames.depth--;
+        if(frames.depth < MAX_DEPTH) {
+            final long exclusive = frames.exclusive[frames.depth] + now - frames.since;
+            frames.stages[frames.depth].record(exclusive);
+            frames.stages[frames.depth] = null;
+        }
+        frames.since = now;
+    }
+
+}
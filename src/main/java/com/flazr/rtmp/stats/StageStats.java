@@ -0,0 +1,84 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.flazr.rtmp.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StageStats implements StageStatsMXBean {
+
+    private final String pipeline;
+    private final String name;
+    private final AtomicLong totalTime = new AtomicLong();
+    private final LatencyHistogram times = new LatencyHistogram();
+
+    public StageStats(final String pipeline, final String name) {
+        this.pipeline = pipeline;
+        this.name = name;
+    }
+
+    public void record(final long nanos) {
+        totalTime.addAndGet(nanos);
+        times.record(nanos);
+    }
+
+    @Override
+    public String getPipeline() {
+        return pipeline;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getInvocations() {
+        return times.getCount();
+    }
+
+    @Override
+    public long getTotalTime() {
+        return totalTime.get();
+    }
+
+    @Override
+    public long getTimeP50() {
+        return times.getPercentile(50);
+    }
+
+    @Override
+    public long getTimeP99() {
+        return times.getPercentile(99);
+    }
+
+    @Override
+    public long getTimeMax() {
+        return times.getMax();
+    }
+
+    @Override
+    public String toString() {
+        return "[stage " + pipeline + "/" + name + " calls: " + getInvocations() + " total: "
+                + totalTime.get() / 1000000 + " ms p50: " + getTimeP50() + " p99: " + getTimeP99()
+                + " max: " + getTimeMax() + " ns]";
+    }
+
+}
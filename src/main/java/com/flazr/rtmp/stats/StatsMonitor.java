@@ -0,0 +1,73 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.flazr.rtmp.stats;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * pull endpoint for the stats, every connection on the local port gets
+ * the current report and is closed e.g. 'nc localhost 1933'
+ */
+public class StatsMonitor extends Thread {
+
+    private static final Logger logger = LoggerFactory.getLogger(StatsMonitor.class);
+    private ServerSocket socket;
+
+    public StatsMonitor(int port) {
+        setDaemon(true);
+        setName("StatsMonitor");
+        try {
+            socket = new ServerSocket(port, 10, InetAddress.getByName("127.0.0.1"));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void run() {
+        logger.info("stats monitor thread listening on: {}", socket);
+        while(!socket.isClosed()) {
+            try {
+                final Socket accept = socket.accept();
+                final OutputStream out = accept.getOutputStream();
+                out.write(StatsRegistry.getReport().getBytes("UTF-8"));
+                out.flush();
+                accept.close();
+            } catch (Exception e) {
+                logger.warn("stats request failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    public void close() {
+        try {
+            socket.close();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -0,0 +1,281 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.flazr.rtmp.stats;
+
+import com.flazr.util.NamedThreadFactory;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * all live stream and connection counters, registered as mxbeans under
+ * the 'com.flazr' domain and sampled once a second for the rates
+ */
+public class StatsRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(StatsRegistry.class);
+
+    private static final String DOMAIN = "com.flazr";
+
+    private static final Map<Integer, ConnectionStats> CONNECTIONS = new ConcurrentHashMap<Integer, ConnectionStats>();
+    private static final Map<String, StreamStats> STREAMS = new ConcurrentHashMap<String, StreamStats>();
+    private static final ConcurrentMap<String, StageStats> STAGES = new ConcurrentHashMap<String, StageStats>();
+
+    // totals of connections already closed, so that the overall counters never go backwards
+    private static final AtomicLong CLOSED_BYTES_IN = new AtomicLong();
+    private static final AtomicLong CLOSED_BYTES_OUT = new AtomicLong();
+    private static final AtomicLong CONNECTION_COUNT = new AtomicLong();
+
+    private static final LatencyHistogram MEDIA_READS = new LatencyHistogram();
+    private static final AtomicLong ZERO_COPY_BYTES = new AtomicLong();
+    private static final AtomicLong ZERO_COPY_FALLBACKS = new AtomicLong();
+
+    private static final ScheduledExecutorService SAMPLER =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("stats-sampler"));
+
+    static {
+        SAMPLER.scheduleAtFixedRate(new Runnable() {
+            @Override public void run() {
+                final long now = System.currentTimeMillis();
+                for(final StreamStats stats : STREAMS.values()) {
+                    stats.sample(now);
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private StatsRegistry() {}
+
+    public static void register(final ConnectionStats stats) {
+        CONNECTIONS.put(stats.getId(), stats);
+        CONNECTION_COUNT.incrementAndGet();
+        registerBean(stats, connectionName(stats));
+    }
+
+    public static void unregister(final ConnectionStats stats) {
+        if(CONNECTIONS.remove(stats.getId()) != null) {
+            CLOSED_BYTES_IN.addAndGet(stats.getBytesIn());
+            CLOSED_BYTES_OUT.addAndGet(stats.getBytesOut());
+            unregisterBean(connectionName(stats));
+        }
+    }
+
+    public static void register(final StreamStats stats) {
+        STREAMS.put(key(stats), stats);
+        registerBean(stats, streamName(stats));
+    }
+
+    public static void unregister(final StreamStats stats) {
+        if(STREAMS.remove(key(stats)) != null) {
+            unregisterBean(streamName(stats));
+        }
+    }
+
+    /**
+     * created and registered on first use, shared by all pipelines of the same kind
+     */
+    public static StageStats getStage(final String pipeline, final String name) {
+        final String key = pipeline + "/" + name;
+        StageStats stats = STAGES.get(key);
+        if(stats == null) {
+            final StageStats created = new StageStats(pipeline, name);
+            stats = STAGES.putIfAbsent(key, created);
+            if(stats == null) {
+                stats = created;
+                registerBean(stats, objectName("type=PipelineStage,pipeline=" + ObjectName.quote(pipeline)
+                        + ",name=" + ObjectName.quote(name)));
+            }
+        }
+        return stats;
+    }
+
+    public static Collection<StageStats> getStages() {
+        return STAGES.values();
+    }
+
+    public static ConnectionStats getConnection(final int id) {
+        return CONNECTIONS.get(id);
+    }
+
+    public static Collection<ConnectionStats> getConnections() {
+        return CONNECTIONS.values();
+    }
+
+    public static Collection<StreamStats> getStreams() {
+        return STREAMS.values();
+    }
+
+    /**
+     * total bytes received over all connections since startup
+     */
+    public static long getTotalBytesIn() {
+        long total = CLOSED_BYTES_IN.get();
+        for(final ConnectionStats stats : CONNECTIONS.values()) {
+            total += stats.getBytesIn();
+        }
+        return total;
+    }
+
+    /**
+     * total bytes written over all connections since startup
+     */
+    public static long getTotalBytesOut() {
+        long total = CLOSED_BYTES_OUT.get();
+        for(final ConnectionStats stats : CONNECTIONS.values()) {
+            total += stats.getBytesOut();
+        }
+        return total;
+    }
+
+    /**
+     * number of connections accepted since startup
+     */
+    public static long getTotalConnections() {
+        return CONNECTION_COUNT.get();
+    }
+
+    /**
+     * time taken by every message read from a file for playback
+     */
+    public static LatencyHistogram getMediaReads() {
+        return MEDIA_READS;
+    }
+
+    public static void addZeroCopyBytes(final int bytes) {
+        ZERO_COPY_BYTES.addAndGet(bytes);
+    }
+
+    public static void addZeroCopyFallback() {
+        ZERO_COPY_FALLBACKS.incrementAndGet();
+    }
+
+    /**
+     * media bytes handed to the socket as file regions
+     */
+    public static long getZeroCopyBytes() {
+        return ZERO_COPY_BYTES.get();
+    }
+
+    /**
+     * file aggregates that had to be copied, rtmpe or small chunk size
+     */
+    public static long getZeroCopyFallbacks() {
+        return ZERO_COPY_FALLBACKS.get();
+    }
+
+    /**
+     * cpu time of the whole process in nanoseconds, -1 if the jvm does not
+     * tell
+     */
+    public static long getProcessCpuTime() {
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if(os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    /**
+     * process cpu seconds spent per gigabit written since startup, -1 if
+     * unknown or nothing written yet
+     */
+    public static double getCpuSecondsPerGbit() {
+        final long cpu = getProcessCpuTime();
+        final long bytesOut = getTotalBytesOut();
+        if(cpu < 0 || bytesOut == 0) {
+            return -1;
+        }
+        return cpu / 1000000000.0 / (bytesOut * 8 / 1000000000.0);
+    }
+
+    /**
+     * plain text, one line per stream and connection
+     */
+    public static String getReport() {
+        final StringBuilder sb = new StringBuilder();
+        for(final StreamStats stats : STREAMS.values()) {
+            sb.append(stats).append('\n');
+        }
+        for(final ConnectionStats stats : CONNECTIONS.values()) {
+            sb.append(stats).append('\n');
+        }
+        for(final StageStats stats : STAGES.values()) {
+            sb.append(stats).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String key(final StreamStats stats) {
+        return stats.getApplication() + "/" + stats.getName();
+    }
+
+    private static ObjectName connectionName(final ConnectionStats stats) {
+        return objectName("type=Connection,id=" + stats.getId());
+    }
+
+    private static ObjectName streamName(final StreamStats stats) {
+        return objectName("type=Stream,application=" + ObjectName.quote(stats.getApplication())
+                + ",name=" + ObjectName.quote(stats.getName()));
+    }
+
+    private static ObjectName objectName(final String properties) {
+        try {
+            return new ObjectName(DOMAIN + ":" + properties);
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void registerBean(final Object bean, final ObjectName name) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if(server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(bean, name);
+        } catch(Exception e) {
+            logger.warn("failed to register mxbean {}: {}", name, e.getMessage());
+        }
+    }
+
+    private static void unregisterBean(final ObjectName name) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if(server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch(Exception e) {
+            logger.warn("failed to unregister mxbean {}: {}", name, e.getMessage());
+        }
+    }
+
+}
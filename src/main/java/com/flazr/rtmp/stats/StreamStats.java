@@ -0,0 +1,197 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.flazr.rtmp.stats;
+
+import com.flazr.rtmp.RtmpHeader;
+import com.flazr.rtmp.RtmpMessage;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.group.ChannelGroup;
+
+/**
+ * updated by the publisher thread for every message broadcast, rates are
+ * derived from the counters by the registry once a second
+ */
+public class StreamStats implements StreamStatsMXBean {
+
+    private final String application;
+    private final String name;
+    private final ChannelGroup subscribers;
+
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong audioFrames = new AtomicLong();
+    private final AtomicLong videoFrames = new AtomicLong();
+    private volatile int lastKeyframeTime = -1;
+    private volatile int keyframeInterval;
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    // last sample, only touched by the sampler
+    private long sampleTime;
+    private long sampleBytesIn;
+    private long sampleBytesOut;
+    private long sampleAudioFrames;
+    private long sampleVideoFrames;
+
+    private volatile long ingestBitrate;
+    private volatile long outputBitrate;
+    private volatile int audioFps;
+    private volatile int videoFps;
+
+    public StreamStats(final String application, final String name, final ChannelGroup subscribers) {
+        this.application = application;
+        this.name = name;
+        this.subscribers = subscribers;
+        sampleTime = System.currentTimeMillis();
+    }
+
+    public void onMessage(final RtmpMessage message, final int subscriberCount) {
+        final RtmpHeader header = message.getHeader();
+        final int size = header.getSize();
+        bytesIn.addAndGet(size);
+        bytesOut.addAndGet((long) size * subscriberCount);
+        if(header.isAudio()) {
+            audioFrames.incrementAndGet();
+        } else if(header.isVideo()) {
+            videoFrames.incrementAndGet();
+            final ChannelBuffer data = message.encode();
+            if(data.readableBytes() > 1 && (data.getByte(data.readerIndex()) & 0xF0) == 0x10
+                    && data.getByte(data.readerIndex() + 1) != 0) { // skip avc sequence header
+                final int time = header.getTime();
+                if(lastKeyframeTime >= 0 && time > lastKeyframeTime) {
+                    keyframeInterval = time - lastKeyframeTime;
+                }
+                lastKeyframeTime = time;
+            }
+        }
+    }
+
+    protected synchronized void sample(final long now) {
+        final long elapsed = now - sampleTime;
+        if(elapsed <= 0) {
+            return;
+        }
+        final long in = bytesIn.get();
+        final long out = bytesOut.get();
+        final long audio = audioFrames.get();
+        final long video = videoFrames.get();
+        ingestBitrate = (in - sampleBytesIn) * 8000 / elapsed;
+        outputBitrate = (out - sampleBytesOut) * 8000 / elapsed;
+        audioFps = (int) ((audio - sampleAudioFrames) * 1000 / elapsed);
+        videoFps = (int) ((video - sampleVideoFrames) * 1000 / elapsed);
+        sampleTime = now;
+        sampleBytesIn = in;
+        sampleBytesOut = out;
+        sampleAudioFrames = audio;
+        sampleVideoFrames = video;
+    }
+
+    @Override
+    public String getApplication() {
+        return application;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    @Override
+    public long getIngestBitrate() {
+        return ingestBitrate;
+    }
+
+    @Override
+    public long getOutputBitrate() {
+        return outputBitrate;
+    }
+
+    @Override
+    public int getAudioFps() {
+        return audioFps;
+    }
+
+    @Override
+    public int getVideoFps() {
+        return videoFps;
+    }
+
+    @Override
+    public int getKeyframeInterval() {
+        return keyframeInterval;
+    }
+
+    @Override
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    @Override
+    public long getMaxSubscriberBacklog() {
+        long max = 0;
+        for(final Channel channel : subscribers) {
+            final ConnectionStats stats = StatsRegistry.getConnection(channel.getId());
+            if(stats != null) {
+                max = Math.max(max, stats.getBacklog());
+            }
+        }
+        return max;
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public long getLatencyP50() {
+        return latency.getPercentile(50);
+    }
+
+    @Override
+    public long getLatencyP99() {
+        return latency.getPercentile(99);
+    }
+
+    @Override
+    public long getLatencyMax() {
+        return latency.getMax();
+    }
+
+    @Override
+    public String toString() {
+        return "[stream " + application + "/" + name + " in: " + ingestBitrate / 1000 + " kbps out: "
+                + outputBitrate / 1000 + " kbps fps: " + videoFps + "/" + audioFps + " keyframe: "
+                + keyframeInterval + " ms subscribers: " + getSubscriberCount() + " max backlog: "
+                + getMaxSubscriberBacklog() + (latency.getCount() > 0 ? " latency " + latency : "") + "]";
+    }
+
+}
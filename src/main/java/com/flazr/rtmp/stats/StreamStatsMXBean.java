@@ -0,0 +1,63 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.flazr.rtmp.stats;
+
+import javax.management.MXBean;
+
+/**
+ * counters for a live stream, rates are sampled once a second
+ */
+@MXBean
+public interface StreamStatsMXBean {
+
+    public String getApplication();
+
+    public String getName();
+
+    public long getBytesIn();
+
+    public long getBytesOut();
+
+    public long getIngestBitrate();
+
+    public long getOutputBitrate();
+
+    public int getAudioFps();
+
+    public int getVideoFps();
+
+    public int getKeyframeInterval();
+
+    public int getSubscriberCount();
+
+    public long getMaxSubscriberBacklog();
+
+    /**
+     * microseconds from receive to socket over all subscribers, only when
+     * latency tracing is on
+     */
+    public long getLatencyP50();
+
+    public long getLatencyP99();
+
+    public long getLatencyMax();
+
+}
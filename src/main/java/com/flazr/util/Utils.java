@@ -189,10 +189,19 @@ public class Utils {
 		return result;
     }
 
+    private static final ThreadLocal<Mac> HMAC_SHA256 = new ThreadLocal<Mac>() {
+        @Override protected Mac initialValue() {
+            try {
+                return Mac.getInstance("HmacSHA256");
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
     public static byte[] sha256(final byte[] message, final byte[] key) {
-        final Mac mac;
+        final Mac mac = HMAC_SHA256.get();
         try {
-            mac = Mac.getInstance("HmacSHA256");
             mac.init(new SecretKeySpec(key, "HmacSHA256"));
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -0,0 +1,88 @@
+package com.flazr.io;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ReadOnlyBufferException;
+import java.util.Random;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+public class BlockCacheTest {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    private static File write(final byte[] bytes) throws Exception {
+        final File dir = new File("../temp/block-cache-test");
+        dir.mkdirs();
+        final File file = new File(dir, "media.bin");
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write(bytes);
+        out.close();
+        return file;
+    }
+
+    @Test
+    public void testSharedBlocks() throws Exception {
+        final byte[] bytes = new byte[10 * BLOCK_SIZE + 100];
+        new Random().nextBytes(bytes);
+        final File file = write(bytes);
+        final BlockCache cache = new BlockCache(BLOCK_SIZE, 4 * BLOCK_SIZE);
+
+        final CachedFileReader first = new CachedFileReader(cache, file);
+        assertEquals(bytes.length, first.size());
+        first.position(BLOCK_SIZE - 10);
+        final ChannelBuffer spanning = first.read(2 * BLOCK_SIZE + 20); // ends of two blocks and two whole ones
+        assertEquals(ChannelBuffers.wrappedBuffer(bytes, BLOCK_SIZE - 10, 2 * BLOCK_SIZE + 20), spanning);
+        assertEquals(3 * BLOCK_SIZE + 10, first.position());
+        assertEquals(0, cache.getHits());
+        assertEquals(4, cache.getMisses());
+
+        final CachedFileReader second = new CachedFileReader(cache, file);
+        second.position(BLOCK_SIZE + 5);
+        assertEquals(ChannelBuffers.wrappedBuffer(bytes, BLOCK_SIZE + 5, 100), second.read(100));
+        assertEquals(1, cache.getHits());
+        try {
+            spanning.setByte(0, 1);
+            fail("cached blocks must be read only");
+        } catch(ReadOnlyBufferException e) {
+            // expected
+        }
+
+        second.position(bytes.length - 104);
+        assertEquals(ChannelBuffers.wrappedBuffer(bytes, bytes.length - 104, 100), second.read(100));
+        assertEquals(bytes[bytes.length - 4] << 24 >>> 24, second.readInt() >>> 24);
+        for(long position = 0; position < bytes.length; position += BLOCK_SIZE) {
+            first.position(position);
+            first.read(1);
+        }
+        assertTrue(cache.getBytes() <= 4 * BLOCK_SIZE);
+        assertTrue(cache.getEvictions() > 0);
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void testEvictedBlocksRecycledOnceUnreferenced() throws Exception {
+        final byte[] bytes = new byte[10 * BLOCK_SIZE + 100];
+        new Random().nextBytes(bytes);
+        final File file = write(bytes);
+        final BlockCache cache = new BlockCache(BLOCK_SIZE, 2 * BLOCK_SIZE);
+        final CachedFileReader reader = new CachedFileReader(cache, file);
+        final ChannelBuffer held = reader.read(100); // block 0 stays referenced
+        for(int round = 0; round < 20 && cache.getRecycled() == 0; round++) {
+            for(long position = BLOCK_SIZE; position < bytes.length; position += BLOCK_SIZE) {
+                reader.position(position);
+                assertEquals(ChannelBuffers.wrappedBuffer(bytes, (int) position, 50), reader.read(50));
+            }
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertTrue(cache.getRecycled() > 0);
+        assertEquals(ChannelBuffers.wrappedBuffer(bytes, 0, 100), held);
+        reader.close();
+    }
+
+}
@@ -0,0 +1,151 @@
+package com.flazr.io;
+
+import static org.junit.Assert.*;
+
+import com.flazr.io.flv.FlvAtom;
+import com.flazr.io.flv.FlvReader;
+import com.flazr.io.flv.FlvWriter;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.message.MessageType;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+public class HttpBufferReaderTest {
+
+    private static final String ROOT = "../temp/http-buffer-reader-test";
+    private static final int BLOCK_SIZE = 16 * 1024;
+
+    /**
+     * stands in for the origin, serves one file and honours single ranges
+     */
+    private static class Origin implements HttpHandler {
+
+        private final byte[] bytes;
+        private final AtomicLong served = new AtomicLong();
+
+        Origin(final byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            final String range = exchange.getRequestHeaders().getFirst("Range");
+            final String[] parts = range.substring("bytes=".length()).split("-");
+            final int start = Integer.parseInt(parts[0]);
+            final int end = Math.min(Integer.parseInt(parts[1]), bytes.length - 1);
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + bytes.length);
+            exchange.getResponseHeaders().add("ETag", "\"v1\"");
+            exchange.sendResponseHeaders(206, end - start + 1);
+            final OutputStream out = exchange.getResponseBody();
+            out.write(bytes, start, end - start + 1);
+            out.close();
+            served.addAndGet(end - start + 1);
+        }
+
+    }
+
+    private static HttpServer start(final Origin origin) throws Exception {
+        final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", origin);
+        server.start();
+        return server;
+    }
+
+    private static String url(final HttpServer server, final String file) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + file;
+    }
+
+    @Test
+    public void testRangesAndDiskCache() throws Exception {
+        final byte[] bytes = new byte[20 * BLOCK_SIZE + 10];
+        new Random().nextBytes(bytes);
+        final Origin origin = new Origin(bytes);
+        final HttpServer server = start(origin);
+        final DiskBlockCache cache = new DiskBlockCache(new File(ROOT + "/ranges-" + System.nanoTime()), 8 * BLOCK_SIZE);
+
+        final HttpBufferReader reader = new HttpBufferReader(url(server, "clip.bin"), cache, BLOCK_SIZE, 2);
+        assertEquals(bytes.length, reader.size());
+        reader.position(BLOCK_SIZE - 2);
+        final ChannelBuffer spanning = reader.read(4);
+        assertEquals(ChannelBuffers.wrappedBuffer(bytes, BLOCK_SIZE - 2, 4), spanning);
+        assertTrue("only the blocks around the read: " + origin.served, origin.served.get() <= 5 * BLOCK_SIZE);
+
+        reader.position(bytes.length - 6);
+        assertEquals(ChannelBuffers.wrappedBuffer(bytes, bytes.length - 6, 6), reader.read(6));
+
+        long servedBefore;
+        do { // until the read ahead has settled
+            servedBefore = origin.served.get();
+            Thread.sleep(100);
+        } while(origin.served.get() != servedBefore);
+        final HttpBufferReader second = new HttpBufferReader(url(server, "clip.bin"), cache, BLOCK_SIZE, 0);
+        second.position(BLOCK_SIZE);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, BLOCK_SIZE, BLOCK_SIZE + 100), second.readBytes(100)));
+        assertEquals(servedBefore + 1, origin.served.get()); // just the size probe
+        assertTrue(cache.getHits() > 0);
+
+        second.position(0);
+        assertTrue(Arrays.equals(bytes, second.readBytes(bytes.length)));
+        assertTrue(cache.getBytes() <= 8 * BLOCK_SIZE);
+        assertTrue(cache.getEvictions() > 0);
+        reader.close();
+        second.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void testFlvPlaybackStartsBeforeDownload() throws Exception {
+        new File(ROOT).mkdirs();
+        final String path = ROOT + "/clip.flv";
+        final FlvWriter writer = new FlvWriter(path);
+        for(int i = 0; i < 200; i++) {
+            final ChannelBuffer data = ChannelBuffers.buffer(2000);
+            data.writeByte(i % 25 == 0 ? 0x12 : 0x22);
+            data.writerIndex(2000);
+            writer.write(new FlvAtom(MessageType.VIDEO, i * 40, data));
+        }
+        writer.close();
+        final File file = new File(path);
+        final byte[] bytes = new byte[(int) file.length()];
+        final FileInputStream in = new FileInputStream(file);
+        int offset = 0;
+        while(offset < bytes.length) {
+            offset += in.read(bytes, offset, bytes.length - offset);
+        }
+        in.close();
+
+        final Origin origin = new Origin(bytes);
+        final HttpServer server = start(origin);
+        final DiskBlockCache cache = new DiskBlockCache(new File(ROOT + "/flv-" + System.nanoTime()), 100 * BLOCK_SIZE);
+        final FlvReader remote = new FlvReader(new HttpBufferReader(url(server, "clip.flv"), cache, BLOCK_SIZE, 1), null);
+        assertTrue("header and first frames only: " + origin.served, origin.served.get() < bytes.length / 2);
+        final FlvReader local = new FlvReader(path);
+        assertEquals(local.getMetadata().encode(), remote.getMetadata().encode());
+        remote.seek(4000);
+        local.seek(4000);
+        while(local.hasNext()) {
+            assertTrue(remote.hasNext());
+            final RtmpMessage expected = local.next();
+            final RtmpMessage actual = remote.next();
+            assertEquals(expected.getHeader().getTime(), actual.getHeader().getTime());
+            assertEquals(expected.encode(), actual.encode());
+        }
+        assertFalse(remote.hasNext());
+        local.close();
+        remote.close();
+        server.stop(0);
+    }
+
+}
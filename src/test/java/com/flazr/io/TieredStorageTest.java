@@ -0,0 +1,118 @@
+package com.flazr.io;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class TieredStorageTest {
+
+    private static final String ROOT = "../temp/tiered-storage-test";
+    private static final int FILE_SIZE = 64 * 1024;
+
+    /**
+     * stands in for slow storage, 8k at a time with a pause before each
+     */
+    private static class SlowStorage extends TieredStorage {
+
+        SlowStorage(final File source, final File fast, final long maxBytes) {
+            super(source, fast, maxBytes, 2);
+        }
+
+        @Override
+        protected InputStream openSource(final File source) throws Exception {
+            return new FilterInputStream(new FileInputStream(source)) {
+                @Override public int read(final byte[] b, final int off, final int len) throws IOException {
+                    try {
+                        Thread.sleep(20);
+                    } catch(InterruptedException e) {
+                        throw new IOException(e.getMessage());
+                    }
+                    return super.read(b, off, Math.min(len, 8192));
+                }
+            };
+        }
+
+    }
+
+    private static File write(final File dir, final String name, final int size) throws Exception {
+        dir.mkdirs();
+        final byte[] bytes = new byte[size];
+        new Random().nextBytes(bytes);
+        final File file = new File(dir, name);
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write(bytes);
+        out.close();
+        return file;
+    }
+
+    private static byte[] read(final String path) throws Exception {
+        final File file = new File(path);
+        final byte[] bytes = new byte[(int) file.length()];
+        final FileInputStream in = new FileInputStream(file);
+        int offset = 0;
+        while(offset < bytes.length) {
+            offset += in.read(bytes, offset, bytes.length - offset);
+        }
+        in.close();
+        return bytes;
+    }
+
+    private static void promote(final TieredStorage tiers, final String path) throws Exception {
+        assertEquals(path, tiers.resolve(path));
+        assertEquals(path, tiers.resolve(path)); // second open starts the copy
+        assertEquals(path, tiers.resolve(path)); // still copying
+        final long end = System.currentTimeMillis() + 10000;
+        while(!tiers.isPromoted(path) && System.currentTimeMillis() < end) {
+            Thread.sleep(20);
+        }
+        assertTrue(tiers.isPromoted(path));
+    }
+
+    @Test
+    public void testPromoteAndEvict() throws Exception {
+        final File home = new File(ROOT + "/home/apps/vod");
+        final File fastRoot = new File(ROOT + "/fast");
+        for(final File old : new File[] {new File(fastRoot, "apps/vod/a.flv"), new File(fastRoot, "apps/vod/b.flv"),
+                new File(fastRoot, "apps/vod/c.flv")}) {
+            old.delete();
+        }
+        final String a = write(home, "a.flv", FILE_SIZE).getPath();
+        final String b = write(home, "b.flv", FILE_SIZE).getPath();
+        final String c = write(home, "c.flv", FILE_SIZE).getPath();
+        final TieredStorage tiers = new SlowStorage(new File(ROOT + "/home"), fastRoot, FILE_SIZE * 5 / 2);
+
+        promote(tiers, a);
+        final String fastA = tiers.resolve(a);
+        assertEquals(new File(fastRoot, "apps/vod/a.flv").getPath(), fastA);
+        assertTrue(Arrays.equals(read(a), read(fastA)));
+        assertEquals(1, tiers.getHits());
+
+        promote(tiers, b);
+        assertFalse(tiers.resolve(a).equals(a)); // a is now more recent than b
+        promote(tiers, c);
+        assertFalse(tiers.isPromoted(b));
+        assertFalse(new File(fastRoot, "apps/vod/b.flv").exists());
+        assertTrue(tiers.isPromoted(a));
+        assertEquals(2 * FILE_SIZE, tiers.getBytes());
+        assertEquals(1, tiers.getEvictions());
+
+        write(home, "a.flv", FILE_SIZE + 1); // original replaced
+        assertEquals(a, tiers.resolve(a));
+        assertFalse(tiers.isPromoted(a));
+
+        final TieredStorage restarted = new SlowStorage(new File(ROOT + "/home"), fastRoot, FILE_SIZE * 5 / 2);
+        assertTrue(restarted.isPromoted(c));
+        assertFalse(restarted.resolve(c).equals(c));
+        tiers.shutdown();
+        restarted.shutdown();
+    }
+
+}
@@ -0,0 +1,154 @@
+package com.flazr.io.f4v;
+
+import static org.junit.Assert.*;
+
+import com.flazr.io.FileChannelReader;
+import com.flazr.io.f4v.box.STCO;
+import com.flazr.io.f4v.box.STSZ;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class BoxTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(BoxTest.class);
+
+    private static final String FILE_PATH = "../temp";
+    private static final String FILE_NAME = FILE_PATH + "/test-large.mp4";
+
+    private static final long MDAT_SIZE = 10L * 1024 * 1024 * 1024;
+    private static final int SAMPLE_COUNT = 1000000;
+    private static final int CHUNK_COUNT = 100000;
+
+    private static ChannelBuffer box(final String type, final ChannelBuffer payload) {
+        final ChannelBuffer out = ChannelBuffers.buffer(8 + payload.readableBytes());
+        out.writeInt(8 + payload.readableBytes());
+        out.writeBytes(type.getBytes());
+        out.writeBytes(payload);
+        return out;
+    }
+
+    private static ChannelBuffer ftyp() {
+        final ChannelBuffer payload = ChannelBuffers.dynamicBuffer();
+        payload.writeBytes("isom".getBytes());
+        payload.writeInt(0);
+        payload.writeBytes("mp42".getBytes());
+        return box("ftyp", payload);
+    }
+
+    private static ChannelBuffer moov() {
+        final ChannelBuffer stsz = ChannelBuffers.buffer(12 + SAMPLE_COUNT * 4);
+        stsz.writeInt(0);
+        stsz.writeInt(0);
+        stsz.writeInt(SAMPLE_COUNT);
+        for(int i = 0; i < SAMPLE_COUNT; i++) {
+            stsz.writeInt(1000 + i % 100);
+        }
+        final ChannelBuffer co64 = ChannelBuffers.buffer(8 + CHUNK_COUNT * 8);
+        co64.writeInt(0);
+        co64.writeInt(CHUNK_COUNT);
+        for(int i = 0; i < CHUNK_COUNT; i++) {
+            co64.writeLong(i * (MDAT_SIZE / CHUNK_COUNT));
+        }
+        final ChannelBuffer stbl = box("stbl", ChannelBuffers.wrappedBuffer(box("stsz", stsz), box("co64", co64)));
+        final ChannelBuffer minf = box("minf", stbl);
+        final ChannelBuffer mdia = box("mdia", minf);
+        final ChannelBuffer trak = box("trak", mdia);
+        return box("moov", trak);
+    }
+
+    private static void writeFile() throws Exception {
+        File temp = new File(FILE_PATH);
+        if(!temp.exists()) {
+            temp.mkdir();
+        }
+        final RandomAccessFile raf = new RandomAccessFile(FILE_NAME, "rw");
+        raf.setLength(0);
+        raf.write(ftyp().array());
+        final ChannelBuffer mdatHeader = ChannelBuffers.buffer(16);
+        mdatHeader.writeInt(1); // extended 64 bit size follows
+        mdatHeader.writeBytes("mdat".getBytes());
+        mdatHeader.writeLong(16 + MDAT_SIZE);
+        raf.write(mdatHeader.array());
+        raf.setLength(raf.getFilePointer() + MDAT_SIZE); // sparse, nothing written
+        raf.seek(raf.length());
+        raf.write(moov().array());
+        raf.close();
+    }
+
+    private static long peakHeapUsed() {
+        long peak = 0;
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if(pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static void resetPeakHeapUsage() {
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+    }
+
+    @Test
+    public void testLargeFileWithMoovAtEnd() throws Exception {
+        writeFile();
+        resetPeakHeapUsage();
+        final long startTime = System.currentTimeMillis();
+        final FileChannelReader in = new FileChannelReader(FILE_NAME);
+        Box moov = null;
+        int count = 0;
+        while(in.position() < in.size()) {
+            Box box = Box.readTopLevel(in);
+            count++;
+            if(box.getType() == BoxType.MOOV) {
+                moov = box;
+            }
+        }
+        in.close();
+        logger.info("parsed {} top level boxes in {} ms, peak heap used: {}",
+                new Object[]{count, System.currentTimeMillis() - startTime, peakHeapUsed()});
+        new File(FILE_NAME).delete();
+        assertEquals(3, count);
+        assertNotNull(moov);
+        Box stbl = moov.getChildren().get(0).getChildren().get(0).getChildren().get(0).getChildren().get(0);
+        assertEquals(BoxType.STBL, stbl.getType());
+        STSZ stsz = (STSZ) stbl.getChildren().get(0).getPayload();
+        assertEquals(SAMPLE_COUNT, stsz.getSampleCount());
+        assertEquals(1099, stsz.getSampleSize(SAMPLE_COUNT - 1));
+        STCO co64 = (STCO) stbl.getChildren().get(1).getPayload();
+        assertEquals(CHUNK_COUNT, co64.getOffsets().length);
+        assertEquals((CHUNK_COUNT - 1) * (MDAT_SIZE / CHUNK_COUNT), co64.getOffsets()[CHUNK_COUNT - 1]);
+    }
+
+    @Test
+    public void testConstantSampleSizeIsNotExpanded() throws Exception {
+        final ChannelBuffer stsz = ChannelBuffers.buffer(12);
+        stsz.writeInt(0);
+        stsz.writeInt(1000); // constant size
+        stsz.writeInt(0xFFFFFFFF); // would be a 16 GB table
+        final String fileName = FILE_PATH + "/test-stsz.mp4";
+        new File(FILE_PATH).mkdirs();
+        final RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+        raf.setLength(0);
+        raf.write(box("stsz", stsz).array());
+        raf.close();
+        final FileChannelReader in = new FileChannelReader(fileName);
+        final Box box = new Box(in, in.size());
+        in.close();
+        new File(fileName).delete();
+        final STSZ payload = (STSZ) box.getPayload();
+        assertEquals(Integer.MAX_VALUE, payload.getSampleCount());
+        assertEquals(1000, payload.getSampleSize(Integer.MAX_VALUE - 1));
+    }
+
+}
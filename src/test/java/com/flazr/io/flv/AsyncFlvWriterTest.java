@@ -0,0 +1,121 @@
+package com.flazr.io.flv;
+
+import static org.junit.Assert.*;
+
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.message.Audio;
+import com.flazr.rtmp.message.Video;
+import com.flazr.util.Utils;
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+public class AsyncFlvWriterTest {
+
+    private static final String FILE_PATH = "../temp";
+    private static final String FILE_NAME = FILE_PATH + "/test-async.flv";
+
+    private static final String KEYFRAME = "120000000000000000000000";
+    private static final String INTERFRAME = "220000000000000000000000";
+
+    private static RtmpMessage video(final int time, final boolean keyframe) {
+        return new Video(time, Utils.fromHex(keyframe ? KEYFRAME : INTERFRAME), 12);
+    }
+
+    private static void mkdir() {
+        File temp = new File(FILE_PATH);
+        if(!temp.exists()) {
+            temp.mkdir();
+        }
+    }
+
+    @Test
+    public void testAllMessagesWritten() {
+        mkdir();
+        AsyncFlvWriter writer = new AsyncFlvWriter(new FlvWriter(FILE_NAME), "test", 256, 100);
+        for(int i = 0; i < 50; i++) {
+            writer.write(video(i * 40, i == 0));
+            writer.write(new Audio(Utils.fromHex("00000000")));
+        }
+        writer.close();
+        assertTrue(writer.awaitClose(5000));
+        assertEquals(100, writer.getWrittenCount());
+        assertEquals(0, writer.getDroppedCount());
+        FlvReader reader = new FlvReader(FILE_NAME);
+        int count = 0;
+        while(reader.hasNext()) {
+            reader.next();
+            count++;
+        }
+        reader.close();
+        assertEquals(100, count);
+    }
+
+    @Test
+    public void testDropsUntilKeyframeWhenFull() throws Exception {
+        mkdir();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        FlvWriter slow = new FlvWriter(FILE_NAME) {
+            @Override
+            public void write(RtmpMessage message) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch(InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                super.write(message);
+            }
+        };
+        AsyncFlvWriter writer = new AsyncFlvWriter(slow, "test", 2, 0);
+        writer.write(video(0, true));
+        blocked.await(); // writer thread now holds the first message
+        writer.write(video(40, false));
+        writer.write(video(80, false));
+        writer.write(video(120, false)); // queue full, dropped
+        writer.write(video(160, false)); // dropped, waiting for keyframe
+        assertEquals(2, writer.getDroppedCount());
+        release.countDown();
+        while(writer.getQueueDepth() > 0) {
+            Thread.sleep(10);
+        }
+        writer.write(video(200, true));
+        writer.close();
+        assertTrue(writer.awaitClose(5000));
+        assertEquals(4, writer.getWrittenCount());
+    }
+
+    @Test
+    public void testCloseDoesNotBlockWhenFull() throws Exception {
+        mkdir();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        FlvWriter slow = new FlvWriter(FILE_NAME) {
+            @Override
+            public void write(RtmpMessage message) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch(InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                super.write(message);
+            }
+        };
+        AsyncFlvWriter writer = new AsyncFlvWriter(slow, "test", 2, 0);
+        writer.write(video(0, true));
+        blocked.await();
+        writer.write(video(40, false));
+        writer.write(video(80, false)); // queue now full
+        assertTrue(AsyncFlvWriter.getOpenWriters().contains(writer));
+        writer.close(); // must return although the close marker does not fit
+        writer.write(video(120, true)); // rejected after close
+        assertEquals(1, writer.getDroppedCount());
+        release.countDown();
+        assertTrue(writer.awaitClose(5000));
+        assertEquals(3, writer.getWrittenCount());
+        assertFalse(AsyncFlvWriter.getOpenWriters().contains(writer));
+    }
+
+}
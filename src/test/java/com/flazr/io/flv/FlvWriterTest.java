@@ -0,0 +1,161 @@
+package com.flazr.io.flv;
+
+import static org.junit.Assert.*;
+
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.message.Audio;
+import com.flazr.rtmp.message.Metadata;
+import com.flazr.rtmp.message.MetadataAmf0;
+import com.flazr.rtmp.message.Video;
+import com.flazr.util.Utils;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import org.junit.Test;
+
+import static com.flazr.rtmp.message.AbstractMessage.*;
+
+public class FlvWriterTest {
+
+    private static final String FILE_PATH = "../temp";
+    private static final String FILE_NAME = FILE_PATH + "/test-finalize.flv";
+
+    private static final String KEYFRAME = "120000000000000000000000";
+    private static final String INTERFRAME = "220000000000000000000000";
+
+    @Test
+    public void testKeyframesWrittenOnClose() {
+        File temp = new File(FILE_PATH);
+        if(!temp.exists()) {
+            temp.mkdir();
+        }
+        FlvWriter writer = new FlvWriter(FILE_NAME);
+        writer.write(new MetadataAmf0("@setDataFrame", "onMetaData", map(pair("videocodecid", 2.0))));
+        for(int i = 0; i < 100; i++) {
+            final int time = i * 100;
+            writer.write(new Video(time, Utils.fromHex(i % 10 == 0 ? KEYFRAME : INTERFRAME), 12));
+            final Audio audio = new Audio(Utils.fromHex("00000000"));
+            audio.getHeader().setTime(time);
+            writer.write(audio);
+        }
+        writer.close();
+        FlvReader reader = new FlvReader(FILE_NAME);
+        Metadata metadata = reader.getMetadata();
+        assertEquals("onMetaData", metadata.getName());
+        assertEquals(9.9, metadata.getDouble("duration"), 0.001);
+        assertEquals(new File(FILE_NAME).length(), metadata.getDouble("filesize").longValue());
+        assertEquals(2.0, metadata.getDouble("videocodecid"), 0.001);
+        Map<?, ?> keyframes = (Map<?, ?>) metadata.getMap(0).get("keyframes");
+        assertEquals(10, ((Object[]) keyframes.get("times")).length);
+        assertEquals(5000, reader.seek(5500));
+        RtmpMessage message = reader.next();
+        assertTrue(message.getHeader().isVideo());
+        assertEquals(5000, message.getHeader().getTime());
+        reader.close();
+    }
+
+    private static void writeFrames(final FlvWriter writer, final int count) {
+        writeFrames(writer, count, 0);
+    }
+
+    private static void writeFrames(final FlvWriter writer, final int count, final int startTime) {
+        for(int i = 0; i < count; i++) {
+            final int time = startTime + i * 100;
+            writer.write(new Video(time, Utils.fromHex(i % 10 == 0 ? KEYFRAME : INTERFRAME), 12));
+            final Audio audio = new Audio(Utils.fromHex("00000000"));
+            audio.getHeader().setTime(time);
+            writer.write(audio);
+        }
+    }
+
+    @Test
+    public void testAppendAfterTruncatedTail() throws Exception {
+        appendAfterTruncatedTail(true);
+    }
+
+    @Test
+    public void testAppendToFileWithoutKeyframeIndex() throws Exception {
+        appendAfterTruncatedTail(false);
+    }
+
+    private void appendAfterTruncatedTail(final boolean finalized) throws Exception {
+        final String fileName = FILE_PATH + "/test-append.flv";
+        new File(FILE_PATH).mkdir();
+        new File(fileName).delete();
+        FlvWriter writer = new FlvWriter(fileName, true);
+        writer.setFinalizeOnClose(finalized);
+        writeFrames(writer, 50);
+        writer.close();
+        RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+        raf.setLength(raf.length() - 7); // half written last audio tag
+        raf.close();
+        writer = new FlvWriter(fileName, true);
+        writeFrames(writer, 50);
+        writer.close();
+        FlvReader reader = new FlvReader(fileName);
+        Map<?, ?> keyframes = (Map<?, ?>) reader.getMetadata().getMap(0).get("keyframes");
+        assertEquals(10, ((Object[]) keyframes.get("times")).length);
+        int count = 0;
+        int lastTime = -1;
+        while(reader.hasNext()) {
+            RtmpMessage message = reader.next();
+            assertTrue(message.getHeader().getTime() >= lastTime);
+            lastTime = message.getHeader().getTime();
+            count++;
+        }
+        assertEquals(199, count);
+        assertEquals(4901 + 4900, lastTime);
+        assertEquals(5901, reader.seek(6000));
+        assertEquals(1000, reader.seek(1500));
+        reader.close();
+    }
+
+    @Test
+    public void testMetadataPatchedInPlace() {
+        final String fileName = FILE_PATH + "/test-patch.flv";
+        new File(FILE_PATH).mkdir();
+        FlvWriter writer = new FlvWriter(fileName);
+        writer.write(new MetadataAmf0("@setDataFrame", "onMetaData", map(pair("videocodecid", 2.0))));
+        for(int i = 0; i < 5000; i++) { // more keyframes than fit in the reserved tag
+            writer.write(new Video(i * 100, Utils.fromHex(KEYFRAME), 12));
+        }
+        writer.flush();
+        final long size = new File(fileName).length();
+        writer.close();
+        assertEquals(size, new File(fileName).length()); // nothing rewritten or appended
+        FlvReader reader = new FlvReader(fileName);
+        Metadata metadata = reader.getMetadata();
+        assertNull(metadata.getMap(0).get(FlvWriter.METADATA_PADDING));
+        assertEquals(2.0, metadata.getDouble("videocodecid"), 0.001);
+        assertEquals(499.9, metadata.getDouble("duration"), 0.001);
+        Object[] times = (Object[]) ((Map<?, ?>) metadata.getMap(0).get("keyframes")).get("times");
+        assertTrue(times.length > 1000 && times.length < 5000);
+        final long time = reader.seek(250000);
+        assertTrue(time <= 250000 && time > 249000);
+        assertEquals(time, reader.next().getHeader().getTime());
+        reader.close();
+    }
+
+    @Test
+    public void testAppendScansOnlyTagsAfterLastIndex() throws Exception {
+        final String fileName = FILE_PATH + "/test-append-forced.flv";
+        new File(FILE_PATH).mkdir();
+        new File(fileName).delete();
+        FlvWriter writer = new FlvWriter(fileName, true);
+        writeFrames(writer, 50);
+        writer.force(); // index of the first 5 keyframes is on disk
+        writeFrames(writer, 50, 5000);
+        writer.setFinalizeOnClose(false); // as if the server died
+        writer.close();
+        writer = new FlvWriter(fileName, true);
+        writeFrames(writer, 50);
+        writer.close();
+        FlvReader reader = new FlvReader(fileName);
+        Map<?, ?> keyframes = (Map<?, ?>) reader.getMetadata().getMap(0).get("keyframes");
+        assertEquals(15, ((Object[]) keyframes.get("times")).length);
+        assertEquals(6000, reader.seek(6500));
+        assertEquals(9901 + 1000, reader.seek(11000));
+        reader.close();
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.flazr.io.flv;
+
+import static org.junit.Assert.*;
+
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.message.Video;
+import com.flazr.util.Utils;
+import java.io.File;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Test;
+
+public class SegmentedFlvTest {
+
+    private static final String FILE_PATH = "../temp";
+    private static final String BASE_NAME = FILE_PATH + "/test-segmented";
+
+    private static final String KEYFRAME = "120000000000000000000000";
+    private static final String INTERFRAME = "220000000000000000000000";
+
+    @Test
+    public void testRotationAndPlayback() {
+        File temp = new File(FILE_PATH);
+        if(!temp.exists()) {
+            temp.mkdir();
+        }
+        SegmentedFlvWriter writer = new SegmentedFlvWriter(BASE_NAME, 2000, 0, SegmentedFlvWriter.DEFAULT_FACTORY);
+        for(int i = 0; i < 100; i++) {
+            writer.write(new Video(10000 + i * 100, Utils.fromHex(i % 10 == 0 ? KEYFRAME : INTERFRAME), 12));
+        }
+        writer.close();
+        assertEquals(5, writer.getSegmentCount());
+        SegmentedFlvReader reader = new SegmentedFlvReader(BASE_NAME + SegmentedFlvWriter.MANIFEST_EXTENSION);
+        int count = 0;
+        int lastTime = -1;
+        while(reader.hasNext()) {
+            RtmpMessage message = reader.next();
+            assertTrue(message.getHeader().getTime() > lastTime);
+            lastTime = message.getHeader().getTime();
+            count++;
+        }
+        assertEquals(100, count);
+        assertEquals(9900, lastTime);
+        assertEquals(6000, reader.seek(6500));
+        assertEquals(6000, reader.next().getHeader().getTime());
+        assertEquals(0, reader.seek(0));
+        reader.close();
+    }
+
+    @Test
+    public void testAggregatesAcrossRotation() {
+        File temp = new File(FILE_PATH);
+        if(!temp.exists()) {
+            temp.mkdir();
+        }
+        final String baseName = BASE_NAME + "-aggregate";
+        SegmentedFlvWriter writer = new SegmentedFlvWriter(baseName, 2000, 0, SegmentedFlvWriter.DEFAULT_FACTORY);
+        for(int i = 0; i < 100; i++) {
+            writer.write(new Video(10000 + i * 100, Utils.fromHex(i % 10 == 0 ? KEYFRAME : INTERFRAME), 12));
+        }
+        writer.close();
+        SegmentedFlvReader reader = new SegmentedFlvReader(baseName + SegmentedFlvWriter.MANIFEST_EXTENSION, true);
+        reader.setAggregateDuration(500);
+        int count = 0;
+        int lastTime = -1;
+        while(reader.hasNext()) {
+            RtmpMessage message = reader.next();
+            assertTrue(message.getHeader().isAggregate());
+            ChannelBuffer in = message.encode();
+            assertEquals(in.readableBytes(), message.getHeader().getSize());
+            int pos = in.readerIndex();
+            assertEquals(message.getHeader().getTime(), in.getMedium(pos + 4));
+            while(pos < in.writerIndex()) {
+                int time = in.getMedium(pos + 4) | (in.getByte(pos + 7) & 0xFF) << 24;
+                assertEquals(count * 100, time);
+                lastTime = time;
+                count++;
+                pos += 11 + in.getMedium(pos + 1) + 4;
+            }
+        }
+        assertEquals(100, count);
+        assertEquals(9900, lastTime);
+        reader.close();
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.flazr.io.index;
+
+import static org.junit.Assert.*;
+
+import com.flazr.io.flv.FlvReader;
+import com.flazr.io.flv.FlvWriter;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.message.Audio;
+import com.flazr.rtmp.message.MetadataAmf0;
+import com.flazr.rtmp.message.Video;
+import com.flazr.util.Utils;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+public class MediaIndexTest {
+
+    private static final String FILE_PATH = "../temp";
+    private static final String FILE_NAME = FILE_PATH + "/test-index.flv";
+
+    private static final String KEYFRAME = "120000000000000000000000";
+    private static final String INTERFRAME = "220000000000000000000000";
+
+    private File writeFile() {
+        File temp = new File(FILE_PATH);
+        if(!temp.exists()) {
+            temp.mkdir();
+        }
+        FlvWriter writer = new FlvWriter(FILE_NAME);
+        writer.write(new MetadataAmf0("onMetaData"));
+        for(int i = 0; i < 100; i++) {
+            final int time = i * 100;
+            final Video video = new Video(time, Utils.fromHex(i % 10 == 0 ? KEYFRAME : INTERFRAME), 12);
+            writer.write(video);
+            final Audio audio = new Audio(Utils.fromHex("00000000"));
+            audio.getHeader().setTime(time);
+            writer.write(audio);
+        }
+        writer.close();
+        final File file = new File(FILE_NAME);
+        MediaIndex.getIndexFile(file).delete();
+        return file;
+    }
+
+    @Test
+    public void testFlvIndexRoundTrip() {
+        final File file = writeFile();
+        final MediaIndex built = MediaIndex.build(file, MediaIndex.Kind.FLV);
+        assertEquals(10, built.getKeyframeTimes().length);
+        assertNull(MediaIndex.load(file));
+        built.write(file);
+        final MediaIndex loaded = MediaIndex.load(file);
+        assertNotNull(loaded);
+        assertArrayEquals(built.getKeyframeTimes(), loaded.getKeyframeTimes());
+        assertArrayEquals(built.getKeyframePositions(), loaded.getKeyframePositions());
+        assertEquals(built.getMediaStartPosition(), loaded.getMediaStartPosition());
+        assertEquals("onMetaData", loaded.getMetadata().getName());
+        FlvReader reader = new FlvReader(FILE_NAME, loaded);
+        assertEquals(2000, reader.seek(2550));
+        RtmpMessage message = reader.next();
+        assertTrue(message.getHeader().isVideo());
+        assertEquals(2000, message.getHeader().getTime());
+        assertEquals(0, reader.seek(0));
+        reader.close();
+    }
+
+    @Test
+    public void testStaleIndexIsIgnored() {
+        final File file = writeFile();
+        MediaIndex.build(file, MediaIndex.Kind.FLV).write(file);
+        assertNotNull(MediaIndex.load(file));
+        file.setLastModified(file.lastModified() - 60000);
+        assertNull(MediaIndex.load(file));
+    }
+
+    @Test
+    public void testCorruptIndexIsIgnored() throws Exception {
+        final File file = writeFile();
+        final File indexFile = MediaIndex.getIndexFile(file);
+        MediaIndex.build(file, MediaIndex.Kind.FLV).write(file);
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        raf.seek(4 + 2 + 1 + 8 + 8);
+        final int metadataLength = raf.readInt();
+        final long countPosition = raf.getFilePointer() + metadataLength + 8 + 4 + 4;
+        raf.seek(countPosition);
+        raf.writeInt(Integer.MAX_VALUE); // keyframe count
+        raf.close();
+        assertNull(MediaIndex.load(file));
+        MediaIndex.build(file, MediaIndex.Kind.FLV).write(file);
+        raf = new RandomAccessFile(indexFile, "rw");
+        raf.seek(4 + 2 + 1 + 8 + 8);
+        raf.writeInt(Integer.MAX_VALUE - 1); // metadata length
+        raf.close();
+        assertNull(MediaIndex.load(file));
+        MediaIndex.build(file, MediaIndex.Kind.FLV).write(file);
+        raf = new RandomAccessFile(indexFile, "rw");
+        raf.setLength(countPosition + 4 + 8); // truncated keyframe arrays
+        raf.close();
+        assertNull(MediaIndex.load(file));
+    }
+
+    @Test
+    public void testMissingIndexIsBuiltInBackground() throws Exception {
+        final File file = writeFile();
+        assertNull(MediaIndex.get(file, MediaIndex.Kind.FLV));
+        final Future<MediaIndex> first = MediaIndex.buildAsync(file, MediaIndex.Kind.FLV);
+        final Future<MediaIndex> second = MediaIndex.buildAsync(file, MediaIndex.Kind.FLV);
+        assertEquals(10, first.get().getKeyframeTimes().length);
+        second.get();
+        final MediaIndex loaded = MediaIndex.get(file, MediaIndex.Kind.FLV);
+        assertNotNull(loaded);
+        assertEquals(10, loaded.getKeyframeTimes().length);
+    }
+
+}
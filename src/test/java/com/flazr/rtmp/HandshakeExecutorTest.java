@@ -0,0 +1,49 @@
+package com.flazr.rtmp;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Test;
+
+public class HandshakeExecutorTest {
+
+    @Test
+    public void testMaxInFlight() throws Exception {
+        final HandshakeExecutor executor = new HandshakeExecutor(1, 1);
+        final Channel channel = new DecoderEmbedder<Object>(new SimpleChannelUpstreamHandler())
+                .getPipeline().getChannel();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(channel, new Runnable() {
+            @Override public void run() {
+                try {
+                    release.await();
+                } catch(InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                done.countDown();
+            }
+        });
+        assertEquals(1, executor.getInFlight());
+        executor.execute(channel, new Runnable() {
+            @Override public void run() {
+                fail("should have been rejected");
+            }
+        });
+        assertEquals(1, executor.getRejected());
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        final long end = System.currentTimeMillis() + 5000;
+        while(executor.getInFlight() > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, executor.getInFlight());
+        assertEquals(1, executor.getCompleted());
+        assertEquals(1, executor.getQueueTimes().getCount());
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.flazr.rtmp;
+
+import static org.junit.Assert.*;
+
+import com.flazr.io.flv.FlvAtom;
+import com.flazr.rtmp.message.MessageType;
+import com.flazr.rtmp.message.Metadata;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+public class PrefetchingReaderTest {
+
+    /**
+     * one message every 40 ms of media time, every read takes 'readMillis'
+     */
+    private static class SlowReader implements RtmpReader {
+
+        private final int count;
+        private final int readMillis;
+        private int index;
+        private volatile int reads;
+
+        SlowReader(final int count, final int readMillis) {
+            this.count = count;
+            this.readMillis = readMillis;
+        }
+
+        @Override public Metadata getMetadata() { return null; }
+        @Override public RtmpMessage[] getStartMessages() { return new RtmpMessage[0]; }
+        @Override public void setAggregateDuration(int targetDuration) {}
+        @Override public long getTimePosition() { return index * 40; }
+        @Override public void close() {}
+        @Override public int getWidth() { return 0; }
+        @Override public int getHeight() { return 0; }
+
+        @Override
+        public long seek(final long timePosition) {
+            index = (int) (timePosition / 40);
+            return index * 40;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < count;
+        }
+
+        @Override
+        public RtmpMessage next() {
+            try {
+                Thread.sleep(readMillis);
+            } catch(InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            reads++;
+            return new FlvAtom(MessageType.VIDEO, 40 * index++, ChannelBuffers.buffer(10));
+        }
+
+    }
+
+    private static void waitForReads(final SlowReader reader, final int reads) throws Exception {
+        final long end = System.currentTimeMillis() + 5000;
+        while(reader.reads < reads && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testPrefetchAndSeek() throws Exception {
+        final SlowReader slow = new SlowReader(100, 2);
+        final PrefetchingReader reader = new PrefetchingReader(slow, 400, 1000);
+        assertTrue(reader.hasNext());
+        assertEquals(0, reader.next().getHeader().getTime()); // read inline, starts the prefetch
+        assertEquals(1, reader.getMisses());
+        waitForReads(slow, 12);
+        Thread.sleep(50);
+        assertEquals(400, reader.getBufferedMillis()); // stops at the target, not the end
+        assertEquals(12, slow.reads);
+        for(int i = 1; i <= 11; i++) {
+            assertEquals(i * 40, reader.next().getHeader().getTime());
+        }
+        assertEquals(11, reader.getHits());
+
+        assertEquals(2000, reader.seek(2000));
+        assertEquals(2000, reader.next().getHeader().getTime()); // nothing from before the seek
+        for(int i = 1; i < 50; i++) {
+            assertTrue(reader.hasNext());
+            assertEquals(2000 + i * 40, reader.next().getHeader().getTime());
+        }
+        assertFalse(reader.hasNext());
+        reader.close();
+    }
+
+    @Test
+    public void testMaxMessages() throws Exception {
+        final SlowReader slow = new SlowReader(100, 0);
+        final PrefetchingReader reader = new PrefetchingReader(slow, 100000, 5);
+        reader.next();
+        waitForReads(slow, 6);
+        Thread.sleep(50);
+        assertEquals(5, reader.getBufferedCount());
+        reader.close();
+    }
+
+}
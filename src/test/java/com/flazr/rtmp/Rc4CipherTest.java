@@ -0,0 +1,99 @@
+package com.flazr.rtmp;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class Rc4CipherTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(Rc4CipherTest.class);
+
+    private static final int MESSAGE_SIZE = 4096;
+    private static final int MESSAGE_COUNT = 20000;
+
+    private static Cipher jce(final byte[] key) throws Exception {
+        final Cipher cipher = Cipher.getInstance("RC4");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, 0, 16, "RC4"));
+        return cipher;
+    }
+
+    /**
+     * what cipherUpdate used to do for every message
+     */
+    private static void jceUpdate(final Cipher cipher, final ChannelBuffer in) {
+        final byte[] bytes = new byte[in.readableBytes()];
+        in.getBytes(in.readerIndex(), bytes);
+        in.setBytes(in.readerIndex(), cipher.update(bytes));
+    }
+
+    @Test
+    public void testSameKeystreamAsJce() throws Exception {
+        final Random random = new Random();
+        final byte[] key = new byte[32];
+        random.nextBytes(key);
+        final Cipher expected = jce(key);
+        final Rc4Cipher actual = new Rc4Cipher(key, 16);
+        expected.update(new byte[RtmpHandshake.HANDSHAKE_SIZE]);
+        actual.skip(RtmpHandshake.HANDSHAKE_SIZE);
+        for(int size : new int[] {1, 100, 20000}) {
+            final byte[] plain = new byte[size];
+            random.nextBytes(plain);
+            final ChannelBuffer heap = ChannelBuffers.wrappedBuffer(plain.clone());
+            heap.readerIndex(size / 2);
+            final ChannelBuffer direct = ChannelBuffers.directBuffer(size);
+            direct.writeBytes(plain);
+            direct.readerIndex(size / 2);
+            final ChannelBuffer reference = ChannelBuffers.wrappedBuffer(plain.clone());
+            reference.readerIndex(size / 2);
+            jceUpdate(expected, reference);
+            actual.update(heap);
+            assertEquals(size / 2, heap.readerIndex());
+            assertEquals(reference, heap);
+            if(size > 1) {
+                assertEquals(plain[0], heap.getByte(0)); // before reader index untouched
+            }
+            final Rc4Cipher second = new Rc4Cipher(key, 16);
+            final Cipher secondExpected = jce(key);
+            second.update(direct);
+            final ChannelBuffer directReference = ChannelBuffers.wrappedBuffer(plain.clone());
+            directReference.readerIndex(size / 2);
+            jceUpdate(secondExpected, directReference);
+            assertEquals(directReference, direct);
+        }
+    }
+
+    @Test
+    public void testThroughput() throws Exception {
+        final byte[] key = new byte[32];
+        new Random().nextBytes(key);
+        final ChannelBuffer buffer = ChannelBuffers.buffer(MESSAGE_SIZE);
+        buffer.writerIndex(MESSAGE_SIZE);
+        final Cipher cipher = jce(key);
+        final Rc4Cipher rc4 = new Rc4Cipher(key, 16);
+        for(int i = 0; i < MESSAGE_COUNT / 10; i++) { // warm up
+            jceUpdate(cipher, buffer);
+            rc4.update(buffer);
+        }
+        long start = System.nanoTime();
+        for(int i = 0; i < MESSAGE_COUNT; i++) {
+            jceUpdate(cipher, buffer);
+        }
+        final long jceNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for(int i = 0; i < MESSAGE_COUNT; i++) {
+            rc4.update(buffer);
+        }
+        final long rc4Nanos = System.nanoTime() - start;
+        final long bytes = (long) MESSAGE_SIZE * MESSAGE_COUNT;
+        logger.info("rc4 MB per second on {} byte messages, jce with copies: {}, in place: {}", new Object[] {
+                MESSAGE_SIZE, bytes * 1000 / jceNanos, bytes * 1000 / rc4Nanos});
+    }
+
+}
@@ -1,15 +1,75 @@
 package com.flazr.rtmp;
 
 import static org.junit.Assert.*;
+
+import com.flazr.rtmp.client.ClientOptions;
 import com.flazr.util.Utils;
+import java.util.Arrays;
+import java.util.Random;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class RtmpHandshakeTest {
 
+    private static final Logger logger = LoggerFactory.getLogger(RtmpHandshakeTest.class);
+
+    private static final int HANDSHAKE_COUNT = 50;
+
     @Test
     public void testResolveValidationType() {
         byte[] versionBytes = Utils.fromHex("80000302");
         assertEquals(2, RtmpHandshake.getValidationTypeForClientVersion(versionBytes));
     }
 
+    /**
+     * complete rtmpe handshake between a client and a server instance
+     */
+    private static RtmpHandshake[] handshake() {
+        final ClientOptions options = new ClientOptions();
+        options.parseUrl("rtmpe://localhost/app/stream");
+        final RtmpHandshake client = new RtmpHandshake(options);
+        final RtmpHandshake server = new RtmpHandshake();
+        server.decodeClient0And1(ChannelBuffers.wrappedBuffer(client.encodeClient0(), client.encodeClient1()));
+        assertTrue(server.isRtmpe());
+        client.decodeServerAll(ChannelBuffers.wrappedBuffer(
+                server.encodeServer0(), server.encodeServer1(), server.encodeServer2()));
+        server.decodeClient2(client.encodeClient2());
+        return new RtmpHandshake[] {client, server};
+    }
+
+    @Test
+    public void testRtmpeHandshake() throws Exception {
+        final RtmpHandshake[] pair = handshake();
+        final byte[] plain = new byte[10000];
+        new Random().nextBytes(plain);
+        final ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(plain.clone());
+        pair[0].cipherUpdateOut(buffer);
+        assertFalse(Arrays.equals(plain, buffer.array()));
+        pair[1].cipherUpdateIn(buffer);
+        assertArrayEquals(plain, buffer.array());
+
+        final DhKeyPool pool = RtmpHandshake.getKeyPool();
+        pool.prefill();
+        assertEquals(Math.max(1, RtmpConfig.DH_POOL_SIZE), pool.getAvailable());
+        long start = System.nanoTime();
+        for(int i = 0; i < HANDSHAKE_COUNT; i++) {
+            pool.generate(); // what every handshake used to do on the i/o thread
+        }
+        final long generateNanos = System.nanoTime() - start;
+        final long missesBefore = pool.getMisses();
+        start = System.nanoTime();
+        for(int i = 0; i < HANDSHAKE_COUNT; i++) {
+            handshake();
+        }
+        final long handshakeNanos = System.nanoTime() - start;
+        logger.info("rtmpe handshakes per second on one thread, pooled keys: {}, generating keys inline: {}, {}",
+                new Object[]{HANDSHAKE_COUNT * 1000000000L / handshakeNanos,
+                HANDSHAKE_COUNT * 1000000000L / (handshakeNanos + 2 * generateNanos), pool});
+        assertTrue(pool.getHits() > 0);
+        assertTrue(pool.getMisses() - missesBefore < 2 * HANDSHAKE_COUNT);
+    }
+
 }
@@ -0,0 +1,301 @@
+package com.flazr.rtmp;
+
+import static org.junit.Assert.*;
+
+import com.flazr.io.flv.FlvAtom;
+import com.flazr.io.flv.FlvReader;
+import com.flazr.io.flv.FlvWriter;
+import com.flazr.rtmp.message.ChunkSize;
+import com.flazr.rtmp.message.FileAggregate;
+import com.flazr.rtmp.message.MessageType;
+import com.flazr.rtmp.stats.StatsRegistry;
+import com.flazr.util.NamedThreadFactory;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class ZeroCopyTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(ZeroCopyTest.class);
+
+    private static final String DIR = "../temp/zero-copy-test";
+    private static final String SMALL = DIR + "/small.flv";
+    private static final String LARGE = DIR + "/large.flv";
+
+    private static ServerBootstrap bootstrap;
+    private static ClientBootstrap client;
+
+    private static void writeFile(final String path, final int count) {
+        final Random random = new Random(count);
+        final FlvWriter writer = new FlvWriter(path);
+        for(int i = 0; i < count; i++) {
+            final int size = 2000 + random.nextInt(20000);
+            final ChannelBuffer data = ChannelBuffers.buffer(size);
+            data.writeByte(i % 25 == 0 ? 0x12 : 0x22);
+            final byte[] bytes = new byte[size - 1];
+            random.nextBytes(bytes);
+            data.writeBytes(bytes);
+            writer.write(new FlvAtom(MessageType.VIDEO, i * 40, data));
+        }
+        writer.close();
+    }
+
+    @BeforeClass
+    public static void setUp() {
+        new File(DIR).mkdirs();
+        writeFile(SMALL, 100);
+        writeFile(LARGE, 3000);
+        bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(
+                Executors.newCachedThreadPool(new NamedThreadFactory("test-boss")),
+                Executors.newCachedThreadPool(new NamedThreadFactory("test-worker"))));
+        client = new ClientBootstrap(new NioClientSocketChannelFactory(
+                Executors.newCachedThreadPool(new NamedThreadFactory("test-client-boss")),
+                Executors.newCachedThreadPool(new NamedThreadFactory("test-client-worker"))));
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        bootstrap.releaseExternalResources();
+        client.releaseExternalResources();
+    }
+
+    /**
+     * stands in for the rtmpe handshaker that stays in the pipeline
+     */
+    private static class Passthrough extends SimpleChannelHandler {}
+
+    /**
+     * concatenates the bodies of the aggregates received
+     */
+    private static class Collector extends SimpleChannelUpstreamHandler {
+
+        private final ChannelBuffer received = ChannelBuffers.dynamicBuffer();
+
+        @Override
+        public synchronized void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e) {
+            final RtmpMessage message = (RtmpMessage) e.getMessage();
+            if(message.getHeader().isAggregate()) {
+                received.writeBytes(message.encode());
+            }
+        }
+
+        public synchronized int size() {
+            return received.readableBytes();
+        }
+
+    }
+
+    /**
+     * counts raw bytes, so that the benchmark measures the sending side
+     */
+    private static class Counter extends SimpleChannelUpstreamHandler {
+
+        private final AtomicLong bytes = new AtomicLong();
+
+        @Override
+        public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e) {
+            bytes.addAndGet(((ChannelBuffer) e.getMessage()).readableBytes());
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx, final ExceptionEvent e) {
+            e.getChannel().close(); // reset once the server side closes
+        }
+
+    }
+
+    /**
+     * connects a client to a fresh server pipeline and returns the server
+     * side channel, ready for writes
+     */
+    private static Channel connect(final boolean rtmpe, final ChannelPipeline clientPipeline) throws Exception {
+        final Channel[] accepted = new Channel[1];
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override public ChannelPipeline getPipeline() {
+                final ChannelPipeline pipeline = Channels.pipeline();
+                if(rtmpe) {
+                    pipeline.addLast("handshaker", new Passthrough());
+                }
+                pipeline.addLast("encoder", new RtmpEncoder());
+                pipeline.addLast("handler", new SimpleChannelUpstreamHandler() {
+                    @Override public void channelConnected(final ChannelHandlerContext ctx, final ChannelStateEvent e) {
+                        synchronized(accepted) {
+                            accepted[0] = e.getChannel();
+                            accepted.notifyAll();
+                        }
+                    }
+                });
+                return pipeline;
+            }
+        });
+        final Channel server = bootstrap.bind(new InetSocketAddress("127.0.0.1", 0));
+        client.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override public ChannelPipeline getPipeline() {
+                return clientPipeline;
+            }
+        });
+        assertTrue(client.connect(server.getLocalAddress()).awaitUninterruptibly().isSuccess());
+        synchronized(accepted) {
+            if(accepted[0] == null) {
+                accepted.wait(10000);
+            }
+        }
+        assertNotNull(accepted[0]);
+        server.unbind().awaitUninterruptibly(); // keeps the accepted channel
+        return accepted[0];
+    }
+
+    /**
+     * writes every aggregate of the file, waits for the last write
+     */
+    private static long send(final Channel channel, final String path, final int chunkSize) {
+        final FlvReader reader = new FlvReader(path);
+        reader.setAggregateDuration(1000);
+        channel.write(new ChunkSize(chunkSize));
+        ChannelFuture future = null;
+        long bytes = 0;
+        int count = 0;
+        while(reader.hasNext()) {
+            final RtmpMessage message = reader.next();
+            assertTrue(message instanceof FileAggregate);
+            bytes += message.getHeader().getSize();
+            message.getHeader().setStreamId(1);
+            message.getHeader().setChannelId(8);
+            future = channel.write(message);
+            if(++count % 16 == 0) {
+                future.awaitUninterruptibly(); // keep the copied buffers from piling up
+            }
+        }
+        reader.close(); // regions still queued keep the file open
+        future.awaitUninterruptibly();
+        assertTrue(future.isSuccess());
+        return bytes;
+    }
+
+    private static ChannelBuffer mediaBytes(final String path) throws Exception {
+        final FlvReader reader = new FlvReader(path);
+        final long start = reader.getMediaStartPosition();
+        reader.close();
+        final RandomAccessFile raf = new RandomAccessFile(path, "r");
+        final byte[] bytes = new byte[(int) (raf.length() - start)];
+        raf.seek(start);
+        raf.readFully(bytes);
+        raf.close();
+        return ChannelBuffers.wrappedBuffer(bytes);
+    }
+
+    private static void assertReceived(final boolean rtmpe, final int chunkSize, final boolean zeroCopy) throws Exception {
+        final Collector collector = new Collector();
+        final Channel channel = connect(rtmpe, Channels.pipeline(new RtmpDecoder(), collector));
+        final long zeroCopyBefore = StatsRegistry.getZeroCopyBytes();
+        final long fallbacksBefore = StatsRegistry.getZeroCopyFallbacks();
+        final long sent = send(channel, SMALL, chunkSize);
+        final ChannelBuffer expected = mediaBytes(SMALL);
+        assertEquals(expected.readableBytes(), sent);
+        final long end = System.currentTimeMillis() + 10000;
+        while(collector.size() < sent && System.currentTimeMillis() < end) {
+            Thread.sleep(20);
+        }
+        assertEquals(sent, collector.size());
+        assertTrue(ChannelBuffers.equals(expected, collector.received));
+        if(zeroCopy) {
+            assertEquals(sent, StatsRegistry.getZeroCopyBytes() - zeroCopyBefore);
+        } else {
+            assertTrue(StatsRegistry.getZeroCopyFallbacks() > fallbacksBefore);
+        }
+        channel.close().awaitUninterruptibly();
+    }
+
+    @Test
+    public void testSameBytesEitherWay() throws Exception {
+        assertReceived(false, 65536, true);
+        assertReceived(false, 16384, true);
+        assertReceived(false, 4096, false); // below the minimum chunk size
+        assertReceived(true, 65536, false); // rtmpe
+    }
+
+    @Test
+    public void testInMemoryAggregatesWhenZeroCopyUnusable() throws Exception {
+        final FlvReader reader = new FlvReader(SMALL, null, false);
+        reader.setAggregateDuration(1000);
+        final ChannelBuffer received = ChannelBuffers.dynamicBuffer();
+        while(reader.hasNext()) {
+            final RtmpMessage message = reader.next();
+            assertFalse(message instanceof FileAggregate);
+            assertTrue(message.getHeader().isAggregate());
+            received.writeBytes(message.encode());
+        }
+        reader.close();
+        assertTrue(ChannelBuffers.equals(mediaBytes(SMALL), received));
+    }
+
+    /**
+     * process cpu per gigabit, the receiving side only counts bytes and
+     * costs the same in both runs
+     */
+    private static double cpuSecondsPerGbit(final int chunkSize, final int rounds) throws Exception {
+        final Counter counter = new Counter();
+        final Channel channel = connect(false, Channels.pipeline(counter));
+        final long cpuBefore = StatsRegistry.getProcessCpuTime();
+        long sent = 0;
+        for(int i = 0; i < rounds; i++) {
+            sent += send(channel, LARGE, chunkSize);
+        }
+        final long end = System.currentTimeMillis() + 30000;
+        while(counter.bytes.get() < sent && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        final long cpu = StatsRegistry.getProcessCpuTime() - cpuBefore;
+        channel.close().awaitUninterruptibly();
+        assertTrue(counter.bytes.get() >= sent);
+        return cpu / 1000000000.0 / (sent * 8 / 1000000000.0);
+    }
+
+    @Test
+    public void testCpuPerGbit() throws Exception {
+        if(StatsRegistry.getProcessCpuTime() < 0) {
+            return;
+        }
+        final int minChunkSize = RtmpConfig.ZERO_COPY_MIN_CHUNK_SIZE;
+        try {
+            cpuSecondsPerGbit(65536, 1); // warm up
+            final double zeroCopy64k = cpuSecondsPerGbit(65536, 8);
+            RtmpConfig.ZERO_COPY_MIN_CHUNK_SIZE = 0;
+            final double zeroCopy4k = cpuSecondsPerGbit(4096, 8);
+            RtmpConfig.ZERO_COPY_MIN_CHUNK_SIZE = Integer.MAX_VALUE;
+            cpuSecondsPerGbit(65536, 1);
+            final double copy64k = cpuSecondsPerGbit(65536, 8);
+            final double copy4k = cpuSecondsPerGbit(4096, 8);
+            logger.info("cpu seconds per gbit, chunk size 65536: sendfile {} copy {}, chunk size 4096: sendfile {} copy {}",
+                    new Object[] {zeroCopy64k, copy64k, zeroCopy4k, copy4k});
+        } finally {
+            RtmpConfig.ZERO_COPY_MIN_CHUNK_SIZE = minChunkSize;
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+package com.flazr.rtmp.server;
+
+import static org.junit.Assert.*;
+
+import com.flazr.io.flv.FlvAtom;
+import com.flazr.rtmp.message.MessageType;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+public class DvrBufferTest {
+
+    private static FlvAtom video(final int time, final boolean keyframe, final int size) {
+        final ChannelBuffer data = ChannelBuffers.buffer(size);
+        data.writeByte(keyframe ? 0x17 : 0x27);
+        data.writeByte(1);
+        data.writerIndex(size);
+        return new FlvAtom(MessageType.VIDEO, time, data);
+    }
+
+    private static void fill(final DvrBuffer dvr, final int from, final int to) {
+        for(int time = from; time < to; time += 40) {
+            dvr.append(video(time, time % 1000 == 0, 500));
+        }
+    }
+
+    @Test
+    public void testWindowEviction() {
+        final DvrBuffer dvr = new DvrBuffer(5000, 1024 * 1024);
+        fill(dvr, 0, 20000);
+        assertEquals(19960, dvr.getLiveTime());
+        assertTrue(dvr.getStartTime() >= 14960);
+        assertEquals(5, dvr.getKeyframeCount());
+        final FlvAtom first = dvr.read(dvr.getOldestKeyframeOffset());
+        assertEquals(15000, first.getHeader().getTime());
+    }
+
+    @Test
+    public void testCapacityEvictionWrapsAround() {
+        final DvrBuffer dvr = new DvrBuffer(60000, 100 * 1024);
+        fill(dvr, 0, 20000);
+        assertTrue(dvr.getSize() <= 100 * 1024);
+        final long offset = dvr.seek(19500);
+        final FlvAtom atom = dvr.read(offset);
+        assertEquals(19000, atom.getHeader().getTime());
+        assertEquals(500, atom.getHeader().getSize());
+        assertNull(dvr.read(0));
+    }
+
+    @Test
+    public void testLargeSizeIsClampedNotOverflowed() {
+        final DvrBuffer dvr = new DvrBuffer(1800000, 4096L * 1024 * 1024);
+        assertTrue(dvr.getCapacity() > 0);
+        assertTrue(dvr.getCapacity() <= Math.max(Runtime.getRuntime().maxMemory() / 2, 4096L * 1024 * 1024));
+        assertEquals(0, dvr.getSize());
+    }
+
+    @Test
+    public void testReaderCatchesUp() {
+        final ServerStream stream = new ServerStream("test", "live");
+        final DvrBuffer dvr = new DvrBuffer(10000, 1024 * 1024);
+        stream.setDvr(dvr);
+        fill(dvr, 0, 5000);
+        final DvrReader reader = new DvrReader(stream);
+        assertFalse(reader.hasNext());
+        assertEquals(2000, reader.seek(2500));
+        int count = 0;
+        while(reader.hasNext()) {
+            reader.next();
+            count++;
+        }
+        assertEquals(75, count);
+        assertEquals(4960, reader.getTimePosition());
+        fill(dvr, 5000, 5100);
+        assertTrue(reader.hasNext());
+        assertEquals(5000, reader.next().getHeader().getTime());
+    }
+
+}
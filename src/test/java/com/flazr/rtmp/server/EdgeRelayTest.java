@@ -0,0 +1,151 @@
+package com.flazr.rtmp.server;
+
+import static org.junit.Assert.*;
+
+import com.flazr.io.flv.FlvAtom;
+import com.flazr.io.flv.FlvWriter;
+import com.flazr.rtmp.RtmpConfig;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.RtmpWriter;
+import com.flazr.rtmp.client.ClientOptions;
+import com.flazr.rtmp.client.ClientPipelineFactory;
+import com.flazr.rtmp.message.MessageType;
+import com.flazr.util.NamedThreadFactory;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class EdgeRelayTest {
+
+    @BeforeClass
+    public static void useConfigDefaults() {
+        System.setProperty("flazr.home", "../temp/edge-relay-test"); // no conf, no home dir checks
+    }
+
+    private static Channel bind(final ChannelFactory factory) {
+        final ServerBootstrap bootstrap = new ServerBootstrap(factory);
+        bootstrap.setPipelineFactory(new ServerPipelineFactory());
+        return bootstrap.bind(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    private static int port(final Channel channel) {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    private static FlvAtom video(final int time) {
+        final ChannelBuffer data = ChannelBuffers.buffer(100);
+        data.writeByte(time % 1000 == 0 ? 0x12 : 0x22);
+        data.writerIndex(100);
+        return new FlvAtom(MessageType.VIDEO, time, data);
+    }
+
+    private static void waitFor(final String what, final Condition condition) throws Exception {
+        final long end = System.currentTimeMillis() + 10000;
+        while(!condition.met()) {
+            if(System.currentTimeMillis() > end) {
+                fail("timed out waiting for: " + what);
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+
+    @Test
+    public void testPullFromOriginAndIdleTeardown() throws Exception {
+        final ChannelFactory serverFactory = new NioServerSocketChannelFactory(
+                Executors.newCachedThreadPool(new NamedThreadFactory("test-boss")),
+                Executors.newCachedThreadPool(new NamedThreadFactory("test-worker")));
+        final Channel originServer = bind(serverFactory);
+        final Channel edgeServer = bind(serverFactory);
+        final ServerStream origin = ServerApplication.get("edgetest-origin").getStream("cam", "live");
+        final ServerApplication edge = ServerApplication.get("edgetest-edge");
+        edge.setEdgeOrigin("rtmp://127.0.0.1:" + port(originServer) + "/edgetest-origin");
+        edge.setEdgeIdleTimeout(300);
+
+        final AtomicInteger received = new AtomicInteger();
+        final ClientOptions options = new ClientOptions();
+        options.parseUrl("rtmp://127.0.0.1:" + port(edgeServer) + "/edgetest-edge/cam");
+        options.setWriterToSave(new RtmpWriter() {
+            @Override public void write(final RtmpMessage message) {
+                if(message.getHeader().getSize() == 100) {
+                    received.incrementAndGet();
+                }
+            }
+            @Override public void close() {}
+        });
+        final ClientBootstrap bootstrap = new ClientBootstrap(new NioClientSocketChannelFactory(
+                Executors.newCachedThreadPool(new NamedThreadFactory("test-client-boss")),
+                Executors.newCachedThreadPool(new NamedThreadFactory("test-client-worker"))));
+        bootstrap.setPipelineFactory(new ClientPipelineFactory(options));
+        final Channel client = bootstrap.connect(
+                new InetSocketAddress("127.0.0.1", port(edgeServer))).awaitUninterruptibly().getChannel();
+
+        waitFor("edge subscribed to origin", new Condition() {
+            @Override public boolean met() {
+                return origin.getSubscribers().size() == 1;
+            }
+        });
+        final ServerStream edgeStream = edge.getStream("cam");
+        assertTrue(edgeStream.isLive());
+        waitFor("player subscribed to edge", new Condition() {
+            @Override public boolean met() {
+                return edgeStream.getSubscribers().size() == 1;
+            }
+        });
+        for(int time = 0; time < 2000; time += 40) {
+            origin.broadcast(video(time));
+        }
+        waitFor("messages relayed", new Condition() {
+            @Override public boolean met() {
+                return received.get() == 50;
+            }
+        });
+        assertSame(edgeStream, edge.getStream("cam"));
+        assertEquals(1, origin.getSubscribers().size());
+
+        client.close().awaitUninterruptibly();
+        waitFor("upstream idle teardown", new Condition() {
+            @Override public boolean met() {
+                return origin.getSubscribers().isEmpty() && edgeStream.getPublisher() == null;
+            }
+        });
+
+        originServer.close().awaitUninterruptibly();
+        edgeServer.close().awaitUninterruptibly();
+    }
+
+    @Test
+    public void testLocalFileIsNotRelayed() {
+        final String home = RtmpConfig.SERVER_HOME_DIR;
+        RtmpConfig.SERVER_HOME_DIR = "../temp/edge-relay-test";
+        try {
+            final File dir = new File(RtmpConfig.SERVER_HOME_DIR + "/apps/edgetest-vod");
+            dir.mkdirs();
+            final FlvWriter writer = new FlvWriter(dir.getPath() + "/clip.flv");
+            writer.write(video(0));
+            writer.close();
+            final ServerApplication edge = ServerApplication.get("edgetest-vod");
+            edge.setEdgeOrigin("rtmp://127.0.0.1:1/edgetest-origin"); // never contacted
+            assertFalse(edge.getStream("clip").isLive());
+            assertFalse(edge.getStream("clip.flv").isLive());
+            assertTrue(edge.getStream("missing").isLive());
+        } finally {
+            RtmpConfig.SERVER_HOME_DIR = home;
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+package com.flazr.rtmp.server;
+
+import static org.junit.Assert.*;
+
+import com.flazr.io.flv.FlvAtom;
+import com.flazr.rtmp.RtmpConfig;
+import com.flazr.rtmp.message.MessageType;
+import com.flazr.util.NamedThreadFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.Executors;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class HttpHandlerTest {
+
+    @BeforeClass
+    public static void useConfigDefaults() {
+        System.setProperty("flazr.home", "../temp/http-handler-test"); // no conf, no home dir checks
+    }
+
+    private static String get(final String url, final int expectedStatus) throws Exception {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        assertEquals(expectedStatus, connection.getResponseCode());
+        final InputStream in = expectedStatus < 400 ? connection.getInputStream() : connection.getErrorStream();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int count;
+        while((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void testMetricsAndStreams() throws Exception {
+        final ServerBootstrap bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(
+                Executors.newCachedThreadPool(new NamedThreadFactory("test-boss")),
+                Executors.newCachedThreadPool(new NamedThreadFactory("test-worker"))));
+        bootstrap.setPipelineFactory(new HttpPipelineFactory());
+        final Channel server = bootstrap.bind(new InetSocketAddress("127.0.0.1", 0));
+        final String base = "http://127.0.0.1:" + ((InetSocketAddress) server.getLocalAddress()).getPort();
+        ServerApplication.get("httptest").getStream("cam", "live");
+
+        final String metrics = get(base + "/metrics", 200);
+        assertTrue(metrics.contains("# TYPE flazr_bytes_out_total counter"));
+        assertTrue(metrics.contains("flazr_stream_subscribers{application=\"httptest\",stream=\"cam\"} 0"));
+
+        final String streams = get(base + "/streams", 200);
+        assertTrue(streams.startsWith("{\"applications\":["));
+        assertTrue(streams.contains("{\"name\":\"httptest\",\"streams\":[{\"name\":\"cam\",\"publisher\":null,\"subscribers\":0"));
+
+        get(base + "/nothing", 404);
+        server.close().awaitUninterruptibly();
+    }
+
+    private static FlvAtom video(final int time, final int firstByte, final int secondByte) {
+        final ChannelBuffer data = ChannelBuffers.buffer(50);
+        data.writeByte(firstByte);
+        data.writeByte(secondByte);
+        data.writerIndex(50);
+        return new FlvAtom(MessageType.VIDEO, time, data);
+    }
+
+    private static void assertTag(final DataInputStream in, final FlvAtom expected) throws Exception {
+        final ChannelBuffer bytes = expected.write();
+        final byte[] actual = new byte[bytes.readableBytes()];
+        in.readFully(actual);
+        assertEquals(bytes, ChannelBuffers.wrappedBuffer(actual));
+    }
+
+    /**
+     * requests the stream and reads up to the first tag
+     */
+    private static DataInputStream openFlv(final int port, final String path) throws Exception {
+        final Socket socket = new Socket("127.0.0.1", port);
+        final OutputStream out = socket.getOutputStream();
+        out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes("UTF-8"));
+        out.flush();
+        final DataInputStream in = new DataInputStream(socket.getInputStream());
+        final StringBuilder headers = new StringBuilder();
+        while(!headers.toString().endsWith("\r\n\r\n")) {
+            headers.append((char) in.readByte());
+        }
+        assertTrue(headers.toString(), headers.toString().startsWith("HTTP/1.1 200 OK"));
+        assertTrue(headers.toString().contains("video/x-flv"));
+        final byte[] flvHeader = new byte[13];
+        in.readFully(flvHeader);
+        assertEquals(FlvAtom.flvHeader(), ChannelBuffers.wrappedBuffer(flvHeader));
+        return in;
+    }
+
+    @Test
+    public void testFlvPlayback() throws Exception {
+        final ServerBootstrap bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(
+                Executors.newCachedThreadPool(new NamedThreadFactory("test-boss")),
+                Executors.newCachedThreadPool(new NamedThreadFactory("test-worker"))));
+        bootstrap.setPipelineFactory(new HttpPipelineFactory());
+        final Channel server = bootstrap.bind(new InetSocketAddress("127.0.0.1", 0));
+        final int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        get("http://127.0.0.1:" + port + "/flvtest/missing.flv", 404);
+
+        final int httpPort = RtmpConfig.SERVER_HTTP_PORT;
+        RtmpConfig.SERVER_HTTP_PORT = port; // the gop cache is only kept with the http listener enabled
+        final ServerStream stream;
+        try {
+            stream = ServerApplication.get("flvtest").getStream("cam", "live");
+        } finally {
+            RtmpConfig.SERVER_HTTP_PORT = httpPort;
+        }
+        final FlvAtom config = video(0, 0x17, 0); // avc sequence header
+        stream.addConfigMessage(config);
+        stream.broadcast(config);
+        stream.broadcast(video(960, 0x27, 1)); // before any keyframe, not decodable
+        stream.broadcast(video(1000, 0x17, 1));
+        stream.broadcast(video(1040, 0x27, 1));
+
+        final DataInputStream in = openFlv(port, "/flvtest/cam.flv");
+        assertTag(in, video(1000, 0x17, 0)); // config at the time the group of pictures starts
+        assertTag(in, video(1000, 0x17, 1));
+        assertTag(in, video(1040, 0x27, 1));
+        assertEquals(1, stream.getSubscribers().size());
+
+        stream.broadcast(video(1080, 0x27, 1));
+        stream.broadcast(video(1120, 0x27, 1));
+        assertTag(in, video(1080, 0x27, 1));
+        assertTag(in, video(1120, 0x27, 1));
+
+        in.close();
+        final long end = System.currentTimeMillis() + 5000;
+        while(!stream.getSubscribers().isEmpty() && System.currentTimeMillis() < end) {
+            Thread.sleep(20);
+        }
+        assertTrue(stream.getSubscribers().isEmpty());
+
+        // without the http listener configured nothing is cached
+        final ServerStream uncached = ServerApplication.get("flvtest").getStream("uncached", "live");
+        uncached.broadcast(video(1000, 0x17, 1));
+        final DataInputStream uncachedIn = openFlv(port, "/flvtest/uncached.flv");
+        while(uncached.getSubscribers().isEmpty() && System.currentTimeMillis() < end + 5000) {
+            Thread.sleep(20);
+        }
+        uncached.broadcast(video(1040, 0x27, 1));
+        assertTag(uncachedIn, video(1040, 0x27, 1));
+        uncachedIn.close();
+        server.close().awaitUninterruptibly();
+    }
+
+}
@@ -0,0 +1,158 @@
+package com.flazr.rtmp.server;
+
+import static org.junit.Assert.*;
+
+import com.flazr.io.flv.FlvAtom;
+import com.flazr.rtmp.RtmpDecoder;
+import com.flazr.rtmp.RtmpEncoder;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.client.ClientHandler;
+import com.flazr.rtmp.client.ClientHandshakeHandler;
+import com.flazr.rtmp.client.ClientOptions;
+import com.flazr.rtmp.message.Command;
+import com.flazr.rtmp.message.MessageType;
+import com.flazr.util.NamedThreadFactory;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class MultiStreamTest {
+
+    @BeforeClass
+    public static void useConfigDefaults() {
+        System.setProperty("flazr.home", "../temp/multi-stream-test"); // no conf, no home dir checks
+    }
+
+    private static final String[] NAMES = {"cam1", "cam2"};
+
+    /**
+     * plays every name on its own stream of the same connection, records
+     * stream id and size of each media message received
+     */
+    private static class MultiPlayHandler extends ClientHandler {
+
+        private final List<int[]> received = new CopyOnWriteArrayList<int[]>();
+        private int created;
+
+        public MultiPlayHandler(final ClientOptions options) {
+            super(options);
+        }
+
+        @Override
+        protected void onCommandResult(final Channel channel, final Command command, final String resultFor) {
+            if(resultFor.equals("connect")) {
+                for(int i = 0; i < NAMES.length; i++) {
+                    writeCommandExpectingResult(channel, Command.createStream());
+                }
+            } else if(resultFor.equals("createStream")) {
+                final int id = ((Double) command.getArg(0)).intValue();
+                final ClientOptions options = new ClientOptions();
+                options.setStreamName(NAMES[created++]);
+                channel.write(Command.play(id, options));
+            }
+        }
+
+        @Override
+        protected void onMultimedia(final Channel channel, final RtmpMessage message) {
+            if(message.getHeader().getSize() >= 100) { // not the empty start messages
+                received.add(new int[] {message.getHeader().getStreamId(), message.getHeader().getSize()});
+            }
+        }
+
+    }
+
+    private static FlvAtom video(final int time, final int size) {
+        final ChannelBuffer data = ChannelBuffers.buffer(size);
+        data.writeByte(time == 0 ? 0x12 : 0x22);
+        data.writerIndex(size);
+        return new FlvAtom(MessageType.VIDEO, time, data);
+    }
+
+    private static void waitFor(final String what, final Condition condition) throws Exception {
+        final long end = System.currentTimeMillis() + 10000;
+        while(!condition.met()) {
+            if(System.currentTimeMillis() > end) {
+                fail("timed out waiting for: " + what);
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+
+    @Test
+    public void testTwoStreamsOneConnection() throws Exception {
+        final ServerBootstrap bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(
+                Executors.newCachedThreadPool(new NamedThreadFactory("test-boss")),
+                Executors.newCachedThreadPool(new NamedThreadFactory("test-worker"))));
+        bootstrap.setPipelineFactory(new ServerPipelineFactory());
+        final Channel server = bootstrap.bind(new InetSocketAddress("127.0.0.1", 0));
+        final int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        final ServerStream cam1 = ServerApplication.get("multitest").getStream(NAMES[0], "live");
+        final ServerStream cam2 = ServerApplication.get("multitest").getStream(NAMES[1], "live");
+
+        final ClientOptions options = new ClientOptions();
+        options.parseUrl("rtmp://127.0.0.1:" + port + "/multitest/" + NAMES[0]);
+        final MultiPlayHandler handler = new MultiPlayHandler(options);
+        final ClientBootstrap client = new ClientBootstrap(new NioClientSocketChannelFactory(
+                Executors.newCachedThreadPool(new NamedThreadFactory("test-client-boss")),
+                Executors.newCachedThreadPool(new NamedThreadFactory("test-client-worker"))));
+        client.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override public ChannelPipeline getPipeline() {
+                final ChannelPipeline pipeline = Channels.pipeline();
+                pipeline.addLast("handshaker", new ClientHandshakeHandler(options));
+                pipeline.addLast("decoder", new RtmpDecoder());
+                pipeline.addLast("encoder", new RtmpEncoder());
+                pipeline.addLast("handler", handler);
+                return pipeline;
+            }
+        });
+        final Channel channel = client.connect(new InetSocketAddress("127.0.0.1", port))
+                .awaitUninterruptibly().getChannel();
+        waitFor("both streams played", new Condition() {
+            @Override public boolean met() {
+                return cam1.getSubscribers().size() == 1 && cam2.getSubscribers().size() == 1;
+            }
+        });
+
+        for(int time = 0; time < 400; time += 40) {
+            cam1.broadcast(video(time, 100));
+            cam2.broadcast(video(time, 200));
+        }
+        waitFor("messages on both streams", new Condition() {
+            @Override public boolean met() {
+                return handler.received.size() == 20;
+            }
+        });
+        for(final int[] streamIdAndSize : handler.received) {
+            assertEquals(streamIdAndSize[0] * 100, streamIdAndSize[1]);
+        }
+
+        channel.write(Command.deleteStream(2));
+        waitFor("second stream deleted", new Condition() {
+            @Override public boolean met() {
+                return cam2.getSubscribers().isEmpty();
+            }
+        });
+        assertEquals(1, cam1.getSubscribers().size());
+
+        channel.close().awaitUninterruptibly();
+        server.close().awaitUninterruptibly();
+    }
+
+}
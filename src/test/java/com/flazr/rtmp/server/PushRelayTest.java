@@ -0,0 +1,80 @@
+package com.flazr.rtmp.server;
+
+import static org.junit.Assert.*;
+
+import com.flazr.io.flv.FlvAtom;
+import com.flazr.rtmp.message.MessageType;
+import com.flazr.util.NamedThreadFactory;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class PushRelayTest {
+
+    @BeforeClass
+    public static void useConfigDefaults() {
+        System.setProperty("flazr.home", "../temp/push-relay-test"); // no conf, no home dir checks
+    }
+
+    private static FlvAtom video(final int time, final boolean keyframe) {
+        final ChannelBuffer data = ChannelBuffers.buffer(100);
+        data.writeByte(keyframe ? 0x12 : 0x22);
+        data.writerIndex(100);
+        return new FlvAtom(MessageType.VIDEO, time, data);
+    }
+
+    private static void waitFor(final PushRelay relay, final long sent) throws Exception {
+        final long end = System.currentTimeMillis() + 10000;
+        while(!relay.isPublishing() || relay.getSentCount() < sent) {
+            assertTrue("timed out: " + relay, System.currentTimeMillis() < end);
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void testForwardAndReconnect() throws Exception {
+        final ServerBootstrap bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(
+                Executors.newCachedThreadPool(new NamedThreadFactory("test-boss")),
+                Executors.newCachedThreadPool(new NamedThreadFactory("test-worker"))));
+        bootstrap.setPipelineFactory(new ServerPipelineFactory());
+        final Channel server = bootstrap.bind(new InetSocketAddress("127.0.0.1", 0));
+        final int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+
+        final ServerStream source = ServerApplication.get("pushtest-src").getStream("cam", "live");
+        final PushRelay relay = new PushRelay("rtmp://127.0.0.1:" + port + "/pushtest-dst", source, 64, 1000);
+        source.addPushRelay(relay);
+        relay.start();
+        waitFor(relay, 0);
+        final ServerStream target = ServerApplication.get("pushtest-dst").getStream("cam");
+        assertTrue(target.isLive());
+        assertNotNull(target.getPublisher());
+
+        source.broadcast(video(0, false)); // not decodable without a keyframe first
+        for(int i = 1; i <= 10; i++) {
+            source.broadcast(video(i * 40, i == 1));
+        }
+        waitFor(relay, 10);
+        assertEquals(1, relay.getDroppedCount());
+        assertEquals(0, relay.getLag());
+
+        target.getPublisher().close(); // downstream goes away, relay reconnects
+        final long end = System.currentTimeMillis() + 10000;
+        while(relay.getReconnectCount() == 0) {
+            assertTrue(System.currentTimeMillis() < end);
+            Thread.sleep(20);
+        }
+        waitFor(relay, 10);
+        source.broadcast(video(1000, true));
+        waitFor(relay, 11);
+
+        source.closePushRelays();
+        server.close().awaitUninterruptibly();
+    }
+
+}
@@ -1,9 +1,132 @@
 package com.flazr.rtmp.server;
 
-import org.junit.Ignore;
+import static org.junit.Assert.*;
+
+import com.flazr.io.flv.AsyncFlvWriter;
+import com.flazr.io.flv.FlvAtom;
+import com.flazr.io.flv.FlvReader;
+import com.flazr.rtmp.RtmpConfig;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.RtmpWriter;
+import com.flazr.rtmp.message.MessageType;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.BeforeClass;
+import org.junit.Test;
 
-@Ignore
 public class ServerApplicationTest {
 
+    @BeforeClass
+    public static void useConfigDefaults() {
+        System.setProperty("flazr.home", "../temp/server-application-test"); // no conf, no home dir checks
+    }
+
+    @Test
+    public void testIdleEviction() {
+        final ServerApplication app = ServerApplication.acquire("evicttest");
+        assertSame(app, ServerApplication.get("evicttest"));
+        final ServerStream idle = app.getStream("idle", "live");
+        final ServerStream played = app.acquireStream("played", "live");
+        final long evictedBefore = ServerApplication.getEvictedStreamCount();
+
+        ServerApplication.sweep(System.currentTimeMillis(), 60000); // still within grace
+        assertSame(idle, app.getStream("idle"));
+
+        final long later = System.currentTimeMillis() + 120000;
+        ServerApplication.sweep(later, 60000);
+        assertTrue(idle.isEvicted());
+        assertFalse(idle.acquire());
+        assertFalse(played.isEvicted());
+        assertSame(played, app.getStream("played"));
+        assertNotSame(idle, app.getStream("idle"));
+        assertTrue(ServerApplication.getEvictedStreamCount() >= evictedBefore + 1);
+
+        played.release();
+        app.release();
+        ServerApplication.sweep(later + 120000, 60000);
+        assertTrue(played.isEvicted());
+        assertTrue(app.isEvicted());
+        assertFalse(RtmpServer.APPLICATIONS.containsKey("evicttest"));
+        final ServerApplication recreated = ServerApplication.acquire("evicttest");
+        assertNotSame(app, recreated);
+        recreated.release();
+    }
+
+    @Test
+    public void testOriginUrlIsEncodedAndConfined() throws Exception {
+        final List<String> requested = new CopyOnWriteArrayList<String>();
+        final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override public void handle(final HttpExchange exchange) throws IOException {
+                requested.add(exchange.getRequestURI().getRawPath());
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        final String originUrl = RtmpConfig.SERVER_ORIGIN_URL;
+        RtmpConfig.SERVER_ORIGIN_URL = "http://127.0.0.1:" + server.getAddress().getPort() + "/vod";
+        try {
+            final ServerApplication app = ServerApplication.get("origintest");
+            assertNull(app.getReader("../../etc/passwd"));
+            assertTrue(requested.isEmpty());
+            assertNull(app.getReader("my clip?#")); // not found, but asked for properly
+            assertEquals(1, requested.size());
+            assertEquals("/vod/origintest/my%20clip%3F%23.flv", requested.get(0));
+        } finally {
+            RtmpConfig.SERVER_ORIGIN_URL = originUrl;
+            server.stop(0);
+        }
+    }
+
+    private static void writeFrames(final RtmpWriter writer, final int count) {
+        for(int i = 0; i < count; i++) {
+            final ChannelBuffer data = ChannelBuffers.buffer(20000);
+            data.writeByte(i % 25 == 0 ? 0x12 : 0x22);
+            data.writerIndex(20000);
+            writer.write(new FlvAtom(MessageType.VIDEO, i * 40, data));
+        }
+    }
+
+    @Test
+    public void testRepublishWaitsForRecordingToClose() throws Exception {
+        final String home = RtmpConfig.SERVER_HOME_DIR;
+        RtmpConfig.SERVER_HOME_DIR = "../temp/server-application-test";
+        try {
+            new File(RtmpConfig.SERVER_HOME_DIR + "/apps/recordtest").mkdirs();
+            final ServerApplication app = ServerApplication.get("recordtest");
+            final RtmpWriter first = app.getWriter("cam");
+            assertTrue(first instanceof AsyncFlvWriter);
+            writeFrames(first, 1000);
+            first.close(); // returns with most of the frames still queued
+            final RtmpWriter second = app.getWriter("cam", true);
+            writeFrames(second, 1000); // a new publisher starts at zero again
+            second.close();
+            assertTrue(AsyncFlvWriter.awaitClosed("recordtest/cam", 30000));
+
+            final FlvReader reader = new FlvReader(RtmpConfig.SERVER_HOME_DIR + "/apps/recordtest/cam.flv");
+            int count = 0;
+            int lastTime = -1;
+            while(reader.hasNext()) {
+                final RtmpMessage message = reader.next();
+                assertTrue(message.getHeader().getTime() > lastTime);
+                assertEquals(20000, message.getHeader().getSize());
+                lastTime = message.getHeader().getTime();
+                count++;
+            }
+            reader.close();
+            assertEquals(2000, count);
+        } finally {
+            RtmpConfig.SERVER_HOME_DIR = home;
+        }
+    }
 
 }
@@ -0,0 +1,126 @@
+package com.flazr.rtmp.server;
+
+import static org.junit.Assert.*;
+
+import com.flazr.io.flv.FlvAtom;
+import com.flazr.io.flv.FlvWriter;
+import com.flazr.rtmp.RtmpConfig;
+import com.flazr.rtmp.RtmpDecoder;
+import com.flazr.rtmp.RtmpEncoder;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.client.ClientHandler;
+import com.flazr.rtmp.client.ClientHandshakeHandler;
+import com.flazr.rtmp.client.ClientOptions;
+import com.flazr.rtmp.message.MessageType;
+import com.flazr.rtmp.stats.StatsRegistry;
+import com.flazr.util.NamedThreadFactory;
+import com.flazr.util.Utils;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class VodPlayTest {
+
+    private static final String HOME = "../temp/vod-play-test/home";
+    private static final int COUNT = 50;
+
+    @BeforeClass
+    public static void useConfigDefaults() {
+        System.setProperty("flazr.home", "../temp/vod-play-test"); // no conf, no home dir checks
+    }
+
+    private static class TimesHandler extends ClientHandler {
+
+        private final List<Integer> times = new CopyOnWriteArrayList<Integer>();
+
+        public TimesHandler(final ClientOptions options) {
+            super(options);
+        }
+
+        @Override
+        protected void onMultimedia(final Channel channel, final RtmpMessage message) {
+            if(message.getHeader().getSize() >= 100) {
+                times.add(message.getHeader().getTime());
+            }
+        }
+
+    }
+
+    private static FlvAtom video(final int time) {
+        final ChannelBuffer data = ChannelBuffers.buffer(100);
+        data.writeByte(time == 0 ? 0x12 : 0x22);
+        data.writerIndex(100);
+        return new FlvAtom(MessageType.VIDEO, time, data);
+    }
+
+    @Test
+    public void testPlayThroughMediaExecutor() throws Exception {
+        final String home = RtmpConfig.SERVER_HOME_DIR;
+        RtmpConfig.SERVER_HOME_DIR = HOME;
+        try {
+            new File(HOME + "/apps/vodtest").mkdirs();
+            final FlvWriter writer = new FlvWriter(HOME + "/apps/vodtest/clip.flv");
+            for(int i = 0; i < COUNT; i++) {
+                writer.write(video(i * 10));
+            }
+            writer.close();
+            final long readsBefore = StatsRegistry.getMediaReads().getCount();
+
+            final ServerBootstrap bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(
+                    Executors.newCachedThreadPool(new NamedThreadFactory("test-boss")),
+                    Executors.newCachedThreadPool(new NamedThreadFactory("test-worker"))));
+            bootstrap.setPipelineFactory(new ServerPipelineFactory());
+            final Channel server = bootstrap.bind(new InetSocketAddress("127.0.0.1", 0));
+            final int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+            assertNotNull(MediaExecutor.get());
+
+            final ClientOptions options = new ClientOptions();
+            options.parseUrl("rtmp://127.0.0.1:" + port + "/vodtest/clip");
+            options.setClientVersionToUse(Utils.fromHex("00000000")); // no aggregates, one message per tag
+            final TimesHandler handler = new TimesHandler(options);
+            final ClientBootstrap client = new ClientBootstrap(new NioClientSocketChannelFactory(
+                    Executors.newCachedThreadPool(new NamedThreadFactory("test-client-boss")),
+                    Executors.newCachedThreadPool(new NamedThreadFactory("test-client-worker"))));
+            client.setPipelineFactory(new ChannelPipelineFactory() {
+                @Override public ChannelPipeline getPipeline() {
+                    final ChannelPipeline pipeline = Channels.pipeline();
+                    pipeline.addLast("handshaker", new ClientHandshakeHandler(options));
+                    pipeline.addLast("decoder", new RtmpDecoder());
+                    pipeline.addLast("encoder", new RtmpEncoder());
+                    pipeline.addLast("handler", handler);
+                    return pipeline;
+                }
+            });
+            final Channel channel = client.connect(new InetSocketAddress("127.0.0.1", port))
+                    .awaitUninterruptibly().getChannel();
+            final long end = System.currentTimeMillis() + 10000;
+            while(handler.times.size() < COUNT && System.currentTimeMillis() < end) {
+                Thread.sleep(20);
+            }
+            assertEquals(COUNT, handler.times.size());
+            for(int i = 0; i < COUNT; i++) {
+                assertEquals(i * 10, handler.times.get(i).intValue());
+            }
+            assertTrue(StatsRegistry.getMediaReads().getCount() - readsBefore >= COUNT);
+            channel.close().awaitUninterruptibly();
+            server.close().awaitUninterruptibly();
+        } finally {
+            RtmpConfig.SERVER_HOME_DIR = home;
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+package com.flazr.rtmp.stats;
+
+import static org.junit.Assert.*;
+
+import com.flazr.rtmp.RtmpEncoder;
+import com.flazr.rtmp.message.Video;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        long previous = -1;
+        for(long value = 0; value < 1000000; value += 7) {
+            final int index = LatencyHistogram.getIndex(value);
+            final long upper = LatencyHistogram.getUpperBound(index);
+            assertTrue(value <= upper);
+            assertTrue(upper <= value + value / 4 + 1);
+            assertTrue(upper >= previous);
+            previous = upper;
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for(int i = 1; i <= 1000; i++) {
+            histogram.record(i * 10);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(10000, histogram.getMax());
+        final long p50 = histogram.getPercentile(50);
+        assertTrue(p50 >= 5000 && p50 <= 6250);
+        final long p99 = histogram.getPercentile(99);
+        assertTrue(p99 >= 9900 && p99 <= 10000);
+    }
+
+    @Test
+    public void testEncoderRecordsLatency() {
+        final ConnectionStats stats = new ConnectionStats();
+        final StreamStats stream = new StreamStats("latencytest", "cam", null);
+        stats.setPlaying(stream);
+        final RtmpEncoder encoder = new RtmpEncoder(stats);
+        final Video untraced = Video.empty();
+        encoder.encode(untraced);
+        assertEquals(0, stats.getLatency().getCount());
+        final Video traced = Video.empty();
+        traced.getHeader().setReceiveTime(System.nanoTime() - 2000000);
+        encoder.encode(traced);
+        assertEquals(1, stats.getLatency().getCount());
+        assertEquals(1, stream.getLatency().getCount());
+        assertTrue(stats.getLatencyMax() >= 2000);
+    }
+
+}
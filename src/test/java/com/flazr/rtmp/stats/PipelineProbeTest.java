@@ -0,0 +1,56 @@
+package com.flazr.rtmp.stats;
+
+import static org.junit.Assert.*;
+
+import com.flazr.rtmp.RtmpConfig;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Test;
+
+public class PipelineProbeTest {
+
+    private static class Slow extends SimpleChannelUpstreamHandler {
+
+        private final long millis;
+
+        Slow(final long millis) {
+            this.millis = millis;
+        }
+
+        @Override
+        public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e) throws Exception {
+            Thread.sleep(millis);
+            super.messageReceived(ctx, e);
+        }
+
+    }
+
+    @Test
+    public void testExclusiveTime() {
+        final boolean enabled = RtmpConfig.PIPELINE_PROBES;
+        RtmpConfig.PIPELINE_PROBES = true;
+        try {
+            final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(new Slow(50), new Slow(20));
+            PipelineProbe.addProbes(embedder.getPipeline(), "probetest");
+            embedder.offer("x");
+            assertEquals("x", embedder.poll());
+            final StageStats first = StatsRegistry.getStage("probetest", "0");
+            final StageStats second = StatsRegistry.getStage("probetest", "1");
+            assertEquals(1, first.getInvocations());
+            assertEquals(1, second.getInvocations());
+            final long firstMillis = first.getTotalTime() / 1000000;
+            final long secondMillis = second.getTotalTime() / 1000000;
+            assertTrue("first: " + firstMillis, firstMillis >= 50 && firstMillis < 70);
+            assertTrue("second: " + secondMillis, secondMillis >= 20 && secondMillis < 50);
+            PipelineProbe.removeProbe(embedder.getPipeline(), "0");
+            embedder.offer("y");
+            assertEquals(1, first.getInvocations());
+            assertEquals(2, second.getInvocations());
+        } finally {
+            RtmpConfig.PIPELINE_PROBES = enabled;
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.flazr.rtmp.stats;
+
+import static org.junit.Assert.*;
+
+import com.flazr.io.flv.FlvAtom;
+import com.flazr.rtmp.message.MessageType;
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.junit.Test;
+
+public class StreamStatsTest {
+
+    private static FlvAtom atom(final MessageType type, final int time, final int first) {
+        final ChannelBuffer data = ChannelBuffers.buffer(1000);
+        data.writeByte(first);
+        data.writeByte(1);
+        data.writerIndex(1000);
+        return new FlvAtom(type, time, data);
+    }
+
+    @Test
+    public void testCountersAndRates() throws Exception {
+        final StreamStats stats = new StreamStats("statstest", "cam", new DefaultChannelGroup());
+        final long start = System.currentTimeMillis();
+        stats.sample(start);
+        for(int i = 0; i < 100; i++) { // 4 seconds of 25 fps video, keyframe every 2 seconds
+            stats.onMessage(atom(MessageType.VIDEO, i * 40, i % 50 == 0 ? 0x17 : 0x27), 3);
+            if(i % 2 == 0) {
+                stats.onMessage(atom(MessageType.AUDIO, i * 40, 0xAF), 3);
+            }
+        }
+        stats.sample(start + 4000);
+        assertEquals(25, stats.getVideoFps());
+        assertEquals(12, stats.getAudioFps());
+        assertEquals(2000, stats.getKeyframeInterval());
+        assertEquals(150 * 1000, stats.getBytesIn());
+        assertEquals(3 * 150 * 1000, stats.getBytesOut());
+        assertEquals(150 * 1000 * 8 / 4, stats.getIngestBitrate());
+
+        StatsRegistry.register(stats);
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName("com.flazr:type=Stream,application=\"statstest\",name=\"cam\"");
+        assertEquals(25, server.getAttribute(name, "VideoFps"));
+        StatsRegistry.unregister(stats);
+        assertFalse(server.isRegistered(name));
+    }
+
+}